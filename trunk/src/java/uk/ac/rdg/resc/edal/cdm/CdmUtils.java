@@ -28,8 +28,11 @@
 
 package uk.ac.rdg.resc.edal.cdm;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.FloatBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
@@ -43,9 +46,9 @@ import org.joda.time.chrono.JulianChronology;
 import org.opengis.coverage.grid.GridCoordinates;
 import org.opengis.metadata.extent.GeographicBoundingBox;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.operation.TransformException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import ucar.ma2.Index;
 import ucar.nc2.Attribute;
 import ucar.nc2.Variable;
 import ucar.nc2.constants.AxisType;
@@ -100,9 +103,112 @@ public final class CdmUtils
         CHRONOLOGIES.put("365_day", NoLeapChronology.getInstanceUTC());
     }
 
+    /** Estimated overhead of a read operation on a remote (e.g. OPeNDAP) dataset */
+    private static final long REMOTE_READ_OVERHEAD_BYTES = 1024 * 1024;
+
+    /** Estimated overhead of a read operation on a chunked, compressed dataset */
+    private static final long COMPRESSED_READ_OVERHEAD_BYTES = 64 * 1024;
+
+    /**
+     * The cache of PixelMaps that is shared by all data reads.  Holds around
+     * 32MB of PixelMaps by default.
+     */
+    private static final PixelMapCache PIXEL_MAP_CACHE = new PixelMapCache(32L * 1024 * 1024);
+
+    /**
+     * The cache of decoded chunks of source data that is shared by all data
+     * reads.  Holds around 64MB of data by default.
+     */
+    private static final SourceChunkCache SOURCE_CHUNK_CACHE = new SourceChunkCache(64L * 1024 * 1024);
+
+    /** Set to false for threads whose reads must not use the shared caches */
+    private static final ThreadLocal<Boolean> USE_SHARED_CACHES = new ThreadLocal<Boolean>();
+
     /** Enforce non-instantiability */
     private CdmUtils() { throw new AssertionError(); }
 
+    /**
+     * Returns the cache of {@link PixelMap}s that is shared by all the methods
+     * that read data onto a target domain.
+     */
+    public static PixelMapCache getPixelMapCache()
+    {
+        return PIXEL_MAP_CACHE;
+    }
+
+    /**
+     * Returns the cache of decoded chunks of source data that is shared by
+     * all the methods that read data onto a target domain.
+     */
+    public static SourceChunkCache getSourceChunkCache()
+    {
+        return SOURCE_CHUNK_CACHE;
+    }
+
+    /**
+     * Sets whether reads of data in the calling thread use the shared
+     * {@link #getPixelMapCache() cache of PixelMaps} and {@link
+     * #getSourceChunkCache() cache of source chunks}.  Background tasks that
+     * read whole grids once (e.g. to build overviews) should not use them, so
+     * that they do not evict the entries that serve requests from clients.
+     * The caches are used unless this is called with false.
+     */
+    public static void setUseSharedCaches(boolean useSharedCaches)
+    {
+        USE_SHARED_CACHES.set(useSharedCaches ? null : Boolean.FALSE);
+    }
+
+    /**
+     * Returns false if reads of data in the calling thread must not use the
+     * shared caches.
+     * @see #setUseSharedCaches(boolean)
+     */
+    static boolean isUsingSharedCaches()
+    {
+        return USE_SHARED_CACHES.get() == null;
+    }
+
+    /**
+     * Identifies the file behind the given dataset for the purposes of the
+     * {@link #getSourceChunkCache() cache of source chunks}.  Local files are
+     * identified by their location and modification time, so that chunks are
+     * not reused if the file is rewritten.  The contents of OPeNDAP datasets
+     * and NcML aggregations can change without their location changing, so
+     * these are also identified by the time at which the dataset was last
+     * updated.
+     * @param datasetId The ID of the dataset to which hits and misses in the
+     * cache are attributed, or null to use the location of the file
+     * @param datasetLastModified The time at which the dataset was last
+     * updated in milliseconds, or zero if this is not known
+     * @return an identifier for the file, or null if its chunks cannot be
+     * cached because it has no location, or because it is not a local file
+     * and its last update time is not known
+     */
+    private static SourceChunkCache.Source getChunkSource(NetcdfDataset nc,
+        String datasetId, long datasetLastModified)
+    {
+        String location = nc.getLocation();
+        if (location == null) return null;
+        File file = new File(location);
+        if (!file.isFile() && datasetLastModified == 0) return null;
+        StringBuilder fileId = new StringBuilder(location);
+        if (file.isFile()) fileId.append('@').append(file.lastModified());
+        if (datasetLastModified != 0) fileId.append('#').append(datasetLastModified);
+        return new SourceChunkCache.Source(fileId.toString(),
+            datasetId == null ? location : datasetId);
+    }
+
+    /**
+     * Sets the directory in which the look-up tables for curvilinear grids
+     * are persisted, so that they need not be regenerated each time the
+     * server starts.  If this is null (the default) look-up tables are only
+     * held in memory.
+     */
+    public static void setLookUpTableDirectory(File dir)
+    {
+        LookUpTableGrid.setLutDirectory(dir);
+    }
+
     /**
      * Creates a {@link ReferenceableAxis} from the given {@link CoordinateAxis1D}.
      */
@@ -197,20 +303,44 @@ public final class CdmUtils
 
     /**
      * Estimates the optimum {@link DataReadingStrategy} from the given
-     * NetcdfDataset.  Essentially, if the data are remote (e.g. OPeNDAP) or
-     * compressed, this will return {@link DataReadingStrategy#BOUNDING_BOX},
-     * which makes a single i/o call, minimizing the overhead.  If the data
-     * are local and uncompressed this will return {@link DataReadingStrategy#PIXEL_BY_PIXEL},
-     * which minimize the amount of data read
+     * NetcdfDataset.  This now always returns {@link DataReadingStrategy#ADAPTIVE},
+     * which chooses between the other strategies for each individual read
+     * based upon the {@link #getReadOverheadBytes(ucar.nc2.dataset.NetcdfDataset)
+     * estimated cost of a read operation} on the dataset and the statistics of
+     * the {@link PixelMap} for the read.
      * @param nc The NetcdfDataset from which data will be read.
      * @return an optimum DataReadingStrategy for reading from the dataset
      */
     public static DataReadingStrategy getOptimumDataReadingStrategy(NetcdfDataset nc)
     {
+        return DataReadingStrategy.ADAPTIVE;
+    }
+
+    /**
+     * Estimates the overhead of a single read operation on the given dataset,
+     * expressed as the equivalent number of bytes of data read.  Remote datasets
+     * (e.g. OPeNDAP) have a very large overhead per read because of the network
+     * round trip.  For chunked and compressed formats (e.g. NetCDF-4, HDF5, GRIB)
+     * every read has to decompress at least one whole chunk.  (This version of
+     * the NetCDF libraries does not expose the chunk sizes or deflate level
+     * of individual variables so we use the file type as a proxy.)  Local
+     * NetCDF-3 and HDF4 files have a low overhead per read.
+     * @see DataReadingStrategy#readDataAsArray(int, int,
+     * uk.ac.rdg.resc.edal.coverage.grid.HorizontalGrid,
+     * uk.ac.rdg.resc.edal.coverage.domain.Domain, ucar.nc2.dt.GridDatatype, long)
+     */
+    public static long getReadOverheadBytes(NetcdfDataset nc)
+    {
+        String location = nc.getLocation();
+        if (location != null && (location.startsWith("http:") ||
+            location.startsWith("https:") || location.startsWith("dods:")))
+        {
+            return REMOTE_READ_OVERHEAD_BYTES;
+        }
         String fileType = nc.getFileTypeId();
         return "netCDF".equals(fileType) || "HDF4".equals(fileType)
-            ? DataReadingStrategy.PIXEL_BY_PIXEL
-            : DataReadingStrategy.BOUNDING_BOX;
+            ? DataReadingStrategy.LOCAL_READ_OVERHEAD_BYTES
+            : COMPRESSED_READ_OVERHEAD_BYTES;
     }
 
     /**
@@ -338,11 +468,26 @@ public final class CdmUtils
     public static List<Float> readHorizontalPoints(NetcdfDataset nc, String varId,
             int tIndex, int zIndex, Domain<HorizontalPosition> targetDomain)
             throws IOException
+    {
+        return CollectionUtils.nullableListFromFloatArray(
+            readHorizontalPointsAsArray(nc, varId, tIndex, zIndex, targetDomain));
+    }
+
+    /**
+     * Reads a set of points at a given time and elevation from the given
+     * GridDatatype, as {@link #readHorizontalPoints(ucar.nc2.dataset.NetcdfDataset,
+     * java.lang.String, int, int, uk.ac.rdg.resc.edal.coverage.domain.Domain)}
+     * but returning an array in which missing values are represented by NaNs.
+     */
+    public static float[] readHorizontalPointsAsArray(NetcdfDataset nc, String varId,
+            int tIndex, int zIndex, Domain<HorizontalPosition> targetDomain)
+            throws IOException
     {
         GridDatatype grid = getGridDatatype(nc, varId);
         HorizontalGrid sourceGrid = createHorizontalGrid(grid.getCoordinateSystem());
         DataReadingStrategy strategy = getOptimumDataReadingStrategy(nc);
-        return strategy.readData(tIndex, zIndex, sourceGrid, targetDomain, grid);
+        return strategy.readDataAsArray(tIndex, zIndex, sourceGrid, targetDomain,
+            grid, new RangesList(grid), getReadOverheadBytes(nc), getChunkSource(nc, null, 0));
     }
 
     /**
@@ -369,10 +514,147 @@ public final class CdmUtils
             HorizontalGrid sourceGrid, int tIndex, int zIndex,
             Domain<HorizontalPosition> targetDomain)
             throws IOException
+    {
+        return CollectionUtils.nullableListFromFloatArray(
+            readHorizontalPointsAsArray(nc, varId, sourceGrid, tIndex, zIndex, targetDomain));
+    }
+
+    /**
+     * Reads a set of points at a given time and elevation from the given
+     * GridDatatype, as {@link #readHorizontalPoints(ucar.nc2.dataset.NetcdfDataset,
+     * java.lang.String, uk.ac.rdg.resc.edal.coverage.grid.HorizontalGrid, int,
+     * int, uk.ac.rdg.resc.edal.coverage.domain.Domain)} but returning an
+     * array in which missing values are represented by NaNs.
+     */
+    public static float[] readHorizontalPointsAsArray(NetcdfDataset nc, String varId,
+            HorizontalGrid sourceGrid, int tIndex, int zIndex,
+            Domain<HorizontalPosition> targetDomain)
+            throws IOException
     {
         GridDatatype grid = getGridDatatype(nc, varId);
         DataReadingStrategy strategy = getOptimumDataReadingStrategy(nc);
-        return strategy.readData(tIndex, zIndex, sourceGrid, targetDomain, grid);
+        return strategy.readDataAsArray(tIndex, zIndex, sourceGrid, targetDomain,
+            grid, new RangesList(grid), getReadOverheadBytes(nc), getChunkSource(nc, null, 0));
+    }
+
+    /**
+     * Reads a set of points at a given time and elevation from a dataset that
+     * has been obtained from a {@link GridDatasetCache}, reusing the metadata
+     * objects that are held in the cache entry.
+     * @return an array of floating point numbers, one for each point in the
+     * {@code targetDomain}, in the same order.  Missing values (e.g. land pixels
+     * in oceanography data} are represented as NaNs.
+     * @throws IllegalArgumentException if there is no variable in the dataset
+     * with the id {@code varId}.
+     * @throws IOException if there was an error reading data from the data source
+     * @see #readHorizontalPointsAsArray(ucar.nc2.dataset.NetcdfDataset,
+     * java.lang.String, uk.ac.rdg.resc.edal.coverage.grid.HorizontalGrid, int,
+     * int, uk.ac.rdg.resc.edal.coverage.domain.Domain)
+     */
+    public static float[] readHorizontalPointsAsArray(GridDatasetCache.Entry ds,
+            String varId, HorizontalGrid sourceGrid, int tIndex, int zIndex,
+            Domain<HorizontalPosition> targetDomain)
+            throws IOException
+    {
+        return readHorizontalPointsAsArray(ds, null, 0, varId, sourceGrid, tIndex,
+            zIndex, targetDomain);
+    }
+
+    /**
+     * Reads a set of points at a given time and elevation from a dataset that
+     * has been obtained from a {@link GridDatasetCache}, as
+     * {@link #readHorizontalPointsAsArray(GridDatasetCache.Entry, String,
+     * HorizontalGrid, int, int, Domain)}.
+     * @param datasetId The ID of the dataset to which the file belongs, which
+     * is used to record the hit rate of the {@link #getSourceChunkCache()
+     * cache of source chunks}, or null to record against the file's location
+     * @param datasetLastModified The time at which the dataset was last
+     * updated in milliseconds, which identifies the version of an OPeNDAP
+     * dataset or NcML aggregation in the cache of source chunks, or zero if
+     * the contents of the source can be identified by its location alone
+     */
+    public static float[] readHorizontalPointsAsArray(GridDatasetCache.Entry ds,
+            String datasetId, long datasetLastModified, String varId,
+            HorizontalGrid sourceGrid, int tIndex,
+            int zIndex, Domain<HorizontalPosition> targetDomain)
+            throws IOException
+    {
+        GridDatatype grid = ds.getGridDatatype(varId);
+        NetcdfDataset nc = ds.getNetcdfDataset();
+        DataReadingStrategy strategy = getOptimumDataReadingStrategy(nc);
+        return strategy.readDataAsArray(tIndex, zIndex, sourceGrid, targetDomain,
+            grid, ds.getRangesList(grid), getReadOverheadBytes(nc),
+            getChunkSource(nc, datasetId, datasetLastModified));
+    }
+
+    /**
+     * Estimates the number of points of the source grid that lie along each
+     * side of a pixel of the target domain, from the mean spacing of the
+     * source grid points that are sampled by the target domain.  Values much
+     * greater than one mean that the target domain is much coarser than the
+     * source grid, so data could be read from a reduced-resolution copy of
+     * the source.
+     * @return the number of source grid points per pixel in the direction in
+     * which the pixels are smaller, or zero if the target domain samples fewer
+     * than two rows or columns of the source grid.
+     */
+    public static double getSourcePointsPerPixel(HorizontalGrid sourceGrid,
+            Domain<HorizontalPosition> targetDomain)
+    {
+        PixelMap pixelMap = getPixelMap(sourceGrid, targetDomain);
+        int numColumns = pixelMap.getDistinctIIndices().length;
+        int numRows = pixelMap.getNumRows();
+        if (numColumns < 2 || numRows < 2) return 0.0;
+        double iSpacing = (double)(pixelMap.getMaxIIndex() - pixelMap.getMinIIndex()) / (numColumns - 1);
+        double jSpacing = (double)(pixelMap.getMaxJIndex() - pixelMap.getMinJIndex()) / (numRows - 1);
+        return Math.min(iSpacing, jSpacing);
+    }
+
+    /**
+     * Reads a set of points from a grid of values that is held in a buffer,
+     * such as a memory-mapped file, rather than in a NetCDF dataset.
+     * @param sourceGrid The grid of the values
+     * @param values The values in row-major order, with the x index varying
+     * fastest.  Only the absolute get methods of the buffer are used, so the
+     * buffer may be shared between threads.
+     * @return an array of floating point numbers, one for each point in the
+     * {@code targetDomain}, in the same order.  Missing values are represented
+     * as NaNs.
+     */
+    public static float[] readHorizontalPointsAsArray(RegularGrid sourceGrid,
+            FloatBuffer values, Domain<HorizontalPosition> targetDomain)
+    {
+        float[] picData = new float[targetDomain.getDomainObjects().size()];
+        Arrays.fill(picData, Float.NaN);
+        PixelMap pixelMap = getPixelMap(sourceGrid, targetDomain);
+        int width = sourceGrid.getXAxis().getSize();
+        for (int row = 0; row < pixelMap.getNumRows(); row++)
+        {
+            int rowOffset = pixelMap.getRowJIndex(row) * width;
+            for (int pair = pixelMap.getRowStart(row); pair < pixelMap.getRowEnd(row); pair++)
+            {
+                float val = values.get(rowOffset + pixelMap.getIIndex(pair));
+                for (int p = pixelMap.getPixelStart(pair); p < pixelMap.getPixelEnd(pair); p++)
+                {
+                    picData[pixelMap.getPixelIndex(p)] = val;
+                }
+            }
+        }
+        return picData;
+    }
+
+    private static PixelMap getPixelMap(HorizontalGrid sourceGrid,
+            Domain<HorizontalPosition> targetDomain)
+    {
+        try
+        {
+            if (!isUsingSharedCaches()) return new PixelMap(sourceGrid, targetDomain);
+            return PIXEL_MAP_CACHE.getPixelMap(sourceGrid, targetDomain);
+        }
+        catch (TransformException te)
+        {
+            throw new RuntimeException(te);
+        }
     }
 
     public static GridDatatype getGridDatatype(NetcdfDataset nc, String varId)
@@ -411,6 +693,31 @@ public final class CdmUtils
             throws IOException
     {
         GridDatatype grid = getGridDatatype(nc, varId);
+        return readTimeseries(grid, new RangesList(grid), horizGrid, tIndices, zIndex, xy);
+    }
+
+    /**
+     * Reads a timeseries of points from a dataset that has been obtained from
+     * a {@link GridDatasetCache}, reusing the metadata objects that are held
+     * in the cache entry.
+     * @see #readTimeseries(ucar.nc2.dataset.NetcdfDataset, java.lang.String,
+     * uk.ac.rdg.resc.edal.coverage.grid.HorizontalGrid, java.util.List, int,
+     * uk.ac.rdg.resc.edal.geometry.HorizontalPosition)
+     */
+    public static List<Float> readTimeseries(GridDatasetCache.Entry ds, String varId,
+            HorizontalGrid horizGrid, List<Integer> tIndices,
+            int zIndex, HorizontalPosition xy)
+            throws IOException
+    {
+        GridDatatype grid = ds.getGridDatatype(varId);
+        return readTimeseries(grid, ds.getRangesList(grid), horizGrid, tIndices, zIndex, xy);
+    }
+
+    private static List<Float> readTimeseries(GridDatatype grid, RangesList rangesList,
+            HorizontalGrid horizGrid, List<Integer> tIndices,
+            int zIndex, HorizontalPosition xy)
+            throws IOException
+    {
         GridCoordinates gridCoords = horizGrid.findNearestGridPoint(xy);
         if (gridCoords == null)
         {
@@ -424,7 +731,6 @@ public final class CdmUtils
         int firstTIndex = tIndices.get(0);
         int lastTIndex = tIndices.get(tIndices.size() - 1);
 
-        RangesList rangesList = new RangesList(grid);
         rangesList.setTRange(firstTIndex, lastTIndex);
         rangesList.setZRange(zIndex, zIndex);
         rangesList.setYRange(j, j);
@@ -439,15 +745,15 @@ public final class CdmUtils
         // Copy the data to the required array, discarding the points we
         // don't need
         List<Float> tsData = new ArrayList<Float>();
-        Index index = dataChunk.getIndex();
-        index.set(new int[index.getRank()]);
+        // Read the data from the chunk, applying enhancement if necessary
+        float[] values = dataChunk.getFloatValues();
+        int tStride = rangesList.getTAxisIndex() < 0 ? 0
+            : dataChunk.getStride(rangesList.getTAxisIndex());
         for (int tIndex : tIndices)
         {
             int tIndexOffset = tIndex - firstTIndex;
             if (tIndexOffset < 0) tIndexOffset = 0; // This will happen if the layer has no t axis
-            index.setDim(rangesList.getTAxisIndex(), tIndexOffset);
-            // Read the data from the chunk, applying enhancement if necessary
-            float val = dataChunk.readFloatValue(index);
+            float val = values[tIndexOffset * tStride];
             // Replace missing values with nulls
             tsData.add(Float.isNaN(val) ? null : val);
         }
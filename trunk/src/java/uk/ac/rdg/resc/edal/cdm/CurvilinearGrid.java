@@ -32,6 +32,9 @@ import uk.ac.rdg.resc.edal.geometry.impl.LonLatPositionImpl;
 import uk.ac.rdg.resc.edal.geometry.LonLatPosition;
 import java.awt.geom.Path2D;
 import java.awt.geom.Point2D;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.EnumSet;
@@ -89,6 +92,9 @@ final class CurvilinearGrid implements Iterable<Cell>
     /** The lat-lon bounding box of the grid */
     private final GeographicBoundingBox latLonBbox;
 
+    /** Lazily-computed hash code */
+    private int hashCode = 0;
+
     private static final Set<Enhance> SCALE_MISSING = EnumSet.of(Enhance.ScaleMissing);
 
     /**
@@ -335,14 +341,60 @@ final class CurvilinearGrid implements Iterable<Cell>
         return this.latLonBbox;
     }
 
-    // TODO: could precompute this
+    /**
+     * Returns a hex-encoded SHA-1 digest of the dimensions and midpoint
+     * coordinates of this grid.  Unlike {@link #hashCode()} this is stable
+     * across restarts of the server, so it can be used to identify data
+     * derived from this grid that has been stored on disk.
+     */
+    public String getDigest()
+    {
+        try
+        {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            ByteBuffer buf = ByteBuffer.allocate(8192);
+            buf.putInt(this.ni).putInt(this.nj);
+            for (float[] arr : new float[][]{this.longitudes, this.latitudes})
+            {
+                for (float f : arr)
+                {
+                    if (buf.remaining() < 4)
+                    {
+                        md.update(buf.array(), 0, buf.position());
+                        buf.clear();
+                    }
+                    buf.putFloat(f);
+                }
+            }
+            md.update(buf.array(), 0, buf.position());
+            StringBuilder sb = new StringBuilder();
+            for (byte b : md.digest())
+            {
+                sb.append(String.format("%02x", b & 0xff));
+            }
+            return sb.toString();
+        }
+        catch (NoSuchAlgorithmException nsae)
+        {
+            // Every Java platform is required to support SHA-1
+            throw new AssertionError(nsae);
+        }
+    }
+
     @Override public int hashCode()
     {
-        int hashCode = 17;
-        hashCode = 31 * hashCode + this.ni;
-        hashCode = 31 * hashCode + this.nj;
-        hashCode = 31 * hashCode + Arrays.hashCode(this.longitudes);
-        hashCode = 31 * hashCode + Arrays.hashCode(this.latitudes);
+        // This object is immutable, and the arrays can be very large, so we
+        // compute the hash code only once
+        int hashCode = this.hashCode;
+        if (hashCode == 0)
+        {
+            hashCode = 17;
+            hashCode = 31 * hashCode + this.ni;
+            hashCode = 31 * hashCode + this.nj;
+            hashCode = 31 * hashCode + Arrays.hashCode(this.longitudes);
+            hashCode = 31 * hashCode + Arrays.hashCode(this.latitudes);
+            this.hashCode = hashCode;
+        }
         return hashCode;
     }
 
@@ -29,24 +29,55 @@
 package uk.ac.rdg.resc.edal.cdm;
 
 import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.WeakHashMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import ucar.ma2.Array;
-import ucar.ma2.Index;
+import ucar.ma2.IndexIterator;
 import ucar.ma2.InvalidRangeException;
 import ucar.nc2.Variable;
 import ucar.nc2.dataset.NetcdfDataset.Enhance;
 import ucar.nc2.dataset.VariableDS;
 
 /**
- * Wraps an {@link Array}, providing a method to read data with enhancement
- * applied if necessary
+ * Wraps an {@link Array}, providing a method to read all its data at once
+ * with enhancement applied if necessary.
+ * <p>Enhancing each value individually (unpacking, then checking for missing
+ * values) costs several virtual calls per value, which dominates the time
+ * taken to read data that are cached or held in the operating system's file
+ * cache.  So the values are converted in bulk, with a loop specialized for
+ * each type of storage:</p>
+ * <ul>
+ * <li>Bytes and shorts (i.e. packed data) are converted through a look-up table
+ * that holds the enhanced value of every possible raw value.  The table is
+ * built once per variable using the variable's own enhancement methods, so
+ * the results are identical to enhancing each value individually.</li>
+ * <li>Floats that need neither unpacking nor missing-value checks are used
+ * as they are.</li>
+ * <li>Other types are enhanced value by value, reading directly from the
+ * storage of the array where possible.</li>
+ * </ul>
  */
 class DataChunk
 {
     private static final Logger log = LoggerFactory.getLogger(DataChunk.class);
 
+    /**
+     * Look-up tables for byte and short data, held for as long as the variable.
+     * Variables are compared by value, so variables with the same name in
+     * different files are equal even if they are packed differently: each
+     * entry therefore holds the tables of all the equal variables, and the
+     * tables for a particular variable are found by identity.
+     */
+    private static final Map<VariableDS, List<LookUpTables>> LOOK_UP_TABLES =
+        new WeakHashMap<VariableDS, List<LookUpTables>>();
+
     private final VariableDS var;
     private final Array arr;
     private final boolean needsEnhance;
@@ -62,6 +93,7 @@ class DataChunk
             throws IOException
     {
         final Array arr;
+        long start = System.nanoTime();
         Variable origVar = var.getOriginalVariable();
         if (origVar == null) {
             // We read from the enhanced variable
@@ -71,6 +103,7 @@ class DataChunk
             // values that we won't use
             arr = readVariable(origVar, ranges);
         }
+        ReadTimings.addReadNanos(System.nanoTime() - start);
 
         // Decide whether or not we need to enhance any data values we
         // read from this array
@@ -108,21 +141,143 @@ class DataChunk
         }
     }
 
-    /** Gets an Index for the underlying Array */
-    public Index getIndex() {
-        return this.arr.getIndex();
+    /**
+     * Gets the distance between neighbouring values along the given dimension
+     * in the array returned by {@link #getFloatValues()}.
+     */
+    public int getStride(int dim) {
+        int[] shape = this.arr.getShape();
+        int stride = 1;
+        for (int d = shape.length - 1; d > dim; d--) {
+            stride *= shape[d];
+        }
+        return stride;
+    }
+
+    /**
+     * Reads all the data values as floats, applying scale/offset if required.
+     * The values are in row-major order (i.e. the last dimension varies
+     * fastest): use {@link #getStride(int)} to find the position of a value.
+     * @return the data values, with missing values represented by
+     * {@link Float#NaN}.  The array may share storage with the underlying
+     * {@link Array}, so this method should only be called once.
+     */
+    public float[] getFloatValues() {
+        long start = System.nanoTime();
+        float[] values = this.convertValues();
+        ReadTimings.addUnpackNanos(System.nanoTime() - start);
+        return values;
+    }
+
+    private float[] convertValues() {
+        Class<?> type = this.arr.getElementType();
+        if (type == short.class) {
+            short[] raw = (short[])this.arr.get1DJavaArray(short.class);
+            float[] table = this.getLookUpTable(true);
+            float[] values = new float[raw.length];
+            for (int n = 0; n < raw.length; n++) {
+                values[n] = table[raw[n] & 0xffff];
+            }
+            return values;
+        } else if (type == byte.class) {
+            byte[] raw = (byte[])this.arr.get1DJavaArray(byte.class);
+            float[] table = this.getLookUpTable(false);
+            float[] values = new float[raw.length];
+            for (int n = 0; n < raw.length; n++) {
+                values[n] = table[raw[n] & 0xff];
+            }
+            return values;
+        } else if (type == float.class) {
+            float[] values = (float[])this.arr.get1DJavaArray(float.class);
+            // If there are no missing values the only ones we need to detect
+            // are NaNs, which need no conversion
+            if (this.needsEnhance || this.var.hasMissing()) {
+                for (int n = 0; n < values.length; n++) {
+                    values[n] = this.enhance(values[n]);
+                }
+            }
+            return values;
+        } else if (type == double.class) {
+            double[] raw = (double[])this.arr.get1DJavaArray(double.class);
+            float[] values = new float[raw.length];
+            for (int n = 0; n < raw.length; n++) {
+                values[n] = this.enhance((float)raw[n]);
+            }
+            return values;
+        } else {
+            float[] values = new float[(int)this.arr.getSize()];
+            IndexIterator it = this.arr.getIndexIterator();
+            for (int n = 0; n < values.length; n++) {
+                values[n] = this.enhance(it.getFloatNext());
+            }
+            return values;
+        }
     }
 
     /**
-     * Reads a data value as a float, applying scale/offset if required.
+     * Applies scale/offset to a single value if required.
      * @return the data value, or {@link Float#NaN} if this is a missing value
      */
-    public float readFloatValue(Index index) {
-        double val = arr.getFloat(index);
+    private float enhance(float raw) {
+        double val = raw;
         if (this.needsEnhance) {
             val = this.var.convertScaleOffsetMissing(val);
         }
         if (this.var.isMissing(val)) return Float.NaN;
         else return (float)val;
     }
-}
\ No newline at end of file
+
+    /**
+     * Gets the table of enhanced values for every raw short (or byte) value,
+     * indexed by the raw value's bits as an unsigned number.
+     */
+    private float[] getLookUpTable(boolean isShort) {
+        LookUpTables tables = null;
+        synchronized(LOOK_UP_TABLES) {
+            List<LookUpTables> equalVars = LOOK_UP_TABLES.get(this.var);
+            if (equalVars == null) {
+                equalVars = new ArrayList<LookUpTables>(1);
+                LOOK_UP_TABLES.put(this.var, equalVars);
+            }
+            Iterator<LookUpTables> it = equalVars.iterator();
+            while (it.hasNext()) {
+                LookUpTables t = it.next();
+                VariableDS v = t.var.get();
+                if (v == null) it.remove();
+                else if (v == this.var) tables = t;
+            }
+            if (tables == null) {
+                tables = new LookUpTables(this.var);
+                equalVars.add(tables);
+            }
+        }
+        // The same variable may be read both with and without enhancement,
+        // and its values may be signed or unsigned
+        int key = (isShort ? 4 : 0) + (this.needsEnhance ? 2 : 0) + (this.arr.isUnsigned() ? 1 : 0);
+        synchronized(tables) {
+            if (tables.tables[key] == null) {
+                int size = isShort ? 65536 : 256;
+                float[] table = new float[size];
+                for (int bits = 0; bits < size; bits++) {
+                    // Matches Array.getFloat(): the raw value is signed
+                    // unless the array is unsigned
+                    int raw = this.arr.isUnsigned() ? bits
+                            : isShort ? (short)bits : (byte)bits;
+                    table[bits] = this.enhance(raw);
+                }
+                tables.tables[key] = table;
+            }
+            return tables.tables[key];
+        }
+    }
+
+    private static final class LookUpTables {
+        /** Weak, so that the tables of other variables don't keep this one alive */
+        private final WeakReference<VariableDS> var;
+        private final float[][] tables = new float[8][];
+
+        private LookUpTables(VariableDS var) {
+            this.var = new WeakReference<VariableDS>(var);
+        }
+    }
+}
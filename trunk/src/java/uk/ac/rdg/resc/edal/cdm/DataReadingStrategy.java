@@ -28,19 +28,22 @@
 package uk.ac.rdg.resc.edal.cdm;
 
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import org.opengis.referencing.operation.TransformException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import ucar.ma2.Index;
+import ucar.nc2.Variable;
 import ucar.nc2.dataset.VariableDS;
 import ucar.nc2.dt.GridDatatype;
 import uk.ac.rdg.resc.edal.coverage.domain.Domain;
 import uk.ac.rdg.resc.edal.coverage.grid.HorizontalGrid;
 import uk.ac.rdg.resc.edal.geometry.HorizontalPosition;
+import uk.ac.rdg.resc.edal.util.CollectionUtils;
 import uk.ac.rdg.resc.ncwms.config.datareader.DataReader;
 
 /**
@@ -51,8 +54,8 @@ import uk.ac.rdg.resc.ncwms.config.datareader.DataReader;
  * <p>A variety of strategies are possible for reading these data points:</p>
  *
  * <h3>Strategy 1: read data points one at a time</h3>
- * <p>Read each data point individually by iterating through {@link PixelMap#getJIndices}
- *    and {@link PixelMap#getIIndices}.  This minimizes the memory footprint as the minimum
+ * <p>Read each data point individually by iterating through the rows of the
+ *    {@link PixelMap} and the i-j pairs within each row.  This minimizes the memory footprint as the minimum
  *    amount of data is read from disk.  However, in general this method is inefficient
  *    as it maximizes the overhead of the low-level data extraction code by making
  *    a large number of small data extractions.  This is the {@link #PIXEL_BY_PIXEL
@@ -79,10 +82,10 @@ import uk.ac.rdg.resc.ncwms.config.datareader.DataReader;
  *       of the low-level data extraction code, works as follows:
  *       <ol>
  *          <li>Iterate through each row (i.e. each j index) that is represented in
- *              the PixelMap using {@link PixelMap#getJIndices}.</li>
+ *              the PixelMap using {@link PixelMap#getNumRows}.</li>
  *          <li>For each j index, extract data from the minimum to the maximum i index
- *              in this row (a "scanline") using {@link PixelMap#getMinIIndexInRow} and
- *              {@link PixelMap#getMaxIIndexInRow}.  (This assumes that the data are stored with the i
+ *              in this row (a "scanline"), i.e. from the first to the last i index
+ *              in the (sorted) row.  (This assumes that the data are stored with the i
  *              dimension varying fastest, meaning that the scanline represents
  *              contiguous data in the source files.)</li>
  *       </ol>
@@ -94,6 +97,47 @@ import uk.ac.rdg.resc.ncwms.config.datareader.DataReader;
  * amount of "wasted data" (i.e. grey squares) than in Strategy 2, and there are
  * much fewer individual read operations than in Strategy 1.</p>
  * <img src="doc-files/pixelmap_scanline.png">
+ *
+ * <h3>Strategy 4: choose a strategy for each read</h3>
+ * <p>None of the above strategies is best in all cases: the scanline strategy
+ *       reads a great deal of unwanted data for zoomed-out images of high-resolution
+ *       grids, whereas the bounding-box strategy wastes i/o on zoomed-in images
+ *       that only sample a few source points.  The {@link #ADAPTIVE adaptive}
+ *       strategy uses {@link PixelMap#getNumUniqueIJPairs},
+ *       {@link PixelMap#getSumRowLengths} and {@link PixelMap#getBoundingBoxSize}
+ *       to estimate the number of bytes read and the number of individual
+ *       read operations that each of the above strategies would need, weighs
+ *       these against the overhead of a single read operation on the data
+ *       source (see {@link #readDataAsArray(int, int,
+ *       uk.ac.rdg.resc.edal.coverage.grid.HorizontalGrid,
+ *       uk.ac.rdg.resc.edal.coverage.domain.Domain, ucar.nc2.dt.GridDatatype, long)
+ *       readDataAsArray()}) and uses the cheapest.  The strategy that was
+ *       actually used to read the data can be found through
+ *       {@link #getLastUsed()}.</p>
+ *
+ * <h3>Strategy 5: read every nth data point</h3>
+ * <p>When a zoomed-out image samples a high-resolution grid, the image pixels
+ *       usually fall on a regular lattice of source points: every nth column of
+ *       every mth row.  The {@link #STRIDED strided} strategy reads exactly this
+ *       lattice in a single operation, using a {@link ucar.ma2.Range} with a
+ *       stride for each axis, so the amount of data read is proportional to
+ *       the size of the image rather than the size of the bounding box.  If the
+ *       sampling is irregular (e.g. because the image resolution is not an
+ *       exact multiple of the grid resolution) the stride is the smallest gap
+ *       between the sampled points, and the points that are not on the
+ *       lattice are read separately, so the data are always exact.  The
+ *       adaptive strategy only chooses this strategy when every sampled point
+ *       is on the lattice.</p>
+ *
+ * <h3>Strategy 6: assemble the data from cached chunks</h3>
+ * <p>Neighbouring tiles, and tiles at neighbouring zoom levels, often need data
+ *       from the same part of the source grid.  The {@link #CHUNKED chunked}
+ *       strategy reads whole chunks of the source grid through the shared
+ *       {@link SourceChunkCache} (see {@link CdmUtils#getSourceChunkCache()}),
+ *       so that each chunk is only read (and decompressed) once.  The adaptive
+ *       strategy chooses this for dense reads (i.e. when it would otherwise
+ *       read the bounding box) and for any read whose missing chunks are
+ *       cheaper to read than the data that the other strategies would read.</p>
  * @author Jon
  */
 public enum DataReadingStrategy
@@ -106,52 +150,49 @@ public enum DataReadingStrategy
      */
     SCANLINE {
         @Override
-        protected void populatePixelArray(List<Float> picData,
-            PixelMap pixelMap, VariableDS var, RangesList ranges)
-            throws IOException
+        protected void populatePixelArray(float[] picData,
+            PixelMap pixelMap, VariableDS var, RangesList ranges,
+            SourceChunkCache.Source source) throws IOException
         {
             logger.debug("Reading data using a scanline algorithm");
             // Cycle through the y indices, extracting a scanline of
             // data each time from minX to maxX
             logger.debug("Shape of grid: {}", Arrays.toString(var.getShape()));
 
-            for (int j : pixelMap.getJIndices())
+            for (int row = 0; row < pixelMap.getNumRows(); row++)
             {
+                int j = pixelMap.getRowJIndex(row);
+                int rowStart = pixelMap.getRowStart(row);
+                int rowEnd = pixelMap.getRowEnd(row);
                 ranges.setYRange(j, j);
-                // Read a row of data from the source
-                int imin = pixelMap.getMinIIndexInRow(j);
-                int imax = pixelMap.getMaxIIndexInRow(j);
+                // Read a row of data from the source.  The i indices in
+                // each row are sorted.
+                int imin = pixelMap.getIIndex(rowStart);
+                int imax = pixelMap.getIIndex(rowEnd - 1);
                 ranges.setXRange(imin, imax);
 
                 logger.debug(ranges.toString());
 
-                // Read a chunk of data - values will not be unpacked or
-                // checked for missing values yet
+                // Read a chunk of data and unpack it
                 DataChunk dataChunk = DataChunk.readDataChunk(var, ranges);
-
-                // Get an index for the array and set it to zero
-                Index index = dataChunk.getIndex();
-                index.set(new int[index.getRank()]);
+                float[] values = dataChunk.getFloatValues();
+                int xStride = dataChunk.getStride(ranges.getXAxisIndex());
 
                 // Now copy the scanline's data to the picture array
-                Set<Integer> iIndices = pixelMap.getIIndices(j);
-                for (int i : iIndices) {
-                    index.setDim(ranges.getXAxisIndex(), i - imin);
-                    float val = dataChunk.readFloatValue(index);
+                for (int pair = rowStart; pair < rowEnd; pair++)
+                {
+                    float val = values[(pixelMap.getIIndex(pair) - imin) * xStride];
 
                     // Now we set the value of all the image pixels associated with
                     // this data point.
-                    if (!Float.isNaN(val)) {
-                        for (int p : pixelMap.getPixelIndices(i, j)) {
-                            picData.set(p, val);
-                        }
+                    if (!Float.isNaN(val))
+                    {
+                        setPixels(picData, pixelMap, pair, val);
                     }
                 }
             }
         }
 
-        @Override
-        protected boolean sortPixelMap() { return false; }
     },
 
     /**
@@ -161,9 +202,9 @@ public enum DataReadingStrategy
      */
     BOUNDING_BOX {
         @Override
-        protected void populatePixelArray(List<Float> picData,
-            PixelMap pixelMap, VariableDS var, RangesList ranges)
-            throws IOException
+        protected void populatePixelArray(float[] picData,
+            PixelMap pixelMap, VariableDS var, RangesList ranges,
+            SourceChunkCache.Source source) throws IOException
         {
             logger.debug("Reading data using a bounding-box algorithm");
             // Read the whole chunk of x-y data
@@ -182,28 +223,23 @@ public enum DataReadingStrategy
             logger.debug("Read data using bounding box algorithm in {} milliseconds", (readData - start));
 
             // Now extract the information we need from the data array
-            Index index = dataChunk.getIndex();
-            index.set(new int[index.getRank()]);
-            for (int j : pixelMap.getJIndices())
+            float[] values = dataChunk.getFloatValues();
+            int xStride = dataChunk.getStride(ranges.getXAxisIndex());
+            int yStride = dataChunk.getStride(ranges.getYAxisIndex());
+            for (int row = 0; row < pixelMap.getNumRows(); row++)
             {
-                index.setDim(ranges.getYAxisIndex(), j - jmin);
-                for (int i : pixelMap.getIIndices(j))
+                int rowOffset = (pixelMap.getRowJIndex(row) - jmin) * yStride;
+                for (int pair = pixelMap.getRowStart(row); pair < pixelMap.getRowEnd(row); pair++)
                 {
-                    index.setDim(ranges.getXAxisIndex(), i - imin);
-                    float val = dataChunk.readFloatValue(index);
+                    float val = values[rowOffset + (pixelMap.getIIndex(pair) - imin) * xStride];
                     if (!Float.isNaN(val))
                     {
-                        for (int pixelIndex : pixelMap.getPixelIndices(i, j))
-                        {
-                            picData.set(pixelIndex, val);
-                        }
+                        setPixels(picData, pixelMap, pair, val);
                     }
                 }
             }
         }
 
-        @Override
-        protected boolean sortPixelMap() { return false; }
     },
 
     /**
@@ -212,57 +248,323 @@ public enum DataReadingStrategy
      */
     PIXEL_BY_PIXEL {
         @Override
-        protected void populatePixelArray(List<Float> picData,
-            PixelMap pixelMap, VariableDS var, RangesList ranges)
-            throws IOException
+        protected void populatePixelArray(float[] picData,
+            PixelMap pixelMap, VariableDS var, RangesList ranges,
+            SourceChunkCache.Source source) throws IOException
         {
             logger.debug("Reading data using a pixel-by-pixel algorithm");
             long start = System.currentTimeMillis();
 
             // Now create the picture from the data array
-            for (int j : pixelMap.getJIndices())
+            for (int row = 0; row < pixelMap.getNumRows(); row++)
             {
+                int j = pixelMap.getRowJIndex(row);
                 ranges.setYRange(j, j);
-                for (int i : pixelMap.getIIndices(j))
+                for (int pair = pixelMap.getRowStart(row); pair < pixelMap.getRowEnd(row); pair++)
                 {
+                    int i = pixelMap.getIIndex(pair);
                     ranges.setXRange(i, i);
                     DataChunk dataChunk = DataChunk.readDataChunk(var, ranges);
-                    // Get an index and set all elements to zero
-                    Index index = dataChunk.getIndex();
-                    index.set(new int[index.getRank()]);
-                    float val = dataChunk.readFloatValue(index);
+                    float val = dataChunk.getFloatValues()[0];
                     if (!Float.isNaN(val))
                     {
-                        for (int pixelIndex : pixelMap.getPixelIndices(i, j))
-                        {
-                            picData.set(pixelIndex, val);
-                        }
+                        setPixels(picData, pixelMap, pair, val);
                     }
                 }
             }
             logger.debug("Read data pixel-by-pixel in {} ms",
                 (System.currentTimeMillis() - start));
         }
+    },
 
-        /** Data reading is faster if the pixel map is sorted */
+    /**
+     * Reads a regular lattice of data points (every nth point along each axis)
+     * in a single operation, then subsets in memory.  Recommended for images
+     * that sample a high-resolution grid sparsely at regular intervals.  If
+     * the sampling is not regular, the gaps are filled by further reads: each
+     * column whose i index is not on the lattice is read on the lattice rows,
+     * and each row whose j index is not on the lattice is read as a scanline.
+     */
+    STRIDED {
         @Override
-        protected boolean sortPixelMap() { return true; }
+        protected void populatePixelArray(float[] picData,
+            PixelMap pixelMap, VariableDS var, RangesList ranges,
+            SourceChunkCache.Source source) throws IOException
+        {
+            logger.debug("Reading data using a strided algorithm");
+            int[] shape = var.getShape();
+            Decimation xDec = Decimation.fit(pixelMap.getDistinctIIndices(),
+                shape[ranges.getXAxisIndex()]);
+            Decimation yDec = Decimation.fit(pixelMap.getDistinctJIndices(),
+                shape[ranges.getYAxisIndex()]);
+            ranges.setXRange(xDec.first, xDec.getLast(), xDec.stride);
+            ranges.setYRange(yDec.first, yDec.getLast(), yDec.stride);
+            logger.debug(ranges.toString());
+
+            DataChunk dataChunk = DataChunk.readDataChunk(var, ranges);
+            float[] values = dataChunk.getFloatValues();
+            int xStride = dataChunk.getStride(ranges.getXAxisIndex());
+            int yStride = dataChunk.getStride(ranges.getYAxisIndex());
+            // Columns that are not on the lattice, read on the lattice rows
+            // when they are first needed
+            Map<Integer, float[]> gapColumns = new HashMap<Integer, float[]>();
+            for (int row = 0; row < pixelMap.getNumRows(); row++)
+            {
+                int j = pixelMap.getRowJIndex(row);
+                int rowStart = pixelMap.getRowStart(row);
+                int rowEnd = pixelMap.getRowEnd(row);
+                if (!yDec.contains(j))
+                {
+                    // Fill the gap with a scanline
+                    int imin = pixelMap.getIIndex(rowStart);
+                    int imax = pixelMap.getIIndex(rowEnd - 1);
+                    ranges.setXRange(imin, imax);
+                    ranges.setYRange(j, j);
+                    DataChunk scanline = DataChunk.readDataChunk(var, ranges);
+                    float[] rowValues = scanline.getFloatValues();
+                    int rowStride = scanline.getStride(ranges.getXAxisIndex());
+                    for (int pair = rowStart; pair < rowEnd; pair++)
+                    {
+                        float val = rowValues[(pixelMap.getIIndex(pair) - imin) * rowStride];
+                        if (!Float.isNaN(val))
+                        {
+                            setPixels(picData, pixelMap, pair, val);
+                        }
+                    }
+                    continue;
+                }
+                int yPos = yDec.indexOf(j);
+                int rowOffset = yPos * yStride;
+                for (int pair = rowStart; pair < rowEnd; pair++)
+                {
+                    int i = pixelMap.getIIndex(pair);
+                    float val;
+                    if (xDec.contains(i))
+                    {
+                        val = values[rowOffset + xDec.indexOf(i) * xStride];
+                    }
+                    else
+                    {
+                        float[] column = gapColumns.get(i);
+                        if (column == null)
+                        {
+                            column = readColumn(var, ranges, i, yDec);
+                            gapColumns.put(i, column);
+                        }
+                        val = column[yPos];
+                    }
+                    if (!Float.isNaN(val))
+                    {
+                        setPixels(picData, pixelMap, pair, val);
+                    }
+                }
+            }
+        }
+
+        /** Reads the values in column i on the rows of the given lattice */
+        private float[] readColumn(VariableDS var, RangesList ranges, int i,
+            Decimation yDec) throws IOException
+        {
+            ranges.setXRange(i, i);
+            ranges.setYRange(yDec.first, yDec.getLast(), yDec.stride);
+            DataChunk dataChunk = DataChunk.readDataChunk(var, ranges);
+            float[] values = dataChunk.getFloatValues();
+            int yStride = dataChunk.getStride(ranges.getYAxisIndex());
+            float[] column = new float[yDec.count];
+            for (int k = 0; k < column.length; k++)
+            {
+                column[k] = values[k * yStride];
+            }
+            return column;
+        }
+    },
+
+    /**
+     * Chooses between the {@link #SCANLINE scanline}, {@link #BOUNDING_BOX
+     * bounding-box}, {@link #PIXEL_BY_PIXEL pixel-by-pixel} and
+     * {@link #STRIDED strided} strategies for each individual read, based upon the statistics of the {@link PixelMap},
+     * the size of the data type that is stored in the source file and the
+     * estimated overhead of a single read operation.  The strided strategy is
+     * only considered if the PixelMap samples the source on a regular lattice.
+     * Recommended in all cases unless it is known that one strategy is always best.
+     */
+    ADAPTIVE {
+        @Override
+        DataReadingStrategy resolve(PixelMap pixelMap, VariableDS var,
+            RangesList ranges, long readOverheadBytes, SourceChunkCache.Source source)
+        {
+            int elementSize = getStoredElementSize(var);
+            DataReadingStrategy best = chooseStrategy(pixelMap, elementSize, readOverheadBytes);
+            if (source != null && shouldUseChunks(best, pixelMap, var, ranges,
+                elementSize, readOverheadBytes, source))
+            {
+                return CHUNKED;
+            }
+            return best;
+        }
+
+        @Override
+        protected void populatePixelArray(float[] picData,
+            PixelMap pixelMap, VariableDS var, RangesList ranges,
+            SourceChunkCache.Source source) throws IOException
+        {
+            this.resolve(pixelMap, var, ranges, LOCAL_READ_OVERHEAD_BYTES, source)
+                .populatePixelArray(picData, pixelMap, var, ranges, source);
+        }
+    },
+
+    /**
+     * Reads whole chunks of the source grid through the shared
+     * {@link SourceChunkCache}, then picks out the data points that are
+     * needed.  Chunks that are already in the cache are not read again.
+     * If the file cannot be identified this reads the bounding box instead.
+     */
+    CHUNKED {
+        @Override
+        protected void populatePixelArray(float[] picData,
+            PixelMap pixelMap, VariableDS var, RangesList ranges,
+            SourceChunkCache.Source source) throws IOException
+        {
+            if (source == null)
+            {
+                BOUNDING_BOX.populatePixelArray(picData, pixelMap, var, ranges, source);
+                return;
+            }
+            logger.debug("Reading data from cached chunks");
+            SourceChunkCache cache = CdmUtils.getSourceChunkCache();
+            int[] chunkShape = SourceChunkCache.getChunkShape(var, ranges);
+            int nx = var.getShape()[ranges.getXAxisIndex()];
+            // The chunks that we have already fetched for this read
+            Map<Long, float[]> chunks = new HashMap<Long, float[]>();
+
+            for (int row = 0; row < pixelMap.getNumRows(); row++)
+            {
+                int j = pixelMap.getRowJIndex(row);
+                int chunkJ = j / chunkShape[1];
+                int jInChunk = j - chunkJ * chunkShape[1];
+                float[] chunk = null;
+                int chunkI = -1;
+                int chunkWidth = 0;
+                for (int pair = pixelMap.getRowStart(row); pair < pixelMap.getRowEnd(row); pair++)
+                {
+                    int i = pixelMap.getIIndex(pair);
+                    // The i indices in each row are sorted, so we only need
+                    // to look up a chunk when we cross into it
+                    if (i / chunkShape[0] != chunkI)
+                    {
+                        chunkI = i / chunkShape[0];
+                        Long chunkKey = ((long)chunkI << 32) | chunkJ;
+                        chunk = chunks.get(chunkKey);
+                        if (chunk == null)
+                        {
+                            chunk = cache.getChunk(source, var, ranges, chunkI, chunkJ, chunkShape);
+                            chunks.put(chunkKey, chunk);
+                        }
+                        chunkWidth = Math.min(nx, (chunkI + 1) * chunkShape[0])
+                            - chunkI * chunkShape[0];
+                    }
+                    float val = chunk[jInChunk * chunkWidth + i - chunkI * chunkShape[0]];
+                    if (!Float.isNaN(val))
+                    {
+                        setPixels(picData, pixelMap, pair, val);
+                    }
+                }
+            }
+        }
     };
 
     /**
-     * Reads data from the given GridDatatype and populates the given pixel array.
-     * @param picData A List of the correct size, full of nulls.
+     * The estimated overhead of a single read operation on a local, uncompressed
+     * file, expressed as the equivalent number of bytes of data read.
+     * @see #readDataAsArray(int, int, uk.ac.rdg.resc.edal.coverage.grid.HorizontalGrid,
+     * uk.ac.rdg.resc.edal.coverage.domain.Domain, ucar.nc2.dt.GridDatatype, long)
+     */
+    public static final long LOCAL_READ_OVERHEAD_BYTES = 256;
+
+    /**
+     * The {@link #BOUNDING_BOX bounding-box} strategy will not be chosen by the
+     * {@link #ADAPTIVE adaptive} strategy if it would read more than this
+     * number of bytes into memory in one go.
+     */
+    private static final long MAX_BOUNDING_BOX_BYTES = 64L * 1024 * 1024;
+
+    /**
+     * The {@link #CHUNKED chunked} strategy will not be chosen by the
+     * {@link #ADAPTIVE adaptive} strategy if a single read would need more
+     * than this fraction of the capacity of the {@link SourceChunkCache}.
+     */
+    private static final int MAX_CHUNK_CACHE_FRACTION = 4;
+
+    /** Records the strategy that was used most recently by each thread */
+    private static final ThreadLocal<DataReadingStrategy> LAST_USED =
+        new ThreadLocal<DataReadingStrategy>();
+
+    /**
+     * Reads data from the given GridDatatype for each point in the target
+     * domain.
+     * @return an array of values, one for each point in the target domain,
+     * in the same order.  Missing values are represented by NaNs.
      * @see PixelMap
      */
-    public final List<Float> readData(int tIndex, int zIndex,
+    public final float[] readDataAsArray(int tIndex, int zIndex,
         HorizontalGrid sourceGrid, Domain<HorizontalPosition> targetDomain,
         GridDatatype grid) throws IOException
     {
-        List<Float> picData = nullArrayList(targetDomain.getDomainObjects().size());
+        return this.readDataAsArray(tIndex, zIndex, sourceGrid, targetDomain,
+            grid, LOCAL_READ_OVERHEAD_BYTES);
+    }
+
+    /**
+     * Reads data from the given GridDatatype for each point in the target
+     * domain.
+     * @param readOverheadBytes The estimated overhead of a single read operation
+     * on the data source, expressed as the equivalent number of bytes of data.
+     * This is only used by the {@link #ADAPTIVE adaptive} strategy: high values
+     * (e.g. for remote or compressed datasets) favour strategies that make
+     * few read operations.
+     * @return an array of values, one for each point in the target domain,
+     * in the same order.  Missing values are represented by NaNs.
+     * @see CdmUtils#getReadOverheadBytes(ucar.nc2.dataset.NetcdfDataset)
+     */
+    public final float[] readDataAsArray(int tIndex, int zIndex,
+        HorizontalGrid sourceGrid, Domain<HorizontalPosition> targetDomain,
+        GridDatatype grid, long readOverheadBytes) throws IOException
+    {
+        return this.readDataAsArray(tIndex, zIndex, sourceGrid, targetDomain,
+            grid, new RangesList(grid), readOverheadBytes, null);
+    }
+
+    /**
+     * Reads data from the given GridDatatype for each point in the target
+     * domain, using the given (newly-created) RangesList for the grid.  The
+     * {@link PixelMap} is obtained from the {@link CdmUtils#getPixelMapCache()
+     * shared cache}, unless the calling thread has {@link
+     * CdmUtils#setUseSharedCaches(boolean) turned off} the shared caches, in
+     * which case the chunk cache is not used either.
+     * @param source Identifies the file from which the data are read, so that
+     * the {@link #CHUNKED chunked} strategy can be used, or null if the file
+     * cannot be identified.
+     */
+    final float[] readDataAsArray(int tIndex, int zIndex,
+        HorizontalGrid sourceGrid, Domain<HorizontalPosition> targetDomain,
+        GridDatatype grid, RangesList rangesList, long readOverheadBytes,
+        SourceChunkCache.Source source)
+        throws IOException
+    {
+        float[] picData = new float[targetDomain.getDomainObjects().size()];
+        Arrays.fill(picData, Float.NaN);
         PixelMap pixelMap;
         try
         {
-            pixelMap = new PixelMap(sourceGrid, targetDomain, this.sortPixelMap());
+            if (CdmUtils.isUsingSharedCaches())
+            {
+                pixelMap = CdmUtils.getPixelMapCache().getPixelMap(sourceGrid, targetDomain);
+            }
+            else
+            {
+                pixelMap = new PixelMap(sourceGrid, targetDomain);
+                source = null;
+            }
         }
         catch (TransformException te)
         {
@@ -271,33 +573,309 @@ public enum DataReadingStrategy
         if (pixelMap.isEmpty()) return picData;
 
         // Set the time and z ranges
-        RangesList rangesList = new RangesList(grid);
         rangesList.setZRange(zIndex, zIndex);
         rangesList.setTRange(tIndex, tIndex);
         
-        // Now read the actual data from the source GridDatatype
-        this.populatePixelArray(picData, pixelMap, grid.getVariable(), rangesList);
+        // Now read the actual data from the source GridDatatype, recording
+        // the strategy that was actually used
+        VariableDS var = grid.getVariable();
+        DataReadingStrategy strategy = this.resolve(pixelMap, var, rangesList,
+            readOverheadBytes, source);
+        LAST_USED.set(strategy);
+        strategy.populatePixelArray(picData, pixelMap, var, rangesList, source);
 
         return picData;
     }
 
     /**
-     * Returns an ArrayList with the given length, filled with null values
+     * Reads data from the given GridDatatype for each point in the target
+     * domain.  This is a wrapper for {@link #readDataAsArray(int, int,
+     * uk.ac.rdg.resc.edal.coverage.grid.HorizontalGrid,
+     * uk.ac.rdg.resc.edal.coverage.domain.Domain, ucar.nc2.dt.GridDatatype)
+     * readDataAsArray()}.
+     * @return a List of values, one for each point in the target domain,
+     * in the same order.  Missing values are represented by nulls.
+     */
+    public final List<Float> readData(int tIndex, int zIndex,
+        HorizontalGrid sourceGrid, Domain<HorizontalPosition> targetDomain,
+        GridDatatype grid) throws IOException
+    {
+        return CollectionUtils.nullableListFromFloatArray(
+            this.readDataAsArray(tIndex, zIndex, sourceGrid, targetDomain, grid));
+    }
+
+    /**
+     * Sets all the pixels in the given array that map to the given i-j pair
+     * in the pixel map to the given value.
+     */
+    private static void setPixels(float[] picData, PixelMap pixelMap,
+        int pair, float val)
+    {
+        for (int p = pixelMap.getPixelStart(pair); p < pixelMap.getPixelEnd(pair); p++)
+        {
+            picData[pixelMap.getPixelIndex(p)] = val;
+        }
+    }
+
+    /**
+     * Returns the strategy that has most recently been used by the current
+     * thread to read data, or null if no data have been read since the last
+     * call to {@link #clearLastUsed()}.  For the {@link #ADAPTIVE adaptive}
+     * strategy this returns the strategy that was chosen for the read.
+     */
+    public static DataReadingStrategy getLastUsed()
+    {
+        return LAST_USED.get();
+    }
+
+    /**
+     * Clears the record of the strategy that has most recently been used by
+     * the current thread.
+     * @see #getLastUsed()
+     */
+    public static void clearLastUsed()
+    {
+        LAST_USED.remove();
+    }
+
+    /**
+     * Estimates the cost of reading the data in the given PixelMap using each
+     * of the {@link #SCANLINE scanline}, {@link #BOUNDING_BOX bounding-box}
+     * and {@link #PIXEL_BY_PIXEL pixel-by-pixel} strategies, and returns the
+     * cheapest.  The cost of each strategy is the number of bytes it reads plus
+     * the number of read operations it makes multiplied by {@code readOverheadBytes}.
+     * @param pixelMap The PixelMap for the read
+     * @param elementSize The size in bytes of a single data value as stored in
+     * the source
+     * @param readOverheadBytes The estimated overhead of a single read operation,
+     * expressed as the equivalent number of bytes of data
+     */
+    static DataReadingStrategy chooseStrategy(PixelMap pixelMap,
+        int elementSize, long readOverheadBytes)
+    {
+        long pixelByPixelCost = estimateCost(PIXEL_BY_PIXEL, pixelMap, elementSize, readOverheadBytes);
+        long scanlineCost = estimateCost(SCANLINE, pixelMap, elementSize, readOverheadBytes);
+        long bboxCost = estimateCost(BOUNDING_BOX, pixelMap, elementSize, readOverheadBytes);
+        long stridedCost = estimateCost(STRIDED, pixelMap, elementSize, readOverheadBytes);
+
+        // In the event of a tie we prefer the strategy that makes fewer reads,
+        // and the bounding box to the strided strategy because it makes
+        // contiguous reads
+        DataReadingStrategy best = BOUNDING_BOX;
+        long bestCost = bboxCost;
+        if (stridedCost < bestCost)
+        {
+            best = STRIDED;
+            bestCost = stridedCost;
+        }
+        if (scanlineCost < bestCost)
+        {
+            best = SCANLINE;
+            bestCost = scanlineCost;
+        }
+        if (pixelByPixelCost < bestCost)
+        {
+            best = PIXEL_BY_PIXEL;
+        }
+        logger.debug("Estimated costs: bbox {}, strided {}, scanline {}, pixel-by-pixel {}: using {}",
+            new Object[]{bboxCost, stridedCost, scanlineCost, pixelByPixelCost, best});
+        return best;
+    }
+
+    /**
+     * Estimates the cost of reading the data in the given PixelMap using the
+     * given {@link #SCANLINE scanline}, {@link #BOUNDING_BOX bounding-box},
+     * {@link #PIXEL_BY_PIXEL pixel-by-pixel} or {@link #STRIDED strided}
+     * strategy.
+     * @see #chooseStrategy(PixelMap, int, long)
+     */
+    private static long estimateCost(DataReadingStrategy strategy,
+        PixelMap pixelMap, int elementSize, long readOverheadBytes)
+    {
+        switch (strategy)
+        {
+            case PIXEL_BY_PIXEL:
+                return pixelMap.getNumUniqueIJPairs() * (elementSize + readOverheadBytes);
+            case SCANLINE:
+                return (long)pixelMap.getSumRowLengths() * elementSize
+                    + pixelMap.getNumRows() * readOverheadBytes;
+            case BOUNDING_BOX:
+                long bboxBytes = (long)pixelMap.getBoundingBoxSize() * elementSize;
+                return bboxBytes > MAX_BOUNDING_BOX_BYTES
+                    ? Long.MAX_VALUE
+                    : bboxBytes + readOverheadBytes;
+            case STRIDED:
+                // We only estimate the cost of reading a regular lattice: the
+                // cost of filling the gaps in irregular sampling (which can be
+                // a read for nearly every row and column) is not worth estimating
+                int[] iIndices = pixelMap.getDistinctIIndices();
+                int[] jIndices = pixelMap.getDistinctJIndices();
+                Decimation xDec = Decimation.fit(iIndices, Integer.MAX_VALUE);
+                Decimation yDec = Decimation.fit(jIndices, Integer.MAX_VALUE);
+                if (!xDec.containsAll(iIndices) || !yDec.containsAll(jIndices))
+                {
+                    return Long.MAX_VALUE;
+                }
+                long latticeBytes = (long)xDec.count * yDec.count * elementSize;
+                return latticeBytes > MAX_BOUNDING_BOX_BYTES
+                    ? Long.MAX_VALUE
+                    : latticeBytes + readOverheadBytes;
+            default:
+                throw new IllegalArgumentException("Can't estimate the cost of " + strategy);
+        }
+    }
+
+    /**
+     * Decides whether the {@link #ADAPTIVE adaptive} strategy should read the
+     * data in the given PixelMap through the {@link SourceChunkCache} instead
+     * of using the given strategy.  Chunks are used for dense reads that
+     * would otherwise read the bounding box, since the chunks are likely to be
+     * needed again for neighbouring tiles, and for any read for which the
+     * cost of reading the missing chunks is no more than the cost of the
+     * given strategy.  Chunks are never used if they would fill a large part
+     * of the cache.
      */
-    private static ArrayList<Float> nullArrayList(int n)
+    private static boolean shouldUseChunks(DataReadingStrategy best,
+        PixelMap pixelMap, VariableDS var, RangesList ranges, int elementSize,
+        long readOverheadBytes, SourceChunkCache.Source source)
     {
-        ArrayList<Float> list = new ArrayList<Float>(n);
-        for (int i = 0; i < n; i++)
+        SourceChunkCache cache = CdmUtils.getSourceChunkCache();
+        long maxChunks = cache.getMaxSizeBytes() / MAX_CHUNK_CACHE_FRACTION;
+        int[] chunkShape = SourceChunkCache.getChunkShape(var, ranges);
+        long chunkSize = (long)chunkShape[0] * chunkShape[1];
+        // Convert the limit from bytes to a number of chunks
+        maxChunks /= chunkSize * 4;
+        if (maxChunks == 0) return false;
+
+        Set<Long> chunks = new HashSet<Long>();
+        long missingChunksCost = 0;
+        for (int row = 0; row < pixelMap.getNumRows(); row++)
         {
-            list.add((Float)null);
+            int chunkJ = pixelMap.getRowJIndex(row) / chunkShape[1];
+            int lastChunkI = -1;
+            for (int pair = pixelMap.getRowStart(row); pair < pixelMap.getRowEnd(row); pair++)
+            {
+                int chunkI = pixelMap.getIIndex(pair) / chunkShape[0];
+                if (chunkI == lastChunkI) continue;
+                lastChunkI = chunkI;
+                if (chunks.add(((long)chunkI << 32) | chunkJ))
+                {
+                    if (chunks.size() > maxChunks) return false;
+                    if (!cache.contains(source, var, ranges, chunkI, chunkJ))
+                    {
+                        missingChunksCost += chunkSize * elementSize + readOverheadBytes;
+                    }
+                }
+            }
         }
-        return list;
+        return best == BOUNDING_BOX || missingChunksCost <=
+            estimateCost(best, pixelMap, elementSize, readOverheadBytes);
     }
 
-    protected abstract boolean sortPixelMap();
+    /**
+     * Gets the size in bytes of a single value of the given variable as it is
+     * stored in the source (i.e. before any scale and offset are applied).
+     */
+    private static int getStoredElementSize(VariableDS var)
+    {
+        // DataChunk reads from the original variable if there is one
+        Variable origVar = var.getOriginalVariable();
+        int size = (origVar == null ? var : origVar).getDataType().getSize();
+        // Guard against types (e.g. Strings or Structures) with no fixed size
+        return size > 0 ? size : 4;
+    }
+
+    /**
+     * Returns the concrete strategy that will be used to read the data in the
+     * given PixelMap.  This implementation returns this strategy: the
+     * {@link #ADAPTIVE adaptive} strategy overrides this to choose a strategy
+     * based upon the estimated cost of the read.
+     */
+    DataReadingStrategy resolve(PixelMap pixelMap, VariableDS var,
+        RangesList ranges, long readOverheadBytes, SourceChunkCache.Source source)
+    {
+        return this;
+    }
+
+    /**
+     * A regular lattice of indices along one axis of the source grid, fitted
+     * to the indices that are needed by a {@link PixelMap}.
+     */
+    static final class Decimation
+    {
+        final int first;
+        final int stride;
+        final int count;
+
+        private Decimation(int first, int stride, int count)
+        {
+            this.first = first;
+            this.stride = stride;
+            this.count = count;
+        }
+
+        /**
+         * Fits a lattice to the given indices.  The stride is the smallest gap
+         * between consecutive indices, so that every index is within half a
+         * stride of a lattice point.  If the indices are regularly spaced
+         * every index is on the lattice.
+         * @param indices The indices, in ascending order, without duplicates.
+         * Must contain at least one index.
+         * @param axisLength The length of the axis: the lattice will not
+         * extend beyond this
+         */
+        static Decimation fit(int[] indices, int axisLength)
+        {
+            int first = indices[0];
+            int last = indices[indices.length - 1];
+            int stride = Integer.MAX_VALUE;
+            for (int k = 1; k < indices.length; k++)
+            {
+                stride = Math.min(stride, indices[k] - indices[k - 1]);
+            }
+            if (stride == Integer.MAX_VALUE) stride = 1;
+            int count = (last - first) / stride + 1;
+            // If the last index is not on the lattice we add another point
+            // if we can, so that the last index is not too far from the lattice
+            int lastOnLattice = first + (count - 1) * stride;
+            if (lastOnLattice < last && (long)lastOnLattice + stride < axisLength) count++;
+            return new Decimation(first, stride, count);
+        }
+
+        /** Gets the last index on the lattice */
+        int getLast()
+        {
+            return this.first + (this.count - 1) * this.stride;
+        }
+
+        /** Gets the position on the lattice of the lattice point nearest to the given index */
+        int indexOf(int index)
+        {
+            int pos = (int)Math.round((index - this.first) / (double)this.stride);
+            return Math.max(0, Math.min(this.count - 1, pos));
+        }
+
+        /** Returns true if the given index is a point on the lattice */
+        boolean contains(int index)
+        {
+            return index >= this.first && index <= this.getLast()
+                && (index - this.first) % this.stride == 0;
+        }
+
+        /** Returns true if all the given indices are points on the lattice */
+        boolean containsAll(int[] indices)
+        {
+            for (int index : indices)
+            {
+                if (!this.contains(index)) return false;
+            }
+            return true;
+        }
+    }
 
-    abstract void populatePixelArray(List<Float> picData,
-            PixelMap pixelMap, VariableDS var, RangesList ranges)
+    abstract void populatePixelArray(float[] picData,
+            PixelMap pixelMap, VariableDS var, RangesList ranges,
+            SourceChunkCache.Source source)
         throws IOException;
 
     private static final Logger logger = LoggerFactory.getLogger(DataReadingStrategy.class);
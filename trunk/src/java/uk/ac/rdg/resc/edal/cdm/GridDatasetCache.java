@@ -0,0 +1,464 @@
+/*
+ * Copyright (c) 2010 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.edal.cdm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ucar.nc2.dataset.NetcdfDataset;
+import ucar.nc2.dt.GridDataset;
+import ucar.nc2.dt.GridDatatype;
+import uk.ac.rdg.resc.edal.util.CollectionUtils;
+
+/**
+ * <p>A bounded cache of open {@link NetcdfDataset}s, together with the
+ * {@link GridDataset}s that are parsed from them and the mapping of axes to
+ * dimension indices for each variable.  Building the coordinate systems of a
+ * GridDataset can take longer than reading the data itself, so reusing these
+ * objects between requests can speed up data extraction considerably.</p>
+ *
+ * <p>Only local files are cached.  Entries are keyed on the path, last-modified
+ * time and size of the file, so if a file changes on disk it will be reopened
+ * and the out-of-date entry will be closed.</p>
+ *
+ * <p>NetcdfDatasets are not thread-safe, so each cached dataset is used by
+ * only one thread at a time.  Clients must call {@link #acquire(java.lang.String)}
+ * to obtain an {@link Entry} and must call {@link #release(Entry)} when they
+ * have finished with it, usually in a {@code finally} clause.  If all the
+ * cached copies of a file are in use, a new copy will be opened.  The number
+ * of local files that are open at once, whether idle or in use, is limited to
+ * the {@link #setMaxOpenDatasets(int) maximum}: when it is reached, the
+ * least-recently-used idle datasets are closed to make room, and if all the
+ * datasets are in use, {@link #acquire(java.lang.String)} waits until one is
+ * released.  A thread must therefore release each Entry before it acquires
+ * another.</p>
+ *
+ * @author Jon Blower
+ */
+public final class GridDatasetCache
+{
+    private static final Logger logger = LoggerFactory.getLogger(GridDatasetCache.class);
+
+    // Idle entries, least-recently-used first
+    private final LinkedList<Entry> idleEntries = new LinkedList<Entry>();
+
+    private int maxOpenDatasets;
+
+    // The number of entries for local files that have been acquired and not
+    // yet released
+    private int numInUse = 0;
+
+    // The number of datasets opened by this cache that have not been closed
+    private final AtomicInteger numOpen = new AtomicInteger(0);
+
+    private long numHits = 0;
+    private long numMisses = 0;
+
+    /**
+     * Creates a new cache
+     * @param maxOpenDatasets The maximum number of local files that will be
+     * open at once.  If this is zero, no datasets will be cached and there
+     * is no limit.
+     */
+    public GridDatasetCache(int maxOpenDatasets)
+    {
+        this.setMaxOpenDatasets(maxOpenDatasets);
+    }
+
+    /**
+     * Gets an Entry for the dataset at the given location, opening the dataset
+     * if there is no valid idle copy in the cache.  The caller has exclusive
+     * use of the returned Entry until it is passed to {@link #release(Entry)}.
+     * If the maximum number of local files are open and all of them are in
+     * use, this waits until one is released.  Locations that are not local
+     * files (e.g. OPeNDAP URLs) are opened but are not cached, and do not
+     * count towards the maximum.
+     * @param location The location of the dataset, which will be passed to
+     * {@link NetcdfDataset#openDataset(java.lang.String)}
+     * @throws IOException if the dataset could not be opened
+     * @throws InterruptedIOException if the thread was interrupted while
+     * waiting for a dataset to be released
+     */
+    public Entry acquire(String location) throws IOException
+    {
+        File file = new File(location);
+        if (!file.isFile() || this.getMaxOpenDatasets() == 0)
+        {
+            return this.open(location, null);
+        }
+
+        Key key = new Key(file.getPath(), file.lastModified(), file.length());
+        Entry found = null;
+        // Entries that are out of date or that are closed to make room
+        List<Entry> staleEntries = new ArrayList<Entry>();
+        synchronized(this)
+        {
+            while (true)
+            {
+                if (this.maxOpenDatasets == 0)
+                {
+                    // The cache has been disabled while we were waiting
+                    key = null;
+                    break;
+                }
+                Iterator<Entry> it = this.idleEntries.iterator();
+                while (it.hasNext() && found == null)
+                {
+                    Entry entry = it.next();
+                    if (!entry.key.path.equals(key.path)) continue;
+                    it.remove();
+                    // Entries whose keys differ are for an older version of
+                    // the file
+                    if (entry.key.equals(key)) found = entry;
+                    else staleEntries.add(entry);
+                }
+                if (found != null)
+                {
+                    this.numHits++;
+                    break;
+                }
+                if (this.idleEntries.size() + this.numInUse < this.maxOpenDatasets)
+                {
+                    this.numMisses++;
+                    break;
+                }
+                if (!this.idleEntries.isEmpty())
+                {
+                    // Make room for the new dataset
+                    staleEntries.add(this.idleEntries.removeFirst());
+                    continue;
+                }
+                try
+                {
+                    // All the datasets are in use: one of them may be for
+                    // this file when it is released
+                    this.wait();
+                }
+                catch (InterruptedException ie)
+                {
+                    Thread.currentThread().interrupt();
+                    closeAll(staleEntries);
+                    throw new InterruptedIOException("Interrupted while waiting to open " + location);
+                }
+            }
+            if (key != null) this.numInUse++;
+        }
+        closeAll(staleEntries);
+
+        if (found != null)
+        {
+            logger.debug("Found {} in dataset cache", location);
+            return found;
+        }
+        logger.debug("Opening {}", location);
+        try
+        {
+            return this.open(location, key);
+        }
+        catch (IOException ioe)
+        {
+            if (key != null) this.released();
+            throw ioe;
+        }
+        catch (RuntimeException re)
+        {
+            if (key != null) this.released();
+            throw re;
+        }
+    }
+
+    private Entry open(String location, Key key) throws IOException
+    {
+        Entry entry = new Entry(NetcdfDataset.openDataset(location), key, this.numOpen);
+        this.numOpen.incrementAndGet();
+        return entry;
+    }
+
+    /** Called when an entry for a local file is no longer in use */
+    private synchronized void released()
+    {
+        this.numInUse--;
+        this.notifyAll();
+    }
+
+    /**
+     * Returns the given Entry to the cache, after which the caller must not
+     * use it again.  Entries that cannot be cached are closed.  Does nothing
+     * if the entry is null.
+     */
+    public void release(Entry entry)
+    {
+        if (entry == null) return;
+        if (entry.key == null)
+        {
+            entry.close();
+            return;
+        }
+        List<Entry> evicted = new ArrayList<Entry>();
+        synchronized(this)
+        {
+            this.numInUse--;
+            this.idleEntries.addLast(entry);
+            // The maximum may have been reduced while the entry was in use
+            while (!this.idleEntries.isEmpty() &&
+                this.idleEntries.size() + this.numInUse > this.maxOpenDatasets)
+            {
+                evicted.add(this.idleEntries.removeFirst());
+            }
+            this.notifyAll();
+        }
+        closeAll(evicted);
+    }
+
+    /**
+     * Sets the maximum number of local files that will be open at once,
+     * closing idle datasets if necessary.  Datasets that are in use are closed
+     * when they are released if there are still too many open.  Zero disables
+     * the cache, in which case there is no limit.
+     * @throws IllegalArgumentException if {@code maxOpenDatasets} is negative
+     */
+    public void setMaxOpenDatasets(int maxOpenDatasets)
+    {
+        if (maxOpenDatasets < 0)
+        {
+            throw new IllegalArgumentException("maxOpenDatasets must be >= 0");
+        }
+        List<Entry> evicted = new ArrayList<Entry>();
+        synchronized(this)
+        {
+            this.maxOpenDatasets = maxOpenDatasets;
+            while (!this.idleEntries.isEmpty() &&
+                this.idleEntries.size() + this.numInUse > maxOpenDatasets)
+            {
+                evicted.add(this.idleEntries.removeFirst());
+            }
+            // Threads that are waiting may now be able to open datasets
+            this.notifyAll();
+        }
+        closeAll(evicted);
+    }
+
+    public synchronized int getMaxOpenDatasets()
+    {
+        return this.maxOpenDatasets;
+    }
+
+    /**
+     * Gets the number of datasets that have been opened by this cache and
+     * not yet closed, whether they are idle or in use.  This includes
+     * datasets that are not cached, such as OPeNDAP datasets, while they
+     * are in use.
+     */
+    public int getNumOpenDatasets()
+    {
+        return this.numOpen.get();
+    }
+
+    /** Gets the number of local files that are currently in use */
+    public synchronized int getNumDatasetsInUse()
+    {
+        return this.numInUse;
+    }
+
+    /** Gets the number of times a valid cached dataset was found */
+    public synchronized long getNumHits()
+    {
+        return this.numHits;
+    }
+
+    /** Gets the number of times a cacheable dataset had to be opened */
+    public synchronized long getNumMisses()
+    {
+        return this.numMisses;
+    }
+
+    /** Closes all idle datasets.  Entries that are in use are unaffected. */
+    public void clear()
+    {
+        List<Entry> entries;
+        synchronized(this)
+        {
+            entries = new ArrayList<Entry>(this.idleEntries);
+            this.idleEntries.clear();
+        }
+        closeAll(entries);
+    }
+
+    private static void closeAll(List<Entry> entries)
+    {
+        for (Entry entry : entries) entry.close();
+    }
+
+    /**
+     * Wraps a NetcdfDataset that has been opened elsewhere (e.g. an NcML
+     * aggregation that has been acquired from the NetcdfDataset's own cache),
+     * so that it can be used in the same way as a cached Entry.  The dataset
+     * will be closed when the Entry is passed to {@link #release(Entry)}.
+     * It is not counted in {@link #getNumOpenDatasets()}.
+     */
+    public static Entry uncachedEntry(NetcdfDataset nc)
+    {
+        if (nc == null) throw new NullPointerException("nc");
+        return new Entry(nc, null, null);
+    }
+
+    /** Identifies a particular version of a file */
+    private static final class Key
+    {
+        private final String path;
+        private final long lastModified;
+        private final long size;
+
+        public Key(String path, long lastModified, long size)
+        {
+            this.path = path;
+            this.lastModified = lastModified;
+            this.size = size;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (obj == this) return true;
+            if (!(obj instanceof Key)) return false;
+            Key other = (Key)obj;
+            return this.path.equals(other.path) &&
+                   this.lastModified == other.lastModified &&
+                   this.size == other.size;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            int hash = 17;
+            hash = 31 * hash + this.path.hashCode();
+            hash = 31 * hash + (int)(this.lastModified ^ (this.lastModified >>> 32));
+            hash = 31 * hash + (int)(this.size ^ (this.size >>> 32));
+            return hash;
+        }
+    }
+
+    /**
+     * An open NetcdfDataset, together with lazily-created metadata objects
+     * derived from it.  Instances are used by only one thread at a time.
+     */
+    public static final class Entry
+    {
+        private final NetcdfDataset nc;
+        // Null if this entry cannot be cached
+        private final Key key;
+        // The count of open datasets of the cache that opened this entry,
+        // or null if it was opened elsewhere
+        private final AtomicInteger numOpen;
+        private GridDataset gridDataset = null;
+        // Maps variable IDs to RangesLists, which are used as templates
+        private final Map<String, RangesList> rangesLists = CollectionUtils.newHashMap();
+
+        private Entry(NetcdfDataset nc, Key key, AtomicInteger numOpen)
+        {
+            this.nc = nc;
+            this.key = key;
+            this.numOpen = numOpen;
+        }
+
+        public NetcdfDataset getNetcdfDataset()
+        {
+            return this.nc;
+        }
+
+        /**
+         * Gets the GridDataset for this dataset, creating it on the first call.
+         */
+        public GridDataset getGridDataset() throws IOException
+        {
+            if (this.gridDataset == null)
+            {
+                this.gridDataset = CdmUtils.getGridDataset(this.nc);
+            }
+            return this.gridDataset;
+        }
+
+        /**
+         * Gets the GridDatatype with the given ID
+         * @throws IllegalArgumentException if there is no variable in the
+         * dataset with the given ID
+         */
+        public GridDatatype getGridDatatype(String varId) throws IOException
+        {
+            GridDataset gd = this.getGridDataset();
+            if (gd == null)
+            {
+                throw new IllegalArgumentException("Dataset does not contain gridded data");
+            }
+            GridDatatype grid = gd.findGridDatatype(varId);
+            if (grid == null)
+            {
+                throw new IllegalArgumentException("No variable with name " + varId);
+            }
+            return grid;
+        }
+
+        /**
+         * Gets a new RangesList for the given grid, which must belong to this
+         * dataset.  The axis indices are calculated only once per variable.
+         */
+        RangesList getRangesList(GridDatatype grid)
+        {
+            RangesList template = this.rangesLists.get(grid.getName());
+            if (template == null)
+            {
+                template = new RangesList(grid);
+                this.rangesLists.put(grid.getName(), template);
+            }
+            return new RangesList(template);
+        }
+
+        private void close()
+        {
+            if (this.numOpen != null) this.numOpen.decrementAndGet();
+            try
+            {
+                this.nc.close();
+                logger.debug("Closed {}", this.nc.getLocation());
+            }
+            catch (IOException ioe)
+            {
+                logger.error("IOException closing " + this.nc.getLocation(), ioe);
+            }
+        }
+    }
+}
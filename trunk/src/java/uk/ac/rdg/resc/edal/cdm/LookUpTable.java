@@ -36,8 +36,15 @@ import java.awt.geom.Point2D;
 import java.awt.image.BufferedImage;
 import java.awt.image.ColorModel;
 import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferUShort;
 import java.awt.image.DirectColorModel;
 import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
 import org.opengis.metadata.extent.GeographicBoundingBox;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -59,9 +66,12 @@ final class LookUpTable
     // lon-lat point in the LUT.  These are flattened from a 2D to a 1D array.
     // We store these as shorts to save disk space.  The LUT would need to be
     // extremely large before we would have to worry about overflows.
-    // Each array has the size nLon * nLat
-    private DataBuffer iIndices;
-    private DataBuffer jIndices;
+    // Each buffer has the size nLon * nLat and holds unsigned values.  The
+    // buffers are either wrapped arrays or views of a memory-mapped file,
+    // and are only accessed using absolute gets, so are safe to share
+    // between threads.
+    private ShortBuffer iIndices;
+    private ShortBuffer jIndices;
 
     private final int nLon;
     private final int nLat;
@@ -87,12 +97,29 @@ final class LookUpTable
     /** This is the maximum index that can be stored in the LUT */
     private static final int MAX_INDEX = 65534;
 
+    /** Identifies files written by {@link #save(java.io.File)} ("NLUT") */
+    private static final int FILE_MAGIC = 0x4e4c5554;
+    private static final int FILE_VERSION = 1;
+    /** Magic number, version, nLon, nLat */
+    private static final int FILE_HEADER_SIZE = 16;
+
     /**
-     * Creates an empty look-up table (with all indices set to -1).
+     * Creates a look-up table for the given grid, populating it by painting
+     * every cell of the grid.
      * @param curvGrid The CurvilinearGrid which this LUT will approximate
      * @param minResolution The minimum resolution of the LUT in degrees
      */
     public LookUpTable(CurvilinearGrid curvGrid, double minResolution)
+    {
+        this(curvGrid, minResolution, true);
+    }
+
+    /**
+     * Sets up the dimensions and transform of a look-up table.
+     * @param populate If true, populate the look-up tables from the grid.
+     * If false, the caller must set the index buffers.
+     */
+    private LookUpTable(CurvilinearGrid curvGrid, double minResolution, boolean populate)
     {
         GeographicBoundingBox bbox = curvGrid.getBoundingBox();
         
@@ -120,7 +147,94 @@ final class LookUpTable
         this.transform.translate(-bbox.getWestBoundLongitude(), -bbox.getSouthBoundLatitude());
 
         // Populate the look-up tables
-        this.makeLuts(curvGrid);
+        if (populate) this.makeLuts(curvGrid);
+    }
+
+    /**
+     * Loads a look-up table that was previously {@link #save(java.io.File) saved}
+     * for the given grid and resolution.  The file is memory-mapped, so the
+     * contents are only read from disk as they are needed.
+     * @return the look-up table, or null if the file does not exist or does
+     * not match the dimensions expected for this grid and resolution.
+     * @throws IOException if there was an error reading the file
+     */
+    public static LookUpTable load(File file, CurvilinearGrid curvGrid,
+            double minResolution) throws IOException
+    {
+        if (!file.isFile()) return null;
+        LookUpTable lut = new LookUpTable(curvGrid, minResolution, false);
+        long size = (long)lut.nLon * lut.nLat;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try
+        {
+            FileChannel channel = raf.getChannel();
+            if (channel.size() != FILE_HEADER_SIZE + 4 * size)
+            {
+                logger.warn("Look-up table file {} has the wrong size", file);
+                return null;
+            }
+            // The mapping remains valid after the channel is closed
+            ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buf.getInt(0) != FILE_MAGIC || buf.getInt(4) != FILE_VERSION ||
+                buf.getInt(8) != lut.nLon || buf.getInt(12) != lut.nLat)
+            {
+                logger.warn("Look-up table file {} does not match the grid", file);
+                return null;
+            }
+            buf.position(FILE_HEADER_SIZE);
+            lut.iIndices = buf.slice().asShortBuffer();
+            lut.iIndices.limit((int)size);
+            buf.position(FILE_HEADER_SIZE + 2 * (int)size);
+            lut.jIndices = buf.slice().asShortBuffer();
+            return lut;
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    /**
+     * Saves this look-up table to the given file, which can later be read
+     * with {@link #load(java.io.File, uk.ac.rdg.resc.edal.cdm.CurvilinearGrid, double)}.
+     * The table is written to a temporary file that is then renamed, so that
+     * a partially-written file is never seen by {@link #load}.
+     * @throws IOException if there was an error writing the file
+     */
+    public void save(File file) throws IOException
+    {
+        int size = this.nLon * this.nLat;
+        File tempFile = new File(file.getPath() + ".tmp");
+        RandomAccessFile raf = new RandomAccessFile(tempFile, "rw");
+        try
+        {
+            FileChannel channel = raf.getChannel();
+            channel.truncate(0);
+            ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+            header.putInt(FILE_MAGIC).putInt(FILE_VERSION)
+                  .putInt(this.nLon).putInt(this.nLat).flip();
+            channel.write(header);
+            for (ShortBuffer indices : new ShortBuffer[]{this.iIndices, this.jIndices})
+            {
+                ByteBuffer buf = ByteBuffer.allocate(2 * size);
+                buf.asShortBuffer().put((ShortBuffer)indices.duplicate().rewind());
+                while (buf.hasRemaining()) channel.write(buf);
+            }
+        }
+        finally
+        {
+            raf.close();
+        }
+        if (!tempFile.renameTo(file))
+        {
+            // Windows won't rename over an existing file
+            file.delete();
+            if (!tempFile.renameTo(file))
+            {
+                tempFile.delete();
+                throw new IOException("Could not rename " + tempFile + " to " + file);
+            }
+        }
     }
 
     /**
@@ -171,8 +285,22 @@ final class LookUpTable
         }
 
         // We only need to store the data buffers, not the whole BufferedImages
-        this.iIndices = iIm.getRaster().getDataBuffer();
-        this.jIndices = jIm.getRaster().getDataBuffer();
+        this.iIndices = toShortBuffer(iIm.getRaster().getDataBuffer());
+        this.jIndices = toShortBuffer(jIm.getRaster().getDataBuffer());
+    }
+
+    private static ShortBuffer toShortBuffer(DataBuffer dataBuffer)
+    {
+        if (dataBuffer instanceof DataBufferUShort)
+        {
+            return ShortBuffer.wrap(((DataBufferUShort)dataBuffer).getData());
+        }
+        short[] data = new short[dataBuffer.getSize()];
+        for (int i = 0; i < data.length; i++)
+        {
+            data[i] = (short)dataBuffer.getElem(i);
+        }
+        return ShortBuffer.wrap(data);
     }
 
     /**
@@ -223,8 +351,8 @@ final class LookUpTable
         // Find the index within the LUT
         int index = iLon + (iLat * this.nLon);
         // Extract the i and j indices of the nearest grid point
-        int iIndex = this.iIndices.getElem(index);
-        int jIndex = this.jIndices.getElem(index);
+        int iIndex = this.iIndices.get(index) & 0xffff;
+        int jIndex = this.jIndices.get(index) & 0xffff;
 
         // Check for missing values
         if (iIndex < 0 || iIndex > MAX_INDEX ||
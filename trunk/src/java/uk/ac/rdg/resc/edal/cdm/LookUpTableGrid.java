@@ -28,15 +28,22 @@
 
 package uk.ac.rdg.resc.edal.cdm;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import org.opengis.coverage.grid.GridEnvelope;
 import uk.ac.rdg.resc.edal.coverage.grid.GridCoordinates;
 import uk.ac.rdg.resc.edal.geometry.BoundingBox;
 import uk.ac.rdg.resc.edal.geometry.HorizontalPosition;
 import uk.ac.rdg.resc.edal.geometry.LonLatPosition;
-import java.util.Map;
 import org.geotoolkit.referencing.crs.DefaultGeographicCRS;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -66,14 +73,23 @@ final class LookUpTableGrid extends AbstractHorizontalGrid
     private static final Logger logger = LoggerFactory.getLogger(LookUpTableGrid.class);
 
     /**
-     * In-memory cache of LookUpTableGrid objects to save expensive re-generation of same object
+     * In-memory cache of LookUpTableGrid objects to save expensive re-generation
+     * of same object.  The values are Futures so that a grid that is being
+     * generated by one thread can be waited for by others, without blocking
+     * threads that need different grids.
      * @todo The CurvilinearGrid objects can be very big.  Really we only need to key
      * on the arrays of lon and lat: all other quantities can be calculated from
      * these.  This means that we could make other large objects available for
      * garbage collection.
      */
-    private static final Map<CurvilinearGrid, LookUpTableGrid> CACHE =
-            CollectionUtils.newHashMap();
+    private static final ConcurrentMap<CurvilinearGrid, Future<LookUpTableGrid>> CACHE =
+            new ConcurrentHashMap<CurvilinearGrid, Future<LookUpTableGrid>>();
+
+    /**
+     * Directory in which look-up tables are persisted between runs of the
+     * server, or null if they are not to be persisted.
+     */
+    private static volatile File lutDirectory = null;
 
     private final CurvilinearGrid curvGrid;
     private final LookUpTable lut;
@@ -86,33 +102,107 @@ final class LookUpTableGrid extends AbstractHorizontalGrid
      */
     public static LookUpTableGrid generate(GridCoordSystem coordSys)
     {
-        CurvilinearGrid curvGrid = new CurvilinearGrid(coordSys);
+        final CurvilinearGrid curvGrid = new CurvilinearGrid(coordSys);
+
+        Future<LookUpTableGrid> future = CACHE.get(curvGrid);
+        if (future == null)
+        {
+            FutureTask<LookUpTableGrid> task = new FutureTask<LookUpTableGrid>(
+                new Callable<LookUpTableGrid>() {
+                    @Override public LookUpTableGrid call() throws IOException {
+                        return new LookUpTableGrid(curvGrid, loadOrCreateLut(curvGrid));
+                    }
+                });
+            future = CACHE.putIfAbsent(curvGrid, task);
+            if (future == null)
+            {
+                // We are the first thread to need this grid, so we build it
+                future = task;
+                task.run();
+            }
+        }
+        else
+        {
+            logger.debug("Look-up table found in cache");
+        }
+
+        try
+        {
+            return future.get();
+        }
+        catch (InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for look-up table", ie);
+        }
+        catch (ExecutionException ee)
+        {
+            // Don't cache the failure: the next caller will try again
+            CACHE.remove(curvGrid, future);
+            Throwable cause = ee.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+            if (cause instanceof Error) throw (Error)cause;
+            throw new IllegalStateException("Error generating look-up table", cause);
+        }
+    }
 
+    /**
+     * Loads the look-up table for the given grid from the
+     * {@link #setLutDirectory(java.io.File) LUT directory} if it has been
+     * persisted there, otherwise creates it (and persists it if possible).
+     */
+    private static LookUpTable loadOrCreateLut(CurvilinearGrid curvGrid) throws IOException
+    {
         // We calculate the required resolution of the look-up tables.  We
         // want this to be around 3 times the resolution of the grid.
         double minLutResolution = Math.sqrt(curvGrid.getMeanCellArea()) / 3.0;
         logger.debug("minLutResolution = {}", minLutResolution);
 
-        synchronized(CACHE)
+        File dir = lutDirectory;
+        File lutFile = null;
+        if (dir != null)
+        {
+            // The file name identifies the grid and the resolution of the LUT
+            lutFile = new File(dir, String.format("%s-%016x.lut", curvGrid.getDigest(),
+                Double.doubleToLongBits(minLutResolution)));
+            LookUpTable lut = LookUpTable.load(lutFile, curvGrid, minLutResolution);
+            if (lut != null)
+            {
+                logger.debug("Loaded look-up table from {}", lutFile);
+                return lut;
+            }
+        }
+
+        logger.debug("Need to generate new look-up table");
+        LookUpTable lut = new LookUpTable(curvGrid, minLutResolution);
+        logger.debug("Generated new look-up table");
+
+        if (lutFile != null)
         {
-            LookUpTableGrid lutCoordSys = CACHE.get(curvGrid);
-            if (lutCoordSys == null)
+            try
             {
-                logger.debug("Need to generate new look-up table");
-                // Create a look-up table for this coord sys
-                LookUpTable lut = new LookUpTable(curvGrid, minLutResolution);
-                logger.debug("Generated new look-up table");
-                // Create the LookUpTableGrid
-                lutCoordSys = new LookUpTableGrid(curvGrid, lut);
-                // Now put this in the cache
-                CACHE.put(curvGrid, lutCoordSys);
+                dir.mkdirs();
+                lut.save(lutFile);
+                logger.debug("Saved look-up table to {}", lutFile);
             }
-            else
+            catch (IOException ioe)
             {
-                logger.debug("Look-up table found in cache");
+                // Not fatal: we can still use the LUT in memory
+                logger.warn("Could not save look-up table to " + lutFile, ioe);
             }
-            return lutCoordSys;
         }
+        return lut;
+    }
+
+    /**
+     * Sets the directory in which look-up tables are persisted so that they
+     * don't have to be regenerated when the server restarts.  Persisted tables
+     * are memory-mapped when they are first needed.  If this is null (the
+     * default), look-up tables are only held in memory.
+     */
+    public static void setLutDirectory(File dir)
+    {
+        lutDirectory = dir;
     }
 
     /** Private constructor to prevent direct instantiation */
@@ -28,12 +28,20 @@
 
 package uk.ac.rdg.resc.edal.cdm;
 
-import java.util.ArrayList;
+import java.util.AbstractSet;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import org.geotoolkit.referencing.CRS;
+import org.geotoolkit.referencing.operation.transform.LinearTransform;
 import org.opengis.coverage.grid.GridCoordinates;
+import org.opengis.referencing.FactoryException;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.operation.MathTransform;
+import org.opengis.referencing.operation.Matrix;
 import org.opengis.referencing.operation.TransformException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -41,8 +49,8 @@ import uk.ac.rdg.resc.edal.coverage.domain.Domain;
 import uk.ac.rdg.resc.edal.coverage.grid.HorizontalGrid;
 import uk.ac.rdg.resc.edal.coverage.grid.RectilinearGrid;
 import uk.ac.rdg.resc.edal.coverage.grid.ReferenceableAxis;
+import uk.ac.rdg.resc.edal.coverage.grid.impl.AbstractHorizontalGrid;
 import uk.ac.rdg.resc.edal.geometry.HorizontalPosition;
-import uk.ac.rdg.resc.edal.util.CollectionUtils;
 import uk.ac.rdg.resc.edal.util.Utils;
 
 /**
@@ -59,30 +67,47 @@ import uk.ac.rdg.resc.edal.util.Utils;
  *    4. Add the mapping (point -> i,j) to the pixel map
  * </pre>
  *
- * <p>(A more efficient algorithm is used for the special case in which both the
- * requested CRS and the CRS of the data are lat-lon.)</p>
+ * <p>(A more efficient algorithm is used for the special case in which the
+ * source and target are both rectilinear grids whose axes are separable,
+ * {@literal i.e.} the x coordinate in the source CRS depends only on the x
+ * coordinate in the target CRS, and likewise for y.  This is true if both
+ * grids are in the same CRS or share a projection, or if one is lat-lon with
+ * a longitude offset from the other.)</p>
  *
  * <p>The resulting PixelMap is then used by {@link DataReadingStrategy}s to work out what
  * data to read from the source data files.  A variety of strategies are possible
  * for reading these data points, each of which may be optimal in a certain
  * situation.</p>
  *
+ * <p>Internally the mapping is held as sorted (j, i, pixel) triples in
+ * primitive arrays, grouped into rows (one per j index) and runs (one per
+ * unique i-j pair) by offset arrays.  This avoids creating an {@link Integer}
+ * object and collection for every pixel, which previously dominated the
+ * cost of building large maps.  {@link DataReadingStrategy}s should iterate
+ * through the map using the primitive accessors ({@link #getNumRows()},
+ * {@link #getRowStart(int)}, {@link #getPixelStart(int)} etc); the
+ * Set-based methods such as {@link #getJIndices()} are retained as
+ * lightweight views for compatibility.  Rows, i indices and pixel indices
+ * are always returned in ascending order.</p>
+ *
  * @author Jon Blower
  * @todo Perhaps we can think of a more appropriate name for this class?
  * @todo equals() and hashCode(), particularly if we're going to cache instances
  * of this class.
- * @todo It may be possible to create an alternative version of this class for
- * cases where both source and target grids are lat-lon.  In this case, the
- * pixelmap should also be a RectilinearGrid, meaning that there would be no need
- * to store mapping information in HashMaps etc.  (Profiling shows that getting
- * and putting data from/to the HashMaps is a bottleneck.)
  * @see DataReadingStrategy
  */
 final class PixelMap
 {
     private static final Logger logger = LoggerFactory.getLogger(PixelMap.class);
 
-    private final boolean sorted;
+    private static final int[] EMPTY = new int[0];
+
+    /**
+     * The number of target points whose coordinates are transformed together
+     * when the generic method is used.  This bounds the size of the working
+     * arrays for very large images.
+     */
+    private static final int TRANSFORM_BLOCK_SIZE = 8192;
 
     // These define the bounding box (in terms of axis indices) of the data
     // to extract from the source files
@@ -91,22 +116,33 @@ final class PixelMap
     private int maxIIndex = -1;
     private int maxJIndex = -1;
 
-    // Maps j indices to row information
-    private final Map<Integer, Row> pixelMap;
-
-    // Number of unique i-j pairs
-    private int numUniqueIJPairs = 0;
+    // Working storage used while the map is being built.  The i index and the
+    // pixel index of each entry are packed into a single long (i in the upper
+    // 32 bits) so that sorting the longs sorts by i, then by pixel.  These
+    // are discarded once the map has been compacted.
+    private int[] jBuf = new int[1024];
+    private long[] ipBuf = new long[1024];
+    private int numEntries = 0;
+
+    // The j index of each row, in ascending order
+    private int[] rowJIndices = EMPTY;
+    // rowOffsets[r] is the position in iIndices of the first i-j pair in row r.
+    // There is one more element than there are rows.
+    private int[] rowOffsets = new int[1];
+    // The i index of each unique i-j pair, ascending within each row
+    private int[] iIndices = EMPTY;
+    // pixelOffsets[n] is the position in pixelIndices of the first pixel
+    // that maps to the nth i-j pair.  There is one more element than there
+    // are i-j pairs.
+    private int[] pixelOffsets = new int[1];
+    // The indices of the points in the target domain, grouped by i-j pair
+    private int[] pixelIndices = EMPTY;
 
     /**
      * Creates a PixelMap that maps from points within the grid of source
      * data ({@code sourceGrid}) to points within the required target domain.
-     * @param sorted if this is true, the {@link #getJIndices()} and
-     * {@link #getIIndices(int)} will return sets of integers in ascending order.
-     * Creating a sorted pixel map is generally slower, but may lead to improved
-     * i/o performance (can make better use of underlying buffers, and there is
-     * less seeking).
      */
-    public PixelMap(HorizontalGrid sourceGrid, Domain<HorizontalPosition> targetDomain, boolean sorted)
+    public PixelMap(HorizontalGrid sourceGrid, Domain<HorizontalPosition> targetDomain)
             throws TransformException
     {
         logger.debug("Creating PixelMap: Source CRS: {}, Target CRS: {}",
@@ -114,34 +150,37 @@ final class PixelMap
                 targetDomain.getCoordinateReferenceSystem().getName());
         logger.debug("SourceGrid class: {}, targetDomain class: {}",
                 sourceGrid.getClass(), targetDomain.getClass());
-        this.sorted = sorted;
-        if (sorted) this.pixelMap = CollectionUtils.newTreeMap();
-        else this.pixelMap = CollectionUtils.newHashMap();
 
         long start = System.currentTimeMillis();
-        if (sourceGrid instanceof RectilinearGrid && targetDomain instanceof RectilinearGrid &&
-            Utils.isWgs84LonLat(sourceGrid.getCoordinateReferenceSystem()) &&
-            Utils.isWgs84LonLat(targetDomain.getCoordinateReferenceSystem()))
+        double[][] separableValues = null;
+        if (sourceGrid instanceof RectilinearGrid && targetDomain instanceof RectilinearGrid)
         {
-            // We can gain efficiency if the source and target grids are both
-            // rectilinear lat-lon grids (i.e. they have separable latitude and
-            // longitude axes).
-
-            // TODO: could also be efficient for any matching CRS?  But how test
-            // for CRS equality, when one CRS will have been created from an EPSG code
-            // and the other will have been inferred from the source data file (e.g. NetCDF)
-            this.initFromGrid((RectilinearGrid)sourceGrid, (RectilinearGrid)targetDomain);
+            separableValues = getSeparableAxisValues(
+                (RectilinearGrid)sourceGrid, (RectilinearGrid)targetDomain);
+        }
+        if (separableValues != null)
+        {
+            // We can gain efficiency if the source and target grids have
+            // separable axes: we only need to look up each axis value once.
+            this.initFromGrid((RectilinearGrid)sourceGrid, (RectilinearGrid)targetDomain,
+                separableValues[0], separableValues[1]);
         }
         else
         {
             this.initFromPointList(sourceGrid, targetDomain);
         }
+        this.compact();
         logger.debug("Built pixel map in {} ms", System.currentTimeMillis() - start);
     }
 
     private void initFromPointList(HorizontalGrid sourceGrid, Domain<HorizontalPosition> targetDomain)
             throws TransformException
     {
+        if (sourceGrid instanceof AbstractHorizontalGrid)
+        {
+            this.initFromPointBlocks((AbstractHorizontalGrid)sourceGrid, targetDomain);
+            return;
+        }
         logger.debug("Using generic method based on iterating over the domain");
         int pixelIndex = 0;
         // Find the nearest grid coordinates to all the points in the domain
@@ -159,40 +198,260 @@ final class PixelMap
         }
     }
 
+    /**
+     * Generic method that works through the target domain in blocks of
+     * points held in primitive arrays.  Each block is transformed into the
+     * CRS of the source grid in a single operation and the nearest grid
+     * indices are looked up without creating objects for each point.  If the
+     * target domain is a rectilinear grid its coordinates are read straight
+     * from its axes.
+     */
+    private void initFromPointBlocks(AbstractHorizontalGrid sourceGrid,
+            Domain<HorizontalPosition> targetDomain)
+    {
+        logger.debug("Using generic method based on transforming blocks of points");
+        double[] targetXs = null;
+        double[] targetYs = null;
+        Iterator<HorizontalPosition> targetPositions = null;
+        int numPoints;
+        if (targetDomain instanceof RectilinearGrid)
+        {
+            RectilinearGrid targetGrid = (RectilinearGrid)targetDomain;
+            targetXs = toArray(targetGrid.getXAxis().getCoordinateValues());
+            targetYs = toArray(targetGrid.getYAxis().getCoordinateValues());
+            numPoints = targetXs.length * targetYs.length;
+        }
+        else
+        {
+            List<HorizontalPosition> positions = targetDomain.getDomainObjects();
+            targetPositions = positions.iterator();
+            numPoints = positions.size();
+        }
+
+        int blockSize = Math.min(numPoints, TRANSFORM_BLOCK_SIZE);
+        double[] coords = new double[blockSize * 2];
+        int[] gridIndices = new int[blockSize * 2];
+        for (int blockStart = 0; blockStart < numPoints; blockStart += blockSize)
+        {
+            int n = Math.min(blockSize, numPoints - blockStart);
+            for (int p = 0; p < n; p++)
+            {
+                int pixelIndex = blockStart + p;
+                if (targetXs != null)
+                {
+                    // The x axis varies fastest
+                    coords[2*p]     = targetXs[pixelIndex % targetXs.length];
+                    coords[2*p + 1] = targetYs[pixelIndex / targetXs.length];
+                }
+                else
+                {
+                    HorizontalPosition pos = targetPositions.next();
+                    coords[2*p]     = pos.getX();
+                    coords[2*p + 1] = pos.getY();
+                }
+            }
+            sourceGrid.findNearestGridPoints(coords, n,
+                targetDomain.getCoordinateReferenceSystem(), gridIndices);
+            for (int p = 0; p < n; p++)
+            {
+                int i = gridIndices[2*p];
+                int j = gridIndices[2*p + 1];
+                if (i >= 0 && j >= 0) this.put(i, j, blockStart + p);
+            }
+        }
+    }
+
+    private static double[] toArray(List<Double> values)
+    {
+        double[] arr = new double[values.size()];
+        for (int i = 0; i < arr.length; i++) arr[i] = values.get(i);
+        return arr;
+    }
+
+    /**
+     * Finds out whether the axes of the target grid map independently onto
+     * the axes of the source grid.  This is certainly the case if the
+     * transform between the two CRSs is the identity or a linear transform
+     * with no rotation or shear (e.g. a longitude offset or a change of
+     * units).  For other transforms we check a few complete rows and columns
+     * of the target grid: if the source x coordinate is the same all the way
+     * down each column and the source y coordinate is the same all the way
+     * along each row then the axes are taken to be separable.
+     * @return the coordinates of the target grid's x and y axes, translated
+     * into the source grid's CRS, or null if the axes are not separable (in
+     * which case the generic method must be used).  Coordinates that cannot
+     * be translated are returned as NaN.
+     */
+    private static double[][] getSeparableAxisValues(RectilinearGrid sourceGrid,
+            RectilinearGrid targetGrid)
+    {
+        double[] xs = toArray(targetGrid.getXAxis().getCoordinateValues());
+        double[] ys = toArray(targetGrid.getYAxis().getCoordinateValues());
+        CoordinateReferenceSystem targetCrs = targetGrid.getCoordinateReferenceSystem();
+        double[][] values;
+        try
+        {
+            MathTransform transform = CRS.findMathTransform(targetCrs,
+                sourceGrid.getCoordinateReferenceSystem());
+            if (transform.isIdentity())
+            {
+                values = new double[][]{xs, ys};
+            }
+            else if (transform instanceof LinearTransform)
+            {
+                Matrix m = ((LinearTransform)transform).getMatrix();
+                if (m.getNumRow() != 3 || m.getNumCol() != 3 ||
+                    m.getElement(0, 1) != 0.0 || m.getElement(1, 0) != 0.0)
+                {
+                    return null;
+                }
+                for (int i = 0; i < xs.length; i++)
+                {
+                    xs[i] = m.getElement(0, 0) * xs[i] + m.getElement(0, 2);
+                }
+                for (int j = 0; j < ys.length; j++)
+                {
+                    ys[j] = m.getElement(1, 1) * ys[j] + m.getElement(1, 2);
+                }
+                values = new double[][]{xs, ys};
+            }
+            else
+            {
+                values = getSampledSeparableAxisValues(transform, xs, ys);
+                if (values == null) return null;
+            }
+        }
+        catch (FactoryException fe)
+        {
+            logger.debug("Could not find transform between grids", fe);
+            return null;
+        }
+        catch (TransformException te)
+        {
+            logger.debug("Could not transform target grid coordinates", te);
+            return null;
+        }
+        if (Utils.isWgs84LonLat(targetCrs))
+        {
+            // Latitudes outside the valid range can't map onto the source grid
+            for (int j = 0; j < ys.length; j++)
+            {
+                double lat = targetGrid.getYAxis().getCoordinateValue(j);
+                if (lat < -90.0 || lat > 90.0) values[1][j] = Double.NaN;
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Checks for separable axes under a non-linear transform by transforming
+     * the first, middle and last rows and columns of the target grid.
+     * @return the translated axis coordinates, or null if the rows and columns
+     * show that the axes are not separable.
+     */
+    private static double[][] getSampledSeparableAxisValues(MathTransform transform,
+            double[] xs, double[] ys) throws TransformException
+    {
+        if (transform.getSourceDimensions() != 2 || transform.getTargetDimensions() != 2)
+        {
+            return null;
+        }
+        double[] sourceXs = null;
+        double[] sourceYs = null;
+        for (int probe : new int[]{0, ys.length / 2, ys.length - 1})
+        {
+            double[] row = transformLine(transform, xs, ys[probe], true);
+            double rowY = row[1];
+            for (int i = 0; i < xs.length; i++)
+            {
+                if (!nearlyEqual(row[2*i + 1], rowY)) return null;
+                if (sourceXs != null && !nearlyEqual(row[2*i], sourceXs[i])) return null;
+            }
+            if (sourceXs == null)
+            {
+                sourceXs = new double[xs.length];
+                for (int i = 0; i < xs.length; i++) sourceXs[i] = row[2*i];
+            }
+        }
+        for (int probe : new int[]{0, xs.length / 2, xs.length - 1})
+        {
+            double[] col = transformLine(transform, ys, xs[probe], false);
+            double colX = col[0];
+            for (int j = 0; j < ys.length; j++)
+            {
+                if (!nearlyEqual(col[2*j], colX)) return null;
+                if (sourceYs != null && !nearlyEqual(col[2*j + 1], sourceYs[j])) return null;
+            }
+            if (sourceYs == null)
+            {
+                sourceYs = new double[ys.length];
+                for (int j = 0; j < ys.length; j++) sourceYs[j] = col[2*j + 1];
+            }
+        }
+        return new double[][]{sourceXs, sourceYs};
+    }
+
+    /**
+     * Transforms a single row (if {@code isRow}) or column of a grid in one
+     * operation, returning (x,y) pairs.
+     */
+    private static double[] transformLine(MathTransform transform, double[] axisValues,
+            double fixedValue, boolean isRow) throws TransformException
+    {
+        double[] coords = new double[axisValues.length * 2];
+        for (int n = 0; n < axisValues.length; n++)
+        {
+            coords[2*n]     = isRow ? axisValues[n] : fixedValue;
+            coords[2*n + 1] = isRow ? fixedValue : axisValues[n];
+        }
+        transform.transform(coords, 0, coords, 0, axisValues.length);
+        return coords;
+    }
+
+    private static boolean nearlyEqual(double a, double b)
+    {
+        if (Double.isNaN(a) || Double.isNaN(b)) return Double.isNaN(a) && Double.isNaN(b);
+        double scale = Math.max(1.0, Math.max(Math.abs(a), Math.abs(b)));
+        return Math.abs(a - b) <= 1.0e-9 * scale;
+    }
+
     /**
      * Generates a PixelMap for reading data from the given source grid and
-     * projecting onto the target grid.
-     * @param sourceGrid The source grid in WGS84 lat-lon coordinates
-     * @param targetGrid The target grid in WGS84 lat-lon coordinates
-     * @throws TransformException if the necessary transformations could not be performed
+     * projecting onto the target grid, whose axes have been found to be
+     * separable.
+     * @param sourceGrid The source grid
+     * @param targetGrid The target grid
+     * @param sourceXs The x coordinates of the target grid in the CRS of the
+     * source grid
+     * @param sourceYs The y coordinates of the target grid in the CRS of the
+     * source grid
      */
-    private void initFromGrid(RectilinearGrid sourceGrid, RectilinearGrid targetGrid)
-            throws TransformException
+    private void initFromGrid(RectilinearGrid sourceGrid, RectilinearGrid targetGrid,
+            double[] sourceXs, double[] sourceYs)
     {
-        logger.debug("Using optimized method for lat-lon coordinates with 1D axes");
+        logger.debug("Using optimized method for grids with separable axes");
 
         ReferenceableAxis sourceGridXAxis = sourceGrid.getXAxis();
         ReferenceableAxis sourceGridYAxis = sourceGrid.getYAxis();
 
-        ReferenceableAxis targetGridXAxis = targetGrid.getXAxis();
-        ReferenceableAxis targetGridYAxis = targetGrid.getYAxis();
+        // We know the maximum number of entries in advance
+        this.ensureCapacity(sourceXs.length * sourceYs.length);
 
         // Calculate the indices along the x axis
-        int[] xIndices = new int[targetGridXAxis.getSize()];
-        List<Double> targetGridLons = targetGridXAxis.getCoordinateValues();
-        for (int i = 0; i < targetGridLons.size(); i++)
+        int[] xIndices = new int[sourceXs.length];
+        for (int i = 0; i < sourceXs.length; i++)
         {
-            double lon = targetGridLons.get(i);
-            xIndices[i] = sourceGridXAxis.getNearestCoordinateIndex(lon);
+            xIndices[i] = Double.isNaN(sourceXs[i])
+                ? -1 : sourceGridXAxis.getNearestCoordinateIndex(sourceXs[i]);
         }
 
-        // Now cycle through the latitude values in the target grid
+        // Now cycle through the y values in the target grid
         int pixelIndex = 0;
-        for (double lat : targetGridYAxis.getCoordinateValues())
+        for (double y : sourceYs)
         {
-            if (lat >= -90.0 && lat <= 90.0)
+            if (!Double.isNaN(y))
             {
-                int yIndex = sourceGridYAxis.getNearestCoordinateIndex(lat);
+                int yIndex = sourceGridYAxis.getNearestCoordinateIndex(y);
                 for (int xIndex : xIndices)
                 {
                     this.put(xIndex, yIndex, pixelIndex);
@@ -226,17 +485,114 @@ final class PixelMap
         if (j < this.minJIndex) this.minJIndex = j;
         if (j > this.maxJIndex) this.maxJIndex = j;
 
-        // Get the information for this row (i.e. this j index),
-        // creating a new row if necessary
-        Row row = this.pixelMap.get(j);
-        if (row == null)
+        if (this.numEntries == this.jBuf.length)
+        {
+            this.ensureCapacity(this.numEntries * 2);
+        }
+        this.jBuf[this.numEntries] = j;
+        this.ipBuf[this.numEntries] = ((long)i << 32) | pixel;
+        this.numEntries++;
+    }
+
+    /** Grows the working buffers so that they can hold at least n entries */
+    private void ensureCapacity(int n)
+    {
+        if (n > this.jBuf.length)
+        {
+            this.jBuf = Arrays.copyOf(this.jBuf, n);
+            this.ipBuf = Arrays.copyOf(this.ipBuf, n);
+        }
+    }
+
+    /**
+     * Sorts the entries that have been added with {@link #put(int, int, int)}
+     * and builds the row and i-j pair offset arrays.  The entries are first
+     * bucketed by j index (a counting sort, as the range of j indices is
+     * bounded by the size of the source grid), then each row is sorted by i
+     * index and pixel index.
+     */
+    private void compact()
+    {
+        if (this.numEntries == 0)
+        {
+            this.jBuf = null;
+            this.ipBuf = null;
+            return;
+        }
+
+        int numJ = this.maxJIndex - this.minJIndex + 1;
+        // rowStarts[r] will be the position of the first entry for j = minJIndex + r
+        int[] rowStarts = new int[numJ + 1];
+        for (int n = 0; n < this.numEntries; n++)
         {
-            row = new Row();
-            this.pixelMap.put(j, row);
+            rowStarts[this.jBuf[n] - this.minJIndex + 1]++;
+        }
+        int numRows = 0;
+        for (int r = 0; r < numJ; r++)
+        {
+            if (rowStarts[r + 1] > 0) numRows++;
+            rowStarts[r + 1] += rowStarts[r];
+        }
+
+        // Distribute the entries into their rows
+        long[] sorted = new long[this.numEntries];
+        int[] nextPos = Arrays.copyOf(rowStarts, numJ);
+        for (int n = 0; n < this.numEntries; n++)
+        {
+            sorted[nextPos[this.jBuf[n] - this.minJIndex]++] = this.ipBuf[n];
+        }
+        this.jBuf = null;
+        this.ipBuf = null;
+
+        // Sort each row by i index (then pixel index) and count the unique
+        // i-j pairs
+        int numPairs = 0;
+        for (int r = 0; r < numJ; r++)
+        {
+            int from = rowStarts[r];
+            int to = rowStarts[r + 1];
+            if (to - from > 1) Arrays.sort(sorted, from, to);
+            int lastI = -1;
+            for (int n = from; n < to; n++)
+            {
+                int i = (int)(sorted[n] >>> 32);
+                if (i != lastI) numPairs++;
+                lastI = i;
+            }
         }
 
-        // Add the pixel to this row
-        row.put(i, pixel);
+        // Now build the compact representation
+        this.rowJIndices = new int[numRows];
+        this.rowOffsets = new int[numRows + 1];
+        this.iIndices = new int[numPairs];
+        this.pixelOffsets = new int[numPairs + 1];
+        this.pixelIndices = new int[this.numEntries];
+        int row = 0;
+        int pair = 0;
+        for (int r = 0; r < numJ; r++)
+        {
+            int from = rowStarts[r];
+            int to = rowStarts[r + 1];
+            if (from == to) continue;
+            this.rowJIndices[row] = this.minJIndex + r;
+            this.rowOffsets[row] = pair;
+            int lastI = -1;
+            for (int n = from; n < to; n++)
+            {
+                int i = (int)(sorted[n] >>> 32);
+                if (i != lastI)
+                {
+                    this.iIndices[pair] = i;
+                    this.pixelOffsets[pair] = n;
+                    pair++;
+                    lastI = i;
+                }
+                this.pixelIndices[n] = (int)sorted[n];
+            }
+            row++;
+        }
+        this.rowOffsets[numRows] = numPairs;
+        this.pixelOffsets[numPairs] = this.numEntries;
     }
 
     /**
@@ -247,29 +603,120 @@ final class PixelMap
      */
     public boolean isEmpty()
     {
-        return this.pixelMap.size() == 0;
+        return this.rowJIndices.length == 0;
+    }
+
+    /**
+     * Returns the approximate number of bytes of memory occupied by this
+     * PixelMap, once it has been built.  Used to bound the size of the
+     * {@link PixelMapCache}.
+     */
+    long getMemoryWeight()
+    {
+        // Object header and fields, plus an array header for each array
+        long weight = 64 + 5 * 16;
+        weight += 4L * (this.rowJIndices.length + this.rowOffsets.length +
+            this.iIndices.length + this.pixelOffsets.length + this.pixelIndices.length);
+        return weight;
+    }
+
+    /**
+     * Gets the number of rows (i.e. distinct j indices) in this pixel map.
+     * Rows are numbered from zero in order of ascending j index.
+     */
+    public int getNumRows()
+    {
+        return this.rowJIndices.length;
+    }
+
+    /**
+     * Gets the j index of the given row
+     * @param row The row number, from 0 to {@link #getNumRows()} - 1
+     */
+    public int getRowJIndex(int row)
+    {
+        return this.rowJIndices[row];
+    }
+
+    /**
+     * Gets the number of the first i-j pair in the given row, for use with
+     * {@link #getIIndex(int)}, {@link #getPixelStart(int)} and
+     * {@link #getPixelEnd(int)}.
+     * @param row The row number, from 0 to {@link #getNumRows()} - 1
+     */
+    public int getRowStart(int row)
+    {
+        return this.rowOffsets[row];
+    }
+
+    /**
+     * Gets the number of the i-j pair after the last pair in the given row
+     * (i.e. the end of the row, exclusive).
+     * @param row The row number, from 0 to {@link #getNumRows()} - 1
+     */
+    public int getRowEnd(int row)
+    {
+        return this.rowOffsets[row + 1];
+    }
+
+    /**
+     * Gets the i index of the given i-j pair
+     * @param pair The number of the i-j pair, between {@link #getRowStart(int)}
+     * and {@link #getRowEnd(int)} for some row
+     */
+    public int getIIndex(int pair)
+    {
+        return this.iIndices[pair];
+    }
+
+    /**
+     * Gets the position of the first pixel that maps to the given i-j pair,
+     * for use with {@link #getPixelIndex(int)}.
+     */
+    public int getPixelStart(int pair)
+    {
+        return this.pixelOffsets[pair];
+    }
+
+    /**
+     * Gets the position after the last pixel that maps to the given i-j pair
+     * (exclusive).
+     */
+    public int getPixelEnd(int pair)
+    {
+        return this.pixelOffsets[pair + 1];
     }
 
     /**
-     * Gets the j indices of all rows in this pixel map, in ascending order if
-     * this pixel map was created with sorted=true
+     * Gets the index in the target domain of the pixel at the given position.
+     * @param pos A position between {@link #getPixelStart(int)} and
+     * {@link #getPixelEnd(int)} for some i-j pair
+     */
+    public int getPixelIndex(int pos)
+    {
+        return this.pixelIndices[pos];
+    }
+
+    /**
+     * Gets the j indices of all rows in this pixel map, in ascending order.
+     * The returned Set is a read-only view of the underlying arrays.
      * @return the Set of all j indices in this pixel map
      */
     public Set<Integer> getJIndices()
     {
-        return this.pixelMap.keySet();
+        return new IntArraySet(this.rowJIndices, 0, this.rowJIndices.length);
     }
 
     /**
      * Gets the i indices of all the data points in the given row that
-     * are needed to make the final image, in ascending order if
-     * this pixel map was created with sorted=true
+     * are needed to make the final image, in ascending order.
      * @return the Set of all i indices in the given row
      * @throws IllegalArgumentException if there is no row with the given y index
      */
     public Set<Integer> getIIndices(int j)
     {
-        return this.getRow(j).getIIndices().keySet();
+        int row = this.findRow(j);
+        return new IntArraySet(this.iIndices, this.getRowStart(row), this.getRowEnd(row));
     }
 
     /**
@@ -284,14 +731,16 @@ final class PixelMap
      */
     public Collection<Integer> getPixelIndices(int i, int j)
     {
-        Map<Integer, Collection<Integer>> row = this.getRow(j).getIIndices();
-        Collection<Integer> pixelIndices = row.get(i);
-        if (pixelIndices == null)
+        int row = this.findRow(j);
+        int pair = Arrays.binarySearch(this.iIndices, this.getRowStart(row),
+                this.getRowEnd(row), i);
+        if (pair < 0)
         {
             throw new IllegalArgumentException("The i index " + i +
                 " was not found in the row with j index " + j);
         }
-        return pixelIndices;
+        return new IntArraySet(this.pixelIndices, this.getPixelStart(pair),
+                this.getPixelEnd(pair));
     }
 
     /**
@@ -301,7 +750,7 @@ final class PixelMap
      */
     public int getMinIIndexInRow(int j)
     {
-        return this.getRow(j).getMinIIndex();
+        return this.iIndices[this.getRowStart(this.findRow(j))];
     }
 
     /**
@@ -311,20 +760,21 @@ final class PixelMap
      */
     public int getMaxIIndexInRow(int j)
     {
-        return this.getRow(j).getMaxIIndex();
+        return this.iIndices[this.getRowEnd(this.findRow(j)) - 1];
     }
 
     /**
-     * @return the row with the given j index
+     * @return the number of the row with the given j index
      * @throws IllegalArgumentException if there is no row with the given y index
      */
-    private Row getRow(int j)
+    private int findRow(int j)
     {
-        if (!this.pixelMap.containsKey(j))
+        int row = Arrays.binarySearch(this.rowJIndices, j);
+        if (row < 0)
         {
             throw new IllegalArgumentException("There is no row with j index " + j);
         }
-        return this.pixelMap.get(j);
+        return row;
     }
 
     /**
@@ -364,61 +814,39 @@ final class PixelMap
     }
 
     /**
-     * Contains information about a particular row in the data
+     * Gets the distinct i indices that appear in any row of the pixel map,
+     * in ascending order.  These are the columns of source data that are
+     * needed by the {@link DataReadingStrategy#STRIDED strided} strategy.
      */
-    private class Row
+    public int[] getDistinctIIndices()
     {
-        // Maps i Indices to a set of pixel indices
-        //             i        pixels
-        private final Map<Integer, Collection<Integer>> iIndices;
-        // Min and max x Indices in this row
-        private int minIIndex = Integer.MAX_VALUE;
-        private int maxIIndex = -1;
-
-        public Row()
+        if (this.isEmpty()) return new int[0];
+        boolean[] present = new boolean[this.maxIIndex - this.minIIndex + 1];
+        int numDistinct = 0;
+        for (int i : this.iIndices)
         {
-            if (sorted) this.iIndices = CollectionUtils.newTreeMap();
-            else this.iIndices = CollectionUtils.newHashMap();
-        }
-
-        /**
-         * Adds a mapping of an i index to a pixel index
-         * NOTE: Profiling shows that this method is the bottleneck in the creation
-         * of the PixelMap.  The use of an ArrayList to hold pixel indices speeds
-         * up the creation of the PixelMap by 10-30% over a HashSet.  (A LinkedList appears
-         * only fractionally slower than an ArrayList for this purpose.)
-         */
-        public void put(int i, int pixel)
-        {
-            if (i < this.minIIndex) this.minIIndex = i;
-            if (i > this.maxIIndex) this.maxIIndex = i;
-
-            Collection<Integer> pixelIndices = this.iIndices.get(i);
-            if (pixelIndices == null)
+            if (!present[i - this.minIIndex])
             {
-                pixelIndices = new ArrayList<Integer>();
-                this.iIndices.put(i, pixelIndices);
-                // We have a new unique i-j pair
-                PixelMap.this.numUniqueIJPairs++;
+                present[i - this.minIIndex] = true;
+                numDistinct++;
             }
-            // Add the pixel index to the set
-            pixelIndices.add(pixel);
         }
-
-        public Map<Integer, Collection<Integer>> getIIndices()
+        int[] distinct = new int[numDistinct];
+        int n = 0;
+        for (int k = 0; k < present.length; k++)
         {
-            return this.iIndices;
-        }
-
-        public int getMinIIndex()
-        {
-            return this.minIIndex;
+            if (present[k]) distinct[n++] = k + this.minIIndex;
         }
+        return distinct;
+    }
 
-        public int getMaxIIndex()
-        {
-            return this.maxIIndex;
-        }
+    /**
+     * Gets the distinct j indices in the pixel map (i.e. the j index of each
+     * row) in ascending order.
+     */
+    public int[] getDistinctJIndices()
+    {
+        return this.rowJIndices.clone();
     }
 
     /**
@@ -431,7 +859,7 @@ final class PixelMap
      */
     public int getNumUniqueIJPairs()
     {
-        return numUniqueIJPairs;
+        return this.iIndices.length;
     }
 
     /**
@@ -444,9 +872,11 @@ final class PixelMap
     public int getSumRowLengths()
     {
         int sumRowLengths = 0;
-        for (Row row : this.pixelMap.values())
+        for (int row = 0; row < this.rowJIndices.length; row++)
         {
-            sumRowLengths += (row.getMaxIIndex() - row.getMinIIndex() + 1);
+            int imin = this.iIndices[this.getRowStart(row)];
+            int imax = this.iIndices[this.getRowEnd(row) - 1];
+            sumRowLengths += (imax - imin + 1);
         }
         return sumRowLengths;
     }
@@ -463,4 +893,56 @@ final class PixelMap
                (this.maxJIndex - this.minJIndex + 1);
     }
 
+    /**
+     * Read-only Set view of a sorted, duplicate-free section of an int array.
+     */
+    private static final class IntArraySet extends AbstractSet<Integer>
+    {
+        private final int[] values;
+        private final int from;
+        private final int to;
+
+        public IntArraySet(int[] values, int from, int to)
+        {
+            this.values = values;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public int size()
+        {
+            return this.to - this.from;
+        }
+
+        @Override
+        public boolean contains(Object o)
+        {
+            return o instanceof Integer &&
+                Arrays.binarySearch(this.values, this.from, this.to, (Integer)o) >= 0;
+        }
+
+        @Override
+        public Iterator<Integer> iterator()
+        {
+            return new Iterator<Integer>()
+            {
+                private int pos = from;
+
+                public boolean hasNext() { return this.pos < to; }
+
+                public Integer next()
+                {
+                    if (this.pos >= to) throw new NoSuchElementException();
+                    return values[this.pos++];
+                }
+
+                public void remove()
+                {
+                    throw new UnsupportedOperationException("Not supported.");
+                }
+            };
+        }
+    }
+
 }
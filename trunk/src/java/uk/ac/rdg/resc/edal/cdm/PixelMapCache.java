@@ -0,0 +1,379 @@
+/*
+ * Copyright (c) 2010 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.edal.cdm;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.operation.TransformException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.ac.rdg.resc.edal.coverage.domain.Domain;
+import uk.ac.rdg.resc.edal.coverage.grid.HorizontalGrid;
+import uk.ac.rdg.resc.edal.coverage.grid.RegularGrid;
+import uk.ac.rdg.resc.edal.geometry.BoundingBox;
+import uk.ac.rdg.resc.edal.geometry.HorizontalPosition;
+
+/**
+ * <p>A bounded cache of {@link PixelMap}s.  The same mapping from a source
+ * grid to a target image is needed for every frame of an animation, for both
+ * components of a vector layer and for every variable that shares a
+ * {@link HorizontalGrid}, so reusing PixelMaps saves a great deal of
+ * repeated work.</p>
+ *
+ * <p>PixelMaps are keyed on the identity of the source grid (which is shared
+ * by all the variables in a coordinate system) and on the CRS, bounding box
+ * and size of the target grid.  Only targets that are {@link RegularGrid}s
+ * (i.e. images) are cached.  If several threads need the same PixelMap at
+ * once, only one of them builds it and the others wait.  The cache is bounded
+ * by the approximate {@link PixelMap#getMemoryWeight() memory footprint} of
+ * the PixelMaps that it holds; when this is exceeded the least-recently-used
+ * PixelMaps are discarded.</p>
+ *
+ * <p>The outcome of the most recent lookup made by each thread can be
+ * found through {@link #getLastLookup()}, so that it can be recorded in
+ * usage logs.</p>
+ *
+ * @author Jon
+ */
+public final class PixelMapCache
+{
+    private static final Logger logger = LoggerFactory.getLogger(PixelMapCache.class);
+
+    /** Records the outcome of the most recent lookup made by each thread */
+    private static final ThreadLocal<Lookup> LAST_LOOKUP = new ThreadLocal<Lookup>();
+
+    // Least-recently-used first.  Entries whose PixelMaps are still being
+    // built are included but have no weight until they are finished.
+    private final LinkedHashMap<Key, Entry> entries =
+        new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+
+    private long maxSizeBytes;
+    private long sizeBytes = 0;
+
+    private long numHits = 0;
+    private long numMisses = 0;
+    private long totalBuildTimeMs = 0;
+
+    /**
+     * Creates a new cache
+     * @param maxSizeBytes The approximate maximum number of bytes of PixelMaps
+     * to hold.  If this is zero, no PixelMaps will be cached.
+     */
+    public PixelMapCache(long maxSizeBytes)
+    {
+        this.setMaxSizeBytes(maxSizeBytes);
+    }
+
+    /**
+     * Gets the PixelMap for the given source grid and target domain, building
+     * it if it is not in the cache.
+     * @throws TransformException if the PixelMap could not be built
+     */
+    PixelMap getPixelMap(HorizontalGrid sourceGrid, final Domain<HorizontalPosition> targetDomain)
+        throws TransformException
+    {
+        if (!(targetDomain instanceof RegularGrid) || this.getMaxSizeBytes() == 0)
+        {
+            return this.build(sourceGrid, targetDomain, false);
+        }
+
+        final HorizontalGrid source = sourceGrid;
+        Key key = new Key(sourceGrid, (RegularGrid)targetDomain);
+        Entry entry;
+        boolean found;
+        synchronized(this)
+        {
+            entry = this.entries.get(key);
+            found = entry != null;
+            if (!found)
+            {
+                entry = new Entry(new FutureTask<PixelMap>(new Callable<PixelMap>() {
+                    @Override public PixelMap call() throws TransformException {
+                        return build(source, targetDomain, true);
+                    }
+                }));
+                this.entries.put(key, entry);
+                this.numMisses++;
+            }
+            else
+            {
+                this.numHits++;
+            }
+        }
+
+        if (found)
+        {
+            // The PixelMap may still be being built by another thread
+            LAST_LOOKUP.set(new Lookup(true, 0));
+        }
+        else
+        {
+            entry.task.run();
+        }
+
+        try
+        {
+            PixelMap pixelMap = entry.task.get();
+            if (!found) this.added(key, entry, pixelMap.getMemoryWeight());
+            return pixelMap;
+        }
+        catch (InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for PixelMap", ie);
+        }
+        catch (ExecutionException ee)
+        {
+            // Don't cache the failure
+            synchronized(this)
+            {
+                if (this.entries.get(key) == entry) this.entries.remove(key);
+            }
+            Throwable cause = ee.getCause();
+            if (cause instanceof TransformException) throw (TransformException)cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+            if (cause instanceof Error) throw (Error)cause;
+            throw new IllegalStateException("Error building PixelMap", cause);
+        }
+    }
+
+    private PixelMap build(HorizontalGrid sourceGrid, Domain<HorizontalPosition> targetDomain,
+        boolean cacheable) throws TransformException
+    {
+        long start = System.nanoTime();
+        PixelMap pixelMap = new PixelMap(sourceGrid, targetDomain);
+        long buildTimeNanos = System.nanoTime() - start;
+        ReadTimings.addPixelMapNanos(buildTimeNanos);
+        long buildTimeMs = buildTimeNanos / 1000000;
+        LAST_LOOKUP.set(new Lookup(false, buildTimeMs));
+        if (cacheable)
+        {
+            synchronized(this)
+            {
+                this.totalBuildTimeMs += buildTimeMs;
+            }
+        }
+        return pixelMap;
+    }
+
+    /**
+     * Called when a PixelMap has been built, to account for its size and
+     * evict older entries if necessary.
+     */
+    private synchronized void added(Key key, Entry entry, long weight)
+    {
+        // The entry may have been removed by clear() while it was being built
+        if (this.entries.get(key) != entry) return;
+        entry.weight = weight;
+        this.sizeBytes += weight;
+        this.evict(this.maxSizeBytes);
+    }
+
+    /** Removes least-recently-used entries until the cache is no bigger than the given size */
+    private synchronized void evict(long size)
+    {
+        Iterator<Entry> it = this.entries.values().iterator();
+        while (this.sizeBytes > size && it.hasNext())
+        {
+            Entry entry = it.next();
+            // Unfinished entries have no weight yet, so there's no point
+            // removing them
+            if (entry.weight == 0) continue;
+            it.remove();
+            this.sizeBytes -= entry.weight;
+        }
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("PixelMap cache holds {} entries, {} bytes",
+                this.entries.size(), this.sizeBytes);
+        }
+    }
+
+    /**
+     * Sets the approximate maximum number of bytes of PixelMaps that will be
+     * held, discarding PixelMaps if necessary.
+     * @throws IllegalArgumentException if {@code maxSizeBytes} is negative
+     */
+    public synchronized void setMaxSizeBytes(long maxSizeBytes)
+    {
+        if (maxSizeBytes < 0)
+        {
+            throw new IllegalArgumentException("maxSizeBytes must be >= 0");
+        }
+        this.maxSizeBytes = maxSizeBytes;
+        this.evict(maxSizeBytes);
+    }
+
+    public synchronized long getMaxSizeBytes()
+    {
+        return this.maxSizeBytes;
+    }
+
+    /** Gets the approximate number of bytes of PixelMaps currently held */
+    public synchronized long getSizeBytes()
+    {
+        return this.sizeBytes;
+    }
+
+    /** Gets the number of PixelMaps currently held */
+    public synchronized int getNumEntries()
+    {
+        return this.entries.size();
+    }
+
+    /** Gets the number of times a PixelMap was found in the cache */
+    public synchronized long getNumHits()
+    {
+        return this.numHits;
+    }
+
+    /** Gets the number of times a cacheable PixelMap had to be built */
+    public synchronized long getNumMisses()
+    {
+        return this.numMisses;
+    }
+
+    /**
+     * Gets the total time in milliseconds that has been spent building
+     * cacheable PixelMaps
+     */
+    public synchronized long getTotalBuildTimeMs()
+    {
+        return this.totalBuildTimeMs;
+    }
+
+    /** Discards all the PixelMaps in the cache */
+    public synchronized void clear()
+    {
+        this.entries.clear();
+        this.sizeBytes = 0;
+    }
+
+    /**
+     * Returns the outcome of the most recent PixelMap lookup made by the current
+     * thread, or null if there has been no lookup since the last call to
+     * {@link #clearLastLookup()}.
+     */
+    public static Lookup getLastLookup()
+    {
+        return LAST_LOOKUP.get();
+    }
+
+    /**
+     * Clears the record of the most recent lookup made by the current thread.
+     * @see #getLastLookup()
+     */
+    public static void clearLastLookup()
+    {
+        LAST_LOOKUP.remove();
+    }
+
+    /** The outcome of a single PixelMap lookup */
+    public static final class Lookup
+    {
+        private final boolean hit;
+        private final long buildTimeMs;
+
+        private Lookup(boolean hit, long buildTimeMs)
+        {
+            this.hit = hit;
+            this.buildTimeMs = buildTimeMs;
+        }
+
+        /** Returns true if the PixelMap was found in the cache */
+        public boolean isHit() { return this.hit; }
+
+        /** Returns the time taken to build the PixelMap, or zero if it was found in the cache */
+        public long getBuildTimeMs() { return this.buildTimeMs; }
+    }
+
+    private static final class Entry
+    {
+        private final FutureTask<PixelMap> task;
+        // Zero until the PixelMap has been built
+        private long weight = 0;
+
+        public Entry(FutureTask<PixelMap> task)
+        {
+            this.task = task;
+        }
+    }
+
+    /** Identifies a PixelMap by source grid identity and target grid geometry */
+    private static final class Key
+    {
+        private final HorizontalGrid sourceGrid;
+        private final CoordinateReferenceSystem targetCrs;
+        private final double[] targetBbox;
+        private final int width;
+        private final int height;
+        private final int hashCode;
+
+        public Key(HorizontalGrid sourceGrid, RegularGrid targetGrid)
+        {
+            this.sourceGrid = sourceGrid;
+            this.targetCrs = targetGrid.getCoordinateReferenceSystem();
+            BoundingBox bbox = targetGrid.getExtent();
+            this.targetBbox = new double[] {
+                bbox.getMinX(), bbox.getMinY(), bbox.getMaxX(), bbox.getMaxY()
+            };
+            this.width = targetGrid.getXAxis().getSize();
+            this.height = targetGrid.getYAxis().getSize();
+
+            int hash = 17;
+            hash = 31 * hash + System.identityHashCode(this.sourceGrid);
+            hash = 31 * hash + (this.targetCrs == null ? 0 : this.targetCrs.hashCode());
+            hash = 31 * hash + Arrays.hashCode(this.targetBbox);
+            hash = 31 * hash + this.width;
+            hash = 31 * hash + this.height;
+            this.hashCode = hash;
+        }
+
+        @Override public int hashCode() { return this.hashCode; }
+
+        @Override public boolean equals(Object obj)
+        {
+            if (obj == this) return true;
+            if (!(obj instanceof Key)) return false;
+            Key other = (Key)obj;
+            return this.sourceGrid == other.sourceGrid &&
+                   this.width == other.width &&
+                   this.height == other.height &&
+                   Arrays.equals(this.targetBbox, other.targetBbox) &&
+                   (this.targetCrs == null ? other.targetCrs == null
+                                           : this.targetCrs.equals(other.targetCrs));
+        }
+    }
+}
@@ -40,6 +40,7 @@ import ucar.unidata.geoloc.Projection;
 import ucar.unidata.geoloc.ProjectionImpl;
 import ucar.unidata.geoloc.ProjectionPoint;
 import uk.ac.rdg.resc.edal.coverage.grid.GridCoordinates;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
 import uk.ac.rdg.resc.edal.coverage.grid.HorizontalGrid;
 import uk.ac.rdg.resc.edal.coverage.grid.ReferenceableAxis;
 import uk.ac.rdg.resc.edal.coverage.grid.impl.AbstractHorizontalGrid;
@@ -60,6 +61,19 @@ import uk.ac.rdg.resc.edal.util.Utils;
 class ProjectedGrid extends AbstractHorizontalGrid
 {
     private final ProjectionImpl proj;
+    /**
+     * ProjectionImpls are not thread-safe (thanks to Marcos Hermida of
+     * Meteogalicia for pointing this out!), so each thread works on its own
+     * copy rather than contending for a lock on a shared instance.
+     */
+    private final ThreadLocal<ProjectionImpl> threadProj = new ThreadLocal<ProjectionImpl>() {
+        @Override
+        protected ProjectionImpl initialValue() {
+            synchronized(ProjectedGrid.this.proj) {
+                return ProjectedGrid.this.proj.constructCopy();
+            }
+        }
+    };
     private final ReferenceableAxis xAxis;
     private final ReferenceableAxis yAxis;
     private final List<String> axisNames;
@@ -87,10 +101,7 @@ class ProjectedGrid extends AbstractHorizontalGrid
         double x = this.xAxis.getCoordinateValue(i);
         double y = this.yAxis.getCoordinateValue(j);
         // Translate this point to lon-lat coordinates
-        LatLonPoint latLon;
-        synchronized(this.proj) {
-            latLon = this.proj.projToLatLon(x, y);
-        }
+        LatLonPoint latLon = this.threadProj.get().projToLatLon(x, y);
         return new LonLatPositionImpl(latLon.getLongitude(), latLon.getLatitude());
     }
 
@@ -103,6 +114,37 @@ class ProjectedGrid extends AbstractHorizontalGrid
         return new GridCoordinatesImpl(i, j);
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>This implementation transforms the block into lat-lon, then into
+     * the projection's coordinates, in two bulk operations before looking up
+     * the indices directly on the axes.</p>
+     */
+    @Override
+    public void findNearestGridPoints(double[] coords, int numPoints,
+            CoordinateReferenceSystem crs, int[] gridIndices) {
+        Utils.transformCoordinates(coords, numPoints, crs, this.getCoordinateReferenceSystem());
+        // Now we go from lon-lat to the coordinate system of the axes
+        double[][] lonLat = new double[2][numPoints];
+        for (int n = 0; n < numPoints; n++) {
+            lonLat[0][n] = coords[2*n];
+            lonLat[1][n] = coords[2*n + 1];
+        }
+        double[][] projCoords = this.threadProj.get().latLonToProj(
+            lonLat, new double[2][numPoints], 1, 0);
+        for (int n = 0; n < numPoints; n++) {
+            double x = projCoords[0][n];
+            double y = projCoords[1][n];
+            int i = this.xAxis.getNearestCoordinateIndex(x);
+            int j = this.yAxis.getNearestCoordinateIndex(y);
+            if (i < 0 || j < 0 || Double.isNaN(x) || Double.isNaN(y)) {
+                i = j = -1;
+            }
+            gridIndices[2*n] = i;
+            gridIndices[2*n + 1] = j;
+        }
+    }
+
     @Override
     public GridCoordinates inverseTransformCoordinates(HorizontalPosition pos) {
         ProjectionPoint point = this.getProjectionPoint(pos);
@@ -117,12 +159,8 @@ class ProjectedGrid extends AbstractHorizontalGrid
     private ProjectionPoint getProjectionPoint(HorizontalPosition pos) {
         // Translate the point into lat-lon coordinates
         pos = Utils.transformPosition(pos, this.getCoordinateReferenceSystem());
-        // Now we go from lon-lat to the coordinate system of the axes.
-        // ProjectionImpls are not thread-safe.  Thanks to Marcos
-        // Hermida of Meteogalicia for pointing this out!
-        synchronized(this.proj) {
-            return this.proj.latLonToProj(pos.getY(), pos.getX());
-        }
+        // Now we go from lon-lat to the coordinate system of the axes
+        return this.threadProj.get().latLonToProj(pos.getY(), pos.getX());
     }
 
     @Override
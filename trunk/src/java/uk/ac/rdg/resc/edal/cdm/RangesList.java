@@ -98,6 +98,22 @@ final class RangesList
             new Object[]{rank, this.xAxisIndex, this.yAxisIndex, this.zAxisIndex, this.tAxisIndex});
     }
 
+    /**
+     * Creates a new RangesList with the same axis indices as the given
+     * RangesList, in which all the ranges are reset to zero.  This is quicker
+     * than creating a RangesList from the GridDatatype.
+     */
+    public RangesList(RangesList template)
+    {
+        int rank = template.ranges.size();
+        this.ranges = new ArrayList<Range>(rank);
+        for (int i = 0; i < rank; i++) { this.ranges.add(ZERO_RANGE); }
+        this.xAxisIndex = template.xAxisIndex;
+        this.yAxisIndex = template.yAxisIndex;
+        this.zAxisIndex = template.zAxisIndex;
+        this.tAxisIndex = template.tAxisIndex;
+    }
+
     public void setXRange(int xmin, int xmax)
     {
         this.setRange(this.xAxisIndex, xmin, xmax);
@@ -108,6 +124,18 @@ final class RangesList
         this.setRange(this.yAxisIndex, ymin, ymax);
     }
 
+    /** Sets the x range to every {@code stride}th index from xmin to xmax */
+    public void setXRange(int xmin, int xmax, int stride)
+    {
+        this.setRange(this.xAxisIndex, xmin, xmax, stride);
+    }
+
+    /** Sets the y range to every {@code stride}th index from ymin to ymax */
+    public void setYRange(int ymin, int ymax, int stride)
+    {
+        this.setRange(this.yAxisIndex, ymin, ymax, stride);
+    }
+
     public void setZRange(int zmin, int zmax)
     {
         this.setRange(this.zAxisIndex, zmin, zmax);
@@ -119,12 +147,17 @@ final class RangesList
     }
 
     private void setRange(int index, int min, int max)
+    {
+        this.setRange(index, min, max, 1);
+    }
+
+    private void setRange(int index, int min, int max, int stride)
     {
         if (index >= 0)
         {
             try
             {
-                this.ranges.set(index, new Range(min, max));
+                this.ranges.set(index, new Range(min, max, stride));
             }
             catch(InvalidRangeException ire)
             {
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2010 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.edal.cdm;
+
+/**
+ * <p>Accumulates the time that the current thread spends in each stage of
+ * reading data: building {@link PixelMap}s, reading from the source files and
+ * unpacking (i.e. converting and enhancing) the values that were read.  The
+ * times are totalled over all the reads made since the last call to
+ * {@link #clear()}, so a caller that wants to know how long a particular
+ * extraction took should call {@link #clear()} before the extraction and
+ * {@link #get()} after it.</p>
+ * <p>Instances of this class are mutable and are only used by one thread:
+ * {@link #get()} returns the instance belonging to the current thread.</p>
+ * @author Jon
+ */
+public final class ReadTimings
+{
+    private static final ThreadLocal<ReadTimings> CURRENT = new ThreadLocal<ReadTimings>()
+    {
+        @Override
+        protected ReadTimings initialValue()
+        {
+            return new ReadTimings();
+        }
+    };
+
+    private long pixelMapNanos = 0;
+    private long readNanos = 0;
+    private long unpackNanos = 0;
+
+    private ReadTimings() {}
+
+    /** Returns the timings of the current thread */
+    public static ReadTimings get()
+    {
+        return CURRENT.get();
+    }
+
+    /** Resets the timings of the current thread to zero */
+    public static void clear()
+    {
+        CURRENT.get().reset();
+    }
+
+    static void addPixelMapNanos(long nanos)
+    {
+        CURRENT.get().pixelMapNanos += nanos;
+    }
+
+    static void addReadNanos(long nanos)
+    {
+        CURRENT.get().readNanos += nanos;
+    }
+
+    static void addUnpackNanos(long nanos)
+    {
+        CURRENT.get().unpackNanos += nanos;
+    }
+
+    private void reset()
+    {
+        this.pixelMapNanos = 0;
+        this.readNanos = 0;
+        this.unpackNanos = 0;
+    }
+
+    /**
+     * Returns the time spent building PixelMaps, in nanoseconds.  PixelMaps
+     * that are found in the {@link PixelMapCache} take no time to build.
+     */
+    public long getPixelMapNanos()
+    {
+        return this.pixelMapNanos;
+    }
+
+    /** Returns the time spent reading from the source data, in nanoseconds */
+    public long getReadNanos()
+    {
+        return this.readNanos;
+    }
+
+    /**
+     * Returns the time spent converting the values that were read to floats
+     * and applying scale, offset and missing values, in nanoseconds.
+     */
+    public long getUnpackNanos()
+    {
+        return this.unpackNanos;
+    }
+}
@@ -0,0 +1,474 @@
+/*
+ * Copyright (c) 2010 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.rdg.resc.edal.cdm;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ucar.ma2.Range;
+import ucar.nc2.Attribute;
+import ucar.nc2.Variable;
+import ucar.nc2.dataset.VariableDS;
+
+/**
+ * <p>A bounded cache of decoded chunks of source data.  Adjacent map tiles,
+ * and tiles at neighbouring zoom levels, usually need data from the same part
+ * of the source grid.  Without this cache each tile reads (and, for compressed
+ * formats such as NetCDF-4, decompresses) the same data again.</p>
+ *
+ * <p>The horizontal (x-y) plane of each variable is divided into chunks.
+ * The chunk size is taken from the "_ChunkSizes" or "_ChunkSize" attribute
+ * of the variable if it has one, so that chunks line up with the storage
+ * chunks in the file; otherwise (e.g. for NetCDF-3 files, or because this
+ * version of the NetCDF libraries does not expose the chunking of HDF5
+ * variables) a synthetic chunk size of {@link #DEFAULT_CHUNK_SIZE} is used.
+ * Each chunk is held as an array of unpacked floating-point values, in which
+ * missing values are represented by NaNs.</p>
+ *
+ * <p>Chunks are keyed on the identity of the file (its location and
+ * modification time), the variable, the indices along all the non-horizontal
+ * axes (e.g. time and elevation) and the position of the chunk.  If several
+ * threads need the same chunk at once, only one of them reads it.  The cache
+ * is bounded by the number of bytes of data that it holds; when this is
+ * exceeded the least-recently-used chunks are discarded.  Hit rates are
+ * recorded separately for each dataset.</p>
+ *
+ * @see DataReadingStrategy#CHUNKED
+ * @author Jon
+ */
+public final class SourceChunkCache
+{
+    private static final Logger logger = LoggerFactory.getLogger(SourceChunkCache.class);
+
+    /** The chunk size in each horizontal direction when the file does not specify one */
+    public static final int DEFAULT_CHUNK_SIZE = 256;
+
+    /** Approximate memory overhead of each entry in the cache, in bytes */
+    private static final long ENTRY_OVERHEAD_BYTES = 128;
+
+    // Least-recently-used first.  Entries whose chunks are still being
+    // read are included but have no weight until they are finished.
+    private final LinkedHashMap<Key, Entry> entries =
+        new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+
+    private long maxSizeBytes;
+    private long sizeBytes = 0;
+
+    // Hit and miss counts for each dataset
+    private final Map<String, Statistics> statistics = new TreeMap<String, Statistics>();
+
+    /**
+     * Creates a new cache
+     * @param maxSizeBytes The maximum number of bytes of data to hold.  If this
+     * is zero, no chunks will be cached.
+     */
+    public SourceChunkCache(long maxSizeBytes)
+    {
+        this.setMaxSizeBytes(maxSizeBytes);
+    }
+
+    /**
+     * Identifies a file from which data are read, and the dataset to which
+     * the hits and misses on its chunks are attributed.
+     */
+    static final class Source
+    {
+        private final String fileId;
+        private final String datasetId;
+
+        /**
+         * @param fileId Uniquely identifies the contents of the file, e.g. by
+         * its location and modification time
+         * @param datasetId The dataset to which the file belongs, for the
+         * purpose of recording statistics
+         */
+        Source(String fileId, String datasetId)
+        {
+            this.fileId = fileId;
+            this.datasetId = datasetId;
+        }
+    }
+
+    /**
+     * Gets the size of the chunks of the given variable as an array of two
+     * integers: the size in the x direction then the size in the y direction.
+     */
+    static int[] getChunkShape(VariableDS var, RangesList ranges)
+    {
+        int[] shape = var.getShape();
+        int nx = shape[ranges.getXAxisIndex()];
+        int ny = shape[ranges.getYAxisIndex()];
+        int[] chunkShape = getStoredChunkShape(var);
+        if (chunkShape == null)
+        {
+            Variable origVar = var.getOriginalVariable();
+            if (origVar != null) chunkShape = getStoredChunkShape(origVar);
+        }
+        int cx = DEFAULT_CHUNK_SIZE;
+        int cy = DEFAULT_CHUNK_SIZE;
+        if (chunkShape != null && chunkShape.length == shape.length)
+        {
+            cx = chunkShape[ranges.getXAxisIndex()];
+            cy = chunkShape[ranges.getYAxisIndex()];
+        }
+        return new int[] {
+            Math.max(1, Math.min(nx, cx)),
+            Math.max(1, Math.min(ny, cy))
+        };
+    }
+
+    /** Reads the chunk shape from the attributes of the variable, or returns null */
+    private static int[] getStoredChunkShape(Variable var)
+    {
+        Attribute att = var.findAttribute("_ChunkSizes");
+        if (att == null) att = var.findAttribute("_ChunkSize");
+        if (att == null || !att.isArray() && att.getNumericValue() == null) return null;
+        int[] chunkShape = new int[att.getLength()];
+        for (int i = 0; i < chunkShape.length; i++)
+        {
+            Number n = att.getNumericValue(i);
+            if (n == null) return null;
+            chunkShape[i] = n.intValue();
+        }
+        return chunkShape;
+    }
+
+    /**
+     * Returns true if the given chunk is in the cache.  This does not count as
+     * a use of the chunk.
+     * @param ranges The ranges of the read, which must be set for all the
+     * non-horizontal axes
+     */
+    synchronized boolean contains(Source source, VariableDS var, RangesList ranges,
+        int chunkI, int chunkJ)
+    {
+        return this.entries.containsKey(new Key(source, var, ranges, chunkI, chunkJ));
+    }
+
+    /**
+     * Gets the given chunk of data, reading it from the variable if it is not
+     * in the cache.
+     * @param ranges The ranges of the read, which must be set for all the
+     * non-horizontal axes.  The horizontal ranges will be modified.
+     * @param chunkShape The chunk shape as returned by {@link #getChunkShape}
+     * @return the data values in the chunk, with the x index varying fastest.
+     * The chunk is smaller than {@code chunkShape} at the edges of the grid.
+     */
+    float[] getChunk(Source source, final VariableDS var, final RangesList ranges,
+        final int chunkI, final int chunkJ, final int[] chunkShape)
+        throws IOException
+    {
+        if (this.getMaxSizeBytes() == 0)
+        {
+            this.recordLookup(source, false);
+            return readChunk(var, ranges, chunkI, chunkJ, chunkShape);
+        }
+
+        Key key = new Key(source, var, ranges, chunkI, chunkJ);
+        Entry entry;
+        boolean found;
+        synchronized(this)
+        {
+            entry = this.entries.get(key);
+            found = entry != null;
+            if (!found)
+            {
+                entry = new Entry(new FutureTask<float[]>(new Callable<float[]>() {
+                    @Override public float[] call() throws IOException {
+                        return readChunk(var, ranges, chunkI, chunkJ, chunkShape);
+                    }
+                }));
+                this.entries.put(key, entry);
+            }
+        }
+        this.recordLookup(source, found);
+
+        // If the chunk was found it may still be being read by another thread
+        if (!found) entry.task.run();
+
+        try
+        {
+            float[] data = entry.task.get();
+            if (!found) this.added(key, entry, data.length * 4L + ENTRY_OVERHEAD_BYTES);
+            return data;
+        }
+        catch (InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for data");
+        }
+        catch (ExecutionException ee)
+        {
+            // Don't cache the failure
+            synchronized(this)
+            {
+                if (this.entries.get(key) == entry) this.entries.remove(key);
+            }
+            Throwable cause = ee.getCause();
+            if (cause instanceof IOException) throw (IOException)cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+            if (cause instanceof Error) throw (Error)cause;
+            throw new IllegalStateException("Error reading chunk", cause);
+        }
+    }
+
+    /** Reads a chunk from the variable, unpacking the data values */
+    private static float[] readChunk(VariableDS var, RangesList ranges,
+        int chunkI, int chunkJ, int[] chunkShape) throws IOException
+    {
+        int[] shape = var.getShape();
+        int imin = chunkI * chunkShape[0];
+        int jmin = chunkJ * chunkShape[1];
+        int imax = Math.min(shape[ranges.getXAxisIndex()], imin + chunkShape[0]) - 1;
+        int jmax = Math.min(shape[ranges.getYAxisIndex()], jmin + chunkShape[1]) - 1;
+        ranges.setXRange(imin, imax);
+        ranges.setYRange(jmin, jmax);
+        logger.debug("Reading chunk: {}", ranges);
+
+        DataChunk dataChunk = DataChunk.readDataChunk(var, ranges);
+        float[] values = dataChunk.getFloatValues();
+        int xStride = dataChunk.getStride(ranges.getXAxisIndex());
+        if (xStride == 1)
+        {
+            // The values are already in the order we need
+            return values;
+        }
+        int width = imax - imin + 1;
+        int height = jmax - jmin + 1;
+        int yStride = dataChunk.getStride(ranges.getYAxisIndex());
+        float[] data = new float[width * height];
+        for (int j = 0; j < height; j++)
+        {
+            for (int i = 0; i < width; i++)
+            {
+                data[j * width + i] = values[j * yStride + i * xStride];
+            }
+        }
+        return data;
+    }
+
+    private synchronized void recordLookup(Source source, boolean hit)
+    {
+        Statistics stats = this.statistics.get(source.datasetId);
+        if (stats == null)
+        {
+            stats = new Statistics();
+            this.statistics.put(source.datasetId, stats);
+        }
+        if (hit) stats.numHits++;
+        else stats.numMisses++;
+    }
+
+    /**
+     * Called when a chunk has been read, to account for its size and
+     * evict older entries if necessary.
+     */
+    private synchronized void added(Key key, Entry entry, long weight)
+    {
+        // The entry may have been removed by clear() while it was being read
+        if (this.entries.get(key) != entry) return;
+        entry.weight = weight;
+        this.sizeBytes += weight;
+        this.evict(this.maxSizeBytes);
+    }
+
+    /** Removes least-recently-used entries until the cache is no bigger than the given size */
+    private synchronized void evict(long size)
+    {
+        Iterator<Entry> it = this.entries.values().iterator();
+        while (this.sizeBytes > size && it.hasNext())
+        {
+            Entry entry = it.next();
+            // Unfinished entries have no weight yet, so there's no point
+            // removing them
+            if (entry.weight == 0) continue;
+            it.remove();
+            this.sizeBytes -= entry.weight;
+        }
+    }
+
+    /**
+     * Sets the maximum number of bytes of data that will be held, discarding
+     * chunks if necessary.
+     * @throws IllegalArgumentException if {@code maxSizeBytes} is negative
+     */
+    public synchronized void setMaxSizeBytes(long maxSizeBytes)
+    {
+        if (maxSizeBytes < 0)
+        {
+            throw new IllegalArgumentException("maxSizeBytes must be >= 0");
+        }
+        this.maxSizeBytes = maxSizeBytes;
+        this.evict(maxSizeBytes);
+    }
+
+    public synchronized long getMaxSizeBytes()
+    {
+        return this.maxSizeBytes;
+    }
+
+    /** Gets the approximate number of bytes of data currently held */
+    public synchronized long getSizeBytes()
+    {
+        return this.sizeBytes;
+    }
+
+    /** Gets the number of chunks currently held */
+    public synchronized int getNumEntries()
+    {
+        return this.entries.size();
+    }
+
+    /**
+     * Returns a snapshot of the hit and miss counts for each dataset, sorted
+     * by dataset.
+     */
+    public synchronized Map<String, Statistics> getStatistics()
+    {
+        Map<String, Statistics> copy = new TreeMap<String, Statistics>();
+        for (Map.Entry<String, Statistics> entry : this.statistics.entrySet())
+        {
+            copy.put(entry.getKey(), new Statistics(entry.getValue()));
+        }
+        return Collections.unmodifiableMap(copy);
+    }
+
+    /** Discards all the chunks in the cache */
+    public synchronized void clear()
+    {
+        this.entries.clear();
+        this.sizeBytes = 0;
+    }
+
+    /** The numbers of hits and misses on the chunks of a dataset */
+    public static final class Statistics
+    {
+        private long numHits = 0;
+        private long numMisses = 0;
+
+        private Statistics() {}
+
+        private Statistics(Statistics other)
+        {
+            this.numHits = other.numHits;
+            this.numMisses = other.numMisses;
+        }
+
+        /** Gets the number of times a chunk was found in the cache */
+        public long getNumHits() { return this.numHits; }
+
+        /** Gets the number of times a chunk had to be read */
+        public long getNumMisses() { return this.numMisses; }
+
+        /**
+         * Gets the proportion of lookups that were hits, as a percentage, or
+         * zero if there have been no lookups
+         */
+        public double getHitRate()
+        {
+            long total = this.numHits + this.numMisses;
+            return total == 0 ? 0.0 : 100.0 * this.numHits / total;
+        }
+    }
+
+    private static final class Entry
+    {
+        private final FutureTask<float[]> task;
+        // Zero until the chunk has been read
+        private long weight = 0;
+
+        public Entry(FutureTask<float[]> task)
+        {
+            this.task = task;
+        }
+    }
+
+    /**
+     * Identifies a chunk by file, variable, the indices along the
+     * non-horizontal axes and the position of the chunk
+     */
+    private static final class Key
+    {
+        private final String fileId;
+        private final String varName;
+        private final int[] otherIndices;
+        private final int chunkI;
+        private final int chunkJ;
+        private final int hashCode;
+
+        public Key(Source source, VariableDS var, RangesList ranges, int chunkI, int chunkJ)
+        {
+            this.fileId = source.fileId;
+            this.varName = var.getName();
+            List<Range> rangeList = ranges.getRanges();
+            this.otherIndices = new int[rangeList.size()];
+            for (int i = 0; i < this.otherIndices.length; i++)
+            {
+                if (i != ranges.getXAxisIndex() && i != ranges.getYAxisIndex())
+                {
+                    this.otherIndices[i] = rangeList.get(i).first();
+                }
+            }
+            this.chunkI = chunkI;
+            this.chunkJ = chunkJ;
+
+            int hash = 17;
+            hash = 31 * hash + this.fileId.hashCode();
+            hash = 31 * hash + this.varName.hashCode();
+            hash = 31 * hash + Arrays.hashCode(this.otherIndices);
+            hash = 31 * hash + this.chunkI;
+            hash = 31 * hash + this.chunkJ;
+            this.hashCode = hash;
+        }
+
+        @Override public int hashCode() { return this.hashCode; }
+
+        @Override public boolean equals(Object obj)
+        {
+            if (obj == this) return true;
+            if (!(obj instanceof Key)) return false;
+            Key other = (Key)obj;
+            return this.chunkI == other.chunkI &&
+                   this.chunkJ == other.chunkJ &&
+                   this.fileId.equals(other.fileId) &&
+                   this.varName.equals(other.varName) &&
+                   Arrays.equals(this.otherIndices, other.otherIndices);
+        }
+    }
+}
@@ -36,7 +36,9 @@ import uk.ac.rdg.resc.edal.coverage.domain.Domain;
 import uk.ac.rdg.resc.edal.coverage.grid.GridCoordinates;
 import uk.ac.rdg.resc.edal.coverage.grid.HorizontalGrid;
 import uk.ac.rdg.resc.edal.geometry.HorizontalPosition;
+import uk.ac.rdg.resc.edal.geometry.impl.HorizontalPositionImpl;
 import uk.ac.rdg.resc.edal.util.CollectionUtils;
+import uk.ac.rdg.resc.edal.util.Utils;
 
 /**
  * Abstract superclass that partially implements a two-dimensional
@@ -133,6 +135,39 @@ public abstract class AbstractHorizontalGrid extends AbstractGrid implements Hor
         return Collections.unmodifiableList(gridCoords);
     }
 
+    /**
+     * <p>Finds the nearest grid points to a block of positions that are held
+     * as (x,y) pairs in a primitive array, writing the results as (i,j) pairs
+     * into {@code gridIndices}.  Positions that are outside the grid are
+     * given the indices (-1,-1).  The results are the same as calling
+     * {@link #findNearestGridPoint(uk.ac.rdg.resc.edal.geometry.HorizontalPosition)}
+     * for each position, but no objects need be created per point.</p>
+     * <p>This implementation transforms the whole block into this grid's
+     * CRS in a single operation, then calls {@link #findNearestGridPoint(uk.ac.rdg.resc.edal.geometry.HorizontalPosition)}
+     * for each point.  Subclasses that can look up indices directly from the
+     * coordinates should override this.</p>
+     * @param coords (x,y) pairs in the given CRS.  This array will be
+     * overwritten with intermediate values.
+     * @param numPoints The number of positions in the block
+     * @param crs The coordinate reference system of {@code coords}
+     * @param gridIndices Array of length at least {@code 2 * numPoints} that
+     * will receive the (i,j) pairs
+     */
+    public void findNearestGridPoints(double[] coords, int numPoints,
+            CoordinateReferenceSystem crs, int[] gridIndices)
+    {
+        Utils.transformCoordinates(coords, numPoints, crs, this.crs);
+        for (int n = 0; n < numPoints * 2; n += 2) {
+            GridCoordinates gridCoords = null;
+            if (!Double.isNaN(coords[n]) && !Double.isNaN(coords[n+1])) {
+                gridCoords = this.findNearestGridPoint(
+                    new HorizontalPositionImpl(coords[n], coords[n+1], this.crs));
+            }
+            gridIndices[n]   = gridCoords == null ? -1 : gridCoords.getCoordinateValue(0);
+            gridIndices[n+1] = gridCoords == null ? -1 : gridCoords.getCoordinateValue(1);
+        }
+    }
+
     /**
      * Returns an unmodifiable List of horizontal positions derived from the two axes.
      * The x axis is considered to vary fastest, so the first point in the list
@@ -114,6 +114,29 @@ public abstract class AbstractRectilinearGrid extends AbstractHorizontalGrid imp
         return Collections.unmodifiableList(gridCoords);
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>This implementation transforms the block into this grid's CRS in a
+     * single operation and looks up the indices directly on the axes.</p>
+     */
+    @Override
+    public void findNearestGridPoints(double[] coords, int numPoints,
+            CoordinateReferenceSystem crs, int[] gridIndices)
+    {
+        Utils.transformCoordinates(coords, numPoints, crs, this.getCoordinateReferenceSystem());
+        ReferenceableAxis xAxis = this.getXAxis();
+        ReferenceableAxis yAxis = this.getYAxis();
+        for (int n = 0; n < numPoints * 2; n += 2) {
+            int i = xAxis.getNearestCoordinateIndex(coords[n]);
+            int j = yAxis.getNearestCoordinateIndex(coords[n+1]);
+            if (i < 0 || j < 0 || Double.isNaN(coords[n]) || Double.isNaN(coords[n+1])) {
+                i = j = -1;
+            }
+            gridIndices[n] = i;
+            gridIndices[n+1] = j;
+        }
+    }
+
     private GridCoordinates findNearestGridPoint(double x, double y) {
         int i = this.getXAxis().getNearestCoordinateIndex(x);
         int j = this.getYAxis().getNearestCoordinateIndex(y);
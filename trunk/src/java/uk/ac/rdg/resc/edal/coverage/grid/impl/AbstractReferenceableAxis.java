@@ -190,6 +190,11 @@ public abstract class AbstractReferenceableAxis implements ReferenceableAxis {
         return this.coordSysAxis;
     }
 
+    /** Returns true if this is a longitude axis, whose values wrap around */
+    public final boolean isLongitude() {
+        return this.isLongitude;
+    }
+
     @Override
     public final Envelope getExtent()
     {
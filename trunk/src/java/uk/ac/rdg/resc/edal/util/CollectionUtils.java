@@ -112,6 +112,49 @@ public final class CollectionUtils {
         };
     }
 
+    /**
+     * Creates and returns an unmodifiable List that wraps the given array,
+     * in which NaNs in the array appear as nulls in the List.  This is used
+     * to present data arrays (in which missing values are NaNs) through
+     * methods that represent missing values as nulls.
+     * Changes to the array will be reflected in the List.
+     * @param arr The array to wrap as a List
+     * @return an unmodifiable List that wraps the array
+     * @throws NullPointerException if the array is null
+     */
+    public static List<Float> nullableListFromFloatArray(final float[] arr)
+    {
+        if (arr == null) throw new NullPointerException("array cannot be null");
+        return new AbstractList<Float>()
+        {
+            @Override public Float get(int index) {
+                float val = arr[index];
+                return Float.isNaN(val) ? null : val;
+            }
+            @Override public int size() { return arr.length; }
+        };
+    }
+
+    /**
+     * Creates a new array of floats from the given List, in which null values
+     * in the list are represented by NaNs.  This is the inverse of
+     * {@link #nullableListFromFloatArray(float[])}.
+     * @param list The list of values, which may contain nulls
+     * @return a new array containing the values in the list
+     * @throws NullPointerException if the list is null
+     */
+    public static float[] floatArrayFromList(List<Float> list)
+    {
+        if (list == null) throw new NullPointerException("list cannot be null");
+        float[] arr = new float[list.size()];
+        int i = 0;
+        for (Float val : list)
+        {
+            arr[i++] = val == null ? Float.NaN : val.floatValue();
+        }
+        return arr;
+    }
+
     /**
      * Creates and returns an unmodifiable List that wraps the given array.
      * Changes to the array will be reflected in the List.
@@ -79,6 +79,32 @@ public final class Ranges
         return new SimpleRange<T>(minCandidate, maxCandidate);
     }
 
+    /**
+     * Creates a Range whose minimum is the lowest value in the passed array
+     * and whose maximum is the highest value in the passed array.  NaNs in the
+     * array are ignored; if the array consists entirely of NaNs the returned
+     * Range will be empty.
+     * @param arr An array of values, in any order.
+     * @return a Range whose minimum is the lowest value in the passed array
+     * and whose maximum is the highest value in the passed array.
+     * @throws NullPointerException if the array is null
+     * @throws NoSuchElementException if the array is empty
+     */
+    public static Range<Float> findMinMax(float[] arr)
+    {
+        if (arr.length == 0) throw new NoSuchElementException();
+        float min = Float.NaN;
+        float max = Float.NaN;
+        for (float val : arr) {
+            if (!Float.isNaN(val)) {
+                if (Float.isNaN(min) || val < min) min = val;
+                if (Float.isNaN(max) || val > max) max = val;
+            }
+        }
+        if (Float.isNaN(min)) return new SimpleRange<Float>(null, null);
+        return new SimpleRange<Float>(min, max);
+    }
+
     public static <T extends Object & Comparable<? super T>> Range<T> newRange(T min, T max)
     {
         return new SimpleRange<T>(min, max);
@@ -164,31 +164,55 @@ public final class Utils {
 
         List<HorizontalPosition> domainObjects = domain.getDomainObjects();
 
+        // Convert the points from the domain into an array of doubles so
+        // that we can transform them in a single operation
+        double[] points = new double[domainObjects.size() * 2];
+        int i = 0;
+        for (HorizontalPosition pos : domainObjects)
+        {
+            points[i] = pos.getX();
+            points[i+1] = pos.getY();
+            i += 2;
+        }
+        // transform the points in-place
+        transformCoordinates(points, domainObjects.size(), sourceCrs, targetCrs);
+
+        // Create a new list of horizontal positions in the new CRS
+        List<HorizontalPosition> posList = CollectionUtils.newArrayList();
+        for (i = 0; i < points.length; i += 2)
+        {
+            posList.add(new HorizontalPositionImpl(points[i], points[i+1], targetCrs));
+        }
+        return Collections.unmodifiableList(posList);
+    }
+
+    /**
+     * Transforms a block of points, held as consecutive (x,y) pairs in a
+     * primitive array, from one coordinate reference system to another in a
+     * single operation.  The transformation is performed in-place.  This avoids
+     * creating a {@link HorizontalPosition} object for every point, which
+     * matters when transforming every pixel of an image.
+     * @param coords The coordinates to transform: x values at even indices,
+     * y values at odd indices.  On return this holds the transformed coordinates.
+     * @param numPoints The number of points (not array elements) to transform,
+     * starting at the beginning of the array
+     * @param sourceCrs The CRS of the coordinates
+     * @param targetCrs The CRS to translate into
+     * @throws NullPointerException if either CRS is null
+     * @todo error handling
+     */
+    public static void transformCoordinates(double[] coords, int numPoints,
+            CoordinateReferenceSystem sourceCrs, CoordinateReferenceSystem targetCrs)
+    {
+        if (sourceCrs == null) throw new NullPointerException("Source CRS cannot be null");
+        if (targetCrs == null) throw new NullPointerException("Target CRS cannot be null");
         // CRS.findMathTransform() caches recently-used transform objects so
         // we should incur no large penalty for multiple invocations
         try
         {
             MathTransform transform = CRS.findMathTransform(sourceCrs, targetCrs);
-            // Convert the points from the domain into an array of doubles so
-            // that we can transform them in a single operation
-            double[] points = new double[domainObjects.size() * 2];
-            int i = 0;
-            for (HorizontalPosition pos : domainObjects)
-            {
-                points[i] = pos.getX();
-                points[i+1] = pos.getY();
-                i += 2;
-            }
-            // transform the points in-place
-            transform.transform(points, 0, points, 0, domainObjects.size());
-
-            // Create a new list of horizontal positions in the new CRS
-            List<HorizontalPosition> posList = CollectionUtils.newArrayList();
-            for (i = 0; i < points.length; i += 2)
-            {
-                posList.add(new HorizontalPositionImpl(points[i], points[i+1], targetCrs));
-            }
-            return Collections.unmodifiableList(posList);
+            if (transform.isIdentity()) return;
+            transform.transform(coords, 0, coords, 0, numPoints);
         }
         catch(Exception e)
         {
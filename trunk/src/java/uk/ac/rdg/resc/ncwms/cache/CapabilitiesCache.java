@@ -0,0 +1,386 @@
+/*
+ * Copyright (c) 2010 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.cache;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>Caches Capabilities documents (or other large documents that describe
+ * the server's metadata) as gzipped bytes, ready to be sent to clients.
+ * Clients poll Capabilities documents frequently, and writing a document that
+ * describes thousands of layers takes much longer than sending its bytes.</p>
+ * <p>Each document is built from a {@link Source}, which reports a version
+ * number that changes whenever the content of the document might change.  A
+ * document is rebuilt when it is requested if its version is out of date, and
+ * a background thread regularly rebuilds the documents whose versions have
+ * changed, so that clients rarely have to wait.  A source may also give a
+ * time at which its document expires (e.g. because the default time value of
+ * a layer will change).  Documents that have not been requested for an hour
+ * are dropped instead of being rebuilt.</p>
+ * <p>The {@link Document#getETag() entity tag} of a document is a digest of
+ * its content, so it only changes when the content changes, even if the
+ * document is rebuilt.</p>
+ * <p>This class is thread-safe.</p>
+ * @author Jon
+ */
+public final class CapabilitiesCache
+{
+    private static final Logger logger = LoggerFactory.getLogger(CapabilitiesCache.class);
+
+    /** The maximum number of documents in the cache */
+    private static final int MAX_DOCUMENTS = 100;
+
+    /** The interval between checks for out-of-date documents */
+    private static final long REFRESH_INTERVAL_MS = 5000;
+
+    /** Documents that have not been requested for this long are not rebuilt */
+    private static final long IDLE_TIMEOUT_MS = 60 * 60 * 1000L;
+
+    /**
+     * Produces the content of a document.
+     */
+    public interface Source
+    {
+        /**
+         * Returns a number that changes whenever the content of the document
+         * might change.  This is called often, so must be quick.
+         */
+        public long getVersion();
+
+        /**
+         * Writes the document to the given stream.
+         * @return the time (in milliseconds since the epoch) after which the
+         * document must be rebuilt even if the version has not changed, or
+         * {@link Long#MAX_VALUE} if the document does not expire
+         */
+        public long write(OutputStream out) throws Exception;
+    }
+
+    /** Maps keys to documents in least-recently-accessed order */
+    private final LinkedHashMap<String, Document> documents =
+        new LinkedHashMap<String, Document>(16, 0.75f, true);
+
+    /** Ensures that each document is only built by one thread at a time */
+    private final RequestCoalescer<String, Document> buildCoalescer =
+        new RequestCoalescer<String, Document>(120000);
+
+    private final ScheduledExecutorService refresher;
+
+    private long numHits = 0;
+    private long numBuilds = 0;
+
+    /**
+     * Creates a new cache, starting the background thread that rebuilds
+     * out-of-date documents.
+     */
+    public CapabilitiesCache()
+    {
+        this.refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "capabilities-refresher");
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            }
+        });
+        this.refresher.scheduleWithFixedDelay(new Runnable() {
+            @Override public void run() {
+                refresh();
+            }
+        }, REFRESH_INTERVAL_MS, REFRESH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Gets the document with the given key, building it from the given source
+     * if it is not in the cache or is out of date.  The source is kept so that
+     * the document can be rebuilt in the background.
+     * @throws Exception if the document had to be built and this failed
+     */
+    public Document get(String key, Source source) throws Exception
+    {
+        long version = source.getVersion();
+        long now = System.currentTimeMillis();
+        synchronized(this)
+        {
+            Document doc = this.documents.get(key);
+            if (doc != null && doc.isCurrent(version, now))
+            {
+                doc.source = source;
+                doc.lastAccess = now;
+                this.numHits++;
+                return doc;
+            }
+        }
+        return this.build(key, source);
+    }
+
+    /** Builds a document and puts it in the cache, once at a time for each key */
+    private Document build(final String key, final Source source) throws Exception
+    {
+        return this.buildCoalescer.execute(key, new Callable<Document>() {
+            @Override public Document call() throws Exception {
+                return doBuild(key, source);
+            }
+        });
+    }
+
+    private Document doBuild(String key, Source source) throws Exception
+    {
+        long start = System.currentTimeMillis();
+        // We read the version first, so that a change during the build causes
+        // another build later
+        long version = source.getVersion();
+        MessageDigest md5 = getMD5();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+        OutputStream out = new BufferedOutputStream(new DigestOutputStream(gzip, md5), 8192);
+        long expires = source.write(out);
+        out.flush();
+        gzip.finish();
+
+        Document doc = new Document(bytes.toByteArray(), toETag(md5.digest()),
+            start, version, expires, source);
+        synchronized(this)
+        {
+            Document old = this.documents.get(key);
+            if (old != null)
+            {
+                doc.lastAccess = old.lastAccess;
+                // The content has not changed, so clients' copies are still valid
+                if (old.etag.equals(doc.etag)) doc.lastModified = old.lastModified;
+            }
+            this.documents.put(key, doc);
+            this.numBuilds++;
+            Iterator<Document> it = this.documents.values().iterator();
+            while (this.documents.size() > MAX_DOCUMENTS && it.hasNext())
+            {
+                it.next();
+                it.remove();
+            }
+        }
+        logger.debug("Built document {} ({} bytes compressed) in {} ms",
+            new Object[]{key, doc.gzipped.length, System.currentTimeMillis() - start});
+        return doc;
+    }
+
+    /**
+     * Rebuilds all the documents whose versions have changed or that have
+     * expired, and drops the ones that have not been requested recently.
+     */
+    void refresh()
+    {
+        long now = System.currentTimeMillis();
+        List<String> keys = new ArrayList<String>();
+        List<Document> docs = new ArrayList<Document>();
+        List<Source> sources = new ArrayList<Source>();
+        synchronized(this)
+        {
+            Iterator<Map.Entry<String, Document>> it = this.documents.entrySet().iterator();
+            while (it.hasNext())
+            {
+                Map.Entry<String, Document> entry = it.next();
+                Document doc = entry.getValue();
+                if (now - doc.lastAccess > IDLE_TIMEOUT_MS)
+                {
+                    it.remove();
+                }
+                else
+                {
+                    keys.add(entry.getKey());
+                    docs.add(doc);
+                    sources.add(doc.source);
+                }
+            }
+        }
+        for (int i = 0; i < keys.size(); i++)
+        {
+            try
+            {
+                // Versions are read outside the lock, as they may take a
+                // little time to compute
+                if (!docs.get(i).isCurrent(sources.get(i).getVersion(), now))
+                {
+                    this.build(keys.get(i), sources.get(i));
+                }
+            }
+            catch (Exception e)
+            {
+                logger.warn("Could not rebuild document " + keys.get(i), e);
+            }
+        }
+    }
+
+    /** Removes all the documents from the cache */
+    public synchronized void clear()
+    {
+        this.documents.clear();
+    }
+
+    /** Stops the background thread that rebuilds documents */
+    public void shutdown()
+    {
+        this.refresher.shutdownNow();
+    }
+
+    public synchronized int getNumDocuments()
+    {
+        return this.documents.size();
+    }
+
+    public synchronized long getNumHits()
+    {
+        return this.numHits;
+    }
+
+    public synchronized long getNumBuilds()
+    {
+        return this.numBuilds;
+    }
+
+    private static MessageDigest getMD5()
+    {
+        try
+        {
+            return MessageDigest.getInstance("MD5");
+        }
+        catch (NoSuchAlgorithmException nsae)
+        {
+            // Every Java platform supports MD5
+            throw new AssertionError(nsae);
+        }
+    }
+
+    private static String toETag(byte[] digest)
+    {
+        StringBuilder buf = new StringBuilder(2 + digest.length * 2);
+        buf.append('"');
+        for (byte b : digest)
+        {
+            buf.append(Character.forDigit((b >> 4) & 0xf, 16));
+            buf.append(Character.forDigit(b & 0xf, 16));
+        }
+        return buf.append('"').toString();
+    }
+
+    /**
+     * A document in the cache.  The content never changes: a new Document is
+     * created when the document is rebuilt.
+     */
+    public static final class Document
+    {
+        private final byte[] gzipped;
+        private final String etag;
+        private long lastModified;
+        private final long version;
+        private final long expires;
+        // The following are guarded by the CapabilitiesCache
+        private Source source;
+        private long lastAccess;
+
+        private Document(byte[] gzipped, String etag, long created,
+            long version, long expires, Source source)
+        {
+            this.gzipped = gzipped;
+            this.etag = etag;
+            // HTTP dates have a resolution of one second
+            this.lastModified = created / 1000 * 1000;
+            this.version = version;
+            this.expires = expires;
+            this.source = source;
+            this.lastAccess = created;
+        }
+
+        private boolean isCurrent(long version, long now)
+        {
+            return this.version == version && now < this.expires;
+        }
+
+        /** Gets the quoted HTTP entity tag of this document */
+        public String getETag()
+        {
+            return this.etag;
+        }
+
+        /**
+         * Gets the time at which the content of this document last changed,
+         * in milliseconds since the epoch, rounded down to whole seconds.
+         */
+        public long getLastModified()
+        {
+            return this.lastModified;
+        }
+
+        /** Gets the length of the gzipped content in bytes */
+        public int getGzippedLength()
+        {
+            return this.gzipped.length;
+        }
+
+        /**
+         * Writes the content of this document to the given stream.
+         * @param gzip true to write the content in gzipped form
+         */
+        public void writeTo(OutputStream out, boolean gzip) throws IOException
+        {
+            if (gzip)
+            {
+                out.write(this.gzipped);
+            }
+            else
+            {
+                InputStream in = new GZIPInputStream(new ByteArrayInputStream(this.gzipped));
+                byte[] buf = new byte[8192];
+                int n;
+                while ((n = in.read(buf)) >= 0) out.write(buf, 0, n);
+            }
+        }
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2010 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.cache;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.ac.rdg.resc.ncwms.config.Config;
+
+/**
+ * <p>Caches the encoded bytes of images that have been produced by GetMap
+ * requests, so that repeat requests for the same image (which are common
+ * with tiling clients) need not re-render or re-encode the image.  Whereas
+ * the {@link TileCache} holds data arrays that can be styled in different
+ * ways, this cache is keyed on the full, normalized GetMap request including
+ * all the styling parameters.</p>
+ * <p>Keys are created by the controller and must include the time at which
+ * the relevant dataset was last updated, so that entries become invalid (and
+ * are eventually evicted) when the dataset is reloaded.  The same key is used
+ * to generate the {@link #getETag(java.lang.String) ETag} for the image.</p>
+ * <p>The cache is enabled when the {@link TileCache} is enabled and the
+ * {@link uk.ac.rdg.resc.ncwms.config.Cache#getImageCacheSizeMB() image cache size}
+ * is greater than zero.  Changes to the configuration take effect immediately.
+ * Entries expire after the same lifetime as entries in the tile cache.</p>
+ * <p>This class is thread-safe.</p>
+ * @author Jon
+ */
+public class ImageCache
+{
+    private static final Logger logger = LoggerFactory.getLogger(ImageCache.class);
+
+    /** The Config object containing the cache configuration: will be injected by Spring */
+    private Config ncwmsConfig;
+
+    /** Maps keys to entries in least-recently-accessed order */
+    private final LinkedHashMap<String, Entry> entries =
+        new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    /** The total number of bytes in the images in the cache */
+    private long numBytes = 0;
+
+    private long numHits = 0;
+    private long numMisses = 0;
+
+    /**
+     * Coalesces identical concurrent requests to render images, so that an
+     * image that is requested by many clients at once is only rendered and
+     * encoded once.  A waiting request will give up after two minutes and
+     * render the image itself.
+     */
+    private final RequestCoalescer<String, byte[]> renderCoalescer =
+        new RequestCoalescer<String, byte[]>(120000);
+
+    /**
+     * Returns true if this cache is enabled.  If this returns false the
+     * controller should neither read from nor write to the cache, nor send
+     * ETags or Last-Modified headers.
+     */
+    public boolean isEnabled()
+    {
+        return this.ncwmsConfig.getCache().isEnabled() && this.getMaxBytes() > 0;
+    }
+
+    private long getMaxBytes()
+    {
+        return this.ncwmsConfig.getCache().getImageCacheSizeMB() * 1024L * 1024L;
+    }
+
+    /**
+     * Gets the encoded bytes of an image from the cache, returning null if
+     * there is no image with the given key or if the image has expired.
+     */
+    public synchronized byte[] get(String key)
+    {
+        Entry entry = this.entries.get(key);
+        long lifetimeMs = this.ncwmsConfig.getCache().getElementLifetimeMinutes() * 60 * 1000L;
+        if (entry != null && System.currentTimeMillis() - entry.created > lifetimeMs)
+        {
+            this.entries.remove(key);
+            this.numBytes -= entry.image.length;
+            entry = null;
+        }
+        if (entry == null)
+        {
+            this.numMisses++;
+            logger.debug("Not found in image cache: {}", key);
+            return null;
+        }
+        this.numHits++;
+        logger.debug("Found in image cache: {}", key);
+        return entry.image;
+    }
+
+    /**
+     * Adds the encoded bytes of an image to the cache, evicting the
+     * least-recently-used images if necessary.  Images that would take up
+     * more than a quarter of the cache are not stored.  The array must not be
+     * modified after it has been added.
+     */
+    public synchronized void put(String key, byte[] image)
+    {
+        long maxBytes = this.getMaxBytes();
+        Entry old = this.entries.remove(key);
+        if (old != null) this.numBytes -= old.image.length;
+        if (image.length > maxBytes / 4) return;
+
+        Entry entry = new Entry();
+        entry.image = image;
+        entry.created = System.currentTimeMillis();
+        this.entries.put(key, entry);
+        this.numBytes += image.length;
+
+        // Evict the least-recently-used images
+        Iterator<Entry> it = this.entries.values().iterator();
+        while (this.numBytes > maxBytes && it.hasNext())
+        {
+            this.numBytes -= it.next().image.length;
+            it.remove();
+        }
+        logger.debug("Image put into image cache: {}", key);
+    }
+
+    /** Removes all the images from the cache */
+    public synchronized void clear()
+    {
+        this.entries.clear();
+        this.numBytes = 0;
+    }
+
+    /** Returns the number of images in the cache */
+    public synchronized int getNumImages()
+    {
+        return this.entries.size();
+    }
+
+    /** Returns the total number of bytes in the images in the cache */
+    public synchronized long getNumBytes()
+    {
+        return this.numBytes;
+    }
+
+    public synchronized long getNumHits()
+    {
+        return this.numHits;
+    }
+
+    public synchronized long getNumMisses()
+    {
+        return this.numMisses;
+    }
+
+    /**
+     * Returns a (quoted) HTTP entity tag for the image with the given key.
+     * Since the key includes all the parameters of the request and the time
+     * at which the dataset was last updated, the entity tag will change if
+     * the image changes.
+     */
+    public static String getETag(String key)
+    {
+        try
+        {
+            MessageDigest md5 = MessageDigest.getInstance("MD5");
+            byte[] digest = md5.digest(key.getBytes("UTF-8"));
+            StringBuilder buf = new StringBuilder(2 + digest.length * 2);
+            buf.append('"');
+            for (byte b : digest)
+            {
+                buf.append(Character.forDigit((b >> 4) & 0xf, 16));
+                buf.append(Character.forDigit(b & 0xf, 16));
+            }
+            return buf.append('"').toString();
+        }
+        catch (NoSuchAlgorithmException nsae)
+        {
+            // Every Java platform must support MD5
+            throw new AssertionError(nsae);
+        }
+        catch (UnsupportedEncodingException uee)
+        {
+            // Every Java platform must support UTF-8
+            throw new AssertionError(uee);
+        }
+    }
+
+    /**
+     * Returns the object that coalesces identical concurrent requests to
+     * render the images in this cache
+     */
+    public RequestCoalescer<String, byte[]> getRenderCoalescer()
+    {
+        return this.renderCoalescer;
+    }
+
+    /** Called by Spring to set the Config object */
+    public void setConfig(Config config)
+    {
+        this.ncwmsConfig = config;
+    }
+
+    private static final class Entry
+    {
+        private byte[] image;
+        private long created;
+    }
+}
@@ -0,0 +1,368 @@
+/*
+ * Copyright (c) 2010 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.ac.rdg.resc.edal.util.Range;
+import uk.ac.rdg.resc.edal.util.Ranges;
+
+/**
+ * <p>A store for arrays of data that keeps the data outside the Java heap,
+ * either in direct {@link ByteBuffer}s or in a memory-mapped file.  The
+ * capacity of the store is set in bytes.  Each array is encoded using a
+ * {@link TileEncoding}, which can be lossless or can trade precision for
+ * a smaller footprint.</p>
+ * <p>The storage is divided into fixed-size blocks.  Each array occupies
+ * as many blocks as it needs (which need not be contiguous) and the
+ * least-recently-used arrays are evicted when there are not enough free
+ * blocks for a new array.  Only the index of keys to blocks is held on the
+ * heap.  The memory-mapped file is not persistent: it is recreated each time
+ * the store is created.</p>
+ * <p>This class is thread-safe.</p>
+ * @author Jon
+ */
+public final class OffHeapTileStore
+{
+    private static final Logger logger = LoggerFactory.getLogger(OffHeapTileStore.class);
+
+    /** The size of each block of storage in bytes */
+    private static final int BLOCK_SIZE = 64 * 1024;
+
+    /** The maximum size of each direct buffer or mapped region */
+    private static final int MAX_SEGMENT_SIZE = 1024 * 1024 * 1024;
+
+    private static final int BLOCKS_PER_SEGMENT = MAX_SEGMENT_SIZE / BLOCK_SIZE;
+
+    private final TileEncoding encoding;
+    private final long lifetimeMs;
+    private final ByteBuffer[] segments;
+    private final RandomAccessFile mappedFile;
+
+    /** Stack of indices of the blocks that are free */
+    private final int[] freeBlocks;
+    private int numFreeBlocks;
+
+    /** Maps keys to entries in least-recently-accessed order */
+    private final LinkedHashMap<TileCacheKey, Entry> entries =
+        new LinkedHashMap<TileCacheKey, Entry>(16, 0.75f, true);
+
+    private long numHits = 0;
+    private long numMisses = 0;
+
+    /**
+     * Creates a new store.
+     * @param capacityBytes The maximum number of bytes of data to store.  This
+     * will be rounded down to a whole number of blocks.
+     * @param encoding The encoding for the arrays of data
+     * @param lifetimeMs Arrays will expire this number of milliseconds after
+     * they are added to the store
+     * @param file If this is non-null, the data will be held in a memory-mapped
+     * file at this location, which will be overwritten.  If this is null, the
+     * data will be held in direct buffers.
+     * @throws IOException if there was an error creating the memory-mapped file
+     */
+    public OffHeapTileStore(long capacityBytes, TileEncoding encoding,
+        long lifetimeMs, File file) throws IOException
+    {
+        if (capacityBytes < BLOCK_SIZE)
+        {
+            throw new IllegalArgumentException("Capacity must be at least " +
+                BLOCK_SIZE + " bytes");
+        }
+        if (encoding == null) throw new NullPointerException("encoding");
+        this.encoding = encoding;
+        this.lifetimeMs = lifetimeMs;
+
+        long numBlocksLong = capacityBytes / BLOCK_SIZE;
+        if (numBlocksLong > Integer.MAX_VALUE)
+        {
+            throw new IllegalArgumentException("Capacity is too large");
+        }
+        int numBlocks = (int)numBlocksLong;
+        int numSegments = (numBlocks + BLOCKS_PER_SEGMENT - 1) / BLOCKS_PER_SEGMENT;
+        this.segments = new ByteBuffer[numSegments];
+
+        if (file == null)
+        {
+            this.mappedFile = null;
+            for (int i = 0; i < numSegments; i++)
+            {
+                this.segments[i] = ByteBuffer.allocateDirect(getSegmentSize(i, numBlocks));
+            }
+        }
+        else
+        {
+            if (file.exists() && !file.delete())
+            {
+                throw new IOException("Could not delete " + file.getPath());
+            }
+            this.mappedFile = new RandomAccessFile(file, "rw");
+            try
+            {
+                this.mappedFile.setLength((long)numBlocks * BLOCK_SIZE);
+                FileChannel channel = this.mappedFile.getChannel();
+                for (int i = 0; i < numSegments; i++)
+                {
+                    this.segments[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+                        (long)i * MAX_SEGMENT_SIZE, getSegmentSize(i, numBlocks));
+                }
+            }
+            catch (IOException ioe)
+            {
+                this.mappedFile.close();
+                throw ioe;
+            }
+        }
+
+        this.freeBlocks = new int[numBlocks];
+        this.clear();
+        logger.info("Created off-heap tile store of {} bytes ({}) using {} encoding",
+            new Object[]{(long)numBlocks * BLOCK_SIZE,
+            file == null ? "direct buffers" : file.getPath(), encoding});
+    }
+
+    private static int getSegmentSize(int segment, int numBlocks)
+    {
+        int blocksInSegment = Math.min(BLOCKS_PER_SEGMENT,
+            numBlocks - segment * BLOCKS_PER_SEGMENT);
+        return blocksInSegment * BLOCK_SIZE;
+    }
+
+    /**
+     * Gets an array of data from this store, returning null if there is no
+     * data matching the given key or if the data have expired.
+     */
+    public synchronized float[] get(TileCacheKey key)
+    {
+        Entry entry = this.entries.get(key);
+        if (entry != null && System.currentTimeMillis() > entry.expiryTime)
+        {
+            this.remove(key);
+            entry = null;
+        }
+        if (entry == null)
+        {
+            this.numMisses++;
+            return null;
+        }
+        this.numHits++;
+
+        byte[] bytes = new byte[entry.numValues * this.encoding.getBytesPerValue()];
+        this.copyBlocks(entry.blocks, bytes, false);
+        float[] data = new float[entry.numValues];
+        this.encoding.decode(ByteBuffer.wrap(bytes), data, entry.min, entry.max);
+        return data;
+    }
+
+    /**
+     * Adds an array of data to this store, evicting the least-recently-used
+     * arrays if necessary.  Arrays that are larger than the capacity of the
+     * store are not stored.
+     * @param valueRange The expected range of the data values (e.g. the colour
+     * scale range of the layer), which is used by the {@link TileEncoding#BYTE}
+     * encoding.  This will be extended if necessary to include all the values
+     * in the data.  May be null.
+     */
+    public void put(TileCacheKey key, float[] data, Range<Float> valueRange)
+    {
+        // Find the range of the data for quantization, and encode the data
+        // before we acquire the lock
+        float min = 0.0f;
+        float max = 0.0f;
+        if (this.encoding == TileEncoding.BYTE)
+        {
+            Range<Float> dataRange = Ranges.findMinMax(data);
+            if (!dataRange.isEmpty())
+            {
+                min = dataRange.getMinimum();
+                max = dataRange.getMaximum();
+                if (valueRange != null && !valueRange.isEmpty())
+                {
+                    min = Math.min(min, valueRange.getMinimum());
+                    max = Math.max(max, valueRange.getMaximum());
+                }
+            }
+        }
+        byte[] bytes = new byte[data.length * this.encoding.getBytesPerValue()];
+        this.encoding.encode(data, ByteBuffer.wrap(bytes), min, max);
+        int numBlocksNeeded = (bytes.length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+
+        synchronized (this)
+        {
+            // Remove any existing entry for this key
+            this.remove(key);
+            if (numBlocksNeeded > this.freeBlocks.length)
+            {
+                logger.debug("Array of {} bytes is too large for the off-heap store",
+                    bytes.length);
+                return;
+            }
+            // Evict the least-recently-used entries until there is space
+            Iterator<Entry> it = this.entries.values().iterator();
+            while (this.numFreeBlocks < numBlocksNeeded)
+            {
+                Entry lru = it.next();
+                it.remove();
+                this.freeBlocks(lru);
+            }
+            Entry entry = new Entry();
+            entry.numValues = data.length;
+            entry.min = min;
+            entry.max = max;
+            entry.expiryTime = System.currentTimeMillis() + this.lifetimeMs;
+            entry.blocks = new int[numBlocksNeeded];
+            for (int i = 0; i < numBlocksNeeded; i++)
+            {
+                entry.blocks[i] = this.freeBlocks[--this.numFreeBlocks];
+            }
+            this.copyBlocks(entry.blocks, bytes, true);
+            this.entries.put(key, entry);
+        }
+    }
+
+    /**
+     * Copies data between the given blocks and the given array.
+     * @param toBlocks true to copy from the array to the blocks, false to
+     * copy from the blocks to the array
+     */
+    private void copyBlocks(int[] blocks, byte[] bytes, boolean toBlocks)
+    {
+        for (int i = 0; i < blocks.length; i++)
+        {
+            int offset = i * BLOCK_SIZE;
+            int length = Math.min(BLOCK_SIZE, bytes.length - offset);
+            // We use a duplicate buffer so that we can set the position
+            // without disturbing other users of the segment
+            ByteBuffer buf = this.segments[blocks[i] / BLOCKS_PER_SEGMENT].duplicate();
+            buf.position((blocks[i] % BLOCKS_PER_SEGMENT) * BLOCK_SIZE);
+            if (toBlocks) buf.put(bytes, offset, length);
+            else buf.get(bytes, offset, length);
+        }
+    }
+
+    private void remove(TileCacheKey key)
+    {
+        Entry entry = this.entries.remove(key);
+        if (entry != null) this.freeBlocks(entry);
+    }
+
+    private void freeBlocks(Entry entry)
+    {
+        for (int block : entry.blocks)
+        {
+            this.freeBlocks[this.numFreeBlocks++] = block;
+        }
+    }
+
+    /** Removes all the data from this store */
+    public synchronized void clear()
+    {
+        this.entries.clear();
+        for (int i = 0; i < this.freeBlocks.length; i++)
+        {
+            // Hand out low-numbered blocks first
+            this.freeBlocks[i] = this.freeBlocks.length - 1 - i;
+        }
+        this.numFreeBlocks = this.freeBlocks.length;
+    }
+
+    /**
+     * Removes all the data from this store and releases the memory-mapped
+     * file, if there is one.  The store cannot be used after this method is
+     * called.
+     */
+    public synchronized void close()
+    {
+        this.clear();
+        if (this.mappedFile != null)
+        {
+            try
+            {
+                this.mappedFile.close();
+            }
+            catch (IOException ioe)
+            {
+                logger.error("Error closing off-heap tile store", ioe);
+            }
+        }
+    }
+
+    /** Returns the encoding that is used to store data in this store */
+    public TileEncoding getEncoding()
+    {
+        return this.encoding;
+    }
+
+    /** Returns the capacity of this store in bytes */
+    public long getCapacityBytes()
+    {
+        return (long)this.freeBlocks.length * BLOCK_SIZE;
+    }
+
+    /** Returns the number of bytes that are occupied by stored arrays */
+    public synchronized long getUsedBytes()
+    {
+        return (long)(this.freeBlocks.length - this.numFreeBlocks) * BLOCK_SIZE;
+    }
+
+    /** Returns the number of arrays in this store */
+    public synchronized int getNumTiles()
+    {
+        return this.entries.size();
+    }
+
+    public synchronized long getNumHits()
+    {
+        return this.numHits;
+    }
+
+    public synchronized long getNumMisses()
+    {
+        return this.numMisses;
+    }
+
+    /** An entry in the index of this store */
+    private static final class Entry
+    {
+        private int numValues;
+        private float min;
+        private float max;
+        private long expiryTime;
+        private int[] blocks;
+    }
+}
@@ -0,0 +1,460 @@
+/*
+ * Copyright (c) 2010 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>A store on local disk for reduced-resolution copies ("overviews") of
+ * two-dimensional grids of data.  Each overview is held in its own file under
+ * the store's directory, as a small header followed by the values as 32-bit
+ * floats in row-major order.  Overviews are read through memory-mapped
+ * buffers, so a request that covers a small part of an overview only touches
+ * the pages that it needs.  Each file is mapped when it is first read and the
+ * mapping is kept until the overview is deleted or the store is closed.</p>
+ * <p>The total size of the files is limited to a number of bytes: when this
+ * is exceeded the least-recently-used overviews are deleted.  The store
+ * persists between runs of the server; files that are found in the directory
+ * when the store is created are counted towards its size.  The order of use
+ * is kept in memory and saved in the modification times of the files when
+ * overviews are evicted and when the store is {@link #close() closed}.</p>
+ * <p>Keys are relative paths with forward slashes (e.g.
+ * "{@code datasetId/abc123-L2}"): the first element of the path is used to
+ * group the overviews so that stale ones can be deleted with
+ * {@link #retainOnly(java.lang.String, java.util.Set)}.</p>
+ * <p>This class is thread-safe.</p>
+ * @author Jon
+ */
+public final class OverviewStore
+{
+    private static final Logger logger = LoggerFactory.getLogger(OverviewStore.class);
+
+    /** Identifies the files in the store ("NOVR") */
+    private static final int MAGIC = 0x4E4F5652;
+
+    private static final int HEADER_SIZE = 12;
+
+    private static final String SUFFIX = ".ovr";
+
+    private final File directory;
+    private long maxSizeBytes;
+    private long sizeBytes = 0;
+
+    /** Maps keys to entries in least-recently-accessed order */
+    private final LinkedHashMap<String, Entry> entries =
+        new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    private long numHits = 0;
+    private long numMisses = 0;
+
+    /**
+     * Creates a store in the given directory, which will be created if it
+     * does not exist.  Existing overviews in the directory are retained,
+     * oldest first in the order of use.
+     * @param maxSizeBytes The maximum total size of the overviews in bytes
+     */
+    public OverviewStore(File directory, long maxSizeBytes)
+    {
+        if (directory == null) throw new NullPointerException("directory");
+        this.directory = directory;
+        if (!directory.isDirectory() && !directory.mkdirs())
+        {
+            logger.warn("Could not create overview directory {}", directory.getPath());
+        }
+        // Find the existing overviews and order them by the time they were
+        // last used
+        List<File> files = new ArrayList<File>();
+        File[] groups = directory.listFiles();
+        if (groups != null)
+        {
+            for (File group : groups)
+            {
+                File[] groupFiles = group.listFiles();
+                if (groupFiles == null) continue;
+                for (File f : groupFiles)
+                {
+                    if (f.getName().endsWith(SUFFIX)) files.add(f);
+                }
+            }
+        }
+        Collections.sort(files, new Comparator<File>() {
+            @Override public int compare(File f1, File f2) {
+                return Long.valueOf(f1.lastModified()).compareTo(f2.lastModified());
+            }
+        });
+        for (File f : files)
+        {
+            String name = f.getName();
+            String key = f.getParentFile().getName() + "/" +
+                name.substring(0, name.length() - SUFFIX.length());
+            this.entries.put(key, new Entry(f.length()));
+            this.sizeBytes += f.length();
+        }
+        this.setMaxSizeBytes(maxSizeBytes);
+        logger.debug("Found {} overviews in {}", files.size(), directory.getPath());
+    }
+
+    private File getFile(String key)
+    {
+        return new File(this.directory, key + SUFFIX);
+    }
+
+    /**
+     * Returns true if the store contains an overview with the given key.  This
+     * does not count as a use of the overview.
+     */
+    public synchronized boolean contains(String key)
+    {
+        return this.entries.containsKey(key);
+    }
+
+    /**
+     * Returns true if an overview of the given number of values could be added
+     * to the store without evicting any others.
+     */
+    public synchronized boolean hasRoomFor(int numValues)
+    {
+        return this.sizeBytes + HEADER_SIZE + 4L * numValues <= this.maxSizeBytes;
+    }
+
+    /**
+     * Writes an overview to the store, replacing any existing overview with
+     * the same key and evicting the least-recently-used overviews if the store
+     * is then too large.
+     * @param data The values in row-major order, with the x index varying fastest
+     * @throws IOException if the file could not be written
+     */
+    public void put(String key, int width, int height, float[] data) throws IOException
+    {
+        if (data.length != width * height)
+        {
+            throw new IllegalArgumentException("data must contain width * height values");
+        }
+        File file = this.getFile(key);
+        File parent = file.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs())
+        {
+            throw new IOException("Could not create " + parent.getPath());
+        }
+        // We write to a temporary file and rename it, so that readers never
+        // see a partly-written overview
+        File tmp = new File(parent, file.getName() + ".tmp");
+        RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+        try
+        {
+            raf.setLength(0);
+            ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + 4 * data.length);
+            buf.putInt(MAGIC).putInt(width).putInt(height);
+            buf.asFloatBuffer().put(data);
+            buf.rewind();
+            FileChannel channel = raf.getChannel();
+            while (buf.hasRemaining()) channel.write(buf);
+        }
+        finally
+        {
+            raf.close();
+        }
+        synchronized(this)
+        {
+            if ((file.exists() && !file.delete()) || !tmp.renameTo(file))
+            {
+                tmp.delete();
+                throw new IOException("Could not write overview " + file.getPath());
+            }
+            Entry old = this.entries.put(key, new Entry(file.length()));
+            if (old != null) this.sizeBytes -= old.sizeBytes;
+            this.sizeBytes += file.length();
+            this.evict();
+        }
+    }
+
+    /**
+     * Gets the overview with the given key, or null if there is no such
+     * overview in the store.
+     * @throws IOException if the overview could not be read
+     */
+    public Overview get(String key) throws IOException
+    {
+        Entry entry;
+        synchronized(this)
+        {
+            entry = this.entries.get(key);
+            if (entry == null)
+            {
+                this.numMisses++;
+                return null;
+            }
+            this.numHits++;
+            entry.lastUsed = System.currentTimeMillis();
+            if (entry.overview != null) return entry.overview;
+        }
+        Overview overview = this.map(key);
+        synchronized(this)
+        {
+            // Keep the mapping unless the overview has been replaced or
+            // deleted in the meantime
+            if (overview != null && this.entries.get(key) == entry &&
+                entry.overview == null)
+            {
+                entry.overview = overview;
+            }
+        }
+        return overview;
+    }
+
+    /**
+     * Maps the file of the overview with the given key into memory.
+     * @return the overview, or null if the file no longer exists
+     */
+    private Overview map(String key) throws IOException
+    {
+        File file = this.getFile(key);
+        RandomAccessFile raf;
+        try
+        {
+            raf = new RandomAccessFile(file, "r");
+        }
+        catch (IOException ioe)
+        {
+            // The file has been deleted since we looked
+            return null;
+        }
+        try
+        {
+            MappedByteBuffer buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                0, raf.length());
+            if (buf.getInt(0) != MAGIC)
+            {
+                throw new IOException(file.getPath() + " is not an overview");
+            }
+            int width = buf.getInt(4);
+            int height = buf.getInt(8);
+            buf.position(HEADER_SIZE);
+            return new Overview(width, height, buf.slice().asFloatBuffer());
+        }
+        finally
+        {
+            // The mapping remains valid after the file is closed
+            raf.close();
+        }
+    }
+
+    /**
+     * Deletes all the overviews in the given group whose keys are not in
+     * the given set.
+     * @param group The first element of the keys of the overviews
+     * @param keys The keys of the overviews to keep
+     */
+    public synchronized void retainOnly(String group, Set<String> keys)
+    {
+        String prefix = group + "/";
+        Iterator<Map.Entry<String, Entry>> it = this.entries.entrySet().iterator();
+        while (it.hasNext())
+        {
+            Map.Entry<String, Entry> entry = it.next();
+            if (entry.getKey().startsWith(prefix) && !keys.contains(entry.getKey()))
+            {
+                this.delete(entry.getKey(), entry.getValue());
+                it.remove();
+            }
+        }
+    }
+
+    /** Deletes all the overviews in the store */
+    public synchronized void clear()
+    {
+        for (Map.Entry<String, Entry> entry : this.entries.entrySet())
+        {
+            this.delete(entry.getKey(), entry.getValue());
+        }
+        this.entries.clear();
+    }
+
+    /**
+     * Saves the order in which the overviews have been used, so that it
+     * survives a restart of the server, and releases the mappings of the
+     * files.  The store can still be used after this is called.
+     */
+    public synchronized void close()
+    {
+        this.saveUseTimes();
+        for (Entry entry : this.entries.values()) entry.overview = null;
+    }
+
+    /** Evicts least-recently-used overviews until the store is small enough */
+    private void evict()
+    {
+        boolean evicted = false;
+        Iterator<Map.Entry<String, Entry>> it = this.entries.entrySet().iterator();
+        while (this.sizeBytes > this.maxSizeBytes && it.hasNext())
+        {
+            Map.Entry<String, Entry> entry = it.next();
+            this.delete(entry.getKey(), entry.getValue());
+            it.remove();
+            evicted = true;
+        }
+        if (evicted) this.saveUseTimes();
+    }
+
+    /**
+     * Sets the modification times of the files of the overviews that have
+     * been used since this was last called to the times they were last used.
+     */
+    private void saveUseTimes()
+    {
+        for (Map.Entry<String, Entry> entry : this.entries.entrySet())
+        {
+            if (entry.getValue().lastUsed == 0) continue;
+            this.getFile(entry.getKey()).setLastModified(entry.getValue().lastUsed);
+            entry.getValue().lastUsed = 0;
+        }
+    }
+
+    private void delete(String key, Entry entry)
+    {
+        File file = this.getFile(key);
+        if (file.exists() && !file.delete())
+        {
+            logger.warn("Could not delete overview {}", file.getPath());
+        }
+        this.sizeBytes -= entry.sizeBytes;
+    }
+
+    /**
+     * Sets the maximum total size of the overviews in bytes, deleting the
+     * least-recently-used overviews if necessary.  Zero deletes all the
+     * overviews.
+     */
+    public synchronized void setMaxSizeBytes(long maxSizeBytes)
+    {
+        if (maxSizeBytes < 0)
+        {
+            throw new IllegalArgumentException("maxSizeBytes cannot be negative");
+        }
+        this.maxSizeBytes = maxSizeBytes;
+        this.evict();
+    }
+
+    public synchronized long getMaxSizeBytes()
+    {
+        return this.maxSizeBytes;
+    }
+
+    public synchronized long getSizeBytes()
+    {
+        return this.sizeBytes;
+    }
+
+    public synchronized int getNumEntries()
+    {
+        return this.entries.size();
+    }
+
+    public synchronized long getNumHits()
+    {
+        return this.numHits;
+    }
+
+    public synchronized long getNumMisses()
+    {
+        return this.numMisses;
+    }
+
+    public File getDirectory()
+    {
+        return this.directory;
+    }
+
+    /** An overview in the store */
+    private static final class Entry
+    {
+        private final long sizeBytes;
+        /** The mapping of the file, or null if it has not been read */
+        private Overview overview = null;
+        /** The time of the last use that has not been saved, or zero */
+        private long lastUsed = 0;
+
+        private Entry(long sizeBytes)
+        {
+            this.sizeBytes = sizeBytes;
+        }
+    }
+
+    /**
+     * A read-only view of an overview in the store.
+     */
+    public static final class Overview
+    {
+        private final int width;
+        private final int height;
+        private final FloatBuffer values;
+
+        private Overview(int width, int height, FloatBuffer values)
+        {
+            this.width = width;
+            this.height = height;
+            this.values = values;
+        }
+
+        public int getWidth() { return this.width; }
+
+        public int getHeight() { return this.height; }
+
+        /** Gets the value at the given point, which may be NaN */
+        public float getValue(int i, int j)
+        {
+            return this.values.get(j * this.width + i);
+        }
+
+        /**
+         * Gets the values in row-major order, with the x index varying fastest.
+         * Missing values are represented by NaNs.
+         */
+        public FloatBuffer getValues()
+        {
+            return this.values.asReadOnlyBuffer();
+        }
+    }
+}
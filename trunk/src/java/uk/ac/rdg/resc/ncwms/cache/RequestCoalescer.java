@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2010 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.cache;
+
+import java.io.InterruptedIOException;
+import java.nio.channels.ClosedByInterruptException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>Coalesces identical concurrent requests so that the work for each key is
+ * done only once at a time.  When a popular tile is requested by many
+ * clients at once (e.g. just after a dataset has been updated, when the
+ * caches are empty) the first thread to ask for a key (the "leader") does the
+ * work and the other threads (the "followers") wait for its result, instead
+ * of all reading the same data from disk.</p>
+ * <p>Results are not kept once the leader has finished: this class is intended
+ * to sit in front of a cache such as the {@link TileCache}, and the leader
+ * should store its result in the cache before returning it.</p>
+ * <p>A follower will not wait for longer than the timeout given in the
+ * constructor: after this it does the work itself.  If the leader fails
+ * because its thread was interrupted (e.g. because its client went away)
+ * the followers try again; other failures are passed on to the followers.
+ * If a follower is interrupted it stops waiting but the leader carries on,
+ * because other followers may still need the result.</p>
+ * <p>This class is thread-safe.</p>
+ * @param <K> The type of the keys, which must implement equals() and hashCode()
+ * @param <V> The type of the results
+ * @author Jon
+ */
+public final class RequestCoalescer<K, V>
+{
+    private static final Logger logger = LoggerFactory.getLogger(RequestCoalescer.class);
+
+    private final ConcurrentMap<K, FutureTask<V>> inFlight =
+        new ConcurrentHashMap<K, FutureTask<V>>();
+
+    private final long timeoutMs;
+
+    private final AtomicLong numExecuted = new AtomicLong(0);
+    private final AtomicLong numCoalesced = new AtomicLong(0);
+    private final AtomicLong numTimeouts = new AtomicLong(0);
+
+    /**
+     * Creates a new RequestCoalescer
+     * @param timeoutMs The maximum time in milliseconds for which a follower
+     * will wait for the leader's result
+     */
+    public RequestCoalescer(long timeoutMs)
+    {
+        if (timeoutMs <= 0)
+        {
+            throw new IllegalArgumentException("timeoutMs must be positive");
+        }
+        this.timeoutMs = timeoutMs;
+    }
+
+    /**
+     * Returns the result of calling {@code work}, unless another thread is
+     * already doing the work for the same key, in which case that thread's
+     * result is returned.
+     * @param key The key identifying the work
+     * @param work The work to do if no other thread is doing it
+     * @return the result of the work
+     * @throws InterruptedException if this thread was interrupted while
+     * waiting for another thread's result
+     * @throws Exception if the work threw an exception (which is passed on
+     * unwrapped)
+     */
+    public V execute(K key, Callable<V> work) throws Exception
+    {
+        while (true)
+        {
+            FutureTask<V> task = new FutureTask<V>(work);
+            FutureTask<V> leaderTask = this.inFlight.putIfAbsent(key, task);
+            if (leaderTask == null)
+            {
+                // We are the leader
+                this.numExecuted.incrementAndGet();
+                try
+                {
+                    task.run();
+                }
+                finally
+                {
+                    this.inFlight.remove(key, task);
+                }
+                return getResult(task);
+            }
+
+            // We are a follower
+            this.numCoalesced.incrementAndGet();
+            logger.debug("Waiting for result of in-flight request for {}", key);
+            try
+            {
+                return leaderTask.get(this.timeoutMs, TimeUnit.MILLISECONDS);
+            }
+            catch (TimeoutException te)
+            {
+                this.numTimeouts.incrementAndGet();
+                logger.debug("Timed out waiting for {}: doing the work ourselves", key);
+                return work.call();
+            }
+            catch (CancellationException ce)
+            {
+                // Try again
+            }
+            catch (ExecutionException ee)
+            {
+                if (!wasInterrupted(ee.getCause())) throw unwrap(ee);
+                // The leader was interrupted: try again.  We might become
+                // the leader ourselves.
+                logger.debug("In-flight request for {} was interrupted: retrying", key);
+            }
+        }
+    }
+
+    private static <V> V getResult(FutureTask<V> task) throws Exception
+    {
+        try
+        {
+            return task.get();
+        }
+        catch (ExecutionException ee)
+        {
+            throw unwrap(ee);
+        }
+    }
+
+    private static Exception unwrap(ExecutionException ee)
+    {
+        Throwable cause = ee.getCause();
+        if (cause instanceof Error) throw (Error)cause;
+        if (cause instanceof Exception) return (Exception)cause;
+        return ee;
+    }
+
+    /** Returns true if the given exception indicates that a thread was interrupted */
+    private static boolean wasInterrupted(Throwable t)
+    {
+        return t instanceof InterruptedException ||
+               t instanceof InterruptedIOException ||
+               t instanceof ClosedByInterruptException;
+    }
+
+    /** Gets the number of requests that are currently in progress */
+    public int getNumInFlight()
+    {
+        return this.inFlight.size();
+    }
+
+    /** Gets the number of times that the work was actually done by a leader */
+    public long getNumExecuted()
+    {
+        return this.numExecuted.get();
+    }
+
+    /**
+     * Gets the number of times that a request found an identical request in
+     * progress and waited for its result
+     */
+    public long getNumCoalesced()
+    {
+        return this.numCoalesced.get();
+    }
+
+    /**
+     * Gets the number of times that a follower gave up waiting and did the
+     * work itself
+     */
+    public long getNumTimeouts()
+    {
+        return this.numTimeouts.get();
+    }
+}
@@ -29,6 +29,7 @@
 package uk.ac.rdg.resc.ncwms.cache;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.List;
 import net.sf.ehcache.Cache;
@@ -40,6 +41,8 @@ import net.sf.ehcache.config.DiskStoreConfiguration;
 import net.sf.ehcache.store.MemoryStoreEvictionPolicy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import uk.ac.rdg.resc.edal.util.CollectionUtils;
+import uk.ac.rdg.resc.edal.util.Range;
 import uk.ac.rdg.resc.ncwms.config.Config;
 
 /**
@@ -84,6 +87,12 @@ import uk.ac.rdg.resc.ncwms.config.Config;
  * does the clean-up in a background thread using a least-recently-used (LRU)
  * algorithm.</p>
  *
+ * <p>If an {@link uk.ac.rdg.resc.ncwms.config.Cache#getOffHeapSizeMB() off-heap
+ * size} is configured, data arrays are held in an {@link OffHeapTileStore}
+ * instead of ehcache.  This holds the data outside the Java heap (optionally
+ * in a memory-mapped file) with a capacity that is set in bytes rather than
+ * items, and can store the data in a compact {@link TileEncoding}.</p>
+ *
  * @author Jon Blower
  */
 public class TileCache
@@ -91,19 +100,54 @@ public class TileCache
     private static final Logger logger = LoggerFactory.getLogger(TileCache.class);
     
     private static final String CACHE_NAME = "tilecache";
-    private static final Float[] EMPTY_FLOAT_ARRAY = new Float[0];
 
     private CacheManager cacheManager;
 
+    /** Will be non-null if data are held outside the Java heap */
+    private OffHeapTileStore offHeapStore = null;
+
     /** The location of the tile cache: will be injected by Spring */
     private File cacheDirectory;
 
     /** The Config object containing the cache configuration: will be injected by Spring */
     private Config ncwmsConfig;
 
-    /** Creates a TileCache in the given working directory. */
-    public void init()
+    /**
+     * Coalesces identical concurrent reads of source data, so that when many
+     * clients request the same tile at once (before it has been cached) the
+     * data are only read once.  This is used whether or not the cache is
+     * enabled.  A waiting request will give up after a minute and read the
+     * data itself.
+     */
+    private final RequestCoalescer<TileCacheKey, float[]> readCoalescer =
+        new RequestCoalescer<TileCacheKey, float[]>(60000);
+
+    /**
+     * Creates a TileCache in the given working directory.
+     * @throws IOException if there was an error creating the memory-mapped
+     * file for the off-heap store
+     */
+    public void init() throws IOException
     {
+        uk.ac.rdg.resc.ncwms.config.Cache cacheConfig = this.ncwmsConfig.getCache();
+        if (cacheConfig.getOffHeapSizeMB() > 0)
+        {
+            File mappedFile = null;
+            if (cacheConfig.isOffHeapMemoryMapped())
+            {
+                this.cacheDirectory.mkdirs();
+                mappedFile = new File(this.cacheDirectory, "offheap.dat");
+            }
+            this.offHeapStore = new OffHeapTileStore(
+                cacheConfig.getOffHeapSizeMB() * 1024L * 1024L,
+                cacheConfig.getTileEncoding(),
+                cacheConfig.getElementLifetimeMinutes() * 60 * 1000L,
+                mappedFile
+            );
+            logger.info("Tile cache started using off-heap store");
+            return;
+        }
+
         // Setting the location of the disk store programmatically is tedious,
         // requiring the creation of lots of objects...
         Configuration tileCacheConfig = new Configuration();
@@ -138,16 +182,29 @@ public class TileCache
      */
     public void shutdown()
     {
+        if (this.offHeapStore != null)
+        {
+            this.offHeapStore.close();
+            logger.info("Tile cache shut down");
+            return;
+        }
         this.cacheManager.shutdown();
         logger.info("Tile cache shut down");
     }
     
     /**
      * Gets an array of data from this cache, returning null if there is no
-     * data matching the given key
+     * data matching the given key.  Missing values in the array are
+     * represented by NaNs.
      */
-    public List<Float> get(TileCacheKey key)
+    public float[] getAsArray(TileCacheKey key)
     {
+        if (this.offHeapStore != null)
+        {
+            float[] data = this.offHeapStore.get(key);
+            logger.debug(data == null ? "Not found in tile cache: {}" : "Found in tile cache: {}", key);
+            return data;
+        }
         Cache cache = this.cacheManager.getCache(CACHE_NAME);
         Element el = cache.get(key);
         if (el == null)
@@ -155,24 +212,72 @@ public class TileCache
             logger.debug("Not found in tile cache: {}", key);
             return null;
         }
-        else
+        logger.debug("Found in tile cache");
+        Object value = el.getValue();
+        if (value instanceof Float[])
         {
-            logger.debug("Found in tile cache");
-            Float[] arr = (Float[])el.getValue();
-            return arr == null ? null : Arrays.asList(arr);
+            // Written by a previous version of ncWMS to the persistent disk store
+            return CollectionUtils.floatArrayFromList(Arrays.asList((Float[])value));
         }
+        return (float[])value;
+    }
+
+    /**
+     * Gets an array of data from this cache, returning null if there is no
+     * data matching the given key.  Missing values in the list are
+     * represented by nulls.
+     */
+    public List<Float> get(TileCacheKey key)
+    {
+        float[] arr = this.getAsArray(key);
+        return arr == null ? null : CollectionUtils.nullableListFromFloatArray(arr);
     }
     
     /**
-     * Adds an array of data to this cache.
+     * Adds an array of data to this cache.  Missing values must be represented
+     * by NaNs.  The array must not be modified after it has been added.
      */
-    public void put(TileCacheKey key, List<Float> data)
+    public void put(TileCacheKey key, float[] data)
+    {
+        this.put(key, data, null);
+    }
+
+    /**
+     * Adds an array of data to this cache.  Missing values must be represented
+     * by NaNs.  The array must not be modified after it has been added.
+     * @param valueRange The expected range of the data (e.g. the colour scale
+     * range of the layer), used by lossy {@link TileEncoding}s.  May be null.
+     */
+    public void put(TileCacheKey key, float[] data, Range<Float> valueRange)
     {
-        Float[] arr = data.toArray(EMPTY_FLOAT_ARRAY);
-        this.cacheManager.getCache(CACHE_NAME).put(new Element(key, arr));
+        if (this.offHeapStore != null)
+        {
+            this.offHeapStore.put(key, data, valueRange);
+            logger.debug("Data put into tile cache: {}", key);
+            return;
+        }
+        this.cacheManager.getCache(CACHE_NAME).put(new Element(key, data));
         logger.debug("Data put into tile cache: {}", key);
     }
 
+    /**
+     * Adds a list of data to this cache, in which missing values are represented
+     * by nulls.
+     */
+    public void put(TileCacheKey key, List<Float> data)
+    {
+        this.put(key, CollectionUtils.floatArrayFromList(data));
+    }
+
+    /**
+     * Returns the object that coalesces identical concurrent reads of data
+     * for the tiles in this cache
+     */
+    public RequestCoalescer<TileCacheKey, float[]> getReadCoalescer()
+    {
+        return this.readCoalescer;
+    }
+
     /** Called by Spring to set the directory for the cached tiles */
     public void setCacheDirectory(File cacheDirectory)
     {
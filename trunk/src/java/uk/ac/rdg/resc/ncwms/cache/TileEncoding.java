@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2010 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.cache;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodings that can be used to store arrays of data in an
+ * {@link OffHeapTileStore}.  The {@link #FLOAT32} encoding is lossless; the
+ * others trade precision for a smaller footprint.  In all encodings missing
+ * values (NaNs) are preserved exactly.
+ * @author Jon
+ */
+public enum TileEncoding
+{
+    /** Stores each value as a 4-byte float: lossless */
+    FLOAT32(4) {
+        @Override
+        void encode(float[] data, ByteBuffer buf, float min, float max)
+        {
+            for (float val : data) buf.putFloat(val);
+        }
+
+        @Override
+        void decode(ByteBuffer buf, float[] data, float min, float max)
+        {
+            for (int i = 0; i < data.length; i++) data[i] = buf.getFloat();
+        }
+    },
+
+    /**
+     * Stores each value as a 2-byte IEEE 754 half-precision float, giving
+     * around three significant figures.  Values that are too large for half
+     * precision become infinite.
+     */
+    FLOAT16(2) {
+        @Override
+        void encode(float[] data, ByteBuffer buf, float min, float max)
+        {
+            for (float val : data) buf.putShort(floatToHalf(val));
+        }
+
+        @Override
+        void decode(ByteBuffer buf, float[] data, float min, float max)
+        {
+            for (int i = 0; i < data.length; i++) data[i] = halfToFloat(buf.getShort());
+        }
+    },
+
+    /**
+     * Stores each value in a single byte, quantized into 255 levels between
+     * a minimum and maximum value.  The range will usually be the colour
+     * scale range of the layer, extended if necessary to include all the
+     * values in the array, so no values are clipped.
+     */
+    BYTE(1) {
+        @Override
+        void encode(float[] data, ByteBuffer buf, float min, float max)
+        {
+            float scale = max > min ? (NUM_LEVELS - 1) / (max - min) : 0.0f;
+            for (float val : data)
+            {
+                if (Float.isNaN(val))
+                {
+                    buf.put((byte)0);
+                }
+                else
+                {
+                    // Levels 1 to 255 represent real values
+                    int level = 1 + Math.round((val - min) * scale);
+                    buf.put((byte)Math.min(Math.max(level, 1), NUM_LEVELS));
+                }
+            }
+        }
+
+        @Override
+        void decode(ByteBuffer buf, float[] data, float min, float max)
+        {
+            float step = (max - min) / (NUM_LEVELS - 1);
+            for (int i = 0; i < data.length; i++)
+            {
+                int level = buf.get() & 0xff;
+                data[i] = level == 0 ? Float.NaN : min + (level - 1) * step;
+            }
+        }
+    };
+
+    /** The number of levels used to represent real values in the BYTE encoding */
+    private static final int NUM_LEVELS = 255;
+
+    private final int bytesPerValue;
+
+    private TileEncoding(int bytesPerValue)
+    {
+        this.bytesPerValue = bytesPerValue;
+    }
+
+    /** Returns the number of bytes that are used to store each value */
+    public int getBytesPerValue()
+    {
+        return this.bytesPerValue;
+    }
+
+    /**
+     * Writes the given data to the buffer, which must have at least
+     * {@code data.length * getBytesPerValue()} bytes remaining.
+     * @param min The minimum of the range of values (ignored by all but
+     * the {@link #BYTE} encoding)
+     * @param max The maximum of the range of values (ignored by all but
+     * the {@link #BYTE} encoding)
+     */
+    abstract void encode(float[] data, ByteBuffer buf, float min, float max);
+
+    /**
+     * Reads data from the buffer, which must have been written by
+     * {@link #encode encode()} with the same min and max values.
+     */
+    abstract void decode(ByteBuffer buf, float[] data, float min, float max);
+
+    /**
+     * Converts a float to IEEE 754 half-precision, rounding to the nearest
+     * representable value.
+     */
+    static short floatToHalf(float val)
+    {
+        int bits = Float.floatToRawIntBits(val);
+        int sign = (bits >>> 16) & 0x8000;
+        int exponent = (bits >>> 23) & 0xff;
+        int mantissa = bits & 0x7fffff;
+
+        if (exponent == 0xff)
+        {
+            // Infinity or NaN: keep NaNs as NaNs
+            return (short)(sign | 0x7c00 | (mantissa != 0 ? 0x200 : 0));
+        }
+        int halfExponent = exponent - 127 + 15;
+        if (halfExponent >= 0x1f)
+        {
+            // Too large: becomes infinity
+            return (short)(sign | 0x7c00);
+        }
+        if (halfExponent <= 0)
+        {
+            // Subnormal half or zero
+            if (halfExponent < -10) return (short)sign;
+            mantissa |= 0x800000;
+            int shift = 14 - halfExponent;
+            int half = mantissa >> shift;
+            // Round to nearest
+            if (((mantissa >> (shift - 1)) & 1) != 0) half++;
+            return (short)(sign | half);
+        }
+        int half = (halfExponent << 10) | (mantissa >> 13);
+        // Round to nearest.  A carry into the exponent is correct behaviour.
+        if ((mantissa & 0x1000) != 0) half++;
+        return (short)(sign | half);
+    }
+
+    /** Converts an IEEE 754 half-precision value to a float */
+    static float halfToFloat(short half)
+    {
+        int sign = (half & 0x8000) << 16;
+        int exponent = (half >>> 10) & 0x1f;
+        int mantissa = half & 0x3ff;
+
+        if (exponent == 0x1f)
+        {
+            // Infinity or NaN
+            return Float.intBitsToFloat(sign | 0x7f800000 | (mantissa << 13));
+        }
+        if (exponent == 0)
+        {
+            if (mantissa == 0) return Float.intBitsToFloat(sign);
+            // Subnormal: normalize it
+            exponent = 1;
+            while ((mantissa & 0x400) == 0)
+            {
+                mantissa <<= 1;
+                exponent--;
+            }
+            mantissa &= 0x3ff;
+        }
+        return Float.intBitsToFloat(sign | ((exponent - 15 + 127) << 23) | (mantissa << 13));
+    }
+}
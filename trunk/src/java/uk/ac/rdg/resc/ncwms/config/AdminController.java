@@ -28,6 +28,7 @@
 
 package uk.ac.rdg.resc.ncwms.config;
 
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -36,7 +37,13 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import org.springframework.web.servlet.ModelAndView;
 import org.springframework.web.servlet.mvc.multiaction.MultiActionController;
+import uk.ac.rdg.resc.edal.cdm.CdmUtils;
+import uk.ac.rdg.resc.ncwms.cache.ImageCache;
+import uk.ac.rdg.resc.ncwms.cache.TileCache;
+import uk.ac.rdg.resc.ncwms.cache.TileEncoding;
+import uk.ac.rdg.resc.ncwms.config.datareader.DefaultDataReader;
 import uk.ac.rdg.resc.ncwms.graphics.ColorPalette;
+import uk.ac.rdg.resc.ncwms.metrics.MetricsRegistry;
 import uk.ac.rdg.resc.ncwms.usagelog.h2.H2UsageLogger;
 import uk.ac.rdg.resc.edal.util.Ranges;
 import uk.ac.rdg.resc.ncwms.wms.Layer;
@@ -51,6 +58,9 @@ public class AdminController extends MultiActionController
     // These will be injected by Spring
     private Config config;
     private H2UsageLogger usageLogger;
+    private TileCache tileCache;
+    private ImageCache imageCache;
+    private MetricsRegistry metrics;
     
     /**
      * Displays the administrative web page
@@ -58,7 +68,18 @@ public class AdminController extends MultiActionController
     public ModelAndView displayAdminPage(HttpServletRequest request,
         HttpServletResponse response) throws Exception
     {
-        return new ModelAndView("admin", "config", this.config);
+        Map<String, Object> models = new HashMap<String, Object>();
+        models.put("config", this.config);
+        models.put("datasetCache", DefaultDataReader.getDatasetCache());
+        models.put("pixelMapCache", CdmUtils.getPixelMapCache());
+        models.put("sourceChunkCache", CdmUtils.getSourceChunkCache());
+        if (this.config.getOverviewBuilder() != null)
+        {
+            models.put("overviewStore", this.config.getOverviewBuilder().getStore());
+        }
+        models.put("tileCache", this.tileCache);
+        models.put("imageCache", this.imageCache);
+        return new ModelAndView("admin", models);
     }
     
     /**
@@ -103,12 +124,30 @@ public class AdminController extends MultiActionController
     }
     
     /**
-     * Displays the page showing usage statistics
+     * Displays the page showing usage statistics.  The summary of requests by
+     * layer covers the number of days given by the "days" parameter (default 7).
      */
     public ModelAndView displayUsagePage(HttpServletRequest request,
         HttpServletResponse response) throws Exception
     {
-        return new ModelAndView("admin_usage", "usageLogger", this.usageLogger);
+        int days = 7;
+        String daysStr = request.getParameter("days");
+        if (daysStr != null)
+        {
+            try
+            {
+                days = Math.max(1, Integer.parseInt(daysStr));
+            }
+            catch (NumberFormatException nfe)
+            {
+                throw new Exception("days must be an integer");
+            }
+        }
+        Map<String, Object> models = new HashMap<String, Object>();
+        models.put("usageLogger", this.usageLogger);
+        models.put("days", days);
+        models.put("summaries", this.usageLogger.getSummaries(days));
+        return new ModelAndView("admin_usage", models);
     }
     
     /**
@@ -123,6 +162,20 @@ public class AdminController extends MultiActionController
         this.usageLogger.writeCsv(response.getOutputStream());
     }
     
+    /**
+     * Writes the server's metrics in the Prometheus text format, for
+     * monitoring systems to collect
+     */
+    public void displayMetrics(HttpServletRequest request,
+        HttpServletResponse response) throws Exception
+    {
+        response.setContentType("text/plain; version=0.0.4; charset=UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        Writer out = response.getWriter();
+        this.metrics.writeText(out);
+        out.flush();
+    }
+    
     /**
      * Handles the submission of new configuration information from admin_index.jsp
      */
@@ -146,6 +199,13 @@ public class AdminController extends MultiActionController
             server.setUrl(request.getParameter("server.url"));
             server.setMaxImageWidth(Integer.parseInt(request.getParameter("server.maximagewidth")));
             server.setMaxImageHeight(Integer.parseInt(request.getParameter("server.maximageheight")));
+            server.setMaxDataExtractionThreads(Integer.parseInt(request.getParameter("server.maxdataextractionthreads")));
+            server.setMaxParallelReadsPerRequest(Integer.parseInt(request.getParameter("server.maxparallelreadsperrequest")));
+            server.setMetadataLoaderThreads(Integer.parseInt(request.getParameter("server.metadataloaderthreads")));
+            if (config.getDatasetReloader() != null)
+            {
+                config.getDatasetReloader().setNumLoaderThreads(server.getMetadataLoaderThreads());
+            }
             server.setAllowFeatureInfo(request.getParameter("server.allowfeatureinfo") != null);
             server.setAllowGlobalCapabilities(request.getParameter("server.allowglobalcapabilities") != null);
 
@@ -184,6 +244,14 @@ public class AdminController extends MultiActionController
                     }
                     ds.setDisabled(disabled);
                     ds.setQueryable(request.getParameter("dataset." + ds.getId() + ".queryable") != null);
+                    boolean buildOverviews = request.getParameter("dataset." + ds.getId() + ".overviews") != null;
+                    if (buildOverviews && !ds.isBuildOverviews() && !refreshDataset)
+                    {
+                        // Build the overviews now rather than at the next refresh
+                        ds.setBuildOverviews(true);
+                        config.scheduleOverviewBuild(ds);
+                    }
+                    ds.setBuildOverviews(buildOverviews);
                     ds.setUpdateInterval(Integer.parseInt(request.getParameter("dataset." + ds.getId() + ".updateinterval")));
                     ds.setMoreInfo(request.getParameter("dataset." + ds.getId() + ".moreinfo"));
                     ds.setCopyrightStatement(request.getParameter("dataset." + ds.getId() + ".copyright"));
@@ -236,6 +304,7 @@ public class AdminController extends MultiActionController
                     ds.setDataReaderClass(request.getParameter("dataset.new" + i + ".reader"));
                     ds.setDisabled(request.getParameter("dataset.new" + i + ".disabled") != null);
                     ds.setQueryable(request.getParameter("dataset.new" + i + ".queryable") != null);
+                    ds.setBuildOverviews(request.getParameter("dataset.new" + i + ".overviews") != null);
                     ds.setUpdateInterval(Integer.parseInt(request.getParameter("dataset.new" + i + ".updateinterval")));
                     ds.setMoreInfo(request.getParameter("dataset.new" + i + ".moreinfo"));
                     ds.setCopyrightStatement(request.getParameter("dataset.new" + i + ".copyright"));
@@ -252,6 +321,21 @@ public class AdminController extends MultiActionController
             config.getCache().setMaxNumItemsInMemory(Integer.parseInt(request.getParameter("cache.maxNumItemsInMemory")));
             config.getCache().setEnableDiskStore(request.getParameter("cache.enableDiskStore") != null);
             config.getCache().setMaxNumItemsOnDisk(Integer.parseInt(request.getParameter("cache.maxNumItemsOnDisk")));
+            config.getCache().setMaxOpenDatasets(Integer.parseInt(request.getParameter("cache.maxOpenDatasets")));
+            config.getCache().setOffHeapSizeMB(Integer.parseInt(request.getParameter("cache.offHeapSizeMB")));
+            config.getCache().setOffHeapMemoryMapped(request.getParameter("cache.offHeapMemoryMapped") != null);
+            config.getCache().setTileEncoding(TileEncoding.valueOf(request.getParameter("cache.tileEncoding")));
+            config.getCache().setImageCacheSizeMB(Integer.parseInt(request.getParameter("cache.imageCacheSizeMB")));
+            config.getCache().setPixelMapCacheSizeMB(Integer.parseInt(request.getParameter("cache.pixelMapCacheSizeMB")));
+            config.getCache().setSourceChunkCacheSizeMB(Integer.parseInt(request.getParameter("cache.sourceChunkCacheSizeMB")));
+            config.getCache().setOverviewDiskBudgetMB(Integer.parseInt(request.getParameter("cache.overviewDiskBudgetMB")));
+            DefaultDataReader.getDatasetCache().setMaxOpenDatasets(config.getCache().getMaxOpenDatasets());
+            CdmUtils.getPixelMapCache().setMaxSizeBytes(config.getCache().getPixelMapCacheSizeMB() * 1024L * 1024L);
+            CdmUtils.getSourceChunkCache().setMaxSizeBytes(config.getCache().getSourceChunkCacheSizeMB() * 1024L * 1024L);
+            if (config.getOverviewBuilder() != null)
+            {
+                config.getOverviewBuilder().getStore().setMaxSizeBytes(config.getCache().getOverviewDiskBudgetMB() * 1024L * 1024L);
+            }
             
             // Set the location of the THREDDS catalog if it has changed
             String newThreddsCatalogLocation = request.getParameter("thredds.catalog.location");
@@ -353,4 +437,28 @@ public class AdminController extends MultiActionController
         this.usageLogger = usageLogger;
     }
     
+    /**
+     * Called by Spring to inject the tile cache
+     */
+    public void setTileCache(TileCache tileCache)
+    {
+        this.tileCache = tileCache;
+    }
+    
+    /**
+     * Called by Spring to inject the image cache
+     */
+    public void setImageCache(ImageCache imageCache)
+    {
+        this.imageCache = imageCache;
+    }
+    
+    /**
+     * Called by Spring to inject the registry of metrics
+     */
+    public void setMetrics(MetricsRegistry metrics)
+    {
+        this.metrics = metrics;
+    }
+    
 }
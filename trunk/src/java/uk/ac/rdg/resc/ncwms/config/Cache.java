@@ -31,6 +31,7 @@ package uk.ac.rdg.resc.ncwms.config;
 import org.simpleframework.xml.Attribute;
 import org.simpleframework.xml.Element;
 import org.simpleframework.xml.Root;
+import uk.ac.rdg.resc.ncwms.cache.TileEncoding;
 
 /**
  * Configuration for the {@link uk.ac.rdg.resc.ncwms.cache.TileCache TileCache}.
@@ -60,6 +61,69 @@ public class Cache
      */
     @Element(name="maxNumItemsOnDisk", required=false)
     private int maxNumItemsOnDisk = 2000; // Gives around a 500MB disk footprint for 256*256 tiles
+
+    /**
+     * The maximum number of local data files that will be open at once,
+     * including those that are held open (with their metadata) between
+     * requests and those that are in use
+     */
+    @Element(name="maxOpenDatasets", required=false)
+    private int maxOpenDatasets = 50;
+
+    /**
+     * The number of megabytes of data that will be held outside the Java heap.
+     * If this is greater than zero the off-heap store replaces the in-memory
+     * and disk stores.
+     */
+    @Element(name="offHeapSizeMB", required=false)
+    private int offHeapSizeMB = 0;
+
+    /**
+     * True if the off-heap store should use a memory-mapped file rather than
+     * direct memory.
+     */
+    @Element(name="offHeapMemoryMapped", required=false)
+    private boolean offHeapMemoryMapped = false;
+
+    /**
+     * The name of the {@link uk.ac.rdg.resc.ncwms.cache.TileEncoding TileEncoding}
+     * used in the off-heap store
+     */
+    @Element(name="tileEncoding", required=false)
+    private String tileEncoding = "FLOAT32";
+
+    /**
+     * The number of megabytes of encoded images that will be held in the
+     * {@link uk.ac.rdg.resc.ncwms.cache.ImageCache ImageCache}.  Zero disables
+     * the image cache.
+     */
+    @Element(name="imageCacheSizeMB", required=false)
+    private int imageCacheSizeMB = 50;
+
+    /**
+     * The number of megabytes of {@link uk.ac.rdg.resc.edal.cdm.PixelMapCache
+     * PixelMaps} that will be held in memory, so that the mapping from source
+     * grids to images can be reused between frames, variables and requests.
+     * Zero disables the PixelMap cache.
+     */
+    @Element(name="pixelMapCacheSizeMB", required=false)
+    private int pixelMapCacheSizeMB = 32;
+
+    /**
+     * The number of megabytes of decoded {@link uk.ac.rdg.resc.edal.cdm.SourceChunkCache
+     * chunks of source data} that will be held in memory, so that neighbouring
+     * tiles need not read the same data from disk.  Zero disables this cache.
+     */
+    @Element(name="sourceChunkCacheSizeMB", required=false)
+    private int sourceChunkCacheSizeMB = 64;
+
+    /**
+     * The number of megabytes of disk space that will be used for the
+     * reduced-resolution copies of datasets that are used for zoomed-out
+     * images.  Zero disables these overviews for all datasets.
+     */
+    @Element(name="overviewDiskBudgetMB", required=false)
+    private int overviewDiskBudgetMB = 1024;
     
     public boolean isEnabled()
     {
@@ -110,4 +174,95 @@ public class Cache
     {
         this.maxNumItemsOnDisk = maxNumItemsOnDisk;
     }
+
+    public int getMaxOpenDatasets()
+    {
+        return maxOpenDatasets;
+    }
+
+    public void setMaxOpenDatasets(int maxOpenDatasets)
+    {
+        this.maxOpenDatasets = maxOpenDatasets;
+    }
+
+    public int getOffHeapSizeMB()
+    {
+        return offHeapSizeMB;
+    }
+
+    public void setOffHeapSizeMB(int offHeapSizeMB)
+    {
+        this.offHeapSizeMB = Math.max(0, offHeapSizeMB);
+    }
+
+    public boolean isOffHeapMemoryMapped()
+    {
+        return offHeapMemoryMapped;
+    }
+
+    public void setOffHeapMemoryMapped(boolean offHeapMemoryMapped)
+    {
+        this.offHeapMemoryMapped = offHeapMemoryMapped;
+    }
+
+    /**
+     * @return the encoding used in the off-heap store, defaulting to
+     * {@link TileEncoding#FLOAT32} if the configured value is not recognized
+     */
+    public TileEncoding getTileEncoding()
+    {
+        try
+        {
+            return TileEncoding.valueOf(this.tileEncoding.trim().toUpperCase());
+        }
+        catch (IllegalArgumentException iae)
+        {
+            return TileEncoding.FLOAT32;
+        }
+    }
+
+    public void setTileEncoding(TileEncoding tileEncoding)
+    {
+        this.tileEncoding = tileEncoding.name();
+    }
+
+    public int getImageCacheSizeMB()
+    {
+        return imageCacheSizeMB;
+    }
+
+    public void setImageCacheSizeMB(int imageCacheSizeMB)
+    {
+        this.imageCacheSizeMB = Math.max(0, imageCacheSizeMB);
+    }
+
+    public int getPixelMapCacheSizeMB()
+    {
+        return pixelMapCacheSizeMB;
+    }
+
+    public void setPixelMapCacheSizeMB(int pixelMapCacheSizeMB)
+    {
+        this.pixelMapCacheSizeMB = Math.max(0, pixelMapCacheSizeMB);
+    }
+
+    public int getSourceChunkCacheSizeMB()
+    {
+        return sourceChunkCacheSizeMB;
+    }
+
+    public void setSourceChunkCacheSizeMB(int sourceChunkCacheSizeMB)
+    {
+        this.sourceChunkCacheSizeMB = Math.max(0, sourceChunkCacheSizeMB);
+    }
+
+    public int getOverviewDiskBudgetMB()
+    {
+        return overviewDiskBudgetMB;
+    }
+
+    public void setOverviewDiskBudgetMB(int overviewDiskBudgetMB)
+    {
+        this.overviewDiskBudgetMB = Math.max(0, overviewDiskBudgetMB);
+    }
 }
@@ -33,16 +33,11 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.TimeUnit;
 import javax.servlet.ServletContext;
 import org.joda.time.DateTime;
 import org.slf4j.Logger;
@@ -59,6 +54,9 @@ import org.springframework.context.ApplicationContext;
 import org.springframework.context.ApplicationContextAware;
 import ucar.nc2.dataset.NetcdfDataset;
 import ucar.unidata.io.RandomAccessFile;
+import uk.ac.rdg.resc.edal.cdm.CdmUtils;
+import uk.ac.rdg.resc.ncwms.cache.OverviewStore;
+import uk.ac.rdg.resc.ncwms.config.datareader.DefaultDataReader;
 import uk.ac.rdg.resc.ncwms.security.Users;
 import uk.ac.rdg.resc.ncwms.util.WmsUtils;
 import uk.ac.rdg.resc.ncwms.controller.ServerConfig;
@@ -103,6 +101,9 @@ public class Config implements ServerConfig, ApplicationContextAware
     // metadata
     private DateTime lastUpdateTime;
 
+    // Incremented whenever the configuration is saved or updated
+    private volatile long metadataVersion = 0;
+
     private File configFile; // Location of the file from which this information has been read
 
     // Will be injected by Spring: handles authenticated OPeNDAP calls
@@ -114,11 +115,11 @@ public class Config implements ServerConfig, ApplicationContextAware
      */
     private Map<String, Dataset> datasets = new LinkedHashMap<String, Dataset>();
 
-    /** The scheduler that will handle the background (re)loading of datasets */
-    private ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(4);
-    /** Contains handles to background threads that can be used to cancel reloading of datasets.
-      * Maps dataset Ids to Future objects*/
-    private Map<String, ScheduledFuture<?>> futures = new HashMap<String, ScheduledFuture<?>>();
+    /** Handles the background (re)loading of datasets */
+    private DatasetReloader reloader;
+
+    // Builds and reads the reduced-resolution copies of datasets
+    private OverviewBuilder overviewBuilder;
 
     /**
      * Private constructor.  This prevents other classes from creating
@@ -164,6 +165,24 @@ public class Config implements ServerConfig, ApplicationContextAware
         // TODO: move the initialization of the cache to the NcwmsController?
         NetcdfDataset.initNetcdfFileCache(50, 500, 500, 5 * 60);
         logger.debug("NetcdfDatasetCache initialized");
+        // Set the limit on the number of local files that are held open
+        // between requests by the DefaultDataReader.
+        DefaultDataReader.getDatasetCache().setMaxOpenDatasets(
+            config.cache.getMaxOpenDatasets());
+        // Set the size of the cache of PixelMaps
+        CdmUtils.getPixelMapCache().setMaxSizeBytes(
+            config.cache.getPixelMapCacheSizeMB() * 1024L * 1024L);
+        // Set the size of the cache of decoded source data
+        CdmUtils.getSourceChunkCache().setMaxSizeBytes(
+            config.cache.getSourceChunkCacheSizeMB() * 1024L * 1024L);
+        // Look-up tables for curvilinear grids are expensive to generate, so
+        // we keep them in the working directory between runs
+        CdmUtils.setLookUpTableDirectory(
+            new File(configFile.getAbsoluteFile().getParentFile(), "luts"));
+        // Overviews are also kept between runs, up to the configured disk budget
+        config.overviewBuilder = new OverviewBuilder(new OverviewStore(
+            new File(configFile.getAbsoluteFile().getParentFile(), "overviews"),
+            config.cache.getOverviewDiskBudgetMB() * 1024L * 1024L));
         if (logger.isDebugEnabled())
         {
             // Allows us to see how many RAFs are in the NetcdfFileCache at
@@ -171,11 +190,16 @@ public class Config implements ServerConfig, ApplicationContextAware
             RandomAccessFile.setDebugLeaks(true);
         }
 
-        // Set up background threads to reload dataset metadata
+        config.reloader = new DatasetReloader(config.server.getMetadataLoaderThreads());
+
+        // Set up background threads to reload dataset metadata.  Datasets
+        // whose metadata were saved when they were last loaded are ready
+        // straight away: the background threads will then look for changes.
         for (Dataset ds : config.datasets.values())
         {
             ds.setConfig(config);
-            config.scheduleReloading(ds);
+            ds.restoreSnapshot();
+            config.reloader.add(ds);
         }
 
         return config;
@@ -195,6 +219,7 @@ public class Config implements ServerConfig, ApplicationContextAware
             throw new IllegalStateException("No location set for config file");
         }
         new Persister().write(this, this.configFile);
+        this.metadataVersion++;
         logger.debug("Config information saved to {}", this.configFile.getPath());
     }
 
@@ -238,33 +263,7 @@ public class Config implements ServerConfig, ApplicationContextAware
         {
             this.lastUpdateTime = date;
         }
-    }
-
-    /**
-     * Schedules the regular reloading of the given dataset
-     */
-    private void scheduleReloading(final Dataset ds)
-    {
-        Runnable reloader = new Runnable() {
-            @Override public void run() {
-                // This will check to see if the metadata need reloading, then
-                // go ahead if so.
-                ds.loadLayers();
-                // Here we're checking for leaks of open file handles
-                logger.debug("num RAFs open = {}", RandomAccessFile.getOpenFiles().size());
-            }
-        };
-        ScheduledFuture<?> future = this.scheduler.scheduleWithFixedDelay(
-            reloader,            // The reloading task to run
-            0,                   // Schedule the first run immediately
-            1, TimeUnit.SECONDS  // Schedule each subsequent run 1 second after
-                                 // the previous one finished.
-                                 // Hence the dataset will be polled once every
-                                 // second.
-        );
-        // We need to keep a handle to the Future object so we can cancel it
-        this.futures.put(ds.getId(), future);
-        logger.debug("Scheduled auto-reloading of dataset {}", ds.getId());
+        this.metadataVersion++;
     }
 
     /**
@@ -276,6 +275,12 @@ public class Config implements ServerConfig, ApplicationContextAware
         return this.lastUpdateTime;
     }
 
+    @Override
+    public long getMetadataVersion()
+    {
+        return this.metadataVersion;
+    }
+
     public Server getServer()
     {
         return server;
@@ -296,6 +301,32 @@ public class Config implements ServerConfig, ApplicationContextAware
         this.cache = cache;
     }
 
+    /**
+     * @return the object that builds and reads the reduced-resolution copies
+     * of datasets, or null if the configuration has not been read from a file
+     */
+    OverviewBuilder getOverviewBuilder()
+    {
+        return this.overviewBuilder;
+    }
+
+    /**
+     * @return the object that handles the background (re)loading of datasets
+     */
+    DatasetReloader getDatasetReloader()
+    {
+        return this.reloader;
+    }
+
+    /**
+     * Called by a {@link Dataset} when its metadata have been loaded, to build
+     * the overviews of any new timesteps in the background.
+     */
+    void scheduleOverviewBuild(Dataset ds)
+    {
+        if (this.overviewBuilder != null) this.overviewBuilder.scheduleBuild(ds);
+    }
+
     public Contact getContact()
     {
         return contact;
@@ -329,30 +360,51 @@ public class Config implements ServerConfig, ApplicationContextAware
         ds.setConfig(this);
         this.datasetList.add(ds);
         this.datasets.put(ds.getId(), ds);
-        this.scheduleReloading(ds);
+        this.reloader.add(ds);
     }
 
     public synchronized void removeDataset(Dataset ds)
     {
+        this.deleteMetadataSnapshot(ds);
         this.datasetList.remove(ds);
         this.datasets.remove(ds.getId());
-        // Cancel the auto-reloading of this dataset
-        ScheduledFuture<?> future = this.futures.remove(ds.getId());
-        // We allow the reloading task to be interrupted
-        if (future != null) future.cancel(true);
+        // Cancel the auto-reloading of this dataset, interrupting any
+        // reload that is in progress
+        this.reloader.remove(ds);
     }
 
     public synchronized void changeDatasetId(Dataset ds, String newId)
     {
         String oldId = ds.getId();
+        // The snapshot will be saved again under the new ID
+        this.deleteMetadataSnapshot(ds);
         this.datasets.remove(oldId);
-        ScheduledFuture<?> future = this.futures.remove(oldId);
         ds.setId(newId);
         this.datasets.put(newId, ds);
-        this.futures.put(newId, future);
         logger.debug("Changed dataset with ID {} to {}", oldId, newId);
     }
 
+    /**
+     * Gets the file in which a snapshot of the metadata of the given dataset
+     * is saved between runs of the server, or null if the configuration has
+     * not been read from a file.
+     */
+    File getMetadataSnapshotFile(Dataset ds)
+    {
+        if (this.configFile == null) return null;
+        File dir = new File(this.configFile.getAbsoluteFile().getParentFile(), "metadata");
+        return new File(dir, ds.getId().replaceAll("[^A-Za-z0-9._-]", "_") + ".snapshot");
+    }
+
+    private void deleteMetadataSnapshot(Dataset ds)
+    {
+        File file = this.getMetadataSnapshotFile(ds);
+        if (file != null && file.exists() && !file.delete())
+        {
+            logger.warn("Could not delete {}", file.getPath());
+        }
+    }
+
     /**
      * If s is whitespace-only or empty, returns a space, otherwise returns s.
      * This is to work around problems with the Simple XML software, which throws
@@ -411,7 +463,9 @@ public class Config implements ServerConfig, ApplicationContextAware
      */
     public void shutdown()
     {
-        this.scheduler.shutdownNow(); // Tries its best to stop ongoing threads
+        this.reloader.shutdown(); // Tries its best to stop ongoing threads
+        if (this.overviewBuilder != null) this.overviewBuilder.shutdown();
+        DefaultDataReader.getDatasetCache().clear();
         NetcdfDataset.shutdown();
         logger.info("Cleaned up Config object");
     }
@@ -436,6 +490,16 @@ public class Config implements ServerConfig, ApplicationContextAware
         return this.server.getMaxImageHeight();
     }
 
+    @Override
+    public int getMaxDataExtractionThreads() {
+        return this.server.getMaxDataExtractionThreads();
+    }
+
+    @Override
+    public int getMaxParallelReadsPerRequest() {
+        return this.server.getMaxParallelReadsPerRequest();
+    }
+
     @Override
     public Set<String> getKeywords() {
         String[] keysArray = this.server.getKeywords().split(",");
@@ -28,7 +28,9 @@
 
 package uk.ac.rdg.resc.ncwms.config;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
@@ -44,6 +46,7 @@ import org.simpleframework.xml.load.Commit;
 import org.simpleframework.xml.load.PersistenceException;
 import org.simpleframework.xml.load.Validate;
 import uk.ac.rdg.resc.ncwms.config.datareader.DataReader;
+import uk.ac.rdg.resc.ncwms.config.datareader.FileSnapshots;
 import uk.ac.rdg.resc.edal.util.Range;
 import uk.ac.rdg.resc.edal.util.Ranges;
 import uk.ac.rdg.resc.ncwms.util.WmsUtils;
@@ -91,6 +94,9 @@ public class Dataset implements uk.ac.rdg.resc.ncwms.wms.Dataset
     @Attribute(name="updateInterval", required=false)
     private int updateInterval = -1; // The update interval in minutes. -1 means "never update automatically"
 
+    @Attribute(name="buildOverviews", required=false)
+    private boolean buildOverviews = false; // Set true to build reduced-resolution copies of the data for zoomed-out images
+
     // We don't do "private List<Variable> variable..." here because if we do,
     // the config file will contain "<variable class="java.util.ArrayList>",
     // presumably because the definition doesn't clarify what sort of List should
@@ -127,6 +133,22 @@ public class Dataset implements uk.ac.rdg.resc.ncwms.wms.Dataset
         metadata, or null if we've never seen an error */
     private DateTime lastFailedUpdateTime = null;
 
+    /** The time at which we last successfully checked the data files for
+     * changes, or null if the Layers have not yet been loaded.  This is later
+     * than the {@link #lastSuccessfulUpdateTime} if the last check found no
+     * changes. */
+    private DateTime lastCheckTime = null;
+
+    /** Set by the {@link DatasetReloader} when it sees that data files have
+     * been added or removed, so that the dataset is refreshed without waiting
+     * for its update interval */
+    private volatile boolean filesChanged = false;
+
+    /** The metadata that was read from each of the data files when the Layers
+     * were last loaded, which allows us to read only new or modified files
+     * when the dataset is refreshed */
+    private FileSnapshots fileSnapshots = new FileSnapshots();
+
     /** The Layers that belong to this dataset.  This will be loaded through the
      * {@link #loadLayers()} method, which is called periodically by the
      * {@link Config} object. */
@@ -135,6 +157,10 @@ public class Dataset implements uk.ac.rdg.resc.ncwms.wms.Dataset
     /** The VectorLayers generated from the scalarLayers */
     private Map<String, VectorLayerImpl> vectorLayers;
 
+    /** All the layers, scalars then vectors, which are read for every
+     * Capabilities document, so we don't build the set each time */
+    private volatile Set<Layer> allLayers;
+
     /**
      * Checks that the data we have read are valid.  Checks that there are no
      * duplicate variable IDs.
@@ -286,6 +312,11 @@ public class Dataset implements uk.ac.rdg.resc.ncwms.wms.Dataset
 
     void setDataReaderClass(String dataReaderClass) throws Exception
     {
+        if (!dataReaderClass.equals(this.dataReaderClass))
+        {
+            // The files must all be read again with the new data reader
+            this.fileSnapshots = new FileSnapshots();
+        }
         this.dataReaderClass = dataReaderClass;
     }
 
@@ -304,10 +335,27 @@ public class Dataset implements uk.ac.rdg.resc.ncwms.wms.Dataset
     {
         this.updateInterval = updateInterval;
     }
+
+    /**
+     * @return true if reduced-resolution copies of the data in this dataset
+     * should be built, to speed up the rendering of zoomed-out images
+     * @see OverviewBuilder
+     */
+    public boolean isBuildOverviews()
+    {
+        return this.buildOverviews;
+    }
+
+    public void setBuildOverviews(boolean buildOverviews)
+    {
+        this.buildOverviews = buildOverviews;
+    }
     
     /**
      * @return a DateTime object representing the time at which this dataset was
-     * last updated, or null if the dataset has never been loaded.
+     * last updated, or null if the dataset has never been loaded.  This only
+     * changes when a refresh of the metadata finds that the data files have
+     * been added, modified or removed.
      */
     @Override
     public DateTime getLastUpdateTime()
@@ -337,10 +385,8 @@ public class Dataset implements uk.ac.rdg.resc.ncwms.wms.Dataset
     @Override
     public Set<Layer> getLayers()
     {
-        Set<Layer> allLayers = new LinkedHashSet<Layer>();
-        allLayers.addAll(this.scalarLayers.values());
-        allLayers.addAll(this.vectorLayers.values());
-        return allLayers;
+        Set<Layer> layers = this.allLayers;
+        return layers == null ? Collections.<Layer>emptySet() : layers;
     }
 
     /**
@@ -435,21 +481,33 @@ public class Dataset implements uk.ac.rdg.resc.ncwms.wms.Dataset
     }
 
     /**
-     * Forces this dataset to be refreshed the next time it has an opportunity
+     * Forces this dataset to be refreshed the next time it has an opportunity.
+     * All the data files will be read again, whether or not they have changed.
      */
     void forceRefresh()
     {
         this.err = null;
+        this.fileSnapshots = new FileSnapshots();
         this.state = State.NEEDS_REFRESH;
     }
 
     /**
-     * Called by the scheduled reloader in the {@link Config} object to load
+     * Called by the {@link DatasetReloader} when it sees that data files in
+     * this dataset have been added or removed.  The dataset will be refreshed
+     * as soon as possible.
+     */
+    void notifyFilesChanged()
+    {
+        this.filesChanged = true;
+    }
+
+    /**
+     * Called by the {@link DatasetReloader} to load
      * the Layers from the data files and store them in memory.  This method
-     * is called periodially by the config object and is not called by any
+     * is called when {@link #needsRefresh()} returns true and is not called by any
      * other client.  This is also the only method that can update the
-     * {@link #getState()} of the dataset.  Therefore we know that multiple
-     * threads will not be calling this method simultaneously and we don't
+     * {@link #getState()} of the dataset.  The reloader never runs this method
+     * for the same dataset in two threads at once, so we don't
      * have to synchronize anything.
      */
     void loadLayers()
@@ -461,6 +519,8 @@ public class Dataset implements uk.ac.rdg.resc.ncwms.wms.Dataset
 
         // Check to see if this dataset needs to have its metadata refreshed
         if (!this.needsRefresh()) return;
+        // Any changes to the files from now on will need another refresh
+        this.filesChanged = false;
 
         // Now load the layers and manage the state of the dataset
         try
@@ -468,20 +528,34 @@ public class Dataset implements uk.ac.rdg.resc.ncwms.wms.Dataset
             // if lastUpdateTime == null, this dataset has never previously been loaded.
             this.state = this.lastSuccessfulUpdateTime == null ? State.LOADING : State.UPDATING;
 
-            this.doLoadLayers();
+            boolean changed = this.doLoadLayers();
 
             // Update the state of this dataset.  If we've got this far there
             // were no errors.
             this.err = null;
             this.numErrorsInARow = 0;
             this.state = State.READY;
-            this.lastSuccessfulUpdateTime = new DateTime();
+            this.lastCheckTime = new DateTime();
 
-            logger.debug("Loaded metadata for {}", this.id);
-            
-            // Update the state of the config object
-            this.config.setLastUpdateTime(this.lastSuccessfulUpdateTime);
-            this.config.save();
+            if (changed)
+            {
+                this.lastSuccessfulUpdateTime = this.lastCheckTime;
+                logger.debug("Loaded metadata for {}", this.id);
+
+                // Update the state of the config object
+                this.config.setLastUpdateTime(this.lastSuccessfulUpdateTime);
+                this.config.save();
+
+                // Save the metadata so that they can be restored on restart
+                this.saveSnapshot();
+
+                // Build the overviews of any new timesteps in the background
+                this.config.scheduleOverviewBuild(this);
+            }
+            else
+            {
+                logger.debug("Metadata for {} is unchanged", this.id);
+            }
         }
         catch (Exception e)
         {
@@ -502,7 +576,7 @@ public class Dataset implements uk.ac.rdg.resc.ncwms.wms.Dataset
     /**
      * @return true if the metadata from this dataset needs to be reloaded.
      */
-    private boolean needsRefresh()
+    boolean needsRefresh()
     {
         logger.debug("Last update time for dataset {} is {}", this.id, this.lastSuccessfulUpdateTime);
         logger.debug("State of dataset {} is {}", this.id, this.state);
@@ -529,29 +603,61 @@ public class Dataset implements uk.ac.rdg.resc.ncwms.wms.Dataset
             logger.debug("delay = {} seconds, needsRefresh = {}", delaySeconds, needsRefresh);
             return needsRefresh;
         }
+        else if (this.lastCheckTime == null || this.filesChanged)
+        {
+            // The Layers were restored from a snapshot and we haven't yet
+            // checked the data files for changes, or the reloader has seen
+            // that the files have changed
+            return true;
+        }
         else if (this.updateInterval < 0)
         {
             return false; // We never update this dataset
         }
         else
         {
-            // State = READY.  Check the age of the metadata
+            // State = READY.  Check the time since we last looked for changes
             // Return true if we are after the next scheduled update
-            return new DateTime().isAfter(this.lastSuccessfulUpdateTime.plusMinutes(this.updateInterval));
+            return new DateTime().isAfter(this.lastCheckTime.plusMinutes(this.updateInterval));
         }
     }
 
     /**
-     * Does the job of loading the metadata from this dataset.
+     * Does the job of loading the metadata from this dataset.  Only the data
+     * files that have been added or modified since the last load are read.
+     * @return true if the Layers have been reloaded, false if the data files
+     * have not changed since the last successful load, in which case the
+     * existing Layers are kept.
      */
-    private void doLoadLayers() throws Exception
+    private boolean doLoadLayers() throws Exception
     {
         logger.debug("Getting data reader of type {}", this.dataReaderClass);
         DataReader dr = DataReader.forName(this.dataReaderClass);
         // Look for OPeNDAP datasets and update the credentials provider accordingly
         this.config.updateCredentialsProvider(this);
-        // Read the metadata
-        this.scalarLayers = dr.getAllLayers(this.getLocation());
+        // Read the metadata from the new and modified files
+        FileSnapshots snapshots = this.fileSnapshots;
+        Map<String, LayerImpl> layers = dr.getAllLayers(this.getLocation(), snapshots);
+        logger.debug("Refreshed {}: {}", this.id, snapshots.getChangeSummary());
+        this.appendLoadingProgress(snapshots.getChangeSummary());
+        // If the last load failed part of the way through, the existing
+        // layers may be incomplete, so we replace them anyway
+        if (!snapshots.hasChanges() && this.scalarLayers != null && this.err == null)
+        {
+            this.appendLoadingProgress("Metadata unchanged");
+            return false;
+        }
+        this.setLayers(dr, layers);
+        return true;
+    }
+
+    /**
+     * Replaces the Layers of this dataset with the given Layers, which have
+     * been read by the given DataReader.
+     */
+    private void setLayers(DataReader dr, Map<String, LayerImpl> layers)
+    {
+        this.scalarLayers = layers;
         for (LayerImpl layer : this.scalarLayers.values())
         {
             layer.setDataset(this);
@@ -567,6 +673,81 @@ public class Dataset implements uk.ac.rdg.resc.ncwms.wms.Dataset
         this.appendLoadingProgress("Finished loading metadata");
     }
 
+    /**
+     * Called by {@link Config} when the server starts, to load the Layers from
+     * the snapshot of the metadata that was saved when the dataset was last
+     * loaded, without reading any of the data files.  If this succeeds the
+     * dataset is ready for use immediately, and its data files will be
+     * checked for changes in the first refresh.  If there is no snapshot, or
+     * it was saved for a different location or data reader, this does nothing
+     * and the dataset will be loaded from the data files as usual.
+     */
+    void restoreSnapshot()
+    {
+        File file = this.config.getMetadataSnapshotFile(this);
+        if (file == null || !file.exists() || this.disabled) return;
+        try
+        {
+            FileSnapshots snapshots = FileSnapshots.readFrom(file, this.getSnapshotKey());
+            if (snapshots == null)
+            {
+                logger.debug("Metadata snapshot for {} is out of date", this.id);
+                return;
+            }
+            this.loadingProgress = new ArrayList<String>();
+            this.setLayers(DataReader.forName(this.dataReaderClass), snapshots.getLayers());
+            this.fileSnapshots = snapshots;
+            this.lastSuccessfulUpdateTime = new DateTime(snapshots.getSavedTime());
+            // Leaving lastCheckTime null means that the files will be checked
+            // for changes as soon as possible
+            this.lastCheckTime = null;
+            this.state = State.READY;
+            this.config.setLastUpdateTime(this.lastSuccessfulUpdateTime);
+            logger.info("Restored metadata for {} from snapshot of {} files",
+                this.id, snapshots.size());
+        }
+        catch (Exception e)
+        {
+            logger.warn("Could not restore metadata snapshot for dataset " + this.id, e);
+            this.scalarLayers = null;
+            this.vectorLayers = null;
+            this.allLayers = null;
+            this.fileSnapshots = new FileSnapshots();
+        }
+    }
+
+    /**
+     * Saves the metadata that have just been loaded, so that they can be
+     * restored quickly when the server is restarted.
+     */
+    private void saveSnapshot()
+    {
+        File file = this.config.getMetadataSnapshotFile(this);
+        if (file == null) return;
+        try
+        {
+            if (!this.fileSnapshots.writeTo(file, this.getSnapshotKey(),
+                this.lastSuccessfulUpdateTime.getMillis()))
+            {
+                logger.debug("Metadata for {} cannot be saved as a snapshot", this.id);
+                file.delete();
+            }
+        }
+        catch (Exception e)
+        {
+            logger.warn("Could not save metadata snapshot for dataset " + this.id, e);
+        }
+    }
+
+    /**
+     * Identifies the source of the metadata in a snapshot, so that we don't
+     * restore snapshots that were saved for a different location or data reader.
+     */
+    private String getSnapshotKey()
+    {
+        return this.location + "\n" + this.dataReaderClass;
+    }
+
     /**
      * Searches through the collection of Layer objects, looking for
      * pairs of quantities that represent the components of a vector, e.g.
@@ -582,6 +763,10 @@ public class Dataset implements uk.ac.rdg.resc.ncwms.wms.Dataset
         {
             this.vectorLayers.put(vecLayer.getId(), new VectorLayerImpl(this, vecLayer));
         }
+        Set<Layer> layers = new LinkedHashSet<Layer>();
+        layers.addAll(this.scalarLayers.values());
+        layers.addAll(this.vectorLayers.values());
+        this.allLayers = Collections.unmodifiableSet(layers);
     }
 
     /**
@@ -0,0 +1,388 @@
+/*
+ * Copyright (c) 2010 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.rdg.resc.ncwms.config;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ucar.unidata.io.RandomAccessFile;
+import uk.ac.rdg.resc.ncwms.config.datareader.DataReader;
+import uk.ac.rdg.resc.ncwms.util.WmsUtils;
+
+/**
+ * <p>Decides when the metadata of each {@link Dataset} need to be reloaded,
+ * and reloads them in a pool of loader threads.</p>
+ * <p>A single watcher thread checks every second whether any dataset
+ * {@link Dataset#needsRefresh() needs refreshing} (because it is new, its
+ * update interval has passed, or it is retrying after an error, with the
+ * dataset's exponential backoff).  Datasets that need refreshing are placed
+ * in a priority queue of reload jobs: datasets that have never been loaded
+ * come first, then datasets whose files are known to have changed, then
+ * routine refreshes.  The queue is served by a pool of loader threads whose
+ * size is set in the {@link Server} configuration, so a slow remote dataset
+ * only occupies one loader thread.  Each dataset is only ever queued or
+ * loaded once at a time.</p>
+ * <p>For datasets of local files, the watcher also looks for files that have
+ * been added, removed or renamed, by checking the last-modified times of the
+ * directories that are searched when the dataset's location is expanded
+ * (including subdirectories that match the glob expression).  When one of
+ * them changes the dataset is refreshed straight away, rather than when its
+ * update interval next passes.  Changes to the contents of existing files do
+ * not change the directories and are still found by the update interval, as
+ * are changes to OPeNDAP datasets and NcML aggregations.  Datasets that span
+ * more than {@link #MAX_WATCHED_DIRECTORIES} directories are not watched.</p>
+ * @author Jon
+ */
+final class DatasetReloader
+{
+    private static final Logger logger = LoggerFactory.getLogger(DatasetReloader.class);
+
+    /** How often we check whether any dataset needs reloading */
+    private static final long CHECK_INTERVAL_MS = 1000;
+
+    /** How often we check the directories of each dataset for changes */
+    private static final long WATCH_INTERVAL_MS = 10 * 1000;
+
+    /**
+     * Datasets whose files are spread over more directories than this are
+     * not watched for changes, because checking them would take too long
+     */
+    static final int MAX_WATCHED_DIRECTORIES = 1000;
+
+    /** Priorities of reload jobs: lower values are run first */
+    private static final int PRIORITY_FIRST_LOAD = 0;
+    private static final int PRIORITY_FILES_CHANGED = 1;
+    private static final int PRIORITY_REFRESH = 2;
+
+    private final ScheduledExecutorService watcher;
+    private final ThreadPoolExecutor loaders;
+
+    /** Used to run jobs of equal priority in the order in which they were queued */
+    private final AtomicLong sequence = new AtomicLong();
+
+    /** The datasets that we are reloading, in the order in which they were added */
+    private final Map<Dataset, Entry> entries = new LinkedHashMap<Dataset, Entry>();
+
+    /**
+     * Creates a reloader with the given number of loader threads.  No
+     * datasets are reloaded until they are {@link #add(Dataset) added}.
+     */
+    DatasetReloader(int numLoaderThreads)
+    {
+        this.watcher = Executors.newSingleThreadScheduledExecutor(
+            new DaemonThreadFactory("dataset-watcher"));
+        int n = Math.max(1, numLoaderThreads);
+        this.loaders = new ThreadPoolExecutor(n, n, 60, TimeUnit.SECONDS,
+            new PriorityBlockingQueue<Runnable>(), new DaemonThreadFactory("load-metadata"));
+        this.watcher.scheduleWithFixedDelay(new Runnable() {
+            @Override public void run() {
+                try
+                {
+                    check();
+                }
+                catch (RuntimeException re)
+                {
+                    // We must not let the exception stop the watcher
+                    logger.error("Error checking datasets for reloading", re);
+                }
+            }
+        }, 0, CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /** Starts reloading the given dataset, which will be loaded as soon as possible */
+    synchronized void add(Dataset ds)
+    {
+        if (!this.entries.containsKey(ds))
+        {
+            this.entries.put(ds, new Entry(ds));
+            logger.debug("Scheduled auto-reloading of dataset {}", ds.getId());
+        }
+    }
+
+    /**
+     * Stops reloading the given dataset.  If the dataset is being loaded, the
+     * loading thread is interrupted.
+     */
+    void remove(Dataset ds)
+    {
+        Entry entry;
+        synchronized(this)
+        {
+            entry = this.entries.remove(ds);
+        }
+        if (entry != null) entry.cancel();
+    }
+
+    /** Sets the number of threads that load metadata */
+    synchronized void setNumLoaderThreads(int numLoaderThreads)
+    {
+        int n = Math.max(1, numLoaderThreads);
+        // The maximum pool size must never be less than the core size
+        if (n > this.loaders.getMaximumPoolSize())
+        {
+            this.loaders.setMaximumPoolSize(n);
+            this.loaders.setCorePoolSize(n);
+        }
+        else
+        {
+            this.loaders.setCorePoolSize(n);
+            this.loaders.setMaximumPoolSize(n);
+        }
+    }
+
+    /** Gets the number of reload jobs that are waiting for a loader thread */
+    int getNumQueuedJobs()
+    {
+        return this.loaders.getQueue().size();
+    }
+
+    /** Stops all the threads, interrupting any loads that are in progress */
+    void shutdown()
+    {
+        this.watcher.shutdownNow();
+        this.loaders.shutdownNow();
+    }
+
+    /** Called regularly by the watcher thread */
+    private void check()
+    {
+        List<Entry> toCheck;
+        synchronized(this)
+        {
+            toCheck = new ArrayList<Entry>(this.entries.values());
+        }
+        long now = System.currentTimeMillis();
+        for (Entry entry : toCheck)
+        {
+            if (entry.isQueued()) continue;
+            int priority = PRIORITY_REFRESH;
+            if (entry.dataset.getLastUpdateTime() == null)
+            {
+                priority = PRIORITY_FIRST_LOAD;
+            }
+            else if (now - entry.lastWatched >= WATCH_INTERVAL_MS)
+            {
+                entry.lastWatched = now;
+                if (entry.haveDirectoriesChanged())
+                {
+                    logger.debug("Files in dataset {} have changed", entry.dataset.getId());
+                    entry.dataset.notifyFilesChanged();
+                    priority = PRIORITY_FILES_CHANGED;
+                }
+            }
+            if (entry.dataset.needsRefresh())
+            {
+                entry.setQueued(true);
+                this.loaders.execute(new ReloadJob(entry, priority,
+                    this.sequence.getAndIncrement()));
+            }
+        }
+    }
+
+    /**
+     * Finds the last-modified times of the directories that hold the files
+     * at the given location, or returns null if the location cannot be
+     * watched.
+     */
+    private static Map<File, Long> getDirectoryTimes(String location)
+    {
+        if (WmsUtils.isOpendapLocation(location) || WmsUtils.isNcmlAggregation(location))
+        {
+            return null;
+        }
+        List<File> dirs;
+        try
+        {
+            dirs = DataReader.findGlobDirectories(location);
+        }
+        catch (IllegalArgumentException iae)
+        {
+            // Not an absolute path: the dataset will fail to load anyway
+            return null;
+        }
+        if (dirs.size() > MAX_WATCHED_DIRECTORIES) return null;
+        Map<File, Long> times = new LinkedHashMap<File, Long>();
+        for (File dir : dirs) times.put(dir, dir.lastModified());
+        return times;
+    }
+
+    /** The state of the reloading of a single dataset */
+    private static final class Entry
+    {
+        private final Dataset dataset;
+        /** True if a reload job for this dataset is queued or running */
+        private boolean queued = false;
+        /** The thread that is loading this dataset, or null */
+        private Thread loadingThread = null;
+        private boolean cancelled = false;
+        /**
+         * The last-modified times of the directories of the dataset when it
+         * was last loaded, or null if the dataset is not watched.  Only
+         * accessed by the watcher thread and the loading thread, never at
+         * the same time.
+         */
+        private volatile Map<File, Long> directoryTimes = null;
+        /** The time at which we last checked the directories */
+        private long lastWatched = 0;
+
+        Entry(Dataset dataset)
+        {
+            this.dataset = dataset;
+        }
+
+        synchronized boolean isQueued() { return this.queued; }
+
+        synchronized void setQueued(boolean queued) { this.queued = queued; }
+
+        /** Returns true if any of the directories has been modified */
+        boolean haveDirectoriesChanged()
+        {
+            Map<File, Long> times = this.directoryTimes;
+            if (times == null) return false;
+            for (Map.Entry<File, Long> dirTime : times.entrySet())
+            {
+                if (dirTime.getKey().lastModified() != dirTime.getValue()) return true;
+            }
+            return false;
+        }
+
+        /** Called by the loader thread: returns false if the job has been cancelled */
+        synchronized boolean startLoading()
+        {
+            if (this.cancelled) return false;
+            this.loadingThread = Thread.currentThread();
+            return true;
+        }
+
+        synchronized void finishLoading()
+        {
+            this.loadingThread = null;
+            this.queued = false;
+            // Clears the interrupted status, in case we were cancelled while
+            // loading, so that it doesn't affect the next job in this thread
+            Thread.interrupted();
+        }
+
+        synchronized void cancel()
+        {
+            this.cancelled = true;
+            if (this.loadingThread != null) this.loadingThread.interrupt();
+        }
+    }
+
+    /**
+     * A job in the priority queue that reloads a dataset.  We pass these
+     * directly to {@link ThreadPoolExecutor#execute(java.lang.Runnable)} so
+     * that the queue can compare them.
+     */
+    private static final class ReloadJob implements Runnable, Comparable<ReloadJob>
+    {
+        private final Entry entry;
+        private final int priority;
+        private final long sequence;
+
+        ReloadJob(Entry entry, int priority, long sequence)
+        {
+            this.entry = entry;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public void run()
+        {
+            if (!this.entry.startLoading()) return;
+            try
+            {
+                Dataset ds = this.entry.dataset;
+                // We find the directory times before loading, so that any
+                // changes made during loading will trigger another reload
+                Map<File, Long> times = getDirectoryTimes(ds.getLocation());
+                // This checks again that the dataset needs refreshing
+                ds.loadLayers();
+                if (ds.getState() == Dataset.State.READY)
+                {
+                    this.entry.directoryTimes = times;
+                }
+                // Here we're checking for leaks of open file handles
+                logger.debug("num RAFs open = {}", RandomAccessFile.getOpenFiles().size());
+            }
+            catch (RuntimeException re)
+            {
+                logger.error("Error reloading dataset " + this.entry.dataset.getId(), re);
+            }
+            finally
+            {
+                this.entry.finishLoading();
+            }
+        }
+
+        @Override
+        public int compareTo(ReloadJob other)
+        {
+            if (this.priority != other.priority)
+            {
+                return this.priority < other.priority ? -1 : 1;
+            }
+            return this.sequence < other.sequence ? -1 :
+                  (this.sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+    /** Creates daemon threads with numbered names */
+    private static final class DaemonThreadFactory implements ThreadFactory
+    {
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        DaemonThreadFactory(String prefix)
+        {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r)
+        {
+            Thread t = new Thread(r, this.prefix + "-" + this.count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -40,6 +40,7 @@ import uk.ac.rdg.resc.ncwms.config.datareader.DataReader;
 import uk.ac.rdg.resc.edal.coverage.domain.impl.HorizontalDomain;
 import uk.ac.rdg.resc.ncwms.exceptions.InvalidDimensionValueException;
 import uk.ac.rdg.resc.ncwms.graphics.ColorPalette;
+import uk.ac.rdg.resc.edal.util.CollectionUtils;
 import uk.ac.rdg.resc.edal.util.Range;
 import uk.ac.rdg.resc.ncwms.util.WmsUtils;
 import uk.ac.rdg.resc.ncwms.wms.AbstractTimeAggregatedLayer;
@@ -64,6 +65,26 @@ public final class LayerImpl extends AbstractTimeAggregatedLayer
         super(id);
     }
 
+    /**
+     * Creates a new Layer with the same metadata and timesteps as the given
+     * Layer, but not attached to a dataset.  Used by the {@link DataReader}
+     * to merge the layers that are read from separate files without
+     * modifying the originals.
+     */
+    public LayerImpl(LayerImpl layer)
+    {
+        super(layer.id);
+        this.title = layer.title;
+        this.abstr = layer.abstr;
+        this.units = layer.units;
+        this.zUnits = layer.zUnits;
+        this.zValues = layer.zValues;
+        this.zPositive = layer.zPositive;
+        this.bbox = layer.bbox;
+        this.horizGrid = layer.horizGrid;
+        this.addTimesteps(layer);
+    }
+
     /**
      * Gets the human-readable Title of this Layer.  If the sysadmin has set a
      * title for this layer in the config file, this title will be returned.
@@ -73,7 +94,8 @@ public final class LayerImpl extends AbstractTimeAggregatedLayer
     @Override
     public String getTitle()
     {
-        Variable var = this.getVariable();
+        // Layers that have just been read are not yet attached to a dataset
+        Variable var = this.dataset == null ? null : this.getVariable();
         if (var != null && var.getTitle() != null) return var.getTitle();
         else return this.title;
     }
@@ -158,6 +180,19 @@ public final class LayerImpl extends AbstractTimeAggregatedLayer
     public List<Float> readHorizontalPoints(DateTime time, double elevation,
             Domain<HorizontalPosition> domain)
         throws InvalidDimensionValueException, IOException
+    {
+        return CollectionUtils.nullableListFromFloatArray(
+            this.readHorizontalPointsAsArray(time, elevation, domain));
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>This implementation makes a single call to the underlying DataReader.</p>
+     */
+    @Override
+    public float[] readHorizontalPointsAsArray(DateTime time, double elevation,
+            Domain<HorizontalPosition> domain)
+        throws InvalidDimensionValueException, IOException
     {
         int zIndex = this.findAndCheckElevationIndex(elevation);
         FilenameAndTimeIndex fti = this.findAndCheckFilenameAndTimeIndex(time);
@@ -165,10 +200,10 @@ public final class LayerImpl extends AbstractTimeAggregatedLayer
     }
     
     /** Reads a set of horizontal posiitions based upon t and z indices rather than natural values */
-    List<Float> readHorizontalDomain(FilenameAndTimeIndex fti, int zIndex, Domain<HorizontalPosition> domain)
+    float[] readHorizontalDomain(FilenameAndTimeIndex fti, int zIndex, Domain<HorizontalPosition> domain)
         throws IOException
     {
-        return this.dataReader.read(fti.filename, this, fti.tIndexInFile, zIndex, domain);
+        return this.dataReader.readAsArray(fti.filename, this, fti.tIndexInFile, zIndex, domain);
     }
 
     /**
@@ -204,9 +239,8 @@ public final class LayerImpl extends AbstractTimeAggregatedLayer
             }
             tIndexInFile = tIndex;
         } else {
-            TimestepInfo tInfo = this.timesteps.get(tIndex);
-            filename = tInfo.getFilename();
-            tIndexInFile = tInfo.getIndexInFile();
+            filename = this.timesteps.getFilename(tIndex);
+            tIndexInFile = this.timesteps.getIndexInFile(tIndex);
         }
         return new FilenameAndTimeIndex(filename, tIndexInFile);
     }
@@ -28,23 +28,33 @@
 package uk.ac.rdg.resc.ncwms.config;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import org.joda.time.DateTime;
 import org.springframework.web.servlet.ModelAndView;
+import uk.ac.rdg.resc.edal.cdm.DataReadingStrategy;
+import uk.ac.rdg.resc.edal.cdm.PixelMapCache;
+import uk.ac.rdg.resc.edal.cdm.ReadTimings;
 import uk.ac.rdg.resc.edal.coverage.grid.RegularGrid;
 import uk.ac.rdg.resc.ncwms.cache.TileCache;
 import uk.ac.rdg.resc.ncwms.cache.TileCacheKey;
+import uk.ac.rdg.resc.ncwms.config.datareader.DefaultDataReader;
 import uk.ac.rdg.resc.ncwms.controller.AbstractWmsController;
 import uk.ac.rdg.resc.ncwms.controller.RequestParams;
 import uk.ac.rdg.resc.ncwms.exceptions.InvalidDimensionValueException;
 import uk.ac.rdg.resc.ncwms.exceptions.LayerNotDefinedException;
 import uk.ac.rdg.resc.ncwms.exceptions.OperationNotSupportedException;
 import uk.ac.rdg.resc.ncwms.exceptions.WmsException;
+import uk.ac.rdg.resc.ncwms.metrics.Counter;
+import uk.ac.rdg.resc.ncwms.metrics.Gauge;
+import uk.ac.rdg.resc.ncwms.metrics.Stage;
+import uk.ac.rdg.resc.ncwms.metrics.StageRecorder;
 import uk.ac.rdg.resc.ncwms.usagelog.UsageLogEntry;
 import uk.ac.rdg.resc.ncwms.wms.Dataset;
 import uk.ac.rdg.resc.ncwms.wms.Layer;
@@ -63,6 +73,10 @@ public final class NcwmsController extends AbstractWmsController
     // Cache of recently-extracted data arrays: will be set by Spring
     private TileCache tileCache;
 
+    // Counts the lookups in the tile cache: created in init()
+    private Counter tileCacheHits;
+    private Counter tileCacheMisses;
+
     // Object that extracts layers from the config object, given a layer name
     private final LayerFactory LAYER_FACTORY = new LayerFactory()
     {
@@ -102,6 +116,30 @@ public final class NcwmsController extends AbstractWmsController
         // Create a NcwmsMetadataController for handling non-standard metadata request
         this.metadataController = new NcwmsMetadataController(this.getConfig(), LAYER_FACTORY);
         super.init();
+
+        this.tileCacheHits = this.metrics.getCounter("ncwms_tile_cache_hits_total",
+            "Number of data arrays found in the tile cache");
+        this.tileCacheMisses = this.metrics.getCounter("ncwms_tile_cache_misses_total",
+            "Number of data arrays not found in the tile cache");
+        this.metrics.registerGauge("ncwms_open_datasets",
+            "Number of NetCDF datasets open for reading data, idle or in use", new Gauge()
+        {
+            @Override
+            public double getValue()
+            {
+                return DefaultDataReader.getNumOpenDatasets();
+            }
+        });
+        this.metrics.registerGauge("ncwms_dataset_reload_queue_depth",
+            "Number of datasets waiting for a thread to load their metadata", new Gauge()
+        {
+            @Override
+            public double getValue()
+            {
+                DatasetReloader reloader = getConfig().getDatasetReloader();
+                return reloader == null ? 0 : reloader.getNumQueuedJobs();
+            }
+        });
     }
 
     @Override
@@ -114,11 +152,13 @@ public final class NcwmsController extends AbstractWmsController
     {
         if (request.equals("GetCapabilities"))
         {
-            return this.getCapabilities(params, httpServletRequest, usageLogEntry);
+            return this.getCapabilities(params, httpServletRequest,
+                httpServletResponse, usageLogEntry);
         }
         else if (request.equals("GetMap"))
         {
-            return getMap(params, LAYER_FACTORY, httpServletResponse, usageLogEntry);
+            return getMap(params, LAYER_FACTORY, httpServletRequest,
+                httpServletResponse, usageLogEntry);
         }
         else if (request.equals("GetFeatureInfo"))
         {
@@ -176,11 +216,12 @@ public final class NcwmsController extends AbstractWmsController
      * Performs the GetCapabilities operation.
      */
     private ModelAndView getCapabilities(RequestParams params,
-            HttpServletRequest httpServletRequest, UsageLogEntry usageLogEntry)
-            throws WmsException, IOException
+            HttpServletRequest httpServletRequest,
+            HttpServletResponse httpServletResponse, UsageLogEntry usageLogEntry)
+            throws Exception
     {
-        DateTime lastUpdate;
         Collection<? extends Dataset> datasets;
+        boolean includesAllDatasets;
 
         // The DATASET parameter is an optional parameter that allows a
         // Capabilities document to be generated for a single dataset only
@@ -205,7 +246,7 @@ public final class NcwmsController extends AbstractWmsController
             }
             // The last update time for the Capabilities doc is the last time
             // any of the datasets were updated
-            lastUpdate = this.getConfig().getLastUpdateTime();
+            includesAllDatasets = true;
         }
         else
         {
@@ -223,11 +264,11 @@ public final class NcwmsController extends AbstractWmsController
             datasets = Arrays.asList(ds);
             // The last update time for the Capabilities doc is the last time
             // this particular dataset was updated
-            lastUpdate = ds.getLastUpdateTime();
+            includesAllDatasets = false;
         }
 
-        return this.getCapabilities(datasets, lastUpdate, params,
-                httpServletRequest, usageLogEntry);
+        return this.getCapabilities(datasets, includesAllDatasets, params,
+                httpServletRequest, httpServletResponse, usageLogEntry);
     }
 
     /**
@@ -236,19 +277,19 @@ public final class NcwmsController extends AbstractWmsController
      * speeding up repeat requests.</p>
      */
     @Override
-    protected List<Float> readDataGrid(ScalarLayer layer, DateTime dateTime,
-        double elevation, RegularGrid grid, UsageLogEntry usageLogEntry)
+    protected float[] readDataGrid(ScalarLayer layer, DateTime dateTime,
+        double elevation, final RegularGrid grid, final UsageLogEntry usageLogEntry)
         throws InvalidDimensionValueException, IOException
     {
         // We know that this Config object only returns LayerImpl objects
-        LayerImpl layerImpl = (LayerImpl)layer;
+        final LayerImpl layerImpl = (LayerImpl)layer;
         // Find which file contains this time, and which index it is within the file
-        LayerImpl.FilenameAndTimeIndex fti = layerImpl.findAndCheckFilenameAndTimeIndex(dateTime);
+        final LayerImpl.FilenameAndTimeIndex fti = layerImpl.findAndCheckFilenameAndTimeIndex(dateTime);
         // Find the z index within the file
-        int zIndex = layerImpl.findAndCheckElevationIndex(elevation);
+        final int zIndex = layerImpl.findAndCheckElevationIndex(elevation);
 
         // Create a key for searching the cache
-        TileCacheKey key = new TileCacheKey(
+        final TileCacheKey key = new TileCacheKey(
             fti.filename,
             layer,
             grid,
@@ -256,10 +297,15 @@ public final class NcwmsController extends AbstractWmsController
             zIndex
         );
 
-        List<Float> data = null;
+        float[] data = null;
         // Search the cache.  Returns null if key is not found
-        boolean cacheEnabled = this.getConfig().getCache().isEnabled();
-        if (cacheEnabled) data = this.tileCache.get(key);
+        final boolean cacheEnabled = this.getConfig().getCache().isEnabled();
+        if (cacheEnabled)
+        {
+            data = this.tileCache.getAsArray(key);
+            if (data == null) this.tileCacheMisses.increment();
+            else this.tileCacheHits.increment();
+        }
 
         // Record whether or not we got a hit in the cache
         usageLogEntry.setUsedCache(data != null);
@@ -267,15 +313,82 @@ public final class NcwmsController extends AbstractWmsController
         if (data == null)
         {
             // We didn't get any data from the cache, so we have to read from
-            // the source data.
-            data = layerImpl.readHorizontalDomain(fti, zIndex, grid);
-            // Put the data in the tile cache
-            if (cacheEnabled) this.tileCache.put(key, data);
+            // the source data.  If another thread is already reading exactly
+            // the same data we wait for its result instead.
+            final boolean[] readByThisThread = new boolean[1];
+            try
+            {
+                data = this.tileCache.getReadCoalescer().execute(key, new Callable<float[]>() {
+                    @Override public float[] call() throws IOException {
+                        readByThisThread[0] = true;
+                        return readDataGrid(layerImpl, fti, zIndex, grid, key,
+                            cacheEnabled, usageLogEntry);
+                    }
+                });
+            }
+            catch (IOException ioe)
+            {
+                throw ioe;
+            }
+            catch (RuntimeException re)
+            {
+                throw re;
+            }
+            catch (InterruptedException ie)
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for data");
+            }
+            catch (Exception e)
+            {
+                // Shouldn't happen: our Callable only throws IOExceptions
+                throw new IllegalStateException(e);
+            }
+            // If another thread read the data, it's as good as a cache hit
+            if (!readByThisThread[0]) usageLogEntry.setUsedCache(true);
         }
 
         return data;
     }
 
+    /**
+     * Reads data from the source, records how the data were read in the usage
+     * log and the metrics, and puts the data in the tile cache.
+     */
+    private float[] readDataGrid(LayerImpl layerImpl, LayerImpl.FilenameAndTimeIndex fti,
+        int zIndex, RegularGrid grid, TileCacheKey key, boolean cacheEnabled,
+        UsageLogEntry usageLogEntry) throws IOException
+    {
+        DataReadingStrategy.clearLastUsed();
+        PixelMapCache.clearLastLookup();
+        ReadTimings.clear();
+        StageRecorder stages = this.metrics.getStageRecorder(layerImpl.getDataset().getId(),
+            layerImpl.getId(), usageLogEntry.getOutputFormat());
+        // Zoomed-out images are read from the overviews of the data if possible
+        OverviewBuilder overviews = this.getConfig().getOverviewBuilder();
+        float[] data = null;
+        if (overviews != null)
+        {
+            long start = System.nanoTime();
+            data = overviews.read(layerImpl, fti, zIndex, grid);
+            if (data != null) stages.record(Stage.IO_READ, "OVERVIEW", System.nanoTime() - start);
+        }
+        if (data == null) data = layerImpl.readHorizontalDomain(fti, zIndex, grid);
+        // Record the strategy that was used to read the data
+        DataReadingStrategy strategy = DataReadingStrategy.getLastUsed();
+        if (strategy != null)
+        {
+            usageLogEntry.setDataReadingStrategy(strategy);
+            stages.recordReadTimings(ReadTimings.get(), strategy.name());
+        }
+        // Record whether the PixelMap for the read had to be built
+        PixelMapCache.Lookup lookup = PixelMapCache.getLastLookup();
+        if (lookup != null) usageLogEntry.addPixelMapLookup(lookup);
+        // Put the data in the tile cache
+        if (cacheEnabled) this.tileCache.put(key, data, layerImpl.getApproxValueRange());
+        return data;
+    }
+
     /**
      * Called by Spring to shut down the controller.  This shuts down the tile
      * cache.
@@ -283,6 +396,7 @@ public final class NcwmsController extends AbstractWmsController
     @Override
     public void shutdown()
     {
+        super.shutdown();
         this.tileCache.shutdown();
     }
 
@@ -0,0 +1,498 @@
+/*
+ * Copyright (c) 2010 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.config;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.ac.rdg.resc.edal.cdm.CdmUtils;
+import uk.ac.rdg.resc.edal.coverage.grid.HorizontalGrid;
+import uk.ac.rdg.resc.edal.coverage.grid.RegularAxis;
+import uk.ac.rdg.resc.edal.coverage.grid.RegularGrid;
+import uk.ac.rdg.resc.edal.coverage.grid.impl.AbstractReferenceableAxis;
+import uk.ac.rdg.resc.edal.coverage.grid.impl.RegularAxisImpl;
+import uk.ac.rdg.resc.edal.coverage.grid.impl.RegularGridImpl;
+import uk.ac.rdg.resc.ncwms.cache.OverviewStore;
+import uk.ac.rdg.resc.ncwms.exceptions.InvalidDimensionValueException;
+import uk.ac.rdg.resc.ncwms.util.WmsUtils;
+import uk.ac.rdg.resc.ncwms.wms.Layer;
+
+/**
+ * <p>Builds reduced-resolution copies ("overviews") of the data in datasets
+ * that {@link Dataset#isBuildOverviews() ask for them}, and reads from them
+ * when an image is requested at a resolution that is much coarser than that
+ * of the source data.  Overview level <i>n</i> is a block average of the
+ * source data over blocks of 2<sup><i>n</i></sup> by 2<sup><i>n</i></sup>
+ * grid points, so reading a whole-globe image from a level-3 overview touches
+ * 64 times fewer points than reading it from the source data.</p>
+ * <p>Overviews are built in a background thread after the metadata of a
+ * dataset have been (re)loaded.  Building is incremental: timesteps whose
+ * overviews are already in the {@link OverviewStore} are skipped, so only new
+ * timesteps (or timesteps in files that have since been modified) are read
+ * when a dataset is updated.  The most recent timesteps are built first, and
+ * building stops when the store is full.</p>
+ * <p>Overviews are only built for layers on {@link RegularGrid}s, and only for
+ * the {@link Layer#getDefaultElevationValue() default elevation}, since this
+ * is where zoomed-out images are requested in practice.</p>
+ * @author Jon
+ */
+final class OverviewBuilder
+{
+    private static final Logger logger = LoggerFactory.getLogger(OverviewBuilder.class);
+
+    /** The coarsest overview level, which averages blocks of 64x64 points */
+    static final int MAX_LEVEL = 6;
+
+    /** Overviews are not built if they would be smaller than this in either direction */
+    private static final int MIN_OVERVIEW_SIZE = 32;
+
+    /** The number of rows of source data that are read in one go (must be even) */
+    private static final int BAND_HEIGHT = 64;
+
+    private final OverviewStore store;
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(
+        new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "overview-builder");
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            }
+        });
+
+    /** The ids of the datasets that are waiting to be built */
+    private final Set<String> pendingDatasets =
+        Collections.synchronizedSet(new HashSet<String>());
+
+    /** Maps source grids to the grids of their overviews, so that PixelMaps
+     * can be cached for the overviews */
+    private final Map<RegularGrid, RegularGrid[]> overviewGrids =
+        new WeakHashMap<RegularGrid, RegularGrid[]>();
+
+    OverviewBuilder(OverviewStore store)
+    {
+        this.store = store;
+    }
+
+    OverviewStore getStore()
+    {
+        return this.store;
+    }
+
+    /**
+     * Schedules the building of any missing overviews for the given dataset,
+     * unless a build of the dataset is already waiting.
+     */
+    void scheduleBuild(final Dataset ds)
+    {
+        if (!this.isEnabled(ds)) return;
+        if (!this.pendingDatasets.add(ds.getId())) return;
+        this.executor.execute(new Runnable() {
+            @Override public void run() {
+                // Any changes to the dataset from now on will need another build
+                pendingDatasets.remove(ds.getId());
+                try
+                {
+                    build(ds);
+                }
+                catch (Exception e)
+                {
+                    logger.error("Error building overviews for dataset " + ds.getId(), e);
+                }
+            }
+        });
+    }
+
+    private boolean isEnabled(Dataset ds)
+    {
+        return ds.isBuildOverviews() && this.store.getMaxSizeBytes() > 0;
+    }
+
+    /**
+     * Builds any missing overviews for the given dataset in the calling thread,
+     * then deletes the overviews of timesteps that no longer exist.
+     */
+    void build(Dataset ds) throws IOException
+    {
+        if (!this.isEnabled(ds) || !ds.isReady()) return;
+        long start = System.currentTimeMillis();
+
+        // Find the timesteps of each layer, most recent first, then interleave
+        // them so that the most recent timesteps of all layers are built first
+        List<List<DateTime>> times = new ArrayList<List<DateTime>>();
+        List<LayerImpl> layers = new ArrayList<LayerImpl>();
+        int maxNumTimes = 0;
+        for (Layer layer : ds.getLayers())
+        {
+            if (!(layer instanceof LayerImpl)) continue;
+            if (this.getOverviewGrids(layer.getHorizontalGrid()).length == 0) continue;
+            List<DateTime> layerTimes = new ArrayList<DateTime>(layer.getTimeValues());
+            // A null time represents the single timestep of a layer without
+            // a time axis
+            if (layerTimes.isEmpty()) layerTimes.add(null);
+            Collections.reverse(layerTimes);
+            layers.add((LayerImpl)layer);
+            times.add(layerTimes);
+            maxNumTimes = Math.max(maxNumTimes, layerTimes.size());
+        }
+
+        Set<String> keys = new HashSet<String>();
+        int numBuilt = 0;
+        boolean full = false;
+        for (int t = 0; t < maxNumTimes; t++)
+        {
+            for (int i = 0; i < layers.size(); i++)
+            {
+                if (t >= times.get(i).size()) continue;
+                LayerImpl layer = layers.get(i);
+                LayerImpl.FilenameAndTimeIndex fti;
+                int zIndex;
+                try
+                {
+                    fti = layer.findAndCheckFilenameAndTimeIndex(times.get(i).get(t));
+                    zIndex = layer.findAndCheckElevationIndex(layer.getDefaultElevationValue());
+                }
+                catch (InvalidDimensionValueException idve)
+                {
+                    // Shouldn't happen: we're using the layer's own values
+                    continue;
+                }
+                RegularGrid[] grids = this.getOverviewGrids(layer.getHorizontalGrid());
+                String keyBase = getKeyBase(layer, fti, zIndex);
+                List<String> levelKeys = new ArrayList<String>();
+                boolean exists = true;
+                int numValues = 0;
+                for (int level = 1; level <= grids.length; level++)
+                {
+                    String key = keyBase + "-L" + level;
+                    levelKeys.add(key);
+                    exists &= this.store.contains(key);
+                    numValues += getSize(grids[level - 1]);
+                }
+                if (!exists)
+                {
+                    // We don't evict existing overviews to make room for
+                    // new ones: older timesteps are dropped instead
+                    if (full || !this.store.hasRoomFor(numValues)) { full = true; continue; }
+                    this.buildOverviews(layer, fti, zIndex, grids, levelKeys);
+                    numBuilt++;
+                }
+                keys.addAll(levelKeys);
+            }
+        }
+
+        // Remove the overviews of timesteps that have gone away or whose
+        // files have been modified
+        this.store.retainOnly(getGroup(ds), keys);
+        logger.debug("Built {} sets of overviews for dataset {} in {} ms",
+            new Object[]{numBuilt, ds.getId(), System.currentTimeMillis() - start});
+        if (full)
+        {
+            logger.info("Overview store is full: not all timesteps of dataset {}"
+                + " have overviews", ds.getId());
+        }
+    }
+
+    /**
+     * Builds and stores all the overview levels of a single timestep.  Level 1
+     * is built from bands of the source data; each subsequent level is built
+     * from the level below.
+     */
+    private void buildOverviews(LayerImpl layer, LayerImpl.FilenameAndTimeIndex fti,
+        int zIndex, RegularGrid[] grids, List<String> levelKeys) throws IOException
+    {
+        RegularGrid sourceGrid = (RegularGrid)layer.getHorizontalGrid();
+        RegularAxis xAxis = sourceGrid.getXAxis();
+        RegularAxis yAxis = sourceGrid.getYAxis();
+        int width = xAxis.getSize();
+        int height = yAxis.getSize();
+
+        int level1Width = getWidth(grids[0]);
+        float[] data = new float[getSize(grids[0])];
+        // Each band is read only once, so its PixelMap and chunks would only
+        // push the entries that serve clients out of the shared caches
+        CdmUtils.setUseSharedCaches(false);
+        try
+        {
+            for (int j = 0; j < height; j += BAND_HEIGHT)
+            {
+                int bandHeight = Math.min(BAND_HEIGHT, height - j);
+                RegularGrid band = new RegularGridImpl(xAxis,
+                    createAxis(yAxis, yAxis.getCoordinateValue(j), yAxis.getCoordinateSpacing(), bandHeight),
+                    sourceGrid.getCoordinateReferenceSystem());
+                float[] bandData = downsample(layer.readHorizontalDomain(fti, zIndex, band),
+                    width, bandHeight);
+                System.arraycopy(bandData, 0, data, (j / 2) * level1Width, bandData.length);
+            }
+        }
+        finally
+        {
+            CdmUtils.setUseSharedCaches(true);
+        }
+        this.store.put(levelKeys.get(0), level1Width, getHeight(grids[0]), data);
+
+        for (int level = 2; level <= grids.length; level++)
+        {
+            data = downsample(data, getWidth(grids[level - 2]), getHeight(grids[level - 2]));
+            this.store.put(levelKeys.get(level - 1), getWidth(grids[level - 1]),
+                getHeight(grids[level - 1]), data);
+        }
+    }
+
+    /**
+     * Reads data for an image from the coarsest overview whose resolution is
+     * still at least as fine as that of the image.
+     * @return the data, or null if there is no suitable overview, in which
+     * case the data must be read from the source
+     */
+    float[] read(LayerImpl layer, LayerImpl.FilenameAndTimeIndex fti, int zIndex,
+        RegularGrid targetGrid) throws IOException
+    {
+        if (!this.isEnabled(layer.getDataset())) return null;
+        RegularGrid[] grids = this.getOverviewGrids(layer.getHorizontalGrid());
+        if (grids.length == 0) return null;
+        // The PixelMap that is used for this estimate is cached, so it will be
+        // reused for the read from the source data if we don't find an overview
+        double pointsPerPixel = CdmUtils.getSourcePointsPerPixel(
+            layer.getHorizontalGrid(), targetGrid);
+        if (pointsPerPixel < 2.0) return null;
+        // The tolerance ensures that exact powers of two are not rounded down
+        int level = Math.min(grids.length,
+            (int)Math.floor(Math.log(pointsPerPixel) / Math.log(2.0) + 1e-6));
+
+        OverviewStore.Overview overview =
+            this.store.get(getKeyBase(layer, fti, zIndex) + "-L" + level);
+        if (overview == null) return null;
+        return CdmUtils.readHorizontalPointsAsArray(grids[level - 1],
+            overview.getValues(), targetGrid);
+    }
+
+    /**
+     * Gets the grids of the overviews of the given source grid, in order of
+     * increasing coarseness, or an empty array if overviews cannot be built
+     * for this grid.
+     */
+    private RegularGrid[] getOverviewGrids(HorizontalGrid sourceGrid)
+    {
+        if (!(sourceGrid instanceof RegularGrid)) return new RegularGrid[0];
+        RegularGrid grid = (RegularGrid)sourceGrid;
+        synchronized(this.overviewGrids)
+        {
+            RegularGrid[] grids = this.overviewGrids.get(grid);
+            if (grids == null)
+            {
+                grids = createOverviewGrids(grid);
+                this.overviewGrids.put(grid, grids);
+            }
+            return grids;
+        }
+    }
+
+    static RegularGrid[] createOverviewGrids(RegularGrid sourceGrid)
+    {
+        List<RegularGrid> grids = new ArrayList<RegularGrid>();
+        RegularAxis xAxis = sourceGrid.getXAxis();
+        RegularAxis yAxis = sourceGrid.getYAxis();
+        for (int level = 1; level <= MAX_LEVEL; level++)
+        {
+            int factor = 1 << level;
+            int width = (xAxis.getSize() + factor - 1) / factor;
+            int height = (yAxis.getSize() + factor - 1) / factor;
+            if (width < MIN_OVERVIEW_SIZE || height < MIN_OVERVIEW_SIZE) break;
+            grids.add(new RegularGridImpl(
+                coarsen(xAxis, factor, width),
+                coarsen(yAxis, factor, height),
+                sourceGrid.getCoordinateReferenceSystem()));
+        }
+        return grids.toArray(new RegularGrid[grids.size()]);
+    }
+
+    /**
+     * Creates an axis in which each point is the centre of a block of
+     * {@code factor} points of the given axis.
+     */
+    private static RegularAxis coarsen(RegularAxis axis, int factor, int size)
+    {
+        double spacing = axis.getCoordinateSpacing();
+        return createAxis(axis, axis.getCoordinateValue(0) + spacing * (factor - 1) / 2.0,
+            spacing * factor, size);
+    }
+
+    /** Creates an axis with the same name and type as the given axis */
+    private static RegularAxis createAxis(RegularAxis axis, double firstValue,
+        double spacing, int size)
+    {
+        boolean isLongitude = axis instanceof AbstractReferenceableAxis &&
+            ((AbstractReferenceableAxis)axis).isLongitude();
+        if (axis.getCoordinateSystemAxis() != null)
+        {
+            return new RegularAxisImpl(axis.getCoordinateSystemAxis(), firstValue,
+                spacing, size, isLongitude);
+        }
+        return new RegularAxisImpl(axis.getName(), firstValue, spacing, size, isLongitude);
+    }
+
+    /**
+     * Averages the given grid of data over blocks of 2x2 points, ignoring
+     * NaNs.  If the width or height is odd, the last column or row of the
+     * result is the average of the points that are present.
+     * @param data The data in row-major order, with the x index varying fastest
+     */
+    static float[] downsample(float[] data, int width, int height)
+    {
+        int newWidth = (width + 1) / 2;
+        int newHeight = (height + 1) / 2;
+        float[] result = new float[newWidth * newHeight];
+        for (int j = 0; j < newHeight; j++)
+        {
+            for (int i = 0; i < newWidth; i++)
+            {
+                float sum = 0.0f;
+                int n = 0;
+                for (int jj = 2 * j; jj < Math.min(2 * j + 2, height); jj++)
+                {
+                    for (int ii = 2 * i; ii < Math.min(2 * i + 2, width); ii++)
+                    {
+                        float val = data[jj * width + ii];
+                        if (!Float.isNaN(val))
+                        {
+                            sum += val;
+                            n++;
+                        }
+                    }
+                }
+                result[j * newWidth + i] = n == 0 ? Float.NaN : sum / n;
+            }
+        }
+        return result;
+    }
+
+    private static int getWidth(RegularGrid grid)
+    {
+        return grid.getXAxis().getSize();
+    }
+
+    private static int getHeight(RegularGrid grid)
+    {
+        return grid.getYAxis().getSize();
+    }
+
+    private static int getSize(RegularGrid grid)
+    {
+        return getWidth(grid) * getHeight(grid);
+    }
+
+    /** Gets the name of the group of overviews in the store for the given dataset */
+    private static String getGroup(Dataset ds)
+    {
+        return ds.getId().replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+
+    /**
+     * Gets the start of the keys of the overviews of the given timestep.
+     * @see #getKeyBase(java.lang.String, java.lang.String, java.lang.String,
+     * int, int, org.joda.time.DateTime)
+     */
+    private static String getKeyBase(LayerImpl layer, LayerImpl.FilenameAndTimeIndex fti,
+        int zIndex)
+    {
+        return getKeyBase(getGroup(layer.getDataset()), layer.getId(), fti.filename,
+            fti.tIndexInFile, zIndex, layer.getDataset().getLastUpdateTime());
+    }
+
+    /**
+     * Gets the start of the keys of the overviews of a timestep, so that
+     * overviews are rebuilt if the source data change.  For local files this
+     * includes the modification time of the file.  The contents of OPeNDAP
+     * datasets and NcML aggregations can change without their location
+     * changing, so for these it includes the time at which the dataset was
+     * last updated, as for the cache of source chunks.
+     * @param group The group of the overviews of the dataset in the store
+     * @param datasetLastUpdate The time at which the dataset was last updated,
+     * or null if it has not been loaded
+     */
+    static String getKeyBase(String group, String layerId, String filename,
+        int tIndexInFile, int zIndex, DateTime datasetLastUpdate)
+    {
+        long lastModified = WmsUtils.isOpendapLocation(filename)
+            ? 0 : new File(filename).lastModified();
+        String id = layerId + "\n" + filename + "\n" + lastModified
+            + "\n" + tIndexInFile + "\n" + zIndex;
+        // Added to the end so that the keys of overviews of local files
+        // are unchanged
+        if (datasetLastUpdate != null && (WmsUtils.isOpendapLocation(filename) ||
+            WmsUtils.isNcmlAggregation(filename)))
+        {
+            id += "\n" + datasetLastUpdate.getMillis();
+        }
+        try
+        {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(id.getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder(group).append('/');
+            for (byte b : digest)
+            {
+                sb.append(Integer.toHexString((b & 0xff) | 0x100).substring(1));
+            }
+            return sb.toString();
+        }
+        catch (NoSuchAlgorithmException nsae)
+        {
+            // Every Java platform supports MD5
+            throw new AssertionError(nsae);
+        }
+        catch (UnsupportedEncodingException uee)
+        {
+            throw new AssertionError(uee);
+        }
+    }
+
+    /** Stops the background thread and closes the store */
+    void shutdown()
+    {
+        this.executor.shutdownNow();
+        this.store.close();
+    }
+}
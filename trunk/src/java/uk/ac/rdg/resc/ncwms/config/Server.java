@@ -50,6 +50,12 @@ public class Server
     private int maxImageWidth = 1024;
     @Element(name="maxImageHeight", required=false)
     private int maxImageHeight = 1024;
+    @Element(name="maxDataExtractionThreads", required=false)
+    private int maxDataExtractionThreads = Runtime.getRuntime().availableProcessors();
+    @Element(name="maxParallelReadsPerRequest", required=false)
+    private int maxParallelReadsPerRequest = 4;
+    @Element(name="metadataLoaderThreads", required=false)
+    private int metadataLoaderThreads = 4;
     @Element(name="abstract", required=false)
     private String abstr = " "; // "abstract" is a reserved word
     @Element(name="keywords", required=false)
@@ -109,6 +115,47 @@ public class Server
         this.maxImageHeight = maxImageHeight;
     }
 
+    /**
+     * @return the number of threads in the server-wide pool that is used to
+     * extract data for GetMap requests
+     */
+    public int getMaxDataExtractionThreads()
+    {
+        return maxDataExtractionThreads;
+    }
+
+    public void setMaxDataExtractionThreads(int maxDataExtractionThreads)
+    {
+        this.maxDataExtractionThreads = Math.max(1, maxDataExtractionThreads);
+    }
+
+    /**
+     * @return the number of threads that load the metadata of datasets
+     */
+    public int getMetadataLoaderThreads()
+    {
+        return metadataLoaderThreads;
+    }
+
+    public void setMetadataLoaderThreads(int metadataLoaderThreads)
+    {
+        this.metadataLoaderThreads = Math.max(1, metadataLoaderThreads);
+    }
+
+    /**
+     * @return the maximum number of data grids that a single GetMap request
+     * may read in parallel
+     */
+    public int getMaxParallelReadsPerRequest()
+    {
+        return maxParallelReadsPerRequest;
+    }
+
+    public void setMaxParallelReadsPerRequest(int maxParallelReadsPerRequest)
+    {
+        this.maxParallelReadsPerRequest = Math.max(1, maxParallelReadsPerRequest);
+    }
+
     public String getAbstract()
     {
         return abstr;
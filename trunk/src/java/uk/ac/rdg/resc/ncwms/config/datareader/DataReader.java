@@ -42,6 +42,7 @@ import org.apache.oro.io.GlobFilenameFilter;
 import uk.ac.rdg.resc.edal.coverage.domain.Domain;
 import uk.ac.rdg.resc.ncwms.config.LayerImpl;
 import uk.ac.rdg.resc.edal.geometry.HorizontalPosition;
+import uk.ac.rdg.resc.edal.util.CollectionUtils;
 import uk.ac.rdg.resc.ncwms.util.WmsUtils;
 import uk.ac.rdg.resc.ncwms.wms.Layer;
 
@@ -113,6 +114,28 @@ public abstract class DataReader
         int tIndex, int zIndex, Domain<HorizontalPosition> domain)
         throws IOException;
 
+    /**
+     * Reads data from a file, as {@link #read(java.lang.String,
+     * uk.ac.rdg.resc.ncwms.wms.Layer, int, int,
+     * uk.ac.rdg.resc.edal.coverage.domain.Domain) read()}, but returns an
+     * array of values in which missing values are represented by NaNs.  This
+     * avoids creating an object for every data value.
+     * <p>This default implementation simply converts the result of
+     * {@link #read(java.lang.String, uk.ac.rdg.resc.ncwms.wms.Layer, int, int,
+     * uk.ac.rdg.resc.edal.coverage.domain.Domain) read()}: subclasses
+     * should override this if they can read data directly into an array.</p>
+     * @return an array of floating-point data values, one for each point in
+     * the {@code domain}, in the same order.
+     * @throws IOException if an input/output exception occurred when reading data
+     */
+    public float[] readAsArray(String filename, Layer layer,
+        int tIndex, int zIndex, Domain<HorizontalPosition> domain)
+        throws IOException
+    {
+        return CollectionUtils.floatArrayFromList(
+            this.read(filename, layer, tIndex, zIndex, domain));
+    }
+
     /**
      * <p>Reads a timeseries of data from a file from a single xyz point.  This
      * method knows nothing about aggregation: it simply reads data from the
@@ -163,10 +186,40 @@ public abstract class DataReader
     public Map<String, LayerImpl> getAllLayers(final String location)
         throws FileNotFoundException, IOException
     {
-        Map<String, LayerImpl> layers = new LinkedHashMap<String, LayerImpl>();
+        return this.getAllLayers(location, new FileSnapshots());
+    }
+
+    /**
+     * Reads and returns the metadata for all the layers (i.e. variables) at the
+     * given location, only reading the files that have been added or modified
+     * since the given snapshots were made.  A file is considered to be
+     * modified if its last-modified time or size has changed.  NcML
+     * aggregations and OPeNDAP locations are always read, as we cannot tell
+     * whether they have changed.
+     * <p>The snapshots are updated to reflect the current set of files and
+     * to record the changes, unless an exception is thrown, in which case
+     * they are unchanged.  The returned layers are new objects, which are
+     * assembled from the snapshots: the layers in the snapshots themselves are
+     * never modified.</p>
+     * @param location Location of the files.  This can be a glob expression.
+     * @param snapshots The metadata read from each file in previous calls to
+     * this method
+     * @return Map of layer IDs mapped to {@link LayerImpl} objects
+     * @throws FileNotFoundException if the location does not match
+     * any existing files on the server
+     * @throws IOException if there was an error reading from the data source
+     */
+    public Map<String, LayerImpl> getAllLayers(final String location,
+        FileSnapshots snapshots) throws FileNotFoundException, IOException
+    {
+        Map<String, FileSnapshots.Snapshot> newSnapshots =
+            new LinkedHashMap<String, FileSnapshots.Snapshot>();
+        List<String> added = new ArrayList<String>();
+        List<String> modified = new ArrayList<String>();
         if (WmsUtils.isOpendapLocation(location))
         {
-            this.findAndUpdateLayers(location, layers);
+            newSnapshots.put(location, this.readSnapshot(location, -1, -1));
+            (snapshots.get(location) == null ? added : modified).add(location);
         }
         else
         {
@@ -178,13 +231,42 @@ public abstract class DataReader
             }
             for (File file : files)
             {
-                // Read the metadata from the file and update the Map.
-                // TODO: only do this if the file's last modified date has changed?
-                // This would require us to keep the previous metadata...
-                this.findAndUpdateLayers(file.getPath(), layers);
+                String path = file.getPath();
+                long lastModified = -1;
+                long size = -1;
+                if (!WmsUtils.isNcmlAggregation(path))
+                {
+                    lastModified = file.lastModified();
+                    size = file.length();
+                }
+                FileSnapshots.Snapshot snapshot = snapshots.get(path);
+                if (snapshot != null && snapshot.isCurrent(lastModified, size))
+                {
+                    // We don't need to read this file again
+                    newSnapshots.put(path, snapshot);
+                }
+                else
+                {
+                    newSnapshots.put(path, this.readSnapshot(path, lastModified, size));
+                    (snapshot == null ? added : modified).add(path);
+                }
             }
         }
-        return layers;
+        snapshots.update(newSnapshots, added, modified);
+        // Now merge the layers from all the files
+        return snapshots.getLayers();
+    }
+
+    /**
+     * Reads the metadata from a single file, NcML aggregation or OPeNDAP
+     * location.
+     */
+    private FileSnapshots.Snapshot readSnapshot(String location, long lastModified,
+        long size) throws IOException
+    {
+        Map<String, LayerImpl> layers = new LinkedHashMap<String, LayerImpl>();
+        this.findAndUpdateLayers(location, layers);
+        return new FileSnapshots.Snapshot(lastModified, size, layers);
     }
     
     /**
@@ -210,6 +292,32 @@ public abstract class DataReader
      * @author Mike Grant, Plymouth Marine Labs; Jon Blower
      */
     public static List<File> expandGlobExpression(String globExpression)
+    {
+        return expandGlobExpression(globExpression, null);
+    }
+
+    /**
+     * Finds all the directories that are searched when expanding the given glob
+     * expression.  A file that matches the glob expression cannot be added,
+     * removed or renamed without changing the last-modified time of at least
+     * one of these directories.
+     * @throws IllegalArgumentException if the glob expression does not represent
+     * an absolute path.
+     * @see #expandGlobExpression(java.lang.String)
+     */
+    public static List<File> findGlobDirectories(String globExpression)
+    {
+        List<File> directories = new ArrayList<File>();
+        expandGlobExpression(globExpression, directories);
+        return directories;
+    }
+
+    /**
+     * Expands a glob expression, adding the directories that are searched to
+     * the given list, unless it is null.
+     */
+    private static List<File> expandGlobExpression(String globExpression,
+        List<File> directories)
     {
         // Check that the glob expression represents an absolute path.  Relative
         // paths would cause unpredictable and platform-dependent behaviour so
@@ -252,6 +360,7 @@ public abstract class DataReader
             {
                 if (dir.isDirectory())
                 {
+                    if (directories != null) directories.add(dir);
                     // Workaround for automounters that don't make filesystems
                     // appear unless they're poked
                     // do a listing on searchpath/pathcomponent whether or not
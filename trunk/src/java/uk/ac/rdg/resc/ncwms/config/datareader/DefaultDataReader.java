@@ -43,10 +43,13 @@ import ucar.nc2.dt.GridCoordSystem;
 import ucar.nc2.dt.GridDataset;
 import ucar.nc2.dt.GridDataset.Gridset;
 import ucar.nc2.dt.GridDatatype;
+import ucar.nc2.util.cache.FileCache;
 import uk.ac.rdg.resc.edal.coverage.domain.Domain;
 import uk.ac.rdg.resc.edal.coverage.grid.HorizontalGrid;
 import uk.ac.rdg.resc.edal.cdm.CdmUtils;
+import uk.ac.rdg.resc.edal.cdm.GridDatasetCache;
 import uk.ac.rdg.resc.edal.geometry.HorizontalPosition;
+import uk.ac.rdg.resc.edal.util.CollectionUtils;
 import uk.ac.rdg.resc.ncwms.config.LayerImpl;
 import uk.ac.rdg.resc.ncwms.util.WmsUtils;
 import uk.ac.rdg.resc.ncwms.wms.Layer;
@@ -60,6 +63,13 @@ public class DefaultDataReader extends DataReader
 {
     private static final Logger logger = LoggerFactory.getLogger(DefaultDataReader.class);
 
+    /**
+     * Cache of open datasets and their metadata, shared by all instances.
+     * The limit on the number of open datasets is set from the
+     * {@link uk.ac.rdg.resc.ncwms.config.Cache cache configuration}.
+     */
+    private static final GridDatasetCache DATASET_CACHE = new GridDatasetCache(50);
+
     /**
      * Reads data from a NetCDF file.  Reads data for a single timestep only.
      * This method knows
@@ -81,14 +91,40 @@ public class DefaultDataReader extends DataReader
     public List<Float> read(String filename, Layer layer, int tIndex, int zIndex,
         Domain<HorizontalPosition> domain) throws IOException
     {
-        NetcdfDataset nc = null;
+        return CollectionUtils.nullableListFromFloatArray(
+            this.readAsArray(filename, layer, tIndex, zIndex, domain));
+    }
+
+    /**
+     * Reads data from a NetCDF file into an array, in which missing values
+     * are represented by NaNs.
+     * @see #read(java.lang.String, uk.ac.rdg.resc.ncwms.wms.Layer, int, int,
+     * uk.ac.rdg.resc.edal.coverage.domain.Domain)
+     */
+    @Override
+    public float[] readAsArray(String filename, Layer layer, int tIndex, int zIndex,
+        Domain<HorizontalPosition> domain) throws IOException
+    {
+        GridDatasetCache.Entry ds = null;
         try
         {
-            // Open the dataset, using the cache for NcML aggregations
-            nc = openDataset(filename);
+            // Open the dataset, using the caches if possible
+            ds = openDataset(filename);
+            // OPeNDAP datasets and NcML aggregations can change without their
+            // location changing, so chunks of data read from them are tied to
+            // the last update of the dataset (as in the TileCacheKey)
+            long datasetLastModified = 0;
+            DateTime lastUpdate = layer.getDataset().getLastUpdateTime();
+            if (lastUpdate != null && (WmsUtils.isOpendapLocation(filename) ||
+                WmsUtils.isNcmlAggregation(filename)))
+            {
+                datasetLastModified = lastUpdate.getMillis();
+            }
             // Read and return the data
-            return CdmUtils.readHorizontalPoints(
-                nc,
+            return CdmUtils.readHorizontalPointsAsArray(
+                ds,
+                layer.getDataset().getId(),
+                datasetLastModified,
                 layer.getId(),           // The grid of data to read from
                 layer.getHorizontalGrid(),
                 tIndex,
@@ -98,7 +134,7 @@ public class DefaultDataReader extends DataReader
         }
         finally
         {
-            closeDataset(nc);
+            closeDataset(ds);
         }
     }
 
@@ -133,14 +169,14 @@ public class DefaultDataReader extends DataReader
         List<Integer> tIndices, int zIndex, HorizontalPosition xy)
         throws IOException
     {
-        NetcdfDataset nc = null;
+        GridDatasetCache.Entry ds = null;
         try
         {
-            // Open the dataset, using the cache for NcML aggregations
-            nc = openDataset(filename);
+            // Open the dataset, using the caches if possible
+            ds = openDataset(filename);
             // Read and return the data
             return CdmUtils.readTimeseries(
-                nc,
+                ds,
                 layer.getId(),
                 layer.getHorizontalGrid(),
                 tIndices,
@@ -150,7 +186,7 @@ public class DefaultDataReader extends DataReader
         }
         finally
         {
-            closeDataset(nc);
+            closeDataset(ds);
         }
     }
     
@@ -172,12 +208,14 @@ public class DefaultDataReader extends DataReader
     {
         logger.debug("Finding layers in {}", location);
         
-        NetcdfDataset nc = null;
+        GridDatasetCache.Entry ds = null;
         try
         {
-            // Open the dataset, using the cache for NcML aggregations
-            nc = openDataset(location);
-            GridDataset gd = CdmUtils.getGridDataset(nc);
+            // Open the dataset, using the caches if possible.  This means
+            // that the GridDataset we create here can be reused for
+            // subsequent data reads.
+            ds = openDataset(location);
+            GridDataset gd = ds.getGridDataset();
 
             if (gd == null)           throw new NullPointerException("GridDataset can't be null");
             if (layers == null)       throw new NullPointerException("layers can't be null");
@@ -268,46 +306,63 @@ public class DefaultDataReader extends DataReader
         finally
         {
             logger.debug("In finally clause");
-            closeDataset(nc);
+            closeDataset(ds);
         }
     }
 
-    /** Closes the given dataset, logging any exceptions at debug level */
-    private static void closeDataset(NetcdfDataset nc)
+    /**
+     * Gets the cache of open datasets that is used by all DefaultDataReaders
+     */
+    public static GridDatasetCache getDatasetCache()
     {
-        if (nc == null) return;
-        try
-        {
-            nc.close();
-            logger.debug("NetCDF file closed");
-        }
-        catch (IOException ex)
-        {
-            logger.error("IOException closing " + nc.getLocation(), ex);
-        }
+        return DATASET_CACHE;
+    }
+
+    /**
+     * Gets the number of NetCDF datasets that are open for reading data:
+     * those opened by the {@link #getDatasetCache() dataset cache}, whether
+     * idle or in use (including OPeNDAP datasets while they are being read),
+     * plus those in the NetCDF library's own file cache, which holds NcML
+     * aggregations and the files that they aggregate.
+     */
+    public static int getNumOpenDatasets()
+    {
+        int numOpen = DATASET_CACHE.getNumOpenDatasets();
+        FileCache fileCache = NetcdfDataset.getNetcdfFileCache();
+        if (fileCache != null) numOpen += fileCache.showCache().size();
+        return numOpen;
+    }
+
+    /**
+     * Closes the given dataset or returns it to the cache.  Does nothing if
+     * {@code ds} is null.
+     */
+    private static void closeDataset(GridDatasetCache.Entry ds)
+    {
+        DATASET_CACHE.release(ds);
     }
 
     /**
-     * Opens the NetCDF dataset at the given location, using the dataset
-     * cache if {@code location} represents an NcML aggregation.  We cannot
-     * use the cache for OPeNDAP or single NetCDF files because the underlying
-     * data may have changed and the NetcdfDataset cache may cache a dataset
-     * forever.  In the case of NcML we rely on the fact that server administrators
+     * Opens the NetCDF dataset at the given location.  Local NetCDF files
+     * are obtained from our own {@link GridDatasetCache}, which detects
+     * changes to the underlying file through its last-modified time and size.
+     * NcML aggregations are acquired from the NetcdfDataset cache.  In this
+     * case we rely on the fact that server administrators
      * ought to have set a "recheckEvery" parameter for NcML aggregations that
      * may change with time.  It is desirable to use the dataset cache for NcML
      * aggregations because they can be time-consuming to assemble and we don't
-     * want to do this every time a map is drawn.
+     * want to do this every time a map is drawn.  OPeNDAP datasets are not
+     * cached, as we cannot tell whether the underlying data have changed.
      * @param location The location of the data: a local NetCDF file, an NcML
      * aggregation file or an OPeNDAP location, {@literal i.e.} anything that can be
      * passed to NetcdfDataset.openDataset(location).
-     * @return a {@link NetcdfDataset} object for accessing the data at the
-     * given location.
+     * @return a {@link GridDatasetCache.Entry} object for accessing the data at the
+     * given location, which must be passed to {@link #closeDataset} after use.
      * @throws IOException if there was an error reading from the data source.
      */
-    private static NetcdfDataset openDataset(String location) throws IOException
+    private static GridDatasetCache.Entry openDataset(String location) throws IOException
     {
-        boolean usedCache = false;
-        NetcdfDataset nc;
+        GridDatasetCache.Entry ds;
         long start = System.nanoTime();
         if (WmsUtils.isNcmlAggregation(location))
         {
@@ -315,23 +370,20 @@ public class DefaultDataReader extends DataReader
             // as they can be time-consuming to put together.  If the underlying
             // data can change we rely on the server admin setting the
             // "recheckEvery" parameter in the aggregation file.
-            nc = NetcdfDataset.acquireDataset(location, null);
-            usedCache = true;
+            ds = GridDatasetCache.uncachedEntry(NetcdfDataset.acquireDataset(location, null));
         }
         else
         {
-            // For local single files and OPeNDAP datasets we don't use the
-            // cache, to ensure that we are always reading the most up-to-date
-            // data.  There is a small possibility that the dataset cache will
-            // have swallowed up all available file handles, in which case
-            // the server admin will need to increase the number of available
-            // handles on the server.
-            nc = NetcdfDataset.openDataset(location);
+            // Local files are cached (OPeNDAP datasets are simply opened).
+            // The number of local files that are open at once is limited
+            // by the maximum number of open datasets, so the server admin
+            // can keep this within the number of handles that are available
+            // on the server.
+            ds = DATASET_CACHE.acquire(location);
         }
         long openedDS = System.nanoTime();
-        String verb = usedCache ? "Acquired" : "Opened";
-        logger.debug(verb + " NetcdfDataset in {} milliseconds", (openedDS - start) / 1.e6);
-        return nc;
+        logger.debug("Acquired dataset in {} milliseconds", (openedDS - start) / 1.e6);
+        return ds;
     }
     
 }
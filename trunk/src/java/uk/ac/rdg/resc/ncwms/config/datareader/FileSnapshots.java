@@ -0,0 +1,602 @@
+/*
+ * Copyright (c) 2010 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.rdg.resc.ncwms.config.datareader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.geotoolkit.referencing.crs.DefaultGeographicCRS;
+import org.joda.time.Chronology;
+import org.joda.time.DateTime;
+import org.joda.time.chrono.ISOChronology;
+import org.joda.time.chrono.JulianChronology;
+import org.opengis.metadata.extent.GeographicBoundingBox;
+import uk.ac.rdg.resc.edal.coverage.grid.HorizontalGrid;
+import uk.ac.rdg.resc.edal.coverage.grid.RectilinearGrid;
+import uk.ac.rdg.resc.edal.coverage.grid.ReferenceableAxis;
+import uk.ac.rdg.resc.edal.coverage.grid.RegularAxis;
+import uk.ac.rdg.resc.edal.coverage.grid.RegularGrid;
+import uk.ac.rdg.resc.edal.coverage.grid.impl.AbstractReferenceableAxis;
+import uk.ac.rdg.resc.edal.coverage.grid.impl.RectilinearGridImpl;
+import uk.ac.rdg.resc.edal.coverage.grid.impl.ReferenceableAxisImpl;
+import uk.ac.rdg.resc.edal.coverage.grid.impl.RegularAxisImpl;
+import uk.ac.rdg.resc.edal.coverage.grid.impl.RegularGridImpl;
+import uk.ac.rdg.resc.edal.time.AllLeapChronology;
+import uk.ac.rdg.resc.edal.time.NoLeapChronology;
+import uk.ac.rdg.resc.edal.time.ThreeSixtyDayChronology;
+import uk.ac.rdg.resc.ncwms.config.LayerImpl;
+import uk.ac.rdg.resc.ncwms.wms.TimestepIndex;
+
+/**
+ * <p>The metadata (layers, grids and timesteps) that a {@link DataReader} has
+ * read from each of the files in a dataset, with the last-modified time and
+ * size of each file at the time it was read.  These snapshots are kept by the
+ * {@link uk.ac.rdg.resc.ncwms.config.Dataset Dataset} between refreshes, so
+ * that {@link DataReader#getAllLayers(java.lang.String, FileSnapshots)} only
+ * needs to open the files that have been added or modified since the last
+ * refresh.</p>
+ * <p>The snapshots also record which files were added, modified and removed
+ * in the most recent refresh.</p>
+ * <p>The snapshots can be {@link #writeTo(java.io.File, java.lang.String, long)
+ * saved} to a compact binary file, so that the metadata of a dataset can be
+ * {@link #readFrom(java.io.File, java.lang.String) restored} when the server
+ * is restarted without reading any of the data files.  Horizontal grids are
+ * saved once, however many files share them.  Only regular and rectilinear
+ * grids in longitude-latitude space and the calendar systems that are
+ * supported by {@link uk.ac.rdg.resc.edal.cdm.CdmUtils} can be saved.</p>
+ * <p>Instances of this class are not thread-safe: each is only updated by the
+ * thread that loads the metadata of its dataset.</p>
+ * @author Jon
+ */
+public final class FileSnapshots
+{
+    /** Identifies snapshot files ("NMDS") */
+    private static final int MAGIC = 0x4E4D4453;
+
+    /** Must be incremented whenever the format of the file changes */
+    private static final int VERSION = 1;
+
+    private static final byte REGULAR_GRID = 0;
+    private static final byte RECTILINEAR_GRID = 1;
+
+    /** The calendar systems that can be saved, indexed by their codes in the file */
+    private static final Chronology[] CHRONOLOGIES = {
+        ISOChronology.getInstanceUTC(),
+        JulianChronology.getInstanceUTC(),
+        ThreeSixtyDayChronology.getInstanceUTC(),
+        AllLeapChronology.getInstanceUTC(),
+        NoLeapChronology.getInstanceUTC()
+    };
+
+    /** Maps file paths to snapshots, in the order in which the files were found */
+    private Map<String, Snapshot> snapshots = new LinkedHashMap<String, Snapshot>();
+
+    private List<String> added = Collections.emptyList();
+    private List<String> modified = Collections.emptyList();
+    private List<String> removed = Collections.emptyList();
+
+    /** The time at which the snapshots were saved, if they were read from a file */
+    private long savedTime = -1;
+
+    /**
+     * Gets the snapshot of the file with the given path, or null if there is
+     * no snapshot of the file.
+     */
+    Snapshot get(String path)
+    {
+        return this.snapshots.get(path);
+    }
+
+    /**
+     * Replaces all the snapshots with the given ones and records the changes.
+     * Any file that is no longer in the map is recorded as removed.
+     */
+    void update(Map<String, Snapshot> newSnapshots, List<String> added,
+        List<String> modified)
+    {
+        List<String> removed = new ArrayList<String>();
+        for (String path : this.snapshots.keySet())
+        {
+            if (!newSnapshots.containsKey(path)) removed.add(path);
+        }
+        this.snapshots = newSnapshots;
+        this.added = added;
+        this.modified = modified;
+        this.removed = removed;
+    }
+
+    /**
+     * Merges the layers from all the files, in the order in which the files
+     * were found.  The returned layers are new objects: the layers in the
+     * snapshots themselves are never modified.
+     * @return Map of layer IDs mapped to {@link LayerImpl} objects
+     */
+    public Map<String, LayerImpl> getLayers()
+    {
+        Map<String, LayerImpl> layers = new LinkedHashMap<String, LayerImpl>();
+        for (Snapshot snapshot : this.snapshots.values())
+        {
+            for (LayerImpl fileLayer : snapshot.getLayers().values())
+            {
+                LayerImpl layer = layers.get(fileLayer.getId());
+                if (layer == null)
+                {
+                    layers.put(fileLayer.getId(), new LayerImpl(fileLayer));
+                }
+                else
+                {
+                    layer.addTimesteps(fileLayer);
+                }
+            }
+        }
+        return layers;
+    }
+
+    /** Discards all the snapshots, so that every file will be read again */
+    public void clear()
+    {
+        this.update(new LinkedHashMap<String, Snapshot>(),
+            Collections.<String>emptyList(), Collections.<String>emptyList());
+    }
+
+    /** Gets the number of files for which we have snapshots */
+    public int size()
+    {
+        return this.snapshots.size();
+    }
+
+    /**
+     * Returns true if any files were added, modified or removed in the most
+     * recent refresh.
+     */
+    public boolean hasChanges()
+    {
+        return !(this.added.isEmpty() && this.modified.isEmpty() && this.removed.isEmpty());
+    }
+
+    /** Gets the paths of the files that were added in the most recent refresh */
+    public List<String> getAddedFiles()
+    {
+        return this.added;
+    }
+
+    /**
+     * Gets the paths of the files that were modified in the most recent
+     * refresh.  This includes NcML aggregations and OPeNDAP locations, which
+     * are read on every refresh because we cannot tell whether they have
+     * changed.
+     */
+    public List<String> getModifiedFiles()
+    {
+        return this.modified;
+    }
+
+    /** Gets the paths of the files that were removed in the most recent refresh */
+    public List<String> getRemovedFiles()
+    {
+        return this.removed;
+    }
+
+    /** Summarizes the changes in the most recent refresh, for logging */
+    public String getChangeSummary()
+    {
+        return String.format("%d files added, %d modified, %d removed, %d unchanged",
+            this.added.size(), this.modified.size(), this.removed.size(),
+            this.snapshots.size() - this.added.size() - this.modified.size());
+    }
+
+    /**
+     * Gets the time at which these snapshots were saved, as passed to
+     * {@link #writeTo(java.io.File, java.lang.String, long) writeTo()}, or -1
+     * if they were not read from a file.
+     */
+    public long getSavedTime()
+    {
+        return this.savedTime;
+    }
+
+    /**
+     * Writes the snapshots to the given file, replacing any existing file.
+     * @param key Identifies the dataset (e.g. its location and data reader):
+     * {@link #readFrom(java.io.File, java.lang.String) readFrom()} will
+     * ignore the file unless it is given the same key
+     * @param savedTime The time to be returned by {@link #getSavedTime()}
+     * when the snapshots are read back
+     * @return false if the snapshots contain grids or calendar systems that
+     * cannot be saved, in which case the file is not written.
+     * @throws IOException if the file could not be written
+     */
+    public boolean writeTo(File file, String key, long savedTime) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        writeString(out, key);
+        out.writeLong(savedTime);
+
+        // Files often share the same grid, so we write each distinct grid once
+        // in a table before the files and refer to grids by their positions
+        // in the table.  We detect duplicate grids through their encodings.
+        Map<ByteBuffer, Integer> gridIndices = new HashMap<ByteBuffer, Integer>();
+        ByteArrayOutputStream grids = new ByteArrayOutputStream();
+        ByteArrayOutputStream files = new ByteArrayOutputStream();
+        DataOutputStream filesOut = new DataOutputStream(files);
+        filesOut.writeInt(this.snapshots.size());
+        for (Map.Entry<String, Snapshot> entry : this.snapshots.entrySet())
+        {
+            Snapshot snapshot = entry.getValue();
+            writeString(filesOut, entry.getKey());
+            filesOut.writeLong(snapshot.lastModified);
+            filesOut.writeLong(snapshot.size);
+            filesOut.writeInt(snapshot.layers.size());
+            for (LayerImpl layer : snapshot.layers.values())
+            {
+                ByteBuffer grid = encodeGrid(layer.getHorizontalGrid());
+                if (grid == null) return false;
+                Integer gridIndex = gridIndices.get(grid);
+                if (gridIndex == null)
+                {
+                    gridIndex = gridIndices.size();
+                    gridIndices.put(grid, gridIndex);
+                    grids.write(grid.array());
+                }
+                if (!writeLayer(filesOut, layer, gridIndex)) return false;
+            }
+        }
+        out.writeInt(gridIndices.size());
+        grids.writeTo(out);
+        filesOut.flush();
+        files.writeTo(out);
+        out.flush();
+
+        // We write to a temporary file and rename it, so that a crash can't
+        // leave a partly-written snapshot
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs())
+        {
+            throw new IOException("Could not create " + parent.getPath());
+        }
+        File tmp = new File(parent, file.getName() + ".tmp");
+        FileOutputStream fout = new FileOutputStream(tmp);
+        try
+        {
+            bytes.writeTo(fout);
+        }
+        finally
+        {
+            fout.close();
+        }
+        if ((file.exists() && !file.delete()) || !tmp.renameTo(file))
+        {
+            tmp.delete();
+            throw new IOException("Could not write snapshot " + file.getPath());
+        }
+        return true;
+    }
+
+    /**
+     * Reads snapshots that were written by {@link #writeTo(java.io.File,
+     * java.lang.String, long) writeTo()}.  The whole file is read into
+     * memory and closed before it is decoded (it is read only once, so mapping
+     * it would gain nothing and would stop it from being replaced on some
+     * platforms while the mapping is live).  The data files themselves are
+     * not checked: any changes to them will be
+     * found when the snapshots are next passed to
+     * {@link DataReader#getAllLayers(java.lang.String, FileSnapshots)}.
+     * @param key Identifies the dataset, as passed to writeTo()
+     * @return the snapshots, or null if the file was written for a different
+     * key or by a different version of this class.
+     * @throws IOException if the file could not be read or is corrupt
+     */
+    public static FileSnapshots readFrom(File file, String key) throws IOException
+    {
+        ByteBuffer buf;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try
+        {
+            if (raf.length() > Integer.MAX_VALUE)
+            {
+                throw new IOException(file.getPath() + " is too large to be a metadata snapshot");
+            }
+            byte[] bytes = new byte[(int)raf.length()];
+            raf.readFully(bytes);
+            buf = ByteBuffer.wrap(bytes);
+        }
+        finally
+        {
+            raf.close();
+        }
+        try
+        {
+            if (buf.getInt() != MAGIC)
+            {
+                throw new IOException(file.getPath() + " is not a metadata snapshot");
+            }
+            if (buf.getInt() != VERSION || !key.equals(readString(buf))) return null;
+            FileSnapshots snapshots = new FileSnapshots();
+            snapshots.savedTime = buf.getLong();
+
+            HorizontalGrid[] grids = new HorizontalGrid[buf.getInt()];
+            for (int i = 0; i < grids.length; i++)
+            {
+                grids[i] = decodeGrid(buf);
+            }
+            int numFiles = buf.getInt();
+            for (int i = 0; i < numFiles; i++)
+            {
+                String path = readString(buf);
+                long lastModified = buf.getLong();
+                long size = buf.getLong();
+                int numLayers = buf.getInt();
+                Map<String, LayerImpl> layers = new LinkedHashMap<String, LayerImpl>();
+                for (int j = 0; j < numLayers; j++)
+                {
+                    LayerImpl layer = readLayer(buf, grids, path);
+                    layers.put(layer.getId(), layer);
+                }
+                snapshots.snapshots.put(path, new Snapshot(lastModified, size, layers));
+            }
+            return snapshots;
+        }
+        catch (RuntimeException re)
+        {
+            // e.g. BufferUnderflowException, IllegalArgumentException
+            throw new IOException(file.getPath() + " is corrupt: " + re.toString());
+        }
+    }
+
+    /**
+     * Writes the metadata of a layer from a single file.  Returns false if
+     * the layer's timesteps are in a calendar system that cannot be saved.
+     */
+    private static boolean writeLayer(DataOutputStream out, LayerImpl layer,
+        int gridIndex) throws IOException
+    {
+        writeString(out, layer.getId());
+        writeString(out, layer.getTitle());
+        writeString(out, layer.getAbstract());
+        writeString(out, layer.getUnits());
+        writeString(out, layer.getElevationUnits());
+        out.writeInt(layer.getElevationValues().size());
+        for (double z : layer.getElevationValues()) out.writeDouble(z);
+        out.writeBoolean(layer.isElevationPositive());
+        GeographicBoundingBox bbox = layer.getGeographicBoundingBox();
+        out.writeDouble(bbox.getWestBoundLongitude());
+        out.writeDouble(bbox.getSouthBoundLatitude());
+        out.writeDouble(bbox.getEastBoundLongitude());
+        out.writeDouble(bbox.getNorthBoundLatitude());
+        out.writeInt(gridIndex);
+        // All the timesteps in the snapshot of a file are in the same file
+        TimestepIndex timesteps = layer.getTimestepIndex();
+        int chronology = indexOf(CHRONOLOGIES, timesteps.getChronology());
+        if (timesteps.size() > 0 && chronology < 0) return false;
+        out.writeInt(timesteps.size());
+        for (int i = 0; i < timesteps.size(); i++)
+        {
+            out.writeLong(timesteps.getMillis(i));
+            out.writeByte(chronology);
+            out.writeInt(timesteps.getIndexInFile(i));
+        }
+        return true;
+    }
+
+    private static LayerImpl readLayer(ByteBuffer buf, HorizontalGrid[] grids,
+        String path) throws IOException
+    {
+        LayerImpl layer = new LayerImpl(readString(buf));
+        layer.setTitle(readString(buf));
+        layer.setAbstract(readString(buf));
+        layer.setUnits(readString(buf));
+        layer.setElevationUnits(readString(buf));
+        List<Double> zValues = new ArrayList<Double>();
+        for (int n = buf.getInt(); n > 0; n--) zValues.add(buf.getDouble());
+        if (!zValues.isEmpty()) layer.setElevationValues(zValues);
+        layer.setElevationPositive(buf.get() != 0);
+        double west = buf.getDouble();
+        double south = buf.getDouble();
+        double east = buf.getDouble();
+        double north = buf.getDouble();
+        layer.setGeographicBoundingBox(new double[]{west, south, east, north});
+        layer.setHorizontalGrid(grids[buf.getInt()]);
+        for (int n = buf.getInt(); n > 0; n--)
+        {
+            long millis = buf.getLong();
+            Chronology chronology = CHRONOLOGIES[buf.get()];
+            layer.addTimestepInfo(new DateTime(millis, chronology), path, buf.getInt());
+        }
+        return layer;
+    }
+
+    /**
+     * Encodes a grid, returning null if the grid cannot be saved.  The
+     * returned buffer is backed by an array of exactly the encoded size.
+     */
+    private static ByteBuffer encodeGrid(HorizontalGrid grid) throws IOException
+    {
+        boolean isRegular = grid instanceof RegularGridImpl;
+        if (!(isRegular || grid instanceof RectilinearGridImpl) ||
+            grid.getCoordinateReferenceSystem() != DefaultGeographicCRS.WGS84)
+        {
+            return null;
+        }
+        RectilinearGrid rectGrid = (RectilinearGrid)grid;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(isRegular ? REGULAR_GRID : RECTILINEAR_GRID);
+        if (!encodeAxis(out, rectGrid.getXAxis(), isRegular)) return null;
+        if (!encodeAxis(out, rectGrid.getYAxis(), isRegular)) return null;
+        out.flush();
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+
+    private static boolean encodeAxis(DataOutputStream out, ReferenceableAxis axis,
+        boolean isRegular) throws IOException
+    {
+        if (!(axis instanceof AbstractReferenceableAxis)) return false;
+        writeString(out, axis.getName());
+        out.writeBoolean(((AbstractReferenceableAxis)axis).isLongitude());
+        if (isRegular)
+        {
+            RegularAxis regAxis = (RegularAxis)axis;
+            out.writeDouble(regAxis.getCoordinateValue(0));
+            out.writeDouble(regAxis.getCoordinateSpacing());
+            out.writeInt(regAxis.getSize());
+        }
+        else
+        {
+            out.writeInt(axis.getSize());
+            for (int i = 0; i < axis.getSize(); i++)
+            {
+                out.writeDouble(axis.getCoordinateValue(i));
+            }
+        }
+        return true;
+    }
+
+    private static HorizontalGrid decodeGrid(ByteBuffer buf) throws IOException
+    {
+        byte type = buf.get();
+        if (type == REGULAR_GRID)
+        {
+            RegularAxis xAxis = decodeRegularAxis(buf);
+            RegularAxis yAxis = decodeRegularAxis(buf);
+            return new RegularGridImpl(xAxis, yAxis, DefaultGeographicCRS.WGS84);
+        }
+        else if (type == RECTILINEAR_GRID)
+        {
+            ReferenceableAxis xAxis = decodeReferenceableAxis(buf);
+            ReferenceableAxis yAxis = decodeReferenceableAxis(buf);
+            return new RectilinearGridImpl(xAxis, yAxis, DefaultGeographicCRS.WGS84);
+        }
+        throw new IOException("Unknown grid type " + type);
+    }
+
+    private static RegularAxis decodeRegularAxis(ByteBuffer buf) throws IOException
+    {
+        String name = readString(buf);
+        boolean isLongitude = buf.get() != 0;
+        double firstValue = buf.getDouble();
+        double spacing = buf.getDouble();
+        int size = buf.getInt();
+        return new RegularAxisImpl(name, firstValue, spacing, size, isLongitude);
+    }
+
+    private static ReferenceableAxis decodeReferenceableAxis(ByteBuffer buf) throws IOException
+    {
+        String name = readString(buf);
+        boolean isLongitude = buf.get() != 0;
+        double[] values = new double[buf.getInt()];
+        buf.asDoubleBuffer().get(values);
+        buf.position(buf.position() + 8 * values.length);
+        return new ReferenceableAxisImpl(name, values, isLongitude);
+    }
+
+    /** Writes a string that may be null */
+    private static void writeString(DataOutputStream out, String s) throws IOException
+    {
+        if (s == null)
+        {
+            out.writeInt(-1);
+        }
+        else
+        {
+            byte[] bytes = s.getBytes("UTF-8");
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String readString(ByteBuffer buf) throws IOException
+    {
+        int length = buf.getInt();
+        if (length < 0) return null;
+        byte[] bytes = new byte[length];
+        buf.get(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private static int indexOf(Object[] arr, Object obj)
+    {
+        for (int i = 0; i < arr.length; i++)
+        {
+            if (arr[i].equals(obj)) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * The metadata read from a single file.  Instances of this class are
+     * immutable once created: the layers must not be modified.
+     */
+    static final class Snapshot
+    {
+        private final long lastModified;
+        private final long size;
+        private final Map<String, LayerImpl> layers;
+
+        /**
+         * @param lastModified The last-modified time of the file when it was
+         * read, or -1 if the location is not a plain file
+         * @param size The size of the file when it was read, or -1 if the
+         * location is not a plain file
+         * @param layers The layers that were read from the file
+         */
+        Snapshot(long lastModified, long size, Map<String, LayerImpl> layers)
+        {
+            this.lastModified = lastModified;
+            this.size = size;
+            this.layers = layers;
+        }
+
+        /**
+         * Returns true if this snapshot was made from a plain file that has
+         * the given last-modified time and size.
+         */
+        boolean isCurrent(long lastModified, long size)
+        {
+            return this.lastModified >= 0 && this.lastModified == lastModified &&
+                this.size == size;
+        }
+
+        Map<String, LayerImpl> getLayers()
+        {
+            return this.layers;
+        }
+    }
+}
@@ -153,23 +153,24 @@ public abstract class AbstractMetadataController
         Map<Integer, Map<Integer, List<Integer>>> datesWithData =
             new LinkedHashMap<Integer, Map<Integer, List<Integer>>>();
         List<DateTime> timeValues = layer.getTimeValues();
-        DateTime nearestDateTime = timeValues.isEmpty() ? new DateTime(0) : timeValues.get(0);
+        DateTime nearestDateTime = timeValues.isEmpty() ? new DateTime(0)
+            : findNearestTime(timeValues, targetDateTime);
         
         // Takes an array of time values for a layer and turns it into a Map of
         // year numbers to month numbers to day numbers, for use in
         // showVariableDetails.jsp.  This is used to provide a list of days for
-        // which we have data.  Also calculates the nearest value on the time axis
-        // to the time we're currently displaying on the web interface.
-        for (DateTime dateTime : layer.getTimeValues())
+        // which we have data.  We visit the first timestep of each day only,
+        // searching for the next day, so that long axes with many timesteps
+        // per day are quick to process.
+        int i = 0;
+        while (i < timeValues.size())
         {
             // We must make sure that dateTime() is in UTC or getDayOfMonth() etc
             // might return unexpected results
-            dateTime = dateTime.withZone(DateTimeZone.UTC);
-            // See whether this dateTime is closer to the target dateTime than
-            // the current closest value
-            long d1 = new Duration(dateTime, targetDateTime).getMillis();
-            long d2 = new Duration(nearestDateTime, targetDateTime).getMillis();
-            if (Math.abs(d1) < Math.abs(d2)) nearestDateTime = dateTime;
+            DateTime dateTime = timeValues.get(i).withZone(DateTimeZone.UTC);
+            int nextDay = WmsUtils.findTimeIndex(timeValues,
+                dateTime.dayOfMonth().roundFloorCopy().plusDays(1));
+            i = nextDay >= 0 ? nextDay : -(nextDay + 1);
 
             int year = dateTime.getYear();
             Map<Integer, List<Integer>> months = datesWithData.get(year);
@@ -202,6 +203,24 @@ public abstract class AbstractMetadataController
         models.put("paletteNames", ColorPalette.getAvailablePaletteNames());
         return new ModelAndView("showLayerDetails", models);
     }
+
+    /**
+     * Finds the value on the given time axis that is closest to the target
+     * time, taking the earlier value if two are equally close.
+     */
+    private static DateTime findNearestTime(List<DateTime> timeValues, DateTime target)
+    {
+        int index = WmsUtils.findTimeIndex(timeValues, target);
+        if (index >= 0) return timeValues.get(index);
+        int insertionPoint = -(index + 1);
+        if (insertionPoint == 0) return timeValues.get(0);
+        DateTime before = timeValues.get(insertionPoint - 1);
+        if (insertionPoint == timeValues.size()) return before;
+        DateTime after = timeValues.get(insertionPoint);
+        long d1 = new Duration(before, target).getMillis();
+        long d2 = new Duration(target, after).getMillis();
+        return d2 < d1 ? after : before;
+    }
     
     /**
      * @return the Layer that the user is requesting, throwing an
@@ -237,14 +256,17 @@ public abstract class AbstractMetadataController
         
         // List of date-times that fall on this day
         List<DateTime> timesteps = new ArrayList<DateTime>();
-        // Search exhaustively through the layer's valid time values
-        // TODO: inefficient: should stop once last day has been found.
-        for (DateTime tVal : layer.getTimeValues())
+        // Search for the first time value on or after the start of the day,
+        // then take values until we reach the next day
+        List<DateTime> timeValues = layer.getTimeValues();
+        int i = WmsUtils.findTimeIndex(timeValues,
+            date.withZone(DateTimeZone.UTC).dayOfMonth().roundFloorCopy());
+        if (i < 0) i = -(i + 1);
+        for (; i < timeValues.size(); i++)
         {
-            if (onSameDay(tVal, date))
-            {
-                timesteps.add(tVal);
-            }
+            DateTime tVal = timeValues.get(i);
+            if (!onSameDay(tVal, date)) break;
+            timesteps.add(tVal);
         }
         log.debug("Found {} timesteps on {}", timesteps.size(), dayStr);
         
@@ -31,8 +31,10 @@ import java.awt.Color;
 import java.awt.Font;
 import java.awt.geom.Ellipse2D;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.SocketException;
 import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
@@ -49,6 +51,12 @@ import java.util.Map;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.imageio.ImageIO;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -78,6 +86,8 @@ import org.joda.time.chrono.ISOChronology;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 import org.springframework.web.servlet.ModelAndView;
 import org.springframework.web.servlet.mvc.AbstractController;
+import uk.ac.rdg.resc.edal.cdm.DataReadingStrategy;
+import uk.ac.rdg.resc.edal.cdm.ReadTimings;
 import uk.ac.rdg.resc.edal.coverage.domain.Domain;
 import uk.ac.rdg.resc.edal.coverage.grid.GridCoordinates;
 import uk.ac.rdg.resc.edal.coverage.grid.HorizontalGrid;
@@ -87,6 +97,8 @@ import uk.ac.rdg.resc.edal.geometry.LonLatPosition;
 import uk.ac.rdg.resc.edal.util.Utils;
 import uk.ac.rdg.resc.edal.geometry.impl.LineString;
 import uk.ac.rdg.resc.edal.coverage.domain.impl.HorizontalDomain;
+import uk.ac.rdg.resc.ncwms.cache.CapabilitiesCache;
+import uk.ac.rdg.resc.ncwms.cache.ImageCache;
 import uk.ac.rdg.resc.ncwms.exceptions.CurrentUpdateSequence;
 import uk.ac.rdg.resc.ncwms.exceptions.InvalidDimensionValueException;
 import uk.ac.rdg.resc.ncwms.exceptions.InvalidFormatException;
@@ -96,6 +108,11 @@ import uk.ac.rdg.resc.ncwms.exceptions.Wms1_1_1Exception;
 import uk.ac.rdg.resc.ncwms.exceptions.WmsException;
 import uk.ac.rdg.resc.ncwms.graphics.ImageFormat;
 import uk.ac.rdg.resc.ncwms.graphics.KmzFormat;
+import uk.ac.rdg.resc.ncwms.metrics.Gauge;
+import uk.ac.rdg.resc.ncwms.metrics.MetricsRegistry;
+import uk.ac.rdg.resc.ncwms.metrics.Stage;
+import uk.ac.rdg.resc.ncwms.metrics.StageRecorder;
+import uk.ac.rdg.resc.ncwms.metrics.TimingOutputStream;
 import uk.ac.rdg.resc.ncwms.usagelog.UsageLogger;
 import uk.ac.rdg.resc.ncwms.wms.VectorLayer;
 import uk.ac.rdg.resc.ncwms.graphics.ColorPalette;
@@ -135,13 +152,32 @@ public abstract class AbstractWmsController extends AbstractController {
      * The maximum number of layers that can be requested in a single GetMap
      * operation
      */
-    private static final int LAYER_LIMIT = 1;
-    private static final String FEATURE_INFO_XML_FORMAT = "text/xml";
-    private static final String FEATURE_INFO_PNG_FORMAT = "image/png";
+    static final int LAYER_LIMIT = 1;
+    static final String FEATURE_INFO_XML_FORMAT = "text/xml";
+    static final String FEATURE_INFO_PNG_FORMAT = "image/png";
 
     // These objects will be injected by Spring
     protected ServerConfig serverConfig;
     protected UsageLogger usageLogger;
+    protected ImageCache imageCache;
+    /** Replaced by Spring with the server-wide registry of metrics */
+    protected MetricsRegistry metrics = new MetricsRegistry();
+
+    /** The number of requests that are currently being handled */
+    private final AtomicInteger numRequestsInFlight = new AtomicInteger();
+
+    /**
+     * Server-wide pool of threads that is used to extract data for GetMap
+     * requests.  Created in {@link #init()}.
+     */
+    private ThreadPoolExecutor dataExtractionExecutor;
+
+    /**
+     * Holds the Capabilities documents that have been produced, which are
+     * refreshed in the background when they go out of date.  Created in
+     * {@link #init()}.
+     */
+    private CapabilitiesCache capabilitiesCache;
 
     /**
      * Called automatically by Spring after all the dependencies have been
@@ -161,6 +197,34 @@ public abstract class AbstractWmsController extends AbstractController {
         } else {
             log.info("Directory of palette files does not exist or is not a directory");
         }
+
+        // Create the pool of threads for extracting data.  We use an unbounded
+        // queue so that requests wait for a free thread rather than failing:
+        // the number of tasks that each request can queue is limited by
+        // ServerConfig.getMaxParallelReadsPerRequest().
+        int numThreads = Math.max(1, this.serverConfig.getMaxDataExtractionThreads());
+        this.dataExtractionExecutor = new ThreadPoolExecutor(numThreads, numThreads,
+            60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+                private final AtomicInteger threadNum = new AtomicInteger();
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "data-extraction-" + this.threadNum.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        this.dataExtractionExecutor.allowCoreThreadTimeOut(true);
+
+        this.capabilitiesCache = new CapabilitiesCache();
+
+        this.metrics.registerGauge("ncwms_requests_in_flight",
+            "Number of WMS requests that are being handled", new Gauge() {
+                @Override
+                public double getValue() {
+                    return numRequestsInFlight.get();
+                }
+            });
     }
 
     /**
@@ -195,6 +259,7 @@ public abstract class AbstractWmsController extends AbstractController {
         // (but is sensitive to the case of the parameter VALUES).
         RequestParams params = new RequestParams(httpServletRequest.getParameterMap());
 
+        this.numRequestsInFlight.incrementAndGet();
         try {
             // Check the REQUEST parameter to see if we're producing a capabilities
             // document, a map or a FeatureInfo
@@ -234,6 +299,7 @@ public abstract class AbstractWmsController extends AbstractController {
             usageLogEntry.setException(e);
             throw e;
         } finally {
+            this.numRequestsInFlight.decrementAndGet();
             if (logUsage && this.usageLogger != null) {
                 // Log this request to the usage log
                 this.usageLogger.logUsage(usageLogEntry);
@@ -268,23 +334,28 @@ public abstract class AbstractWmsController extends AbstractController {
         throws Exception;
 
     /**
-     * Executes the GetCapabilities operation, returning a ModelAndView for
-     * display of the information as an XML document.  If the user has
-     * requested VERSION=1.1.1 the information will be rendered using
-     * <tt>web/WEB-INF/jsp/capabilities_xml_1_1_1.jsp</tt>.  If the user
-     * specifies VERSION=1.3.0 (or does not specify a version) the information
-     * will be rendered using <tt>web/WEB-INF/jsp/capabilities_xml.jsp</tt>.
+     * Executes the GetCapabilities operation, writing the Capabilities
+     * document to the response and returning null.  If the user has
+     * requested VERSION=1.1.1 a WMS 1.1.1 document is written, otherwise a
+     * WMS 1.3.0 document is written.  Documents are written by a
+     * {@link CapabilitiesWriter} and kept in a {@link CapabilitiesCache},
+     * which rebuilds them in the background when the datasets or the server's
+     * configuration change.  Documents are sent gzipped to clients that accept
+     * this, and clients can use their ETags to avoid downloading documents
+     * that have not changed.
      * @param datasets The collection of datasets to include in the Capabilities
      * document.  Must not be null
-     * @param lastUpdateTime The last update time of this Capabilities document,
-     * or null if unknown
+     * @param allDatasets true if {@code datasets} contains all the datasets on
+     * the server, in which case the last update time of the document is the
+     * {@link ServerConfig#getLastUpdateTime() last update time of the server};
+     * otherwise it is the latest update time of the datasets.
      * @throws IOException if there was an i/o error getting the dataset(s) from
      * the underlying data store
      */
     protected ModelAndView getCapabilities(Collection<? extends Dataset> datasets,
-            DateTime lastUpdateTime, RequestParams params,
-            HttpServletRequest httpServletRequest, UsageLogEntry usageLogEntry)
-            throws WmsException, IOException {
+            boolean allDatasets, RequestParams params,
+            HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse,
+            UsageLogEntry usageLogEntry) throws Exception {
         // Check the SERVICE parameter
         String service = params.getMandatoryString("service");
         if (!service.equals("WMS")) {
@@ -302,9 +373,13 @@ public abstract class AbstractWmsController extends AbstractController {
         // format if the client has requested an unknown format.  Hence we do
         // nothing here.
 
+        CapabilitiesSource source = new CapabilitiesSource(datasets, allDatasets,
+            httpServletRequest.getRequestURL().toString(), versionStr);
+        DateTime lastUpdateTime = source.getLastUpdateTime();
+
         // Do UPDATESEQUENCE negotiation according to WMS 1.3.0 spec (sec 7.2.3.5)
         String updateSeqStr = params.getString("updatesequence");
-        if (updateSeqStr != null) {
+        if (updateSeqStr != null && lastUpdateTime != null) {
             DateTime updateSequence;
             try {
                 updateSequence = WmsUtils.iso8601ToDateTime(updateSeqStr, ISOChronology.getInstanceUTC());
@@ -326,51 +401,97 @@ public abstract class AbstractWmsController extends AbstractController {
             }
         }
 
-        Map<String, Object> models = new HashMap<String, Object>();
-        models.put("config", this.serverConfig);
-        models.put("datasets", datasets);
-        // We use the current time if the last update time is unknown
-        models.put("lastUpdate", lastUpdateTime == null ? new DateTime() : lastUpdateTime);
-        models.put("wmsBaseUrl", httpServletRequest.getRequestURL().toString());
-        // Show only a subset of the CRS codes that we are likely to use.
-        // Otherwise Capabilities doc gets very large indeed.
-        // TODO: make configurable in admin app
-        String[] supportedCrsCodes = new String[]{
-            "EPSG:4326", "CRS:84", // Plate Carree
-            "EPSG:41001", // Mercator (~ Google Maps)  TODO replace with real Google Maps code
-            "EPSG:27700", // British National Grid
-            // See http://nsidc.org/data/atlas/ogc_services.html for useful
-            // stuff about polar stereographic projections
-            "EPSG:3408", // NSIDC EASE-Grid North
-            "EPSG:3409", // NSIDC EASE-Grid South
-            "EPSG:32661", // North Polar stereographic
-            "EPSG:32761" // South Polar stereographic
-        };
-        models.put("supportedCrsCodes", supportedCrsCodes); //*/HorizontalGrid.SUPPORTED_CRS_CODES);
-        models.put("supportedImageFormats", ImageFormat.getSupportedMimeTypes());
-        models.put("layerLimit", LAYER_LIMIT);
-        models.put("featureInfoFormats", new String[]{FEATURE_INFO_PNG_FORMAT,
-                    FEATURE_INFO_XML_FORMAT});
-        models.put("legendWidth", ColorPalette.LEGEND_WIDTH);
-        models.put("legendHeight", ColorPalette.LEGEND_HEIGHT);
-        models.put("paletteNames", ColorPalette.getAvailablePaletteNames());
-
-        // Do WMS version negotiation.  From the WMS 1.3.0 spec:
-        // * If a version unknown to the server and higher than the lowest
-        //   supported version is requested, the server shall send the highest
-        //   version it supports that is less than the requested version.
-        // * If a version lower than any of those known to the server is requested,
-        //   then the server shall send the lowest version it supports.
-        // We take the version to be 1.3.0 if not specified
-        WmsVersion wmsVersion = versionStr == null
-                ? WmsVersion.VERSION_1_3_0
-                : new WmsVersion(versionStr);
-        if (wmsVersion.compareTo(WmsVersion.VERSION_1_3_0) >= 0) {
-            // version is >= 1.3.0. Send 1.3.0 Capabilities
-            return new ModelAndView("capabilities_xml", models);
-        } else {
-            // version is < 1.3.0. Send 1.1.1 Capabilities
-            return new ModelAndView("capabilities_xml_1_1_1", models);
+        StringBuilder key = new StringBuilder();
+        if (!allDatasets) {
+            for (Dataset ds : datasets) key.append(ds.getId()).append(',');
+        }
+        key.append('|').append(source.version130 ? "1.3.0" : "1.1.1");
+        key.append('|').append(source.wmsBaseUrl);
+        CapabilitiesCache.Document doc = this.capabilitiesCache.get(key.toString(), source);
+
+        // Clients must check with us before using a copy of the document
+        httpServletResponse.setHeader("Cache-Control", "no-cache");
+        httpServletResponse.setHeader("ETag", doc.getETag());
+        httpServletResponse.setDateHeader("Last-Modified", doc.getLastModified());
+        httpServletResponse.setHeader("Vary", "Accept-Encoding");
+        if (isNotModified(httpServletRequest, doc.getETag(), doc.getLastModified())) {
+            usageLogEntry.setUsedCache(true);
+            httpServletResponse.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return null;
+        }
+        httpServletResponse.setStatus(HttpServletResponse.SC_OK);
+        httpServletResponse.setContentType("text/xml;charset=UTF-8");
+        String acceptEncoding = httpServletRequest.getHeader("Accept-Encoding");
+        boolean gzip = acceptEncoding != null && acceptEncoding.toLowerCase().contains("gzip");
+        if (gzip) {
+            httpServletResponse.setHeader("Content-Encoding", "gzip");
+            httpServletResponse.setContentLength(doc.getGzippedLength());
+        }
+        doc.writeTo(httpServletResponse.getOutputStream(), gzip);
+        return null;
+    }
+
+    /**
+     * Produces a Capabilities document for the {@link CapabilitiesCache}.
+     * The version of the document depends on the version of the server's
+     * metadata, the last update time of the datasets and whether each
+     * dataset is ready.
+     */
+    private final class CapabilitiesSource implements CapabilitiesCache.Source {
+        private final Collection<? extends Dataset> datasets;
+        private final boolean allDatasets;
+        private final String wmsBaseUrl;
+        private final boolean version130;
+
+        public CapabilitiesSource(Collection<? extends Dataset> datasets,
+                boolean allDatasets, String wmsBaseUrl, String versionStr) {
+            this.datasets = datasets;
+            this.allDatasets = allDatasets;
+            this.wmsBaseUrl = wmsBaseUrl;
+            // Do WMS version negotiation.  From the WMS 1.3.0 spec:
+            // * If a version unknown to the server and higher than the lowest
+            //   supported version is requested, the server shall send the highest
+            //   version it supports that is less than the requested version.
+            // * If a version lower than any of those known to the server is requested,
+            //   then the server shall send the lowest version it supports.
+            // We take the version to be 1.3.0 if not specified
+            WmsVersion wmsVersion = versionStr == null
+                    ? WmsVersion.VERSION_1_3_0
+                    : new WmsVersion(versionStr);
+            this.version130 = wmsVersion.compareTo(WmsVersion.VERSION_1_3_0) >= 0;
+        }
+
+        /** Returns the last update time of the document, or null if unknown */
+        public DateTime getLastUpdateTime() {
+            if (this.allDatasets) return serverConfig.getLastUpdateTime();
+            DateTime lastUpdate = null;
+            for (Dataset ds : this.datasets) {
+                DateTime dsUpdate = ds.getLastUpdateTime();
+                if (lastUpdate == null || (dsUpdate != null && dsUpdate.isAfter(lastUpdate))) {
+                    lastUpdate = dsUpdate;
+                }
+            }
+            return lastUpdate;
+        }
+
+        @Override
+        public long getVersion() {
+            DateTime lastUpdate = this.getLastUpdateTime();
+            long version = serverConfig.getMetadataVersion();
+            version = 31 * version + (lastUpdate == null ? 0 : lastUpdate.getMillis());
+            for (Dataset ds : this.datasets) {
+                version = 31 * version + (ds.isReady() ? 1 : 0);
+            }
+            return version;
+        }
+
+        @Override
+        public long write(OutputStream out) throws Exception {
+            DateTime lastUpdate = this.getLastUpdateTime();
+            // We use the current time if the last update time is unknown
+            return new CapabilitiesWriter(serverConfig, this.datasets,
+                lastUpdate == null ? new DateTime() : lastUpdate,
+                this.wmsBaseUrl, this.version130).write(out);
         }
     }
 
@@ -385,13 +506,17 @@ public abstract class AbstractWmsController extends AbstractController {
      * width/height).</li>
      * <li>Looks for TIME and ELEVATION parameters (TIME may be expressed as a
      * start/end range, in which case we will produce an animation).</li>
+     * <li>If the {@link ImageCache} is enabled, responds with 304 (Not Modified)
+     * if the client already has the image, or with the cached image if there
+     * is one.</li>
      * <li>Extracts the data, returning an array of floats, representing
      * the data values at each pixel in the final image.</li>
      * <li>Uses an {@link ImageProducer} object to turn the array of data into
      * a {@link java.awt.image.BufferedImage} (or, in the case of an animation, several
      * {@link java.awt.image.BufferedImage}s).</li>
      * <li>Uses a {@link ImageFormat} object to write the image to the servlet's
-     * output stream in the requested format.</li>
+     * output stream in the requested format, storing the encoded image in the
+     * {@link ImageCache} if it is enabled.</li>
      * </ol>
      * @throws WmsException if the user has provided invalid parameters
      * @throws Exception if an internal error occurs
@@ -400,9 +525,11 @@ public abstract class AbstractWmsController extends AbstractController {
      * @todo Separate Model and View code more cleanly
      */
     protected ModelAndView getMap(RequestParams params, LayerFactory layerFactory,
-            HttpServletResponse httpServletResponse, UsageLogEntry usageLogEntry)
+            HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse,
+            final UsageLogEntry usageLogEntry)
             throws WmsException, Exception
     {
+        long parseStart = System.nanoTime();
         // Parse the URL parameters
         GetMapRequest getMapRequest = new GetMapRequest(params);
         usageLogEntry.setGetMapRequest(getMapRequest);
@@ -412,9 +539,9 @@ public abstract class AbstractWmsController extends AbstractController {
         // Get the ImageFormat object corresponding with the requested MIME type
         String mimeType = getMapRequest.getStyleRequest().getImageFormat();
         // This throws an InvalidFormatException if the MIME type is not supported
-        ImageFormat imageFormat = ImageFormat.get(mimeType);
+        final ImageFormat imageFormat = ImageFormat.get(mimeType);
 
-        GetMapDataRequest dr = getMapRequest.getDataRequest();
+        final GetMapDataRequest dr = getMapRequest.getDataRequest();
 
         // Check the dimensions of the image
         if (dr.getHeight() > this.serverConfig.getMaxImageHeight() ||
@@ -425,11 +552,16 @@ public abstract class AbstractWmsController extends AbstractController {
         }
 
         String layerName = getLayerName(dr);
-        Layer layer = layerFactory.getLayer(layerName);
+        final Layer layer = layerFactory.getLayer(layerName);
         usageLogEntry.setLayer(layer);
+        final StageRecorder stages = this.metrics.getStageRecorder(
+            layer.getDataset().getId(), layer.getId(), mimeType);
+        stages.record(Stage.PARSE, System.nanoTime() - parseStart);
 
         // Get the grid onto which the data will be projected
-        RegularGrid grid = WmsUtils.getImageGrid(dr);
+        long crsStart = System.nanoTime();
+        final RegularGrid grid = WmsUtils.getImageGrid(dr);
+        stages.record(Stage.CRS_LOOKUP, System.nanoTime() - crsStart);
 
         // Create an object that will turn data into BufferedImages
         String[] styles = styleRequest.getStyles();
@@ -461,7 +593,7 @@ public abstract class AbstractWmsController extends AbstractController {
             }
         }
 
-        ImageProducer imageProducer = new ImageProducer.Builder()
+        final ImageProducer imageProducer = new ImageProducer.Builder()
             .width(dr.getWidth())
             .height(dr.getHeight())
             .style(style)
@@ -486,17 +618,60 @@ public abstract class AbstractWmsController extends AbstractController {
 
         double zValue = getElevationValue(dr.getElevationString(), layer);
 
-        // Cycle through all the provided timesteps, extracting data for each step
-        List<String> tValueStrings = new ArrayList<String>();
+        // Find the components of the layer that we need to read: a vector
+        // layer has two components, which we read in parallel
+        final List<ScalarLayer> components;
+        if (layer instanceof ScalarLayer) {
+            components = Arrays.asList((ScalarLayer)layer);
+        } else if (layer instanceof VectorLayer) {
+            VectorLayer vecLayer = (VectorLayer)layer;
+            components = Arrays.asList(vecLayer.getEastwardComponent(),
+                vecLayer.getNorthwardComponent());
+        } else {
+            throw new IllegalStateException("Unrecognized layer type");
+        }
+
+        // Cycle through all the provided timesteps, creating a task that
+        // extracts the data for each component at each step
+        final List<String> tValueStrings = new ArrayList<String>();
         List<DateTime> timeValues = getTimeValues(dr.getTimeString(), layer);
         if (timeValues.size() > 1 && !imageFormat.supportsMultipleFrames()) {
             throw new WmsException("The image format " + mimeType +
                     " does not support multiple frames");
         }
         usageLogEntry.setNumTimeSteps(timeValues.size());
-        long beforeExtractData = System.currentTimeMillis();
         // Use a single null time value if the layer has no time axis
         if (timeValues.isEmpty()) timeValues = Arrays.asList((DateTime)null);
+
+        // See if we can satisfy the request without rendering the image
+        String imageKey = null;
+        String etag = null;
+        long lastModified = -1;
+        if (this.imageCache != null && this.imageCache.isEnabled()) {
+            DateTime lastUpdate = layer.getDataset().getLastUpdateTime();
+            imageKey = getImageCacheKey(layerName, lastUpdate, dr, timeValues,
+                zValue, style, palette, scaleRange, logScale, styleRequest);
+            etag = ImageCache.getETag(imageKey);
+            // HTTP dates have a resolution of one second
+            lastModified = lastUpdate.getMillis() / 1000 * 1000;
+            if (isNotModified(httpServletRequest, etag, lastModified)) {
+                usageLogEntry.setUsedCache(true);
+                httpServletResponse.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                httpServletResponse.setHeader("ETag", etag);
+                httpServletResponse.setDateHeader("Last-Modified", lastModified);
+                return null;
+            }
+            byte[] image = this.imageCache.get(imageKey);
+            if (image != null) {
+                usageLogEntry.setUsedCache(true);
+                setImageHeaders(httpServletResponse, mimeType, imageFormat, layer,
+                    etag, lastModified);
+                writeImageBytes(httpServletResponse, image, stages);
+                return null;
+            }
+        }
+
+        final List<DataGridReadTask> readTasks = new ArrayList<DataGridReadTask>();
         for (DateTime timeValue : timeValues) {
             // Only add a label if this is part of an animation
             String tValueStr = "";
@@ -505,41 +680,208 @@ public abstract class AbstractWmsController extends AbstractController {
             }
             tValueStrings.add(tValueStr);
 
-            if (layer instanceof ScalarLayer) {
-                // Note that if the layer doesn't have a time axis, timeValue==null but this
-                // will be ignored by readHorizontalPoints()
-                List<Float> data = this.readDataGrid((ScalarLayer)layer, timeValue, zValue, grid, usageLogEntry);
-                imageProducer.addFrame(data, tValueStr);
-            } else if (layer instanceof VectorLayer) {
-                VectorLayer vecLayer = (VectorLayer)layer;
-                List<Float> eastData  = this.readDataGrid(vecLayer.getEastwardComponent(),  timeValue, zValue, grid, usageLogEntry);
-                List<Float> northData = this.readDataGrid(vecLayer.getNorthwardComponent(), timeValue, zValue, grid, usageLogEntry);
-                imageProducer.addFrame(eastData, northData, tValueStr);
-            } else {
-                throw new IllegalStateException("Unrecognized layer type");
+            // Note that if the layer doesn't have a time axis, timeValue==null but this
+            // will be ignored by readHorizontalPoints()
+            for (ScalarLayer component : components) {
+                readTasks.add(new DataGridReadTask(component, timeValue, zValue,
+                    grid, usageLogEntry));
             }
         }
+
+        if (imageKey == null) {
+            long colourNanos = this.extractFrames(imageProducer, readTasks,
+                components.size(), tValueStrings, usageLogEntry);
+            // We only create a legend object if the image format requires it
+            BufferedImage legend = imageFormat.requiresLegend() ? imageProducer.getLegend(layer) : null;
+            // Set the HTTP headers, then render the images and write to the
+            // output stream.  The image is encoded as it is written, so we
+            // separate the time spent writing from the time spent encoding.
+            setImageHeaders(httpServletResponse, mimeType, imageFormat, layer,
+                etag, lastModified);
+            List<BufferedImage> frames = getRenderedFrames(imageProducer, colourNanos, stages);
+            TimingOutputStream out = new TimingOutputStream(httpServletResponse.getOutputStream());
+            long encodeStart = System.nanoTime();
+            imageFormat.writeImage(frames, out, layer, tValueStrings,
+                    dr.getElevationString(), grid.getExtent(), legend);
+            long encodeNanos = System.nanoTime() - encodeStart;
+            stages.record(Stage.ENCODING, encodeNanos - out.getNanos());
+            stages.record(Stage.RESPONSE_WRITE, out.getNanos());
+        } else {
+            // Render the images to memory so that we can cache the result.
+            // If another thread is already rendering exactly the same image
+            // we wait for its result instead of doing the same work twice.
+            final String key = imageKey;
+            final boolean[] renderedByThisThread = new boolean[1];
+            byte[] image = this.imageCache.getRenderCoalescer().execute(key, new Callable<byte[]>() {
+                @Override public byte[] call() throws Exception {
+                    renderedByThisThread[0] = true;
+                    long colourNanos = extractFrames(imageProducer, readTasks,
+                        components.size(), tValueStrings, usageLogEntry);
+                    BufferedImage legend = imageFormat.requiresLegend() ? imageProducer.getLegend(layer) : null;
+                    List<BufferedImage> frames = getRenderedFrames(imageProducer, colourNanos, stages);
+                    long encodeStart = System.nanoTime();
+                    ByteArrayOutputStream imageOut = new ByteArrayOutputStream();
+                    imageFormat.writeImage(frames, imageOut, layer, tValueStrings,
+                            dr.getElevationString(), grid.getExtent(), legend);
+                    byte[] image = imageOut.toByteArray();
+                    stages.record(Stage.ENCODING, System.nanoTime() - encodeStart);
+                    imageCache.put(key, image);
+                    return image;
+                }
+            });
+            // An image rendered by another thread is as good as a cache hit
+            if (!renderedByThisThread[0]) usageLogEntry.setUsedCache(true);
+            setImageHeaders(httpServletResponse, mimeType, imageFormat, layer,
+                etag, lastModified);
+            writeImageBytes(httpServletResponse, image, stages);
+        }
+
+        return null;
+    }
+
+    /**
+     * Runs the given data-reading tasks on the shared pool of threads, adding
+     * the frames to the image in order as the data become available.  If
+     * anything goes wrong (e.g. a read fails or the request thread is
+     * interrupted because the client has gone away) we make sure that no
+     * reads are left running.
+     * @param numComponents The number of tasks per frame: 1 for a scalar
+     * layer, 2 for a vector layer
+     * @return the time spent adding the frames to the image (which colours
+     * them if the colour scale is fixed) in nanoseconds
+     */
+    private long extractFrames(ImageProducer imageProducer,
+            List<DataGridReadTask> readTasks, int numComponents,
+            List<String> tValueStrings, UsageLogEntry usageLogEntry) throws Exception {
+        long beforeExtractData = System.currentTimeMillis();
+        OrderedTaskRunner<float[]> frameReader = new OrderedTaskRunner<float[]>(
+            this.getDataExtractionExecutor(), readTasks,
+            this.serverConfig.getMaxParallelReadsPerRequest());
+        long colourNanos = 0;
+        try {
+            for (String tValueStr : tValueStrings) {
+                if (numComponents == 1) {
+                    float[] data = frameReader.next();
+                    long start = System.nanoTime();
+                    imageProducer.addFrame(data, tValueStr);
+                    colourNanos += System.nanoTime() - start;
+                } else {
+                    float[] eastData  = frameReader.next();
+                    float[] northData = frameReader.next();
+                    long start = System.nanoTime();
+                    imageProducer.addFrame(eastData, northData, tValueStr);
+                    colourNanos += System.nanoTime() - start;
+                }
+            }
+        } finally {
+            frameReader.cancel();
+        }
         long timeToExtractData = System.currentTimeMillis() - beforeExtractData;
         usageLogEntry.setTimeToExtractDataMs(timeToExtractData);
+        return colourNanos;
+    }
 
-        // We only create a legend object if the image format requires it
-        BufferedImage legend = imageFormat.requiresLegend() ? imageProducer.getLegend(layer) : null;
+    /**
+     * Gets the coloured frames from the image producer, recording the total
+     * time taken to colour them.  Frames are coloured here if the colour scale
+     * had to be found from the data.
+     * @param colourNanos The time already spent colouring frames as they
+     * were added, in nanoseconds
+     */
+    private static List<BufferedImage> getRenderedFrames(ImageProducer imageProducer,
+            long colourNanos, StageRecorder stages) {
+        long start = System.nanoTime();
+        List<BufferedImage> frames = imageProducer.getRenderedFrames();
+        stages.record(Stage.COLOUR_MAPPING, colourNanos + System.nanoTime() - start);
+        return frames;
+    }
 
-        // Write the image to the client.
-        // First we set the HTTP headers
+    /** Writes an image that has already been encoded to the client */
+    private static void writeImageBytes(HttpServletResponse httpServletResponse,
+            byte[] image, StageRecorder stages) throws IOException {
+        long start = System.nanoTime();
+        httpServletResponse.setContentLength(image.length);
+        httpServletResponse.getOutputStream().write(image);
+        stages.record(Stage.RESPONSE_WRITE, System.nanoTime() - start);
+    }
+
+    /**
+     * Sets the HTTP status and headers for a successful GetMap response.
+     * @param etag The entity tag of the image, or null if the image cache is
+     * not in use, in which case {@code lastModified} is ignored
+     */
+    private static void setImageHeaders(HttpServletResponse httpServletResponse,
+            String mimeType, ImageFormat imageFormat, Layer layer,
+            String etag, long lastModified) {
         httpServletResponse.setStatus(HttpServletResponse.SC_OK);
         httpServletResponse.setContentType(mimeType);
+        if (etag != null) {
+            httpServletResponse.setHeader("ETag", etag);
+            httpServletResponse.setDateHeader("Last-Modified", lastModified);
+        }
         // If this is a KMZ file give it a sensible filename
         if (imageFormat instanceof KmzFormat) {
             httpServletResponse.setHeader("Content-Disposition", "inline; filename=" +
                     layer.getDataset().getId() + "_" + layer.getId() + ".kmz");
         }
-        // Render the images and write to the output stream
-        imageFormat.writeImage(imageProducer.getRenderedFrames(),
-                httpServletResponse.getOutputStream(), layer, tValueStrings,
-                dr.getElevationString(), grid.getExtent(), legend);
+    }
 
-        return null;
+    /**
+     * Creates a key for the {@link ImageCache} from a GetMap request.  The
+     * key is built from the values that are actually used to create the image
+     * (e.g. the resolved time values and the default colour scale range if
+     * none was requested), so that equivalent requests share a key.  The key
+     * includes the time at which the layer's dataset was last updated.
+     */
+    private static String getImageCacheKey(String layerName, DateTime lastUpdate,
+            GetMapDataRequest dr, List<DateTime> timeValues, double zValue,
+            ImageProducer.Style style, ColorPalette palette, Range<Float> scaleRange,
+            boolean logScale, GetMapStyleRequest styleRequest) {
+        StringBuilder key = new StringBuilder();
+        key.append(layerName).append('|').append(lastUpdate.getMillis());
+        key.append('|').append(dr.getCrsCode());
+        key.append('|').append(Arrays.toString(dr.getBbox()));
+        key.append('|').append(dr.getWidth()).append('x').append(dr.getHeight());
+        key.append('|');
+        for (DateTime timeValue : timeValues) {
+            key.append(timeValue == null ? "null" : timeValue.getMillis()).append(',');
+        }
+        key.append('|').append(zValue);
+        // The elevation string is used in the text of KMZ files
+        key.append('|').append(dr.getElevationString());
+        key.append('|').append(style).append('/').append(palette.getName());
+        key.append('|').append(scaleRange.getMinimum()).append(',').append(scaleRange.getMaximum());
+        key.append('|').append(logScale);
+        key.append('|').append(styleRequest.getNumColourBands());
+        key.append('|').append(styleRequest.getOpacity());
+        key.append('|').append(styleRequest.isTransparent());
+        key.append('|').append(styleRequest.getBackgroundColour().getRGB());
+        key.append('|').append(styleRequest.getImageFormat());
+        return key.toString();
+    }
+
+    /**
+     * Returns true if the conditional headers in the given request show that
+     * the client already has the current version of the image.  If-None-Match
+     * takes precedence over If-Modified-Since.
+     */
+    private static boolean isNotModified(HttpServletRequest httpServletRequest,
+            String etag, long lastModified) {
+        String ifNoneMatch = httpServletRequest.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.equals("*") || tag.equals(etag)) return true;
+            }
+            return false;
+        }
+        try {
+            long ifModifiedSince = httpServletRequest.getDateHeader("If-Modified-Since");
+            return ifModifiedSince >= 0 && lastModified <= ifModifiedSince;
+        } catch (IllegalArgumentException iae) {
+            // The header could not be parsed as a date
+            return false;
+        }
     }
 
     /**
@@ -578,6 +920,7 @@ public abstract class AbstractWmsController extends AbstractController {
             UsageLogEntry usageLogEntry)
             throws WmsException, Exception
     {
+        long parseStart = System.nanoTime();
         GetFeatureInfoRequest request = new GetFeatureInfoRequest(params);
         usageLogEntry.setGetFeatureInfoRequest(request);
 
@@ -593,8 +936,12 @@ public abstract class AbstractWmsController extends AbstractController {
         String layerName = getLayerName(dr);
         Layer layer = layerFactory.getLayer(layerName);
         usageLogEntry.setLayer(layer);
+        StageRecorder stages = this.metrics.getStageRecorder(
+            layer.getDataset().getId(), layer.getId(), request.getOutputFormat());
+        stages.record(Stage.PARSE, System.nanoTime() - parseStart);
 
         // Get the grid onto which the data is being projected
+        long crsStart = System.nanoTime();
         RegularGrid grid = WmsUtils.getImageGrid(dr);
         // Get the real-world coordinate values of the point of interest
         // Remember that the vertical axis is flipped
@@ -613,6 +960,7 @@ public abstract class AbstractWmsController extends AbstractController {
             HorizontalPosition gridCellCentrePos = horizGrid.transformCoordinates(gridCoords);
             gridCellCentre = Utils.transformToWgs84LonLat(gridCellCentrePos);
         }
+        stages.record(Stage.CRS_LOOKUP, System.nanoTime() - crsStart);
 
         // Get the elevation value requested
         double zValue = getElevationValue(dr.getElevationString(), layer);
@@ -625,6 +973,10 @@ public abstract class AbstractWmsController extends AbstractController {
         // First we read the timeseries data.  If the layer doesn't have a time
         // axis we'll use ScalarLayer.readSinglePoint() instead.
         // TODO: this code is messy: refactor.
+        // The data are read on this thread, so we can find out how long each
+        // stage of reading took.
+        ReadTimings.clear();
+        DataReadingStrategy.clearLastUsed();
         List<Float> tsData;
         if (layer instanceof ScalarLayer) {
             ScalarLayer scalLayer = (ScalarLayer)layer;
@@ -657,6 +1009,9 @@ public abstract class AbstractWmsController extends AbstractController {
         } else {
             throw new IllegalStateException("Unrecognized layer type");
         }
+        DataReadingStrategy strategy = DataReadingStrategy.getLastUsed();
+        stages.recordReadTimings(ReadTimings.get(),
+            strategy == null ? null : strategy.name());
 
         // Internal consistency check: arrays should be the same length
         if (!tValues.isEmpty() && tValues.size() != tsData.size()) {
@@ -685,6 +1040,7 @@ public abstract class AbstractWmsController extends AbstractController {
         } else {
             // Must be PNG format: prepare and output the JFreeChart
             // TODO: this is nasty: we're mixing presentation code in the controller
+            long encodeStart = System.nanoTime();
             TimeSeries ts = new TimeSeries("Data", Millisecond.class);
             for (DateTime dateTime : featureData.keySet()) {
                 ts.add(new Millisecond(dateTime.toDate()), featureData.get(dateTime));
@@ -706,8 +1062,11 @@ public abstract class AbstractWmsController extends AbstractController {
             chart.getXYPlot().setNoDataMessageFont(new Font("sansserif", Font.BOLD, 32));
             httpServletResponse.setContentType("image/png");
 
-            ChartUtilities.writeChartAsPNG(httpServletResponse.getOutputStream(),
-                    chart, 400, 300);
+            TimingOutputStream out = new TimingOutputStream(httpServletResponse.getOutputStream());
+            ChartUtilities.writeChartAsPNG(out, chart, 400, 300);
+            long encodeNanos = System.nanoTime() - encodeStart;
+            stages.record(Stage.ENCODING, encodeNanos - out.getNanos());
+            stages.record(Stage.RESPONSE_WRITE, out.getNanos());
             return null;
         }
     }
@@ -1153,24 +1512,80 @@ public abstract class AbstractWmsController extends AbstractController {
      * @param grid The grid of points, one point per pixel in the image that will
      * be created in the GetMap operation
      * @param usageLogEntry
-     * @return a List of data values, one for each point in
-     * the {@code grid}, in the same order.
+     * @return an array of data values, one for each point in
+     * the {@code grid}, in the same order.  Missing values are represented
+     * by NaNs.
      * @throws InvalidDimensionValueException if {@code dateTime} or {@code elevation}
      * do not represent valid values along the time and elevation axes.
      * @throws IOException if there was an error reading from the data source
      */
-    protected List<Float> readDataGrid(ScalarLayer layer, DateTime dateTime,
+    protected float[] readDataGrid(ScalarLayer layer, DateTime dateTime,
         double elevation, RegularGrid grid, UsageLogEntry usageLogEntry)
         throws InvalidDimensionValueException, IOException
     {
-        return layer.readHorizontalPoints(dateTime, elevation, grid);
+        return layer.readHorizontalPointsAsArray(dateTime, elevation, grid);
+    }
+
+    /**
+     * Task that reads a grid of data from a {@link ScalarLayer} using
+     * {@link #readDataGrid readDataGrid()}, allowing the frames of an animation
+     * to be read in parallel.
+     */
+    private final class DataGridReadTask implements Callable<float[]> {
+        private final ScalarLayer layer;
+        private final DateTime dateTime;
+        private final double elevation;
+        private final RegularGrid grid;
+        private final UsageLogEntry usageLogEntry;
+
+        public DataGridReadTask(ScalarLayer layer, DateTime dateTime,
+                double elevation, RegularGrid grid, UsageLogEntry usageLogEntry) {
+            this.layer = layer;
+            this.dateTime = dateTime;
+            this.elevation = elevation;
+            this.grid = grid;
+            this.usageLogEntry = usageLogEntry;
+        }
+
+        @Override
+        public float[] call() throws Exception {
+            return readDataGrid(this.layer, this.dateTime, this.elevation,
+                this.grid, this.usageLogEntry);
+        }
+    }
+
+    /**
+     * Returns the server-wide pool of threads for extracting data, resizing
+     * it first if the administrator has changed the number of threads.
+     */
+    private ThreadPoolExecutor getDataExtractionExecutor() {
+        int numThreads = Math.max(1, this.serverConfig.getMaxDataExtractionThreads());
+        synchronized (this.dataExtractionExecutor) {
+            if (numThreads > this.dataExtractionExecutor.getMaximumPoolSize()) {
+                this.dataExtractionExecutor.setMaximumPoolSize(numThreads);
+                this.dataExtractionExecutor.setCorePoolSize(numThreads);
+            } else if (numThreads < this.dataExtractionExecutor.getMaximumPoolSize()) {
+                this.dataExtractionExecutor.setCorePoolSize(numThreads);
+                this.dataExtractionExecutor.setMaximumPoolSize(numThreads);
+            }
+        }
+        return this.dataExtractionExecutor;
     }
 
     /**
-     * Called by Spring to shutdown the controller.  This implementation does
-     * nothing: subclasses should override if necessary to free resources.
+     * Called by Spring to shutdown the controller.  This implementation shuts
+     * down the pool of threads that is used to extract data and the cache of
+     * Capabilities documents: subclasses should
+     * override if necessary to free further resources, calling this method.
      */
-    public void shutdown() {}
+    public void shutdown() {
+        if (this.dataExtractionExecutor != null) {
+            this.dataExtractionExecutor.shutdownNow();
+        }
+        if (this.capabilitiesCache != null) {
+            this.capabilitiesCache.shutdown();
+        }
+    }
 
     /**
      * Called by the Spring framework to inject the object that represents the
@@ -1186,4 +1601,20 @@ public abstract class AbstractWmsController extends AbstractController {
     public void setUsageLogger(UsageLogger usageLogger) {
         this.usageLogger = usageLogger;
     }
+
+    /**
+     * Called by Spring to inject the cache of rendered images.  If this is
+     * not set, images will not be cached.
+     */
+    public void setImageCache(ImageCache imageCache) {
+        this.imageCache = imageCache;
+    }
+
+    /**
+     * Called by Spring to inject the registry in which the timings of
+     * requests are recorded.
+     */
+    public void setMetrics(MetricsRegistry metrics) {
+        this.metrics = metrics;
+    }
 }
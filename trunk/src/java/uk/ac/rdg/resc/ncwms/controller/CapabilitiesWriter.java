@@ -0,0 +1,427 @@
+/*
+ * Copyright (c) 2010 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.controller;
+
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import org.joda.time.DateTime;
+import org.opengis.metadata.extent.GeographicBoundingBox;
+import uk.ac.rdg.resc.ncwms.graphics.ColorPalette;
+import uk.ac.rdg.resc.ncwms.graphics.ImageFormat;
+import uk.ac.rdg.resc.ncwms.util.WmsUtils;
+import uk.ac.rdg.resc.ncwms.wms.Dataset;
+import uk.ac.rdg.resc.ncwms.wms.Layer;
+
+/**
+ * <p>Writes Capabilities documents for WMS 1.3.0 and 1.1.1 with a streaming
+ * XML writer.  This produces the same documents as the JSPs that it replaced,
+ * but evaluates no expressions per element and holds none of the document in
+ * memory, so documents that describe thousands of layers are quick to
+ * write.</p>
+ * <p>Some of the content depends on the current time: the default time value
+ * of a layer is the most recent time that is not in the future.  The
+ * {@link #write(java.io.OutputStream) write()} method therefore returns the
+ * time at which the document will go out of date.</p>
+ * @author Jon
+ */
+final class CapabilitiesWriter
+{
+    private static final String WMS_NS = "http://www.opengis.net/wms";
+    private static final String XLINK_NS = "http://www.w3.org/1999/xlink";
+    private static final String XSI_NS = "http://www.w3.org/2001/XMLSchema-instance";
+
+    private static final XMLOutputFactory OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+
+    /**
+     * The CRS codes that are advertised in Capabilities documents.  We show
+     * only a subset of the codes that we are likely to use, otherwise the
+     * Capabilities doc gets very large indeed.
+     * TODO: make configurable in admin app
+     */
+    private static final String[] SUPPORTED_CRS_CODES = new String[]{
+        "EPSG:4326", "CRS:84", // Plate Carree
+        "EPSG:41001", // Mercator (~ Google Maps)  TODO replace with real Google Maps code
+        "EPSG:27700", // British National Grid
+        // See http://nsidc.org/data/atlas/ogc_services.html for useful
+        // stuff about polar stereographic projections
+        "EPSG:3408", // NSIDC EASE-Grid North
+        "EPSG:3409", // NSIDC EASE-Grid South
+        "EPSG:32661", // North Polar stereographic
+        "EPSG:32761" // South Polar stereographic
+    };
+
+    private final ServerConfig config;
+    private final Collection<? extends Dataset> datasets;
+    private final DateTime lastUpdate;
+    private final String wmsBaseUrl;
+    private final boolean version130;
+
+    private XMLStreamWriter xml;
+    private int depth;
+    private long expires;
+
+    /**
+     * @param datasets The datasets to include in the document: those that are
+     * not ready are skipped
+     * @param lastUpdate The time at which the datasets were last updated,
+     * which is written as the update sequence of the document
+     * @param wmsBaseUrl The URL of this server's WMS endpoint
+     * @param version130 true to write a WMS 1.3.0 document, false to write a
+     * WMS 1.1.1 document
+     */
+    public CapabilitiesWriter(ServerConfig config, Collection<? extends Dataset> datasets,
+            DateTime lastUpdate, String wmsBaseUrl, boolean version130)
+    {
+        this.config = config;
+        this.datasets = datasets;
+        this.lastUpdate = lastUpdate;
+        this.wmsBaseUrl = wmsBaseUrl;
+        this.version130 = version130;
+    }
+
+    /**
+     * Writes the document to the given stream in UTF-8, without closing it.
+     * @return the time (in milliseconds since the epoch) at which the default
+     * time value of a layer in the document will change, or
+     * {@link Long#MAX_VALUE} if this will never happen
+     */
+    public long write(OutputStream out) throws XMLStreamException
+    {
+        this.xml = OUTPUT_FACTORY.createXMLStreamWriter(out, "UTF-8");
+        this.depth = 0;
+        this.expires = Long.MAX_VALUE;
+        this.xml.writeStartDocument("UTF-8", "1.0");
+        if (this.version130)
+        {
+            this.start("WMS_Capabilities");
+            this.xml.writeDefaultNamespace(WMS_NS);
+            this.xml.writeNamespace("xlink", XLINK_NS);
+            this.xml.writeNamespace("xsi", XSI_NS);
+            this.xml.writeAttribute("version", "1.3.0");
+            this.xml.writeAttribute("updateSequence", WmsUtils.dateTimeToISO8601(this.lastUpdate));
+            this.xml.writeAttribute("xsi", XSI_NS, "schemaLocation", WMS_NS
+                + " http://schemas.opengis.net/wms/1.3.0/capabilities_1_3_0.xsd");
+        }
+        else
+        {
+            this.newLine();
+            this.xml.writeDTD("<!DOCTYPE WMT_MS_Capabilities SYSTEM "
+                + "\"http://schemas.opengis.net/wms/1.1.1/capabilities_1_1_1.dtd\">");
+            this.start("WMT_MS_Capabilities");
+            this.xml.writeNamespace("xlink", XLINK_NS);
+            this.xml.writeAttribute("version", "1.1.1");
+            this.xml.writeAttribute("updateSequence", WmsUtils.dateTimeToISO8601(this.lastUpdate));
+        }
+        this.writeService();
+        this.writeCapability();
+        this.end();
+        this.newLine();
+        this.xml.writeEndDocument();
+        this.xml.flush();
+        this.xml.close();
+        return this.expires;
+    }
+
+    private void writeService() throws XMLStreamException
+    {
+        this.start("Service");
+        this.element("Name", this.version130 ? "WMS" : "OGC:WMS");
+        this.element("Title", this.config.getTitle());
+        this.element("Abstract", this.config.getAbstract());
+        this.start("KeywordList");
+        Set<String> keywords = this.config.getKeywords();
+        if (keywords != null)
+        {
+            for (String keyword : keywords) this.element("Keyword", keyword);
+        }
+        this.end();
+        this.onlineResource(this.config.getServiceProviderUrl());
+        this.start("ContactInformation");
+        this.start("ContactPersonPrimary");
+        this.element("ContactPerson", this.config.getContactName());
+        this.element("ContactOrganization", this.config.getContactOrganization());
+        this.end();
+        this.element("ContactVoiceTelephone", this.config.getContactTelephone());
+        this.element("ContactElectronicMailAddress", this.config.getContactEmail());
+        this.end();
+        this.element("Fees", "none");
+        this.element("AccessConstraints", "none");
+        if (this.version130)
+        {
+            this.element("LayerLimit", Integer.toString(AbstractWmsController.LAYER_LIMIT));
+            this.element("MaxWidth", Integer.toString(this.config.getMaxImageWidth()));
+            this.element("MaxHeight", Integer.toString(this.config.getMaxImageHeight()));
+        }
+        this.end();
+    }
+
+    private void writeCapability() throws XMLStreamException
+    {
+        this.start("Capability");
+        this.start("Request");
+        this.writeOperation("GetCapabilities", Arrays.asList(
+            this.version130 ? "text/xml" : "application/vnd.ogc.wms_xml"));
+        this.writeOperation("GetMap", ImageFormat.getSupportedMimeTypes());
+        this.writeOperation("GetFeatureInfo", Arrays.asList(
+            AbstractWmsController.FEATURE_INFO_PNG_FORMAT,
+            AbstractWmsController.FEATURE_INFO_XML_FORMAT));
+        this.end();
+        this.start("Exception");
+        this.element("Format", this.version130 ? "XML" : "application/vnd.ogc.se_xml");
+        this.end();
+
+        this.start("Layer");
+        this.element("Title", this.config.getTitle());
+        for (String crsCode : SUPPORTED_CRS_CODES)
+        {
+            this.element(this.version130 ? "CRS" : "SRS", crsCode);
+        }
+        Set<String> paletteNames = ColorPalette.getAvailablePaletteNames();
+        for (Dataset dataset : this.datasets)
+        {
+            if (!dataset.isReady()) continue;
+            this.start("Layer");
+            this.element("Title", dataset.getTitle());
+            for (Layer layer : dataset.getLayers())
+            {
+                this.writeLayer(layer, paletteNames);
+            }
+            this.end();
+        }
+        this.end();
+        this.end();
+    }
+
+    private void writeOperation(String name, Collection<String> formats) throws XMLStreamException
+    {
+        this.start(name);
+        for (String format : formats) this.element("Format", format);
+        this.start("DCPType");
+        this.start("HTTP");
+        this.start("Get");
+        this.onlineResource(this.wmsBaseUrl);
+        this.end();
+        this.end();
+        this.end();
+        this.end();
+    }
+
+    private void writeLayer(Layer layer, Set<String> paletteNames) throws XMLStreamException
+    {
+        this.start("Layer");
+        if (layer.isQueryable()) this.xml.writeAttribute("queryable", "1");
+        this.element("Name", layer.getName());
+        this.element("Title", layer.getTitle());
+        this.element("Abstract", layer.getAbstract());
+
+        GeographicBoundingBox bbox = layer.getGeographicBoundingBox();
+        String west = Double.toString(bbox.getWestBoundLongitude());
+        String east = Double.toString(bbox.getEastBoundLongitude());
+        String south = Double.toString(bbox.getSouthBoundLatitude());
+        String north = Double.toString(bbox.getNorthBoundLatitude());
+        if (this.version130)
+        {
+            this.start("EX_GeographicBoundingBox");
+            this.element("westBoundLongitude", west);
+            this.element("eastBoundLongitude", east);
+            this.element("southBoundLatitude", south);
+            this.element("northBoundLatitude", north);
+            this.end();
+            this.emptyElement("BoundingBox");
+            this.xml.writeAttribute("CRS", "CRS:84");
+        }
+        else
+        {
+            this.emptyElement("LatLonBoundingBox");
+            this.xml.writeAttribute("minx", west);
+            this.xml.writeAttribute("maxx", east);
+            this.xml.writeAttribute("miny", south);
+            this.xml.writeAttribute("maxy", north);
+            this.emptyElement("BoundingBox");
+            this.xml.writeAttribute("SRS", "EPSG:4326");
+        }
+        this.xml.writeAttribute("minx", west);
+        this.xml.writeAttribute("maxx", east);
+        this.xml.writeAttribute("miny", south);
+        this.xml.writeAttribute("maxy", north);
+
+        List<Double> zValues = layer.getElevationValues();
+        List<DateTime> tValues = layer.getTimeValues();
+        if (!this.version130)
+        {
+            // WMS 1.1.1 declares the dimensions separately from their extents
+            if (!zValues.isEmpty())
+            {
+                this.emptyElement("Dimension");
+                this.xml.writeAttribute("name", "elevation");
+                this.xml.writeAttribute("units", nullToEmpty(layer.getElevationUnits()));
+            }
+            if (!tValues.isEmpty())
+            {
+                this.emptyElement("Dimension");
+                this.xml.writeAttribute("name", "time");
+                this.xml.writeAttribute("units", WmsUtils.getTimeAxisUnits(layer.getChronology()));
+            }
+        }
+        String dimension = this.version130 ? "Dimension" : "Extent";
+        if (!zValues.isEmpty())
+        {
+            this.start(dimension);
+            this.xml.writeAttribute("name", "elevation");
+            if (this.version130) this.xml.writeAttribute("units", nullToEmpty(layer.getElevationUnits()));
+            this.xml.writeAttribute("default", Double.toString(layer.getDefaultElevationValue()));
+            StringBuilder values = new StringBuilder();
+            for (Double z : zValues)
+            {
+                if (values.length() > 0) values.append(',');
+                values.append(z);
+            }
+            this.xml.writeCharacters(values.toString());
+            this.endInline();
+        }
+        if (!tValues.isEmpty())
+        {
+            this.start(dimension);
+            this.xml.writeAttribute("name", "time");
+            if (this.version130)
+            {
+                this.xml.writeAttribute("units", WmsUtils.getTimeAxisUnits(layer.getChronology()));
+                this.xml.writeAttribute("multipleValues", "true");
+                this.xml.writeAttribute("current", "true");
+            }
+            else
+            {
+                this.xml.writeAttribute("multipleValues", "1");
+                this.xml.writeAttribute("current", "1");
+            }
+            this.xml.writeAttribute("default", WmsUtils.dateTimeToISO8601(layer.getDefaultTimeValue()));
+            this.xml.writeCharacters(WmsUtils.getTimeDimensionValue(tValues));
+            this.endInline();
+            this.updateExpiry(tValues);
+        }
+
+        String[] styles = WmsUtils.isVectorLayer(layer)
+            ? new String[]{"vector", "boxfill"} : new String[]{"boxfill"};
+        for (String style : styles)
+        {
+            for (String paletteName : paletteNames)
+            {
+                this.start("Style");
+                this.element("Name", style + "/" + paletteName);
+                this.element("Title", style + "/" + paletteName);
+                this.element("Abstract", style + " style, using the " + paletteName + " palette");
+                this.start("LegendURL");
+                this.xml.writeAttribute("width", Integer.toString(ColorPalette.LEGEND_WIDTH));
+                this.xml.writeAttribute("height", Integer.toString(ColorPalette.LEGEND_HEIGHT));
+                this.element("Format", "image/png");
+                this.onlineResource(this.wmsBaseUrl + "?REQUEST=GetLegendGraphic&LAYER="
+                    + layer.getName() + "&PALETTE=" + paletteName);
+                this.end();
+                this.end();
+            }
+        }
+        this.end();
+    }
+
+    /**
+     * The default time value of a layer is the most recent time that is not
+     * in the future (or the first time if all are in the future), so it
+     * changes when the current time reaches the next time on the axis.
+     */
+    private void updateExpiry(List<DateTime> tValues)
+    {
+        int index = WmsUtils.findTimeIndex(tValues, new DateTime());
+        int next = index >= 0 ? index + 1 : -(index + 1);
+        if (next == 0) next = 1;
+        if (next < tValues.size())
+        {
+            this.expires = Math.min(this.expires, tValues.get(next).getMillis());
+        }
+    }
+
+    private void onlineResource(String href) throws XMLStreamException
+    {
+        this.emptyElement("OnlineResource");
+        this.xml.writeAttribute("xlink", XLINK_NS, "type", "simple");
+        this.xml.writeAttribute("xlink", XLINK_NS, "href", nullToEmpty(href));
+    }
+
+    private void start(String name) throws XMLStreamException
+    {
+        this.newLine();
+        this.xml.writeStartElement(name);
+        this.depth++;
+    }
+
+    private void end() throws XMLStreamException
+    {
+        this.depth--;
+        this.newLine();
+        this.xml.writeEndElement();
+    }
+
+    /** Ends an element that contains only text, without a line break */
+    private void endInline() throws XMLStreamException
+    {
+        this.depth--;
+        this.xml.writeEndElement();
+    }
+
+    private void emptyElement(String name) throws XMLStreamException
+    {
+        this.newLine();
+        this.xml.writeEmptyElement(name);
+    }
+
+    private void element(String name, String text) throws XMLStreamException
+    {
+        this.newLine();
+        this.xml.writeStartElement(name);
+        this.xml.writeCharacters(nullToEmpty(text));
+        this.xml.writeEndElement();
+    }
+
+    private void newLine() throws XMLStreamException
+    {
+        StringBuilder indent = new StringBuilder(1 + this.depth * 2).append('\n');
+        for (int i = 0; i < this.depth; i++) indent.append("  ");
+        this.xml.writeCharacters(indent.toString());
+    }
+
+    private static String nullToEmpty(String str)
+    {
+        return str == null ? "" : str;
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2007 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.controller;
+
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * <p>Runs a list of tasks on a shared {@link ExecutorService}, returning their
+ * results in the order of the list, regardless of the order in which the
+ * tasks complete.  At most a fixed number of tasks from the list are
+ * submitted to the executor at any one time: further tasks are submitted as
+ * results are consumed with {@link #next()}.  This allows a single request to
+ * use several threads from a server-wide pool without starving other
+ * requests, and bounds the number of results that are held in memory.</p>
+ * <p>If the maximum number of tasks in flight is one (or there is only one task)
+ * the tasks are run in the calling thread.</p>
+ * <p>Instances of this class are not thread-safe and are intended to be used
+ * by a single request thread.  Callers must call {@link #cancel()} when they
+ * have finished with the runner (usually in a {@code finally} clause) to ensure
+ * that no tasks are left running if the request fails or is abandoned.</p>
+ * @author Jon
+ */
+final class OrderedTaskRunner<T>
+{
+    private final ExecutorService executor;
+    private final List<? extends Callable<T>> tasks;
+    private final Future<?>[] futures;
+    private final int maxInFlight;
+    /** The index of the next task to submit to the executor */
+    private int nextToSubmit = 0;
+    /** The index of the next result to return from next() */
+    private int nextToReturn = 0;
+
+    /**
+     * @param executor The executor on which tasks will be run
+     * @param tasks The tasks to run
+     * @param maxInFlight The maximum number of tasks from this runner that may
+     * be submitted to the executor at any one time
+     */
+    public OrderedTaskRunner(ExecutorService executor,
+            List<? extends Callable<T>> tasks, int maxInFlight)
+    {
+        this.executor = executor;
+        this.tasks = tasks;
+        this.futures = new Future<?>[tasks.size()];
+        this.maxInFlight = Math.max(1, maxInFlight);
+    }
+
+    /** Returns true if there are more results to return */
+    public boolean hasNext()
+    {
+        return this.nextToReturn < this.tasks.size();
+    }
+
+    /**
+     * Returns the result of the next task in the list, waiting for it to
+     * complete if necessary.
+     * @throws Exception the exception that was thrown by the task, if any.
+     * All outstanding tasks are cancelled if a task fails.
+     * @throws InterruptedException if the calling thread was interrupted while
+     * waiting for the result.  All outstanding tasks are cancelled.
+     * @throws NoSuchElementException if there are no more results
+     */
+    public T next() throws Exception
+    {
+        if (!this.hasNext()) throw new NoSuchElementException();
+        int index = this.nextToReturn++;
+        if (this.maxInFlight == 1 || this.tasks.size() == 1)
+        {
+            // No point in handing the work to another thread
+            return this.tasks.get(index).call();
+        }
+
+        // Top up the tasks that are in flight
+        while (this.nextToSubmit < this.tasks.size() &&
+               this.nextToSubmit - index < this.maxInFlight)
+        {
+            this.futures[this.nextToSubmit] =
+                this.executor.submit(this.tasks.get(this.nextToSubmit));
+            this.nextToSubmit++;
+        }
+
+        @SuppressWarnings("unchecked")
+        Future<T> future = (Future<T>)this.futures[index];
+        // Release the reference so that the result can be garbage-collected
+        this.futures[index] = null;
+        try
+        {
+            return future.get();
+        }
+        catch (InterruptedException ie)
+        {
+            this.cancel();
+            throw ie;
+        }
+        catch (ExecutionException ee)
+        {
+            this.cancel();
+            Throwable cause = ee.getCause();
+            if (cause instanceof Exception) throw (Exception)cause;
+            if (cause instanceof Error) throw (Error)cause;
+            throw ee;
+        }
+    }
+
+    /**
+     * Cancels all tasks that have been submitted but whose results have not
+     * been returned, interrupting them if they are running, and prevents any
+     * further tasks from being submitted.  Has no effect if all the results
+     * have been returned.
+     */
+    public void cancel()
+    {
+        for (int i = this.nextToReturn; i < this.nextToSubmit; i++)
+        {
+            if (this.futures[i] != null)
+            {
+                this.futures[i].cancel(true);
+                this.futures[i] = null;
+            }
+        }
+        this.nextToReturn = this.tasks.size();
+    }
+}
@@ -58,6 +58,19 @@ public interface ServerConfig
     /** Returns the maximum height that can be requested through GetMap */
     public int getMaxImageHeight();
 
+    /**
+     * Returns the number of threads in the server-wide pool that is used to
+     * extract data for the frames of GetMap requests (e.g. animations).
+     */
+    public int getMaxDataExtractionThreads();
+
+    /**
+     * Returns the maximum number of data grids that a single GetMap request
+     * may extract in parallel.  If this is 1, all data will be extracted in
+     * the thread that handles the request.
+     */
+    public int getMaxParallelReadsPerRequest();
+
     /** Returns a (perhaps-lengthy) description of this server */
     public String getAbstract();
 
@@ -75,6 +88,14 @@ public interface ServerConfig
      */
     public DateTime getLastUpdateTime();
 
+    /**
+     * Returns a number that changes whenever the server's configuration or
+     * metadata change, including changes (such as to the server's title) that
+     * do not alter the {@link #getLastUpdateTime() last update time}.  Used to
+     * decide when cached Capabilities documents are out of date.
+     */
+    public long getMetadataVersion();
+
     /**
      * Returns the web address of the organization that is providing this service.
      * @return the web address of the organization that is providing this service.
@@ -42,6 +42,7 @@ import java.util.ArrayList;
 import java.util.List;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import uk.ac.rdg.resc.edal.util.CollectionUtils;
 import uk.ac.rdg.resc.edal.util.Range;
 import uk.ac.rdg.resc.edal.util.Ranges;
 import uk.ac.rdg.resc.ncwms.util.WmsUtils;
@@ -87,17 +88,18 @@ public final class ImageProducer
     
     // If we need to cache the frame data and associated labels (we do this if
     // we have to auto-scale the image) this is where we put them.
+    // Missing values in the arrays are represented by NaNs.
     private static final class Components {
-        private final List<Float> x;
-        private final List<Float> y;
-        public Components(List<Float> x, List<Float> y) {
+        private final float[] x;
+        private final float[] y;
+        public Components(float[] x, float[] y) {
             this.x = x;
             this.y = y;
         }
-        public Components(List<Float> x) {
+        public Components(float[] x) {
             this(x, null);
         }
-        public List<Float> getMagnitudes() {
+        public float[] getMagnitudes() {
             return this.y == null ? this.x : WmsUtils.getMagnitudes(this.x, this.y);
         }
     }
@@ -131,18 +133,44 @@ public final class ImageProducer
     
     /**
      * Adds a frame of scalar data to this ImageProducer.  If the data cannot yet be rendered
-     * into a BufferedImage, the data and label are stored.
+     * into a BufferedImage, the data and label are stored.  Missing values
+     * are represented by nulls.
      */
     public void addFrame(List<Float> data, String label)
     {
-        this.addFrame(data, null, label);
+        this.addFrame(CollectionUtils.floatArrayFromList(data), label);
     }
     
     /**
      * Adds a frame of vector data to this ImageProducer.  If the data cannot yet be rendered
-     * into a BufferedImage, the data and label are stored.
+     * into a BufferedImage, the data and label are stored.  Missing values
+     * are represented by nulls.
      */
     public void addFrame(List<Float> xData, List<Float> yData, String label)
+    {
+        this.addFrame(
+            CollectionUtils.floatArrayFromList(xData),
+            CollectionUtils.floatArrayFromList(yData),
+            label
+        );
+    }
+
+    /**
+     * Adds a frame of scalar data to this ImageProducer.  If the data cannot yet be rendered
+     * into a BufferedImage, the data and label are stored.  Missing values
+     * are represented by NaNs.
+     */
+    public void addFrame(float[] data, String label)
+    {
+        this.addFrame(data, null, label);
+    }
+    
+    /**
+     * Adds a frame of vector data to this ImageProducer.  If the data cannot yet be rendered
+     * into a BufferedImage, the data and label are stored.  Missing values
+     * are represented by NaNs.
+     */
+    public void addFrame(float[] xData, float[] yData, String label)
     {
         logger.debug("Adding frame with label {}", label);
         Components comps = new Components(xData, yData);
@@ -175,14 +203,17 @@ public final class ImageProducer
         byte[] pixels = new byte[this.picWidth * this.picHeight];
         // We get the magnitude of the input data (takes care of the case
         // in which the data are two components of a vector)
-        List<Float> magnitudes = comps.getMagnitudes();
+        float[] magnitudes = comps.getMagnitudes();
+        // Unpack the scale range once, rather than for every pixel
+        float scaleMin = this.scaleRange.isEmpty() ? Float.NaN : this.scaleRange.getMinimum();
+        float scaleMax = this.scaleRange.isEmpty() ? Float.NaN : this.scaleRange.getMaximum();
         for (int i = 0; i < pixels.length; i++)
         {
             // The image coordinate system has the vertical axis increasing
             // downward, but the data's coordinate system has the vertical axis
             // increasing upwards.  The method below flips the axis
             int dataIndex = this.getDataIndex(i);
-            pixels[i] = (byte)this.getColourIndex(magnitudes.get(dataIndex));
+            pixels[i] = (byte)this.getColourIndex(magnitudes[dataIndex], scaleMin, scaleMax);
         }
         
         // Create a ColorModel for the image
@@ -222,11 +253,11 @@ public final class ImageProducer
                 for (int j = 0; j < this.picHeight; j += Math.ceil(this.arrowLength * 1.2))
                 {
                     int dataIndex = this.getDataIndex(i, j);
-                    Float eastVal = comps.x.get(dataIndex);
-                    Float northVal = comps.y.get(dataIndex);
-                    if (eastVal != null && northVal != null)
+                    float eastVal = comps.x[dataIndex];
+                    float northVal = comps.y[dataIndex];
+                    if (!Float.isNaN(eastVal) && !Float.isNaN(northVal))
                     {
-                        double angle = Math.atan2(northVal.doubleValue(), eastVal.doubleValue());
+                        double angle = Math.atan2(northVal, eastVal);
                         // Calculate the end point of the arrow
                         double iEnd = i + this.arrowLength * Math.cos(angle);
                         // Screen coordinates go down, but north is up, hence the minus sign
@@ -273,22 +304,23 @@ public final class ImageProducer
     }
     
     /**
+     * @param scaleMin the minimum of the colour scale range, NaN if the range is empty
+     * @param scaleMax the maximum of the colour scale range, NaN if the range is empty
      * @return the colour index that corresponds to the given value
      */
-    private int getColourIndex(Float value)
+    private int getColourIndex(float value, float scaleMin, float scaleMax)
     {
-        if (value == null)
+        if (Float.isNaN(value))
         {
             return this.numColourBands; // represents a background pixel
         }
-        else if (!this.scaleRange.contains(value))
+        else if (!(value >= scaleMin && value <= scaleMax))
         {
+            // This is also true if the scale range is empty (min and max are NaN)
             return this.numColourBands + 1; // represents an out-of-range pixel
         }
         else
         {
-            float scaleMin = this.scaleRange.getMinimum().floatValue();
-            float scaleMax = this.scaleRange.getMaximum().floatValue();
             double min = this.logarithmic ? Math.log(scaleMin) : scaleMin;
             double max = this.logarithmic ? Math.log(scaleMax) : scaleMax;
             double val = this.logarithmic ? Math.log(value) : value;
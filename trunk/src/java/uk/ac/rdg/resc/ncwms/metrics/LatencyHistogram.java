@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2010 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>A histogram of durations with fixed buckets, which can be updated
+ * concurrently by any number of threads without locking.  Each bucket is an
+ * atomic counter, so {@link #record(long)} costs a short search of the bucket
+ * bounds and three atomic updates.</p>
+ * <p>The bucket bounds cover the range from 100 microseconds to 30 seconds;
+ * longer times are counted in a final, unbounded bucket.  A snapshot of the
+ * histogram taken while it is being updated may be very slightly
+ * inconsistent (e.g. the count may include a time that is not yet in the
+ * sum), which does not matter for monitoring.</p>
+ * @author Jon
+ */
+public final class LatencyHistogram implements LatencyHistogramMBean
+{
+    /** The upper bounds of the buckets in seconds, excluding the unbounded bucket */
+    static final double[] BOUNDS_SECONDS = {
+        0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05,
+        0.1, 0.25, 0.5, 1.0, 2.5, 5.0, 10.0, 30.0
+    };
+
+    /** The upper bounds of the buckets in nanoseconds */
+    private static final long[] BOUNDS_NANOS = new long[BOUNDS_SECONDS.length];
+
+    static
+    {
+        for (int i = 0; i < BOUNDS_SECONDS.length; i++)
+        {
+            BOUNDS_NANOS[i] = Math.round(BOUNDS_SECONDS[i] * 1e9);
+        }
+    }
+
+    /** Counts of times in each bucket: the last bucket is unbounded */
+    private final AtomicLongArray buckets = new AtomicLongArray(BOUNDS_NANOS.length + 1);
+    private final AtomicLong sumNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    /**
+     * Records a duration.  Negative durations (which can only come from
+     * programming errors) are counted as zero.
+     * @param nanos The duration in nanoseconds
+     */
+    public void record(long nanos)
+    {
+        if (nanos < 0) nanos = 0;
+        this.buckets.incrementAndGet(findBucket(nanos));
+        this.sumNanos.addAndGet(nanos);
+        long max = this.maxNanos.get();
+        while (nanos > max && !this.maxNanos.compareAndSet(max, nanos))
+        {
+            max = this.maxNanos.get();
+        }
+    }
+
+    /** Returns the index of the bucket that contains the given duration */
+    static int findBucket(long nanos)
+    {
+        int lo = 0;
+        int hi = BOUNDS_NANOS.length;
+        // Finds the first bucket whose upper bound is not less than nanos
+        while (lo < hi)
+        {
+            int mid = (lo + hi) >>> 1;
+            if (BOUNDS_NANOS[mid] < nanos) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * Returns the cumulative counts of the buckets, i.e. the number of times
+     * that are no greater than each bound in {@link #BOUNDS_SECONDS}, followed
+     * by the total count.
+     */
+    long[] getCumulativeCounts()
+    {
+        long[] counts = new long[this.buckets.length()];
+        long total = 0;
+        for (int i = 0; i < counts.length; i++)
+        {
+            total += this.buckets.get(i);
+            counts[i] = total;
+        }
+        return counts;
+    }
+
+    @Override
+    public long getCount()
+    {
+        long count = 0;
+        for (int i = 0; i < this.buckets.length(); i++)
+        {
+            count += this.buckets.get(i);
+        }
+        return count;
+    }
+
+    /** Returns the sum of all the recorded times in nanoseconds */
+    public long getSumNanos()
+    {
+        return this.sumNanos.get();
+    }
+
+    @Override
+    public double getMeanMillis()
+    {
+        long count = this.getCount();
+        return count == 0 ? 0.0 : this.sumNanos.get() / 1e6 / count;
+    }
+
+    @Override
+    public double getMaxMillis()
+    {
+        return this.maxNanos.get() / 1e6;
+    }
+
+    @Override
+    public double getP50Millis()
+    {
+        return this.getPercentileMillis(50.0);
+    }
+
+    @Override
+    public double getP95Millis()
+    {
+        return this.getPercentileMillis(95.0);
+    }
+
+    @Override
+    public double getP99Millis()
+    {
+        return this.getPercentileMillis(99.0);
+    }
+
+    /**
+     * Estimates the given percentile of the recorded times as the upper
+     * bound of the bucket in which it falls.  Times in the unbounded bucket
+     * are estimated by the largest time recorded.
+     * @param percentile The percentile, between 0 and 100
+     * @return the estimate in milliseconds, or zero if no times have been
+     * recorded
+     */
+    public double getPercentileMillis(double percentile)
+    {
+        long[] counts = this.getCumulativeCounts();
+        long total = counts[counts.length - 1];
+        if (total == 0) return 0.0;
+        long rank = (long)Math.ceil(percentile / 100.0 * total);
+        if (rank < 1) rank = 1;
+        for (int i = 0; i < BOUNDS_SECONDS.length; i++)
+        {
+            if (counts[i] >= rank)
+            {
+                // The bucket bound may be larger than any time recorded
+                return Math.min(BOUNDS_SECONDS[i] * 1000.0, this.getMaxMillis());
+            }
+        }
+        return this.getMaxMillis();
+    }
+}
@@ -0,0 +1,515 @@
+/*
+ * Copyright (c) 2010 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>Holds the metrics of the server: histograms of the time taken by each
+ * {@link Stage} of handling requests, {@link Counter}s and {@link Gauge}s.
+ * The metrics can be written in the Prometheus text exposition format with
+ * {@link #writeText(java.io.Writer)} (this is done by the admin application
+ * at <tt>admin/metrics</tt>) and are also published as JMX MBeans in the
+ * domain {@value #JMX_DOMAIN}.</p>
+ * <p>Stage histograms are labelled with the dataset, layer, data-reading
+ * strategy and output format of the request.  To stop a server with very many
+ * layers from creating an unbounded number of histograms, once
+ * {@link #setMaxStageSeries(int) maxStageSeries} histograms exist the
+ * durations for new combinations of labels are recorded against the layer
+ * {@value #OTHER_LAYER}.</p>
+ * <p>This class is thread-safe: recording a duration or incrementing a
+ * counter does not take any locks.  It is created by Spring, which calls
+ * {@link #init()} and {@link #close()}.</p>
+ * @author Jon
+ */
+public final class MetricsRegistry
+{
+    private static final Logger logger = LoggerFactory.getLogger(MetricsRegistry.class);
+
+    static final String JMX_DOMAIN = "uk.ac.rdg.resc.ncwms";
+
+    static final String OTHER_LAYER = "_other";
+
+    private static final String STAGE_METRIC = "ncwms_stage_duration_seconds";
+
+    private final ConcurrentSkipListMap<StageKey, LatencyHistogram> stageHistograms =
+        new ConcurrentSkipListMap<StageKey, LatencyHistogram>();
+    private final AtomicInteger numStageSeries = new AtomicInteger();
+    private final ConcurrentSkipListMap<String, Metric<Counter>> counters =
+        new ConcurrentSkipListMap<String, Metric<Counter>>();
+    private final ConcurrentSkipListMap<String, Metric<Gauge>> gauges =
+        new ConcurrentSkipListMap<String, Metric<Gauge>>();
+
+    private int maxStageSeries = 5000;
+    private boolean jmxEnabled = true;
+
+    /** The server with which MBeans are registered, null if JMX is not in use */
+    private volatile MBeanServer mBeanServer = null;
+    /** The names of the MBeans that we have registered */
+    private final List<ObjectName> registeredNames = new ArrayList<ObjectName>();
+
+    /**
+     * Called by Spring to start publishing metrics through JMX, if enabled.
+     */
+    public void init()
+    {
+        if (!this.jmxEnabled) return;
+        this.mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        try
+        {
+            this.register(new ObjectName(JMX_DOMAIN + ":type=Metrics"), new CountersMBean());
+        }
+        catch (JMException jme)
+        {
+            // The name is constant, so this can't happen
+            throw new IllegalStateException(jme);
+        }
+        // Register the histograms that were created before we started
+        for (Map.Entry<StageKey, LatencyHistogram> entry : this.stageHistograms.entrySet())
+        {
+            this.register(entry.getKey().getObjectName(), entry.getValue());
+        }
+    }
+
+    /**
+     * Called by Spring when the application is shut down, to remove the
+     * MBeans that have been registered.
+     */
+    public void close()
+    {
+        MBeanServer server = this.mBeanServer;
+        this.mBeanServer = null;
+        if (server == null) return;
+        synchronized (this.registeredNames)
+        {
+            for (ObjectName name : this.registeredNames)
+            {
+                try
+                {
+                    server.unregisterMBean(name);
+                }
+                catch (JMException jme)
+                {
+                    logger.warn("Could not unregister MBean " + name, jme);
+                }
+            }
+            this.registeredNames.clear();
+        }
+    }
+
+    private void register(ObjectName name, Object mBean)
+    {
+        MBeanServer server = this.mBeanServer;
+        if (server == null) return;
+        synchronized (this.registeredNames)
+        {
+            try
+            {
+                server.registerMBean(mBean, name);
+                this.registeredNames.add(name);
+            }
+            catch (JMException jme)
+            {
+                // This happens if two copies of ncWMS run in the same JVM
+                logger.warn("Could not register MBean " + name + ": " + jme.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Records the duration of a stage of handling a request.
+     * @param stage The stage of the request
+     * @param dataset The id of the dataset, or null if not known
+     * @param layer The id of the layer within the dataset, or null if not known
+     * @param strategy The strategy used to read data, or null if not relevant
+     * @param format The output format of the request, or null if not known
+     * @param nanos The duration in nanoseconds
+     */
+    public void recordStage(Stage stage, String dataset, String layer,
+        String strategy, String format, long nanos)
+    {
+        StageKey key = new StageKey(stage, dataset, layer, strategy, format);
+        LatencyHistogram histogram = this.stageHistograms.get(key);
+        if (histogram == null)
+        {
+            if (this.numStageSeries.get() >= this.maxStageSeries)
+            {
+                key = new StageKey(stage, dataset, OTHER_LAYER, strategy, format);
+                histogram = this.stageHistograms.get(key);
+            }
+            if (histogram == null) histogram = this.createHistogram(key);
+        }
+        histogram.record(nanos);
+    }
+
+    private LatencyHistogram createHistogram(StageKey key)
+    {
+        LatencyHistogram newHistogram = new LatencyHistogram();
+        LatencyHistogram histogram = this.stageHistograms.putIfAbsent(key, newHistogram);
+        if (histogram != null) return histogram;
+        this.numStageSeries.incrementAndGet();
+        this.register(key.getObjectName(), newHistogram);
+        return newHistogram;
+    }
+
+    /**
+     * Returns an object that records the durations of stages of requests for
+     * the given layer and output format.
+     */
+    public StageRecorder getStageRecorder(String dataset, String layer, String format)
+    {
+        return new StageRecorder(this, dataset, layer, format);
+    }
+
+    /**
+     * Returns the histogram of durations for the given stage and labels, or
+     * null if no durations have been recorded.
+     */
+    public LatencyHistogram getStageHistogram(Stage stage, String dataset,
+        String layer, String strategy, String format)
+    {
+        return this.stageHistograms.get(new StageKey(stage, dataset, layer, strategy, format));
+    }
+
+    /**
+     * Returns the counter with the given name, creating it if necessary.
+     * @param name The name of the metric, which should follow Prometheus
+     * conventions (e.g. "ncwms_tile_cache_hits_total")
+     * @param help A description of the counter
+     */
+    public Counter getCounter(String name, String help)
+    {
+        Metric<Counter> metric = this.counters.get(name);
+        if (metric == null)
+        {
+            Metric<Counter> newMetric = new Metric<Counter>(new Counter(), help);
+            metric = this.counters.putIfAbsent(name, newMetric);
+            if (metric == null) metric = newMetric;
+        }
+        return metric.value;
+    }
+
+    /**
+     * Adds a gauge, replacing any existing gauge with the same name.
+     * @param name The name of the metric, which should follow Prometheus
+     * conventions (e.g. "ncwms_open_datasets")
+     * @param help A description of the gauge
+     */
+    public void registerGauge(String name, String help, Gauge gauge)
+    {
+        this.gauges.put(name, new Metric<Gauge>(gauge, help));
+    }
+
+    /**
+     * Writes all the metrics in the Prometheus text exposition format
+     * (version 0.0.4).
+     */
+    public void writeText(Writer out) throws IOException
+    {
+        for (Map.Entry<String, Metric<Counter>> entry : this.counters.entrySet())
+        {
+            writeHeader(out, entry.getKey(), entry.getValue().help, "counter");
+            out.write(entry.getKey() + " " + entry.getValue().value.get() + "\n");
+        }
+        for (Map.Entry<String, Metric<Gauge>> entry : this.gauges.entrySet())
+        {
+            writeHeader(out, entry.getKey(), entry.getValue().help, "gauge");
+            out.write(entry.getKey() + " " + formatDouble(getGaugeValue(entry.getValue().value)) + "\n");
+        }
+        if (this.stageHistograms.isEmpty()) return;
+        writeHeader(out, STAGE_METRIC, "Time taken by each stage of GetMap and GetFeatureInfo requests", "histogram");
+        for (Map.Entry<StageKey, LatencyHistogram> entry : this.stageHistograms.entrySet())
+        {
+            String labels = entry.getKey().getLabels();
+            LatencyHistogram histogram = entry.getValue();
+            // We take the counts first: the sum may then include some later
+            // times, which doesn't matter
+            long[] counts = histogram.getCumulativeCounts();
+            for (int i = 0; i < counts.length; i++)
+            {
+                String le = i < LatencyHistogram.BOUNDS_SECONDS.length
+                    ? formatDouble(LatencyHistogram.BOUNDS_SECONDS[i]) : "+Inf";
+                out.write(STAGE_METRIC + "_bucket{" + labels + ",le=\"" + le + "\"} " + counts[i] + "\n");
+            }
+            out.write(STAGE_METRIC + "_sum{" + labels + "} " + formatDouble(histogram.getSumNanos() / 1e9) + "\n");
+            out.write(STAGE_METRIC + "_count{" + labels + "} " + counts[counts.length - 1] + "\n");
+        }
+    }
+
+    private static void writeHeader(Writer out, String name, String help, String type)
+        throws IOException
+    {
+        out.write("# HELP " + name + " " + help.replace("\\", "\\\\").replace("\n", "\\n") + "\n");
+        out.write("# TYPE " + name + " " + type + "\n");
+    }
+
+    /** Formats a number without an exponent where possible, e.g. "0.0001" */
+    private static String formatDouble(double d)
+    {
+        if (Double.isNaN(d)) return "NaN";
+        if (Double.isInfinite(d)) return d > 0 ? "+Inf" : "-Inf";
+        return BigDecimal.valueOf(d).toPlainString();
+    }
+
+    /** Reads a gauge, returning NaN if this fails so that a broken gauge can't hide other metrics */
+    private static double getGaugeValue(Gauge gauge)
+    {
+        try
+        {
+            return gauge.getValue();
+        }
+        catch (RuntimeException re)
+        {
+            logger.warn("Error reading gauge", re);
+            return Double.NaN;
+        }
+    }
+
+    /** Escapes a label value for the text exposition format */
+    static String escapeLabelValue(String value)
+    {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /**
+     * Sets the maximum number of stage histograms that will be created
+     * (default 5000), which limits the memory used by the metrics.
+     */
+    public void setMaxStageSeries(int maxStageSeries)
+    {
+        if (maxStageSeries < 1)
+        {
+            throw new IllegalArgumentException("maxStageSeries must be at least 1");
+        }
+        this.maxStageSeries = maxStageSeries;
+    }
+
+    /**
+     * Sets whether metrics are published as JMX MBeans (default true).  Must
+     * be called before {@link #init()}.
+     */
+    public void setJmxEnabled(boolean jmxEnabled)
+    {
+        this.jmxEnabled = jmxEnabled;
+    }
+
+    /** A counter or gauge with its description */
+    private static final class Metric<T>
+    {
+        private final T value;
+        private final String help;
+
+        public Metric(T value, String help)
+        {
+            this.value = value;
+            this.help = help;
+        }
+    }
+
+    /**
+     * Identifies a stage histogram by its labels.  Keys are ordered by their
+     * labels so that the text output is grouped by stage and dataset.
+     */
+    private static final class StageKey implements Comparable<StageKey>
+    {
+        private final Stage stage;
+        private final String dataset;
+        private final String layer;
+        private final String strategy;
+        private final String format;
+
+        public StageKey(Stage stage, String dataset, String layer, String strategy, String format)
+        {
+            if (stage == null) throw new NullPointerException("stage");
+            this.stage = stage;
+            this.dataset = dataset == null ? "" : dataset;
+            this.layer = layer == null ? "" : layer;
+            this.strategy = strategy == null ? "" : strategy;
+            this.format = format == null ? "" : format;
+        }
+
+        public String getLabels()
+        {
+            return "stage=\"" + this.stage.getLabel()
+                + "\",dataset=\"" + escapeLabelValue(this.dataset)
+                + "\",layer=\"" + escapeLabelValue(this.layer)
+                + "\",strategy=\"" + escapeLabelValue(this.strategy)
+                + "\",format=\"" + escapeLabelValue(this.format) + "\"";
+        }
+
+        public ObjectName getObjectName()
+        {
+            StringBuilder name = new StringBuilder(JMX_DOMAIN)
+                .append(":type=StageLatency,stage=").append(this.stage.getLabel());
+            // Empty labels are left out of the name
+            appendKey(name, "dataset", this.dataset);
+            appendKey(name, "layer", this.layer);
+            appendKey(name, "strategy", this.strategy);
+            appendKey(name, "format", this.format);
+            try
+            {
+                return new ObjectName(name.toString());
+            }
+            catch (JMException jme)
+            {
+                // Can't happen because the values are quoted
+                throw new IllegalStateException(jme);
+            }
+        }
+
+        private static void appendKey(StringBuilder name, String key, String value)
+        {
+            if (value.length() > 0) name.append(',').append(key).append('=').append(ObjectName.quote(value));
+        }
+
+        @Override
+        public int compareTo(StageKey other)
+        {
+            int c = this.stage.compareTo(other.stage);
+            if (c == 0) c = this.dataset.compareTo(other.dataset);
+            if (c == 0) c = this.layer.compareTo(other.layer);
+            if (c == 0) c = this.strategy.compareTo(other.strategy);
+            if (c == 0) c = this.format.compareTo(other.format);
+            return c;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (this == obj) return true;
+            if (!(obj instanceof StageKey)) return false;
+            return this.compareTo((StageKey)obj) == 0;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            int hash = this.stage.hashCode();
+            hash = 31 * hash + this.dataset.hashCode();
+            hash = 31 * hash + this.layer.hashCode();
+            hash = 31 * hash + this.strategy.hashCode();
+            hash = 31 * hash + this.format.hashCode();
+            return hash;
+        }
+    }
+
+    /**
+     * Publishes the counters and gauges as the attributes of a single MBean,
+     * since they can be added at any time.
+     */
+    private final class CountersMBean implements DynamicMBean
+    {
+        @Override
+        public Object getAttribute(String name) throws AttributeNotFoundException
+        {
+            Metric<Counter> counter = counters.get(name);
+            if (counter != null) return counter.value.get();
+            Metric<Gauge> gauge = gauges.get(name);
+            if (gauge != null) return getGaugeValue(gauge.value);
+            throw new AttributeNotFoundException(name);
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] names)
+        {
+            AttributeList list = new AttributeList();
+            for (String name : names)
+            {
+                try
+                {
+                    list.add(new Attribute(name, this.getAttribute(name)));
+                }
+                catch (AttributeNotFoundException anfe)
+                {
+                    // Missing attributes are left out of the list
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException
+        {
+            throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes)
+        {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature)
+            throws ReflectionException
+        {
+            throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo()
+        {
+            List<MBeanAttributeInfo> attrs = new ArrayList<MBeanAttributeInfo>();
+            for (Map.Entry<String, Metric<Counter>> entry : counters.entrySet())
+            {
+                attrs.add(new MBeanAttributeInfo(entry.getKey(), "long",
+                    entry.getValue().help, true, false, false));
+            }
+            for (Map.Entry<String, Metric<Gauge>> entry : gauges.entrySet())
+            {
+                attrs.add(new MBeanAttributeInfo(entry.getKey(), "double",
+                    entry.getValue().help, true, false, false));
+            }
+            return new MBeanInfo(MetricsRegistry.class.getName(),
+                "Counters and gauges of the ncWMS server",
+                attrs.toArray(new MBeanAttributeInfo[attrs.size()]),
+                null, null, null);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2010 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.metrics;
+
+/**
+ * The stages of handling GetMap and GetFeatureInfo requests whose durations
+ * are recorded by the {@link MetricsRegistry}.
+ * @author Jon
+ */
+public enum Stage
+{
+    /** Parsing the request parameters and finding the requested layers */
+    PARSE,
+    /** Creating the coordinate reference system and grid of the requested image */
+    CRS_LOOKUP,
+    /** Building the PixelMap that maps the image onto the source grid */
+    PIXEL_MAP,
+    /** Reading data from the source files */
+    IO_READ,
+    /** Converting the data that were read to floats and applying scale, offset and missing values */
+    UNPACK,
+    /** Turning data into coloured images */
+    COLOUR_MAPPING,
+    /** Encoding the images or other response in the output format */
+    ENCODING,
+    /** Writing the encoded response to the client */
+    RESPONSE_WRITE;
+
+    /** Returns the name of this stage as it appears in metrics, e.g. "io_read" */
+    public String getLabel()
+    {
+        return this.name().toLowerCase();
+    }
+}
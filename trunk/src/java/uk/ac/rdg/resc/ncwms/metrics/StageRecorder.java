@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2010 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.metrics;
+
+import uk.ac.rdg.resc.edal.cdm.ReadTimings;
+
+/**
+ * Records the durations of the {@link Stage}s of a request for a particular
+ * layer and output format.  Instances are created through
+ * {@link MetricsRegistry#getStageRecorder(java.lang.String, java.lang.String,
+ * java.lang.String)} and can be shared between threads.
+ * @author Jon
+ */
+public final class StageRecorder
+{
+    private final MetricsRegistry registry;
+    private final String dataset;
+    private final String layer;
+    private final String format;
+
+    StageRecorder(MetricsRegistry registry, String dataset, String layer, String format)
+    {
+        this.registry = registry;
+        this.dataset = dataset;
+        this.layer = layer;
+        this.format = format;
+    }
+
+    /**
+     * Records the duration of a stage that does not depend on the strategy
+     * used to read data.
+     */
+    public void record(Stage stage, long nanos)
+    {
+        this.record(stage, "", nanos);
+    }
+
+    /**
+     * Records the duration of a stage.
+     * @param strategy The name of the strategy that was used to read data
+     * @param nanos The duration in nanoseconds
+     */
+    public void record(Stage stage, String strategy, long nanos)
+    {
+        this.registry.recordStage(stage, this.dataset, this.layer, strategy,
+            this.format, nanos);
+    }
+
+    /**
+     * Records the time spent in each stage of reading data.  The time spent
+     * building PixelMaps is only recorded if a PixelMap had to be built.
+     * @param strategy The name of the strategy that was used to read data
+     */
+    public void recordReadTimings(ReadTimings timings, String strategy)
+    {
+        if (timings.getPixelMapNanos() > 0)
+        {
+            this.record(Stage.PIXEL_MAP, strategy, timings.getPixelMapNanos());
+        }
+        this.record(Stage.IO_READ, strategy, timings.getReadNanos());
+        this.record(Stage.UNPACK, strategy, timings.getUnpackNanos());
+    }
+}
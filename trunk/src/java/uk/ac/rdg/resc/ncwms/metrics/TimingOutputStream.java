@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2010 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.metrics;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An {@link OutputStream} that measures the time spent writing to (and
+ * flushing) the stream that it wraps.  This separates the time taken to
+ * write a response to the client from the time taken to produce it, when
+ * the two are interleaved (as when an image is encoded directly to the
+ * servlet's output stream).  Instances are not thread-safe.
+ * @author Jon
+ */
+public final class TimingOutputStream extends FilterOutputStream
+{
+    private long nanos = 0;
+
+    public TimingOutputStream(OutputStream out)
+    {
+        super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException
+    {
+        long start = System.nanoTime();
+        try
+        {
+            this.out.write(b);
+        }
+        finally
+        {
+            this.nanos += System.nanoTime() - start;
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+        long start = System.nanoTime();
+        try
+        {
+            this.out.write(b, off, len);
+        }
+        finally
+        {
+            this.nanos += System.nanoTime() - start;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException
+    {
+        long start = System.nanoTime();
+        try
+        {
+            this.out.flush();
+        }
+        finally
+        {
+            this.nanos += System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * Does not close the underlying stream, which belongs to the servlet
+     * container.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        this.flush();
+    }
+
+    /** Returns the time spent writing to the underlying stream, in nanoseconds */
+    public long getNanos()
+    {
+        return this.nanos;
+    }
+}
@@ -0,0 +1,319 @@
+/*
+ * Copyright (c) 2010 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.usagelog;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>Passes log entries from the threads that produce them to a single
+ * background thread that writes them in batches.  Entries are held in a
+ * bounded queue: when the queue is full, entries are either dropped (and
+ * counted) or the producing thread waits for space, depending on the
+ * {@link OverflowPolicy}.</p>
+ * <p>The writer thread takes all the entries that are waiting (up to the
+ * maximum batch size) and passes them to the {@link Sink} in one call, so
+ * that under load each write covers many entries.  Entries that are still
+ * queued when the writer is {@link #close() closed} are written before the
+ * thread stops.</p>
+ * <p>This class is thread-safe.</p>
+ * @param <E> The type of the log entries
+ * @author Jon
+ */
+public final class AsyncLogWriter<E>
+{
+    private static final Logger logger = LoggerFactory.getLogger(AsyncLogWriter.class);
+
+    /** What to do with an entry when the queue is full */
+    public enum OverflowPolicy
+    {
+        /** Discard the entry, counting it in {@link AsyncLogWriter#getNumDropped()} */
+        DROP,
+        /** Wait until there is space in the queue */
+        BLOCK;
+    }
+
+    /** Receives batches of entries on the writer thread */
+    public interface Sink<E>
+    {
+        /**
+         * Writes the given entries, which are in the order in which they
+         * were added.  Entries in a batch that fails are not written again.
+         */
+        public void write(List<E> entries) throws Exception;
+    }
+
+    private final BlockingQueue<E> queue;
+    private final int maxBatchSize;
+    private final OverflowPolicy overflowPolicy;
+    private final Sink<E> sink;
+    private final Thread writerThread;
+
+    private volatile boolean closed = false;
+
+    // The following are guarded by "this"
+    private long numAdded = 0;
+    private long numProcessed = 0;
+    private long numWritten = 0;
+    private long numDropped = 0;
+    private long numFailed = 0;
+    private long numBatches = 0;
+
+    /**
+     * Creates a writer and starts its thread.
+     * @param name The name of the writer thread
+     * @param capacity The maximum number of entries that can wait to be written
+     * @param maxBatchSize The maximum number of entries that are passed to the
+     * sink in one call
+     */
+    public AsyncLogWriter(String name, int capacity, int maxBatchSize,
+        OverflowPolicy overflowPolicy, Sink<E> sink)
+    {
+        if (capacity < 1) throw new IllegalArgumentException("capacity must be positive");
+        if (maxBatchSize < 1) throw new IllegalArgumentException("maxBatchSize must be positive");
+        if (overflowPolicy == null) throw new NullPointerException("overflowPolicy");
+        if (sink == null) throw new NullPointerException("sink");
+        this.queue = new ArrayBlockingQueue<E>(capacity);
+        this.maxBatchSize = maxBatchSize;
+        this.overflowPolicy = overflowPolicy;
+        this.sink = sink;
+        this.writerThread = new Thread(new Runnable() {
+            @Override public void run() { writeEntries(); }
+        }, name);
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    /**
+     * Adds an entry to the queue, returning immediately unless the queue is
+     * full and the overflow policy is {@link OverflowPolicy#BLOCK BLOCK}.
+     * @return true if the entry will be written, false if it has been dropped
+     * (including when this writer has been closed)
+     */
+    public boolean add(E entry)
+    {
+        if (entry == null) throw new NullPointerException("entry");
+        if (this.closed)
+        {
+            this.dropped();
+            return false;
+        }
+        boolean added;
+        if (this.overflowPolicy == OverflowPolicy.BLOCK)
+        {
+            try
+            {
+                // We check for closure periodically so that we don't wait
+                // forever if the writer thread has stopped
+                do
+                {
+                    added = this.queue.offer(entry, 100, TimeUnit.MILLISECONDS);
+                } while (!added && !this.closed);
+            }
+            catch (InterruptedException ie)
+            {
+                Thread.currentThread().interrupt();
+                added = false;
+            }
+        }
+        else
+        {
+            added = this.queue.offer(entry);
+        }
+        if (added)
+        {
+            synchronized(this) { this.numAdded++; }
+        }
+        else
+        {
+            this.dropped();
+        }
+        return added;
+    }
+
+    private synchronized void dropped()
+    {
+        this.numDropped++;
+        // Log the first drop and then every thousandth, to avoid filling
+        // the log when the server is overloaded
+        if (this.numDropped % 1000 == 1)
+        {
+            logger.warn("Usage log queue is full: {} entries dropped so far", this.numDropped);
+        }
+    }
+
+    /** The body of the writer thread */
+    private void writeEntries()
+    {
+        List<E> batch = new ArrayList<E>(this.maxBatchSize);
+        while (true)
+        {
+            try
+            {
+                E first = this.queue.poll(500, TimeUnit.MILLISECONDS);
+                if (first == null)
+                {
+                    if (this.closed) break;
+                    continue;
+                }
+                batch.add(first);
+                this.queue.drainTo(batch, this.maxBatchSize - 1);
+            }
+            catch (InterruptedException ie)
+            {
+                // We have been asked to stop: write whatever is left
+                this.queue.drainTo(batch);
+                this.writeBatch(batch);
+                break;
+            }
+            this.writeBatch(batch);
+            batch.clear();
+        }
+        logger.debug("Usage log writer thread stopped");
+    }
+
+    private void writeBatch(List<E> batch)
+    {
+        if (batch.isEmpty()) return;
+        boolean success = false;
+        try
+        {
+            this.sink.write(batch);
+            success = true;
+        }
+        catch (Exception e)
+        {
+            logger.error("Error writing " + batch.size() + " entries to the usage log", e);
+        }
+        synchronized(this)
+        {
+            if (success) this.numWritten += batch.size();
+            else this.numFailed += batch.size();
+            this.numProcessed += batch.size();
+            this.numBatches++;
+            this.notifyAll();
+        }
+    }
+
+    /**
+     * Waits until all the entries that were added before this method was
+     * called have been written (or have failed to be written).
+     * @param timeoutMs The maximum time to wait in milliseconds
+     * @return true if the entries were written within the time limit
+     */
+    public boolean flush(long timeoutMs) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        synchronized(this)
+        {
+            long target = this.numAdded;
+            while (this.numProcessed < target)
+            {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0 || !this.writerThread.isAlive()) return false;
+                this.wait(wait);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Stops accepting entries and waits for the entries in the queue to be
+     * written.  If they are not written within the given time the writer
+     * thread is interrupted, which makes it write the remaining entries in one
+     * final batch.
+     */
+    public void close(long timeoutMs)
+    {
+        this.closed = true;
+        try
+        {
+            this.writerThread.join(timeoutMs);
+            if (this.writerThread.isAlive())
+            {
+                this.writerThread.interrupt();
+                this.writerThread.join();
+            }
+            // Entries may have been added as the writer thread stopped
+            List<E> remaining = new ArrayList<E>();
+            this.queue.drainTo(remaining);
+            this.writeBatch(remaining);
+        }
+        catch (InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Returns the number of entries that are waiting to be written */
+    public int getQueueDepth()
+    {
+        return this.queue.size();
+    }
+
+    /** Returns the maximum number of entries that can wait to be written */
+    public int getCapacity()
+    {
+        return this.queue.size() + this.queue.remainingCapacity();
+    }
+
+    public OverflowPolicy getOverflowPolicy()
+    {
+        return this.overflowPolicy;
+    }
+
+    /** Returns the number of entries that have been written successfully */
+    public synchronized long getNumWritten()
+    {
+        return this.numWritten;
+    }
+
+    /** Returns the number of entries that were dropped because the queue was full */
+    public synchronized long getNumDropped()
+    {
+        return this.numDropped;
+    }
+
+    /** Returns the number of entries that were lost because a write failed */
+    public synchronized long getNumFailed()
+    {
+        return this.numFailed;
+    }
+
+    /** Returns the number of batches that have been passed to the sink */
+    public synchronized long getNumBatches()
+    {
+        return this.numBatches;
+    }
+}
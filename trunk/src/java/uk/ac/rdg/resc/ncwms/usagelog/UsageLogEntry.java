@@ -31,6 +31,8 @@ package uk.ac.rdg.resc.ncwms.usagelog;
 import java.awt.Color;
 import javax.servlet.http.HttpServletRequest;
 import org.joda.time.DateTime;
+import uk.ac.rdg.resc.edal.cdm.DataReadingStrategy;
+import uk.ac.rdg.resc.edal.cdm.PixelMapCache;
 import uk.ac.rdg.resc.ncwms.controller.GetFeatureInfoDataRequest;
 import uk.ac.rdg.resc.ncwms.controller.GetFeatureInfoRequest;
 import uk.ac.rdg.resc.ncwms.controller.GetMapDataRequest;
@@ -75,6 +77,10 @@ public class UsageLogEntry
     private String variableId = null;
     private Long timeToExtractDataMs = null;
     private Boolean usedCache = false;
+    private String dataReadingStrategy = null; // The strategy that was used to read data from disk
+    private Integer pixelMapCacheHits = null; // Number of PixelMaps found in the PixelMapCache
+    private Integer pixelMapCacheMisses = null; // Number of PixelMaps that had to be built
+    private Long timeToBuildPixelMapsMs = null; // Total time spent building PixelMaps
     
     // These fields pertain to feature info requests
     private Double featureInfoLon = null;
@@ -319,6 +325,67 @@ public class UsageLogEntry
         this.usedCache = usedCache;
     }
 
+    /**
+     * @return the name of the {@link DataReadingStrategy} that was used to read
+     * data from the source files, or null if no data were read from source
+     * (e.g. because all the data came from the cache).
+     */
+    public String getDataReadingStrategy()
+    {
+        return dataReadingStrategy;
+    }
+
+    public void setDataReadingStrategy(DataReadingStrategy dataReadingStrategy)
+    {
+        this.dataReadingStrategy = dataReadingStrategy.name();
+    }
+
+    /**
+     * Records the outcome of a lookup in the {@link PixelMapCache}.  Data for
+     * a single request may be read by several threads at once, so this is
+     * synchronized.
+     */
+    public synchronized void addPixelMapLookup(PixelMapCache.Lookup lookup)
+    {
+        if (this.pixelMapCacheHits == null)
+        {
+            this.pixelMapCacheHits = 0;
+            this.pixelMapCacheMisses = 0;
+            this.timeToBuildPixelMapsMs = 0L;
+        }
+        if (lookup.isHit()) this.pixelMapCacheHits++;
+        else this.pixelMapCacheMisses++;
+        this.timeToBuildPixelMapsMs += lookup.getBuildTimeMs();
+    }
+
+    /**
+     * @return the number of {@link uk.ac.rdg.resc.edal.cdm.PixelMap PixelMap}s
+     * that were found in the {@link PixelMapCache}, or null if no PixelMaps
+     * were needed
+     */
+    public synchronized Integer getPixelMapCacheHits()
+    {
+        return pixelMapCacheHits;
+    }
+
+    /**
+     * @return the number of PixelMaps that had to be built, or null if no
+     * PixelMaps were needed
+     */
+    public synchronized Integer getPixelMapCacheMisses()
+    {
+        return pixelMapCacheMisses;
+    }
+
+    /**
+     * @return the total time in milliseconds spent building PixelMaps, or
+     * null if no PixelMaps were needed
+     */
+    public synchronized Long getTimeToBuildPixelMapsMs()
+    {
+        return timeToBuildPixelMapsMs;
+    }
+
     public Double getFeatureInfoLon()
     {
         return featureInfoLon;
@@ -33,20 +33,29 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
 import java.io.Reader;
-import java.io.Writer;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import javax.sql.DataSource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.h2.tools.Csv;
 import org.h2.tools.RunScript;
 import org.springframework.jdbc.datasource.SingleConnectionDataSource;
+import uk.ac.rdg.resc.ncwms.usagelog.AsyncLogWriter;
+import uk.ac.rdg.resc.ncwms.usagelog.AsyncLogWriter.OverflowPolicy;
 import uk.ac.rdg.resc.ncwms.usagelog.UsageLogEntry;
 import uk.ac.rdg.resc.ncwms.usagelog.UsageLogger;
 import uk.ac.rdg.resc.ncwms.util.WmsUtils;
@@ -55,6 +64,13 @@ import uk.ac.rdg.resc.ncwms.util.WmsUtils;
  * UsageLogger that stores data in an H2 database.  The database is run in 
  * embedded mode, i.e. it is private to the ncWMS application.  Note that the H2
  * database is thread-safe so we make no attempt at thread safety here.
+ * <p>Entries are not written on the request thread: they are queued and
+ * written in batches by a single background thread (see
+ * {@link AsyncLogWriter}), each batch in one transaction.  The same
+ * transaction adds the batch to the rollup tables (see {@link UsageRollups}),
+ * which summarize the requests by hour, layer, operation and format.  Entries
+ * in the usage log itself are purged after a configurable number of days,
+ * but the rollups are kept.</p>
  *
  * @author Jon Blower
  */
@@ -69,14 +85,42 @@ public class H2UsageLogger implements UsageLogger
             "num_timesteps, image_width, image_height, layer, dataset_id, " +
             "variable_id, time_to_extract_data_ms, used_cache, feature_info_lon, " +
             "feature_info_lat, feature_info_col, feature_info_row, style_str, " +
-            "output_format, transparent, background_color, menu, remote_server_url) " +
-            "VALUES(?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?)";
+            "output_format, transparent, background_color, menu, remote_server_url, " +
+            "data_reading_strategy, pixel_map_cache_hits, pixel_map_cache_misses, " +
+            "time_to_build_pixel_maps_ms) " +
+            "VALUES(?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?)";
     
+    /** The maximum time to wait for queued entries to be written on closing */
+    private static final long CLOSE_TIMEOUT_MS = 10000;
+
+    private static final long HOUR_MS = 3600000L;
+    private static final long DAY_MS = 24 * HOUR_MS;
+
     private Connection conn;
     private DataSource dataSource;
+    private AsyncLogWriter<UsageLogEntry> writer;
+
+    /** Runs the periodic purging of old entries */
+    private ScheduledExecutorService maintenanceExecutor;
+
+    /**
+     * True if there are entries in the usage log that were written by a
+     * version of ncWMS that did not keep rollups, and which must be added to
+     * the rollups in the background.
+     */
+    private volatile boolean backfillPending = false;
     
     // The directory in which we'll store the usage log: will be set by Spring
     private File usageLogDir;
+
+    // Settings for the queue of entries: may be set by Spring
+    private int queueCapacity = 10000;
+    private int maxBatchSize = 500;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.DROP;
+
+    // Settings for the retention of data: may be set by Spring
+    private int rawRetentionDays = 90;
+    private int rollupRetentionDays = 0;
     
     /**
      * Called by Spring to initialize the database
@@ -120,6 +164,33 @@ public class H2UsageLogger implements UsageLogger
 
             // Now run the script to initialize the database
             RunScript.execute(this.conn, scriptReader);
+            // Add any columns that are missing from usage logs that were
+            // created by older versions of ncWMS
+            this.addColumnIfMissing("data_reading_strategy", "VARCHAR");
+            this.addColumnIfMissing("pixel_map_cache_hits", "INTEGER");
+            this.addColumnIfMissing("pixel_map_cache_misses", "INTEGER");
+            this.addColumnIfMissing("time_to_build_pixel_maps_ms", "INTEGER");
+            this.checkRollups();
+
+            this.writer = new AsyncLogWriter<UsageLogEntry>("usage-log-writer",
+                this.queueCapacity, this.maxBatchSize, this.overflowPolicy,
+                new AsyncLogWriter.Sink<UsageLogEntry>() {
+                    @Override public void write(List<UsageLogEntry> entries) throws SQLException {
+                        insert(entries);
+                    }
+                });
+
+            this.maintenanceExecutor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactory() {
+                    @Override public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "usage-log-maintenance");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            this.maintenanceExecutor.scheduleWithFixedDelay(new Runnable() {
+                @Override public void run() { doMaintenance(); }
+            }, 1, 60, TimeUnit.MINUTES);
         }
         catch(Exception e)
         {
@@ -131,78 +202,329 @@ public class H2UsageLogger implements UsageLogger
         logger.info("H2 Usage Logger initialized");
     }
     
+    /**
+     * Checks whether the usage log contains entries that have not been added
+     * to the rollups, which happens when the rollup tables have just been
+     * created for an existing usage log, or when the server was stopped
+     * before they had all been added.  Such entries are added in the
+     * background by {@link #doMaintenance()}.
+     */
+    private void checkRollups() throws SQLException
+    {
+        // The writer thread has not yet started, so all the entries in the
+        // log are older than this
+        if (UsageRollups.startBackfill(this.conn, new Date()))
+        {
+            this.backfillPending = true;
+            logger.info("Existing usage log entries will be added to the rollups");
+        }
+    }
+
+    /** Runs a query that returns a single time, which may be null */
+    private Timestamp queryForTime(String sql, Object... params) throws SQLException
+    {
+        PreparedStatement ps = this.conn.prepareStatement(sql);
+        try
+        {
+            for (int i = 0; i < params.length; i++) ps.setObject(i + 1, params[i]);
+            ResultSet rs = ps.executeQuery();
+            Timestamp time = rs.next() ? rs.getTimestamp(1) : null;
+            rs.close();
+            return time;
+        }
+        finally
+        {
+            ps.close();
+        }
+    }
+
+    /**
+     * Adds entries to the rollups if necessary, then purges entries from the
+     * usage log and the rollups that are older than the retention periods.
+     * Called periodically on the maintenance thread.
+     */
+    private void doMaintenance()
+    {
+        try
+        {
+            if (this.backfillPending)
+            {
+                long start = System.currentTimeMillis();
+                int numEntries = UsageRollups.backfill(this.conn);
+                this.backfillPending = false;
+                logger.info("Added {} existing usage log entries to the rollups in {} ms",
+                    numEntries, System.currentTimeMillis() - start);
+            }
+            this.purge("usage_log", "request_time", this.rawRetentionDays);
+            this.purge("usage_rollup", "hour", this.rollupRetentionDays);
+            this.purge("usage_source_rollup", "day", this.rollupRetentionDays);
+        }
+        catch (Exception e)
+        {
+            logger.error("Error maintaining the usage log", e);
+        }
+    }
+
+    /**
+     * Deletes the rows of the given table whose times are older than the given
+     * number of days, a day at a time so that each transaction is small.
+     * Does nothing if the number of days is zero or less.
+     */
+    private void purge(String table, String timeColumn, int retentionDays)
+        throws SQLException
+    {
+        if (retentionDays <= 0) return;
+        Timestamp cutoff = new Timestamp(System.currentTimeMillis() - retentionDays * DAY_MS);
+        String minTime = "SELECT MIN(" + timeColumn + ") FROM " + table;
+        int numDeleted = 0;
+        Timestamp oldest;
+        while ((oldest = this.queryForTime(minTime)) != null && oldest.before(cutoff))
+        {
+            Timestamp chunkEnd = new Timestamp(Math.min(oldest.getTime() + DAY_MS,
+                cutoff.getTime()));
+            PreparedStatement ps = this.conn.prepareStatement("DELETE FROM " + table +
+                " WHERE " + timeColumn + " < ?");
+            try
+            {
+                ps.setTimestamp(1, chunkEnd);
+                synchronized(this.conn)
+                {
+                    numDeleted += ps.executeUpdate();
+                }
+            }
+            finally
+            {
+                ps.close();
+            }
+        }
+        if (numDeleted > 0)
+        {
+            logger.info("Purged {} rows older than {} days from {}",
+                new Object[] { numDeleted, retentionDays, table });
+        }
+    }
+
+    /**
+     * Adds a column to the usage_log table if it does not already exist.  (This
+     * version of H2 does not support ALTER TABLE ... ADD COLUMN IF NOT EXISTS.)
+     */
+    private void addColumnIfMissing(String columnName, String columnType)
+        throws SQLException
+    {
+        // H2 stores unquoted identifiers in upper case
+        ResultSet rs = this.conn.getMetaData().getColumns(null, null,
+            "USAGE_LOG", columnName.toUpperCase());
+        try
+        {
+            if (rs.next()) return;
+        }
+        finally
+        {
+            rs.close();
+        }
+        logger.info("Adding column {} to the usage log", columnName);
+        Statement stmt = this.conn.createStatement();
+        try
+        {
+            stmt.execute("ALTER TABLE usage_log ADD COLUMN " + columnName + " " + columnType);
+        }
+        finally
+        {
+            stmt.close();
+        }
+    }
+    
     /**
      * Make an entry in the usage log.  This method does not throw an
      * Exception: all problems with the usage logger must be recorded
-     * in the log4j text log.  Implementing methods should make sure they
-     * set the time to process the request, by taking System.currentTimeMs()
-     * and subtracting logEntry.getRequestTime().
+     * in the log4j text log.  The entry is queued and written by a background
+     * thread, so this method returns immediately unless the queue is full
+     * and the {@link #setOverflowPolicy(OverflowPolicy) overflow policy} is
+     * to block.
      */
     @Override
     public void logUsage(UsageLogEntry logEntry)
+    {
+        if (this.writer == null)
+        {
+            logger.error("Usage logger has not been initialized");
+            return;
+        }
+        this.writer.add(logEntry);
+    }
+
+    /**
+     * Inserts the given entries into the usage log as a single batch and adds
+     * them to the rollups, in one transaction.  Called on the writer thread.
+     */
+    private void insert(List<UsageLogEntry> entries) throws SQLException
     {
         long startLog = System.currentTimeMillis();
+        UsageRollups rollups = new UsageRollups();
+        for (UsageLogEntry logEntry : entries) rollups.add(logEntry);
+        // The maintenance thread also uses the connection
+        synchronized(this.conn)
+        {
+            this.conn.setAutoCommit(false);
+            PreparedStatement ps = null;
+            try
+            {
+                ps = this.conn.prepareStatement(INSERT_COMMAND);
+                for (UsageLogEntry logEntry : entries)
+                {
+                    // Use of setObject allows entries to be null
+                    ps.setObject(1, logEntry.getRequestTime().toDate());
+                    ps.setObject(2, logEntry.getClientIpAddress());
+                    ps.setObject(3, logEntry.getClientHost());
+                    ps.setObject(4, logEntry.getClientReferrer());
+                    ps.setObject(5, logEntry.getClientUserAgent());
+                    ps.setObject(6, logEntry.getHttpMethod());
+                    ps.setObject(7, logEntry.getWmsVersion());
+                    ps.setObject(8, logEntry.getWmsOperation());
+                    ps.setString(9, logEntry.getExceptionClass());
+                    ps.setString(10, logEntry.getExceptionMessage());
+                    ps.setString(11, logEntry.getCrs());
+                    ps.setObject(12, logEntry.getBbox() == null ? null : logEntry.getBbox()[0]);
+                    ps.setObject(13, logEntry.getBbox() == null ? null : logEntry.getBbox()[1]);
+                    ps.setObject(14, logEntry.getBbox() == null ? null : logEntry.getBbox()[2]);
+                    ps.setObject(15, logEntry.getBbox() == null ? null : logEntry.getBbox()[3]);
+                    ps.setString(16, logEntry.getElevation());
+                    ps.setString(17, logEntry.getTimeString());
+                    ps.setObject(18, logEntry.getNumTimeSteps());
+                    ps.setObject(19, logEntry.getWidth());
+                    ps.setObject(20, logEntry.getHeight());
+                    ps.setString(21, logEntry.getLayer());
+                    ps.setString(22, logEntry.getDatasetId());
+                    ps.setString(23, logEntry.getVariableId());
+                    ps.setObject(24, logEntry.getTimeToExtractDataMs());
+                    ps.setBoolean(25, logEntry.isUsedCache());
+                    ps.setObject(26, logEntry.getFeatureInfoLon());
+                    ps.setObject(27, logEntry.getFeatureInfoLat());
+                    ps.setObject(28, logEntry.getFeatureInfoPixelCol());
+                    ps.setObject(29, logEntry.getFeatureInfoPixelRow());
+                    ps.setString(30, logEntry.getStyle());
+                    ps.setString(31, logEntry.getOutputFormat());
+                    ps.setObject(32, logEntry.getTransparent());
+                    ps.setString(33, logEntry.getBackgroundColor());
+                    ps.setString(34, logEntry.getMenu());
+                    ps.setString(35, logEntry.getRemoteServerUrl());
+                    ps.setString(36, logEntry.getDataReadingStrategy());
+                    ps.setObject(37, logEntry.getPixelMapCacheHits());
+                    ps.setObject(38, logEntry.getPixelMapCacheMisses());
+                    ps.setObject(39, logEntry.getTimeToBuildPixelMapsMs());
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+                rollups.write(this.conn);
+                this.conn.commit();
+            }
+            catch(SQLException sqle)
+            {
+                this.conn.rollback();
+                throw sqle;
+            }
+            finally
+            {
+                if (ps != null) ps.close();
+                this.conn.setAutoCommit(true);
+            }
+        }
+        logger.debug("Time to log {} entries: {} ms", entries.size(),
+            (System.currentTimeMillis() - startLog));
+    }
+    
+    /**
+     * Writes the entire usage log to a CSV file on the given output stream.
+     * The log is read an hour at a time, so that the whole log is never held
+     * in memory.
+     */
+    public void writeCsv(OutputStream out) throws Exception
+    {
+        // Include the entries that are waiting to be written
+        if (this.writer != null) this.writer.flush(CLOSE_TIMEOUT_MS);
+        PrintWriter writer = new PrintWriter(new OutputStreamWriter(out, "UTF-8"));
+        PreparedStatement ps = this.conn.prepareStatement("SELECT * FROM usage_log " +
+            "WHERE request_time >= ? AND request_time < ? ORDER BY request_time");
         try
         {
-            // Use of setObject allows entries to be null
-            PreparedStatement ps = this.conn.prepareStatement(INSERT_COMMAND);
-            ps.setObject(1, logEntry.getRequestTime().toDate());
-            ps.setObject(2, logEntry.getClientIpAddress());
-            ps.setObject(3, logEntry.getClientHost());
-            ps.setObject(4, logEntry.getClientReferrer());
-            ps.setObject(5, logEntry.getClientUserAgent());
-            ps.setObject(6, logEntry.getHttpMethod());
-            ps.setObject(7, logEntry.getWmsVersion());
-            ps.setObject(8, logEntry.getWmsOperation());
-            ps.setString(9, logEntry.getExceptionClass());
-            ps.setString(10, logEntry.getExceptionMessage());
-            ps.setString(11, logEntry.getCrs());
-            ps.setObject(12, logEntry.getBbox() == null ? null : logEntry.getBbox()[0]);
-            ps.setObject(13, logEntry.getBbox() == null ? null : logEntry.getBbox()[1]);
-            ps.setObject(14, logEntry.getBbox() == null ? null : logEntry.getBbox()[2]);
-            ps.setObject(15, logEntry.getBbox() == null ? null : logEntry.getBbox()[3]);
-            ps.setString(16, logEntry.getElevation());
-            ps.setString(17, logEntry.getTimeString());
-            ps.setObject(18, logEntry.getNumTimeSteps());
-            ps.setObject(19, logEntry.getWidth());
-            ps.setObject(20, logEntry.getHeight());
-            ps.setString(21, logEntry.getLayer());
-            ps.setString(22, logEntry.getDatasetId());
-            ps.setString(23, logEntry.getVariableId());
-            ps.setObject(24, logEntry.getTimeToExtractDataMs());
-            ps.setBoolean(25, logEntry.isUsedCache());
-            ps.setObject(26, logEntry.getFeatureInfoLon());
-            ps.setObject(27, logEntry.getFeatureInfoLat());
-            ps.setObject(28, logEntry.getFeatureInfoPixelCol());
-            ps.setObject(29, logEntry.getFeatureInfoPixelRow());
-            ps.setString(30, logEntry.getStyle());
-            ps.setString(31, logEntry.getOutputFormat());
-            ps.setObject(32, logEntry.getTransparent());
-            ps.setString(33, logEntry.getBackgroundColor());
-            ps.setString(34, logEntry.getMenu());
-            ps.setString(35, logEntry.getRemoteServerUrl());
-            ps.executeUpdate();
-        }
-        catch(SQLException sqle)
-        {
-            logger.error("Error writing to usage log", sqle);
+            // Write the header from the metadata of an empty result
+            ps.setTimestamp(1, new Timestamp(0));
+            ps.setTimestamp(2, new Timestamp(0));
+            ResultSet rs = ps.executeQuery();
+            ResultSetMetaData md = rs.getMetaData();
+            int numColumns = md.getColumnCount();
+            for (int i = 1; i <= numColumns; i++)
+            {
+                writeCsvValue(writer, md.getColumnLabel(i), i == numColumns);
+            }
+            rs.close();
+
+            Timestamp windowStart = this.queryForTime("SELECT MIN(request_time) FROM usage_log");
+            while (windowStart != null)
+            {
+                Timestamp windowEnd = new Timestamp(windowStart.getTime()
+                    - windowStart.getTime() % HOUR_MS + HOUR_MS);
+                ps.setTimestamp(1, windowStart);
+                ps.setTimestamp(2, windowEnd);
+                rs = ps.executeQuery();
+                while (rs.next())
+                {
+                    for (int i = 1; i <= numColumns; i++)
+                    {
+                        writeCsvValue(writer, rs.getString(i), i == numColumns);
+                    }
+                }
+                rs.close();
+                writer.flush();
+                windowStart = this.queryForTime("SELECT MIN(request_time) FROM usage_log " +
+                    "WHERE request_time >= ?", windowEnd);
+            }
         }
         finally
         {
-            logger.debug("Time to log: {} ms", (System.currentTimeMillis() - 
-                startLog));
+            ps.close();
         }
+        writer.flush();
     }
-    
+
     /**
-     * Writes the entire usage log to a CSV file on the given output stream
+     * Writes a value to a CSV file, in quotes unless it is null.  Quotes within
+     * the value are doubled.
      */
-    public void writeCsv(OutputStream out) throws Exception
+    private static void writeCsvValue(PrintWriter writer, String value, boolean last)
     {
-        Writer writer = new OutputStreamWriter(out);
-        Statement stmt = this.conn.createStatement();
-        ResultSet results = stmt.executeQuery("SELECT * from usage_log");
-        Csv.getInstance().write(writer, results);
+        if (value != null)
+        {
+            writer.print('"');
+            writer.print(value.replace("\"", "\"\""));
+            writer.print('"');
+        }
+        if (last) writer.print("\r\n");
+        else writer.print(',');
+    }
+
+    /**
+     * Returns summaries of the requests in the last given number of days, one
+     * for each layer, operation and output format, with the most-requested
+     * first.  These are read from the rollups, so include requests whose
+     * entries have been purged from the usage log.
+     */
+    public List<UsageRollups.Summary> getSummaries(int days) throws SQLException
+    {
+        // Include the entries that are waiting to be written
+        if (this.writer != null)
+        {
+            try
+            {
+                this.writer.flush(CLOSE_TIMEOUT_MS);
+            }
+            catch (InterruptedException ie)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+        long since = System.currentTimeMillis() - days * DAY_MS;
+        return UsageRollups.readSummaries(this.conn, new Date(since - since % HOUR_MS));
     }
 
     /**
@@ -216,10 +538,30 @@ public class H2UsageLogger implements UsageLogger
     }
     
     /**
-     * Called by Spring to clean up the database
+     * Called by Spring to clean up the database, after writing any entries
+     * that are still queued
      */
     public void close()
     {
+        if (this.maintenanceExecutor != null)
+        {
+            this.maintenanceExecutor.shutdownNow();
+            try
+            {
+                this.maintenanceExecutor.awaitTermination(CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            }
+            catch (InterruptedException ie)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (this.writer != null)
+        {
+            this.writer.close(CLOSE_TIMEOUT_MS);
+            logger.info("Usage log writer closed: {} entries written, {} dropped, {} failed",
+                new Object[] { this.writer.getNumWritten(), this.writer.getNumDropped(),
+                this.writer.getNumFailed() });
+        }
         if (this.conn != null)
         {
             try { this.conn.close(); }
@@ -238,4 +580,65 @@ public class H2UsageLogger implements UsageLogger
     {
         this.usageLogDir = usageLogDir;
     }
+
+    /**
+     * May be called by Spring to set the maximum number of entries that can
+     * wait to be written to the database (default 10000)
+     */
+    public void setQueueCapacity(int queueCapacity)
+    {
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * May be called by Spring to set the maximum number of entries that are
+     * written in one transaction (default 500)
+     */
+    public void setMaxBatchSize(int maxBatchSize)
+    {
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * May be called by Spring to set what happens to entries when the queue is
+     * full: they can be dropped (the default) or the request threads can wait
+     * for space in the queue.
+     */
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy)
+    {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * May be called by Spring to set the number of days for which entries are
+     * kept in the usage log (default 90).  Zero or less keeps them forever.
+     */
+    public void setRawRetentionDays(int rawRetentionDays)
+    {
+        this.rawRetentionDays = rawRetentionDays;
+    }
+
+    public int getRawRetentionDays()
+    {
+        return this.rawRetentionDays;
+    }
+
+    /**
+     * May be called by Spring to set the number of days for which the rollups
+     * are kept (default zero, which keeps them forever).
+     */
+    public void setRollupRetentionDays(int rollupRetentionDays)
+    {
+        this.rollupRetentionDays = rollupRetentionDays;
+    }
+
+    /**
+     * Returns the object that queues entries and writes them to the database,
+     * which provides statistics about the queue.  Returns null if the logger
+     * has not been initialized.
+     */
+    public AsyncLogWriter<UsageLogEntry> getWriter()
+    {
+        return this.writer;
+    }
 }
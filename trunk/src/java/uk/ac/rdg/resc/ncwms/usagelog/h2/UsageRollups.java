@@ -0,0 +1,598 @@
+/*
+ * Copyright (c) 2010 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.usagelog.h2;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import uk.ac.rdg.resc.ncwms.usagelog.UsageLogEntry;
+
+/**
+ * <p>Accumulates the request counts for a batch of usage log entries, and adds
+ * them to the rollup tables ({@code usage_rollup} and
+ * {@code usage_source_rollup}) in the database.  The rollups are kept when
+ * old entries are purged from the usage log, and are much smaller than the
+ * log itself, so summaries of usage can be read from them quickly.</p>
+ * <p>The time to extract data is held as a histogram, from which percentiles
+ * are estimated: see {@link Summary}.</p>
+ * <p>Instances of this class are not thread-safe.</p>
+ * @author Jon
+ */
+public final class UsageRollups
+{
+    /**
+     * The upper bounds in milliseconds of the bins of the histogram of the
+     * time to extract data.  There is one more bin, for longer times.  Must
+     * match the extract_ms_* columns of the usage_rollup table in init.sql.
+     */
+    static final long[] EXTRACT_MS_BOUNDS = {
+        10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000
+    };
+
+    private static final String[] BIN_COLUMNS = new String[EXTRACT_MS_BOUNDS.length + 1];
+    static
+    {
+        for (int i = 0; i < EXTRACT_MS_BOUNDS.length; i++)
+        {
+            BIN_COLUMNS[i] = "extract_ms_" + EXTRACT_MS_BOUNDS[i];
+        }
+        BIN_COLUMNS[EXTRACT_MS_BOUNDS.length] = "extract_ms_more";
+    }
+
+    private static final String COUNT_COLUMNS = "num_requests, num_cache_hits, " +
+        "num_errors, num_extractions, extract_ms_total, extract_ms_max, " + join(BIN_COLUMNS);
+
+    private static final String UPDATE_ROLLUP = "UPDATE usage_rollup SET " +
+        "num_requests = num_requests + ?, num_cache_hits = num_cache_hits + ?, " +
+        "num_errors = num_errors + ?, num_extractions = num_extractions + ?, " +
+        "extract_ms_total = extract_ms_total + ?, " +
+        "extract_ms_max = CASEWHEN(extract_ms_max > ?, extract_ms_max, ?)" +
+        binIncrements() +
+        " WHERE hour = ? AND layer = ? AND wms_operation = ? AND output_format = ?";
+
+    private static final String INSERT_ROLLUP = "INSERT INTO usage_rollup(" +
+        COUNT_COLUMNS + ", hour, layer, wms_operation, output_format) VALUES(" +
+        placeholders(10 + BIN_COLUMNS.length) + ")";
+
+    private static final String UPDATE_SOURCE_ROLLUP = "UPDATE usage_source_rollup SET " +
+        "num_get_map = num_get_map + ?, num_cache_hits = num_cache_hits + ? " +
+        "WHERE day = ? AND source_type = ? AND source = ?";
+
+    private static final String INSERT_SOURCE_ROLLUP = "INSERT INTO usage_source_rollup(" +
+        "num_get_map, num_cache_hits, day, source_type, source) VALUES(?,?,?,?,?)";
+
+    private static final long HOUR_MS = 3600000L;
+    private static final long DAY_MS = 24 * HOUR_MS;
+
+    /** Counts keyed by hour, layer, operation and format */
+    private final Map<List<Object>, Counts> counts = new LinkedHashMap<List<Object>, Counts>();
+
+    /** GetMap counts keyed by day, source type and source */
+    private final Map<List<Object>, long[]> sourceCounts = new LinkedHashMap<List<Object>, long[]>();
+
+    /** Adds the given entry to the counts */
+    void add(UsageLogEntry entry)
+    {
+        long time = entry.getRequestTime().getMillis();
+        this.add(time, entry.getLayer(), entry.getWmsOperation(), entry.getOutputFormat(),
+            entry.isUsedCache(), entry.getExceptionClass() != null,
+            entry.getTimeToExtractDataMs());
+        if ("GetMap".equals(entry.getWmsOperation()))
+        {
+            this.addGetMap(time, "client", entry.getClientHost(), entry.isUsedCache());
+            this.addGetMap(time, "user_agent", entry.getClientUserAgent(), entry.isUsedCache());
+            this.addGetMap(time, "referrer", entry.getClientReferrer(), entry.isUsedCache());
+        }
+    }
+
+    /**
+     * Adds a request to the counts.
+     * @param time The time of the request in milliseconds since the epoch
+     * @param extractMs The time to extract data, or null if not recorded
+     */
+    void add(long time, String layer, String operation, String format,
+        boolean usedCache, boolean failed, Long extractMs)
+    {
+        List<Object> key = Arrays.<Object>asList(time - time % HOUR_MS,
+            nonNull(layer), nonNull(operation), nonNull(format));
+        Counts c = this.counts.get(key);
+        if (c == null)
+        {
+            c = new Counts();
+            this.counts.put(key, c);
+        }
+        c.numRequests++;
+        if (usedCache) c.numCacheHits++;
+        if (failed) c.numErrors++;
+        if (extractMs != null)
+        {
+            c.numExtractions++;
+            c.extractMsTotal += extractMs;
+            c.extractMsMax = Math.max(c.extractMsMax, extractMs);
+            c.bins[findBin(extractMs)]++;
+        }
+    }
+
+    /** Adds a GetMap request from the given source to the counts */
+    void addGetMap(long time, String sourceType, String source, boolean usedCache)
+    {
+        List<Object> key = Arrays.<Object>asList(time - time % DAY_MS, sourceType,
+            nonNull(source));
+        long[] c = this.sourceCounts.get(key);
+        if (c == null)
+        {
+            c = new long[2];
+            this.sourceCounts.put(key, c);
+        }
+        c[0]++;
+        if (usedCache) c[1]++;
+    }
+
+    /** Returns true if no requests have been added */
+    boolean isEmpty()
+    {
+        return this.counts.isEmpty() && this.sourceCounts.isEmpty();
+    }
+
+    /** Returns the number of rows of the usage_rollup table that will be written */
+    int getNumRollups()
+    {
+        return this.counts.size();
+    }
+
+    /** Returns the counts for the given hour, layer, operation and format, or null */
+    Counts getCounts(long hour, String layer, String operation, String format)
+    {
+        return this.counts.get(Arrays.<Object>asList(hour, nonNull(layer),
+            nonNull(operation), nonNull(format)));
+    }
+
+    /**
+     * Adds the counts to the rollup tables.  This does not commit the changes:
+     * the caller should make this part of the transaction that inserts the
+     * entries.
+     */
+    void write(Connection conn) throws SQLException
+    {
+        PreparedStatement update = conn.prepareStatement(UPDATE_ROLLUP);
+        PreparedStatement insert = conn.prepareStatement(INSERT_ROLLUP);
+        try
+        {
+            for (Map.Entry<List<Object>, Counts> entry : this.counts.entrySet())
+            {
+                List<Object> key = entry.getKey();
+                Counts c = entry.getValue();
+                int i = 1;
+                update.setLong(i++, c.numRequests);
+                update.setLong(i++, c.numCacheHits);
+                update.setLong(i++, c.numErrors);
+                update.setLong(i++, c.numExtractions);
+                update.setLong(i++, c.extractMsTotal);
+                update.setLong(i++, c.extractMsMax);
+                update.setLong(i++, c.extractMsMax);
+                for (long bin : c.bins) update.setLong(i++, bin);
+                setKey(update, i, key);
+                if (update.executeUpdate() > 0) continue;
+                // This is a new row
+                i = 1;
+                insert.setLong(i++, c.numRequests);
+                insert.setLong(i++, c.numCacheHits);
+                insert.setLong(i++, c.numErrors);
+                insert.setLong(i++, c.numExtractions);
+                insert.setLong(i++, c.extractMsTotal);
+                insert.setLong(i++, c.extractMsMax);
+                for (long bin : c.bins) insert.setLong(i++, bin);
+                setKey(insert, i, key);
+                insert.executeUpdate();
+            }
+        }
+        finally
+        {
+            update.close();
+            insert.close();
+        }
+
+        update = conn.prepareStatement(UPDATE_SOURCE_ROLLUP);
+        insert = conn.prepareStatement(INSERT_SOURCE_ROLLUP);
+        try
+        {
+            for (Map.Entry<List<Object>, long[]> entry : this.sourceCounts.entrySet())
+            {
+                for (PreparedStatement ps : new PreparedStatement[] { update, insert })
+                {
+                    ps.setLong(1, entry.getValue()[0]);
+                    ps.setLong(2, entry.getValue()[1]);
+                    setKey(ps, 3, entry.getKey());
+                    if (ps.executeUpdate() > 0) break;
+                }
+            }
+        }
+        finally
+        {
+            update.close();
+            insert.close();
+        }
+    }
+
+    /** Sets the parameters of a statement from a key, starting with the given index */
+    private static void setKey(PreparedStatement ps, int index, List<Object> key)
+        throws SQLException
+    {
+        ps.setTimestamp(index, new Timestamp((Long)key.get(0)));
+        for (int i = 1; i < key.size(); i++)
+        {
+            ps.setString(index + i, (String)key.get(i));
+        }
+    }
+
+    /**
+     * Reads summaries of the requests since the given time from the
+     * usage_rollup table, one for each layer, operation and format, with the
+     * most-requested first.
+     */
+    static List<Summary> readSummaries(Connection conn, Date since)
+        throws SQLException
+    {
+        StringBuilder sums = new StringBuilder();
+        for (String col : COUNT_COLUMNS.split(", "))
+        {
+            if (col.equals("extract_ms_max")) sums.append("MAX(").append(col).append("), ");
+            else sums.append("SUM(").append(col).append("), ");
+        }
+        PreparedStatement ps = conn.prepareStatement("SELECT " + sums +
+            "layer, wms_operation, output_format FROM usage_rollup WHERE hour >= ? " +
+            "GROUP BY layer, wms_operation, output_format ORDER BY 1 DESC");
+        try
+        {
+            ps.setTimestamp(1, new Timestamp(since.getTime()));
+            ResultSet rs = ps.executeQuery();
+            List<Summary> summaries = new ArrayList<Summary>();
+            while (rs.next())
+            {
+                Counts c = new Counts();
+                int i = 1;
+                c.numRequests = rs.getLong(i++);
+                c.numCacheHits = rs.getLong(i++);
+                c.numErrors = rs.getLong(i++);
+                c.numExtractions = rs.getLong(i++);
+                c.extractMsTotal = rs.getLong(i++);
+                c.extractMsMax = rs.getLong(i++);
+                for (int b = 0; b < c.bins.length; b++) c.bins[b] = rs.getLong(i++);
+                summaries.add(new Summary(rs.getString(i++), rs.getString(i++),
+                    rs.getString(i++), c));
+            }
+            rs.close();
+            return summaries;
+        }
+        finally
+        {
+            ps.close();
+        }
+    }
+
+    /**
+     * Checks whether the usage log contains entries that have not been added
+     * to the rollups, which happens when the rollup tables have just been
+     * created for an existing usage log.  If so, records in the
+     * usage_rollup_backfill table that the entries before the given time must
+     * be added by {@link #backfill(java.sql.Connection)}.  Must be called
+     * before any entries are added to the rollups as they are written.
+     * @return true if there are entries still to be added to the rollups,
+     * including those from a backfill that was interrupted earlier
+     */
+    static boolean startBackfill(Connection conn, Date before) throws SQLException
+    {
+        if (queryForTime(conn, "SELECT next_time FROM usage_rollup_backfill") != null) return true;
+        if (queryForTime(conn, "SELECT MIN(hour) FROM usage_rollup") != null) return false;
+        Timestamp oldest = queryForTime(conn, "SELECT MIN(request_time) FROM usage_log");
+        if (oldest == null || !oldest.before(before)) return false;
+        PreparedStatement ps = conn.prepareStatement("INSERT INTO usage_rollup_backfill" +
+            "(id, next_time, end_time) VALUES(1, ?, ?)");
+        try
+        {
+            ps.setTimestamp(1, oldest);
+            ps.setTimestamp(2, new Timestamp(before.getTime()));
+            ps.executeUpdate();
+            return true;
+        }
+        finally
+        {
+            ps.close();
+        }
+    }
+
+    /**
+     * Adds the entries recorded by {@link #startBackfill(java.sql.Connection,
+     * java.util.Date)} to the rollups, an hour at a time.  The rollups for each
+     * hour are written in the same transaction as the progress of the
+     * backfill, so if this is interrupted (e.g. by a restart) it carries on
+     * where it left off without counting any entries twice.
+     * @return the number of entries added to the rollups
+     */
+    static int backfill(Connection conn) throws SQLException
+    {
+        Timestamp windowStart = queryForTime(conn, "SELECT next_time FROM usage_rollup_backfill");
+        Timestamp end = queryForTime(conn, "SELECT end_time FROM usage_rollup_backfill");
+        int numEntries = 0;
+        while (windowStart != null && windowStart.before(end))
+        {
+            Timestamp windowEnd = new Timestamp(Math.min(
+                windowStart.getTime() - windowStart.getTime() % HOUR_MS + HOUR_MS,
+                end.getTime()));
+            UsageRollups rollups = new UsageRollups();
+            PreparedStatement ps = conn.prepareStatement("SELECT request_time, " +
+                "layer, wms_operation, output_format, used_cache, exception_class, " +
+                "time_to_extract_data_ms, client_hostname, client_user_agent, " +
+                "client_referrer FROM usage_log WHERE request_time >= ? AND request_time < ?");
+            try
+            {
+                ps.setTimestamp(1, windowStart);
+                ps.setTimestamp(2, windowEnd);
+                ResultSet rs = ps.executeQuery();
+                while (rs.next())
+                {
+                    // wasNull() refers to the last column read, so must be
+                    // called straight after getLong()
+                    long extractMs = rs.getLong(7);
+                    Long extract = rs.wasNull() ? null : extractMs;
+                    long time = rs.getTimestamp(1).getTime();
+                    boolean usedCache = rs.getBoolean(5);
+                    rollups.add(time, rs.getString(2), rs.getString(3), rs.getString(4),
+                        usedCache, rs.getString(6) != null, extract);
+                    if ("GetMap".equals(rs.getString(3)))
+                    {
+                        rollups.addGetMap(time, "client", rs.getString(8), usedCache);
+                        rollups.addGetMap(time, "user_agent", rs.getString(9), usedCache);
+                        rollups.addGetMap(time, "referrer", rs.getString(10), usedCache);
+                    }
+                    numEntries++;
+                }
+                rs.close();
+            }
+            finally
+            {
+                ps.close();
+            }
+            synchronized(conn)
+            {
+                conn.setAutoCommit(false);
+                try
+                {
+                    rollups.write(conn);
+                    PreparedStatement progress = conn.prepareStatement(
+                        "UPDATE usage_rollup_backfill SET next_time = ?");
+                    try
+                    {
+                        progress.setTimestamp(1, windowEnd);
+                        progress.executeUpdate();
+                    }
+                    finally
+                    {
+                        progress.close();
+                    }
+                    conn.commit();
+                }
+                catch (SQLException sqle)
+                {
+                    conn.rollback();
+                    throw sqle;
+                }
+                finally
+                {
+                    conn.setAutoCommit(true);
+                }
+            }
+            windowStart = queryForTime(conn, "SELECT MIN(request_time) FROM usage_log " +
+                "WHERE request_time >= ?", windowEnd);
+        }
+        Statement stmt = conn.createStatement();
+        try
+        {
+            synchronized(conn)
+            {
+                stmt.executeUpdate("DELETE FROM usage_rollup_backfill");
+            }
+        }
+        finally
+        {
+            stmt.close();
+        }
+        return numEntries;
+    }
+
+    /** Runs a query that returns a single time, which may be null */
+    private static Timestamp queryForTime(Connection conn, String sql, Object... params)
+        throws SQLException
+    {
+        PreparedStatement ps = conn.prepareStatement(sql);
+        try
+        {
+            for (int i = 0; i < params.length; i++) ps.setObject(i + 1, params[i]);
+            ResultSet rs = ps.executeQuery();
+            Timestamp time = rs.next() ? rs.getTimestamp(1) : null;
+            rs.close();
+            return time;
+        }
+        finally
+        {
+            ps.close();
+        }
+    }
+
+    /** Returns the index of the bin of the histogram that holds the given time */
+    static int findBin(long extractMs)
+    {
+        int bin = 0;
+        while (bin < EXTRACT_MS_BOUNDS.length && extractMs > EXTRACT_MS_BOUNDS[bin]) bin++;
+        return bin;
+    }
+
+    private static String nonNull(String s)
+    {
+        return s == null ? "" : s;
+    }
+
+    private static String join(String[] strs)
+    {
+        StringBuilder sb = new StringBuilder();
+        for (String s : strs)
+        {
+            if (sb.length() > 0) sb.append(", ");
+            sb.append(s);
+        }
+        return sb.toString();
+    }
+
+    private static String binIncrements()
+    {
+        StringBuilder sb = new StringBuilder();
+        for (String col : BIN_COLUMNS)
+        {
+            sb.append(", ").append(col).append(" = ").append(col).append(" + ?");
+        }
+        return sb.toString();
+    }
+
+    private static String placeholders(int n)
+    {
+        StringBuilder sb = new StringBuilder("?");
+        for (int i = 1; i < n; i++) sb.append(",?");
+        return sb.toString();
+    }
+
+    /** The counts for one row of the usage_rollup table */
+    static final class Counts
+    {
+        long numRequests = 0;
+        long numCacheHits = 0;
+        long numErrors = 0;
+        long numExtractions = 0;
+        long extractMsTotal = 0;
+        long extractMsMax = 0;
+        final long[] bins = new long[EXTRACT_MS_BOUNDS.length + 1];
+    }
+
+    /**
+     * Summarizes the requests for a layer, operation and output format.
+     * Percentiles of the time to extract data are estimated from the
+     * histogram, as the upper bound of the bin that contains the percentile
+     * (or the maximum time, if that is smaller).
+     */
+    public static final class Summary
+    {
+        private final String layer;
+        private final String operation;
+        private final String outputFormat;
+        private final Counts counts;
+
+        private Summary(String layer, String operation, String outputFormat, Counts counts)
+        {
+            this.layer = layer;
+            this.operation = operation;
+            this.outputFormat = outputFormat;
+            this.counts = counts;
+        }
+
+        public String getLayer() { return this.layer; }
+
+        public String getOperation() { return this.operation; }
+
+        public String getOutputFormat() { return this.outputFormat; }
+
+        public long getNumRequests() { return this.counts.numRequests; }
+
+        public long getNumCacheHits() { return this.counts.numCacheHits; }
+
+        public long getNumErrors() { return this.counts.numErrors; }
+
+        /** Returns the proportion of requests that used a cache */
+        public double getCacheHitRatio()
+        {
+            return this.counts.numRequests == 0 ? 0.0
+                : (double)this.counts.numCacheHits / this.counts.numRequests;
+        }
+
+        public long getNumExtractions() { return this.counts.numExtractions; }
+
+        /** Returns the mean time to extract data in milliseconds, or null if unknown */
+        public Long getMeanExtractMs()
+        {
+            return this.counts.numExtractions == 0 ? null
+                : this.counts.extractMsTotal / this.counts.numExtractions;
+        }
+
+        /** Returns the maximum time to extract data in milliseconds, or null if unknown */
+        public Long getMaxExtractMs()
+        {
+            return this.counts.numExtractions == 0 ? null : this.counts.extractMsMax;
+        }
+
+        public Long getMedianExtractMs() { return this.getExtractMsPercentile(50); }
+
+        public Long getP95ExtractMs() { return this.getExtractMsPercentile(95); }
+
+        public Long getP99ExtractMs() { return this.getExtractMsPercentile(99); }
+
+        /**
+         * Estimates the given percentile of the time to extract data in
+         * milliseconds.
+         * @return the estimate, or null if no times have been recorded
+         */
+        public Long getExtractMsPercentile(double percentile)
+        {
+            return estimatePercentile(this.counts, percentile);
+        }
+    }
+
+    static Long estimatePercentile(Counts counts, double percentile)
+    {
+        if (counts.numExtractions == 0) return null;
+        // The number of values that are no greater than the percentile
+        double rank = Math.ceil(counts.numExtractions * percentile / 100.0);
+        long cumulative = 0;
+        for (int bin = 0; bin < EXTRACT_MS_BOUNDS.length; bin++)
+        {
+            cumulative += counts.bins[bin];
+            if (cumulative >= rank)
+            {
+                return Math.min(EXTRACT_MS_BOUNDS[bin], counts.extractMsMax);
+            }
+        }
+        return counts.extractMsMax;
+    }
+}
@@ -39,5 +39,66 @@ CREATE TABLE IF NOT EXISTS usage_log
     transparent BOOLEAN,
     background_color VARCHAR,
     menu VARCHAR,
-    remote_server_url VARCHAR /* We use this when a request gets data from a remote server */
-);
\ No newline at end of file
+    remote_server_url VARCHAR, /* We use this when a request gets data from a remote server */
+    data_reading_strategy VARCHAR, /* The DataReadingStrategy used to read data from source files */
+    pixel_map_cache_hits INTEGER, /* Number of PixelMaps found in the PixelMapCache */
+    pixel_map_cache_misses INTEGER, /* Number of PixelMaps that had to be built */
+    time_to_build_pixel_maps_ms INTEGER /* Total time spent building PixelMaps */
+);
+/* Allows old entries to be found quickly, for purging and exporting */
+CREATE INDEX IF NOT EXISTS usage_log_request_time ON usage_log(request_time);
+
+/* Request counts for each hour, layer, operation and output format, which are
+   updated as entries are written to the usage log and are kept when old
+   entries are purged from the usage log.  Missing values are stored as ''.
+   The extract_ms_* columns are a histogram of the time to extract data: each
+   counts the extractions that took no more than the given number of
+   milliseconds (and more than the previous column).  The bounds must match
+   UsageRollups.EXTRACT_MS_BOUNDS. */
+CREATE TABLE IF NOT EXISTS usage_rollup
+(
+    hour TIMESTAMP NOT NULL, /* The start of the hour */
+    layer VARCHAR NOT NULL,
+    wms_operation VARCHAR NOT NULL,
+    output_format VARCHAR NOT NULL,
+    num_requests BIGINT NOT NULL,
+    num_cache_hits BIGINT NOT NULL,
+    num_errors BIGINT NOT NULL, /* Requests that led to exceptions */
+    num_extractions BIGINT NOT NULL, /* Requests that recorded the time to extract data */
+    extract_ms_total BIGINT NOT NULL,
+    extract_ms_max BIGINT NOT NULL,
+    extract_ms_10 BIGINT NOT NULL,
+    extract_ms_20 BIGINT NOT NULL,
+    extract_ms_50 BIGINT NOT NULL,
+    extract_ms_100 BIGINT NOT NULL,
+    extract_ms_200 BIGINT NOT NULL,
+    extract_ms_500 BIGINT NOT NULL,
+    extract_ms_1000 BIGINT NOT NULL,
+    extract_ms_2000 BIGINT NOT NULL,
+    extract_ms_5000 BIGINT NOT NULL,
+    extract_ms_10000 BIGINT NOT NULL,
+    extract_ms_30000 BIGINT NOT NULL,
+    extract_ms_more BIGINT NOT NULL, /* More than the largest bound */
+    PRIMARY KEY(hour, layer, wms_operation, output_format)
+);
+
+/* Progress of adding the entries that were in the usage log when the rollup
+   tables were created to the rollups.  Has one row while this is in progress
+   and none otherwise. */
+CREATE TABLE IF NOT EXISTS usage_rollup_backfill
+(
+    id INTEGER PRIMARY KEY,
+    next_time TIMESTAMP NOT NULL, /* Entries before this have been added */
+    end_time TIMESTAMP NOT NULL /* Entries from this time were added as they were written */
+);
+
+/* GetMap request counts for each day and each client, user agent and referrer */
+CREATE TABLE IF NOT EXISTS usage_source_rollup
+(
+    day TIMESTAMP NOT NULL, /* The start of the day (UTC) */
+    source_type VARCHAR NOT NULL, /* 'client', 'user_agent' or 'referrer' */
+    source VARCHAR NOT NULL,
+    num_get_map BIGINT NOT NULL,
+    num_cache_hits BIGINT NOT NULL,
+    PRIMARY KEY(day, source_type, source)
+);
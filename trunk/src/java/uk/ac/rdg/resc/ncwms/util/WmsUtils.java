@@ -45,10 +45,13 @@ import org.geotoolkit.referencing.CRS;
 import org.joda.time.Chronology;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
+import org.joda.time.Period;
+import org.joda.time.PeriodType;
 import org.joda.time.chrono.ISOChronology;
 import org.joda.time.chrono.JulianChronology;
 import org.joda.time.format.DateTimeFormatter;
 import org.joda.time.format.ISODateTimeFormat;
+import org.joda.time.format.ISOPeriodFormat;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 import uk.ac.rdg.resc.edal.cdm.CdmUtils;
 import uk.ac.rdg.resc.edal.coverage.grid.RegularGrid;
@@ -65,6 +68,8 @@ import uk.ac.rdg.resc.ncwms.exceptions.WmsException;
 import uk.ac.rdg.resc.ncwms.wms.Layer;
 import uk.ac.rdg.resc.ncwms.wms.ScalarLayer;
 import uk.ac.rdg.resc.ncwms.wms.SimpleVectorLayer;
+import uk.ac.rdg.resc.ncwms.wms.TimeRuns;
+import uk.ac.rdg.resc.ncwms.wms.TimestepIndex;
 import uk.ac.rdg.resc.ncwms.wms.VectorLayer;
 
 /**
@@ -94,6 +99,12 @@ public class WmsUtils
     private static final DateTimeFormatter ISO_TIME_FORMATTER =
         ISODateTimeFormat.time().withZone(DateTimeZone.UTC);
 
+    /**
+     * Runs of fewer regularly-spaced times than this are written as separate
+     * values in time dimension strings, rather than as start/end/period.
+     */
+    private static final int MIN_TIME_INTERVAL_LENGTH = 3;
+
     /**
      * <p>A {@link Comparator} that compares {@link DateTime} objects based only
      * on their millisecond instant values.  This can be used for
@@ -178,8 +189,70 @@ public class WmsUtils
      */
     public static int findTimeIndex(List<DateTime> dtList, DateTime target)
     {
+        if (dtList instanceof TimestepIndex.TimeValues)
+        {
+            // Searches the timesteps without creating DateTimes
+            TimestepIndex index = ((TimestepIndex.TimeValues)dtList).getTimestepIndex();
+            return index.findIndex(target.getMillis());
+        }
         return Collections.binarySearch(dtList, target, DATE_TIME_COMPARATOR);
     }
+
+    /**
+     * <p>Formats a list of time values for the time dimension of a
+     * Capabilities document.  Runs of regularly-spaced values are written as
+     * "start/end/period" (e.g. "2000-01-01T00:00:00.000Z/2000-12-31T23:00:00.000Z/PT1H")
+     * and the remaining values are listed individually, all separated by
+     * commas.</p>
+     * <p>Periods are written in days, hours, minutes and seconds (e.g. "P30D"
+     * for monthly data in the 360-day calendar).</p>
+     * @param timeValues The time values in ascending order, all in the same
+     * chronology
+     */
+    public static String getTimeDimensionValue(List<DateTime> timeValues)
+    {
+        if (timeValues.isEmpty()) return "";
+        TimeRuns runs;
+        if (timeValues instanceof TimestepIndex.TimeValues)
+        {
+            runs = ((TimestepIndex.TimeValues)timeValues).getTimestepIndex().getRuns();
+        }
+        else
+        {
+            long[] times = new long[timeValues.size()];
+            int i = 0;
+            for (DateTime dt : timeValues) times[i++] = dt.getMillis();
+            runs = TimeRuns.find(times, times.length);
+        }
+        Chronology chronology = timeValues.get(0).getChronology();
+
+        StringBuilder str = new StringBuilder();
+        for (int r = 0; r < runs.getNumRuns(); r++)
+        {
+            if (r > 0) str.append(',');
+            long start = runs.getStart(r);
+            long period = runs.getPeriod(r);
+            int numTimes = runs.getNumTimes(r);
+            if (numTimes >= MIN_TIME_INTERVAL_LENGTH)
+            {
+                str.append(dateTimeToISO8601(new DateTime(start, chronology)));
+                str.append('/');
+                str.append(dateTimeToISO8601(new DateTime(runs.getEnd(r), chronology)));
+                str.append('/');
+                str.append(ISOPeriodFormat.standard().print(new Period(period,
+                    PeriodType.dayTime(), ISOChronology.getInstanceUTC())));
+            }
+            else
+            {
+                for (int n = 0; n < numTimes; n++)
+                {
+                    if (n > 0) str.append(',');
+                    str.append(dateTimeToISO8601(new DateTime(start + n * period, chronology)));
+                }
+            }
+        }
+        return str.toString();
+    }
     
     /**
      * Creates a directory, throwing an Exception if it could not be created and
@@ -283,6 +356,31 @@ public class WmsUtils
         return mag;
     }
     
+    /**
+     * Calculates the magnitude of the vector components given in the provided
+     * arrays.  The two arrays must be of the same length.  For any element in the
+     * component arrays, if either east or north is NaN, the magnitude will also
+     * be NaN.
+     * @return a new array of the magnitudes calculated from the components.
+     */
+    public static float[] getMagnitudes(float[] eastData, float[] northData)
+    {
+        if (eastData == null || northData == null) throw new NullPointerException();
+        if (eastData.length != northData.length)
+        {
+            throw new IllegalArgumentException("east and north data components must be the same length");
+        }
+        float[] mag = new float[eastData.length];
+        for (int i = 0; i < eastData.length; i++)
+        {
+            float east = eastData[i];
+            float north = northData[i];
+            // NaNs propagate automatically
+            mag[i] = (float)Math.sqrt(east * east + north * north);
+        }
+        return mag;
+    }
+    
     /**
      * @return true if the given location represents an OPeNDAP dataset.
      * This method simply checks to see if the location string starts with "http://",
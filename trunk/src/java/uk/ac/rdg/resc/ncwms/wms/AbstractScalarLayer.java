@@ -338,6 +338,23 @@ public abstract class AbstractScalarLayer implements ScalarLayer
         return vals;
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>This implementation converts the result of {@link
+     * #readHorizontalPoints(org.joda.time.DateTime, double,
+     * uk.ac.rdg.resc.edal.coverage.domain.Domain) readHorizontalPoints()}.
+     * Subclasses that can read data directly into an array are encouraged
+     * to override this.</p>
+     */
+    @Override
+    public float[] readHorizontalPointsAsArray(DateTime time,
+            double elevation, Domain<HorizontalPosition> domain)
+            throws InvalidDimensionValueException, IOException
+    {
+        return CollectionUtils.floatArrayFromList(
+            this.readHorizontalPoints(time, elevation, domain));
+    }
+
     /**
      * <p>Simple but naive implementation of
      * {@link Layer#readTimeseries(java.util.List, double,
@@ -28,11 +28,10 @@
 
 package uk.ac.rdg.resc.ncwms.wms;
 
-import java.util.AbstractList;
-import java.util.ArrayList;
 import java.util.List;
 import org.joda.time.Chronology;
 import org.joda.time.DateTime;
+import uk.ac.rdg.resc.ncwms.exceptions.InvalidDimensionValueException;
 import uk.ac.rdg.resc.ncwms.util.WmsUtils;
 
 /**
@@ -46,22 +45,8 @@ import uk.ac.rdg.resc.ncwms.util.WmsUtils;
  */
 public abstract class AbstractTimeAggregatedLayer extends AbstractScalarLayer
 {
-    /** These are sorted into ascending order of time */
-    protected final List<TimestepInfo> timesteps = new ArrayList<TimestepInfo>();
-
-    /**
-     * A view of the {@link #timesteps} as an unmodifiable List of DateTimes,
-     * for the {@link #getTimeValues()} method.
-     */
-    private final List<DateTime> dateTimes = 
-        new AbstractList<DateTime>() {
-            @Override public DateTime get(int index) {
-                return timesteps.get(index).getDateTime();
-            }
-            @Override public int size() {
-                return timesteps.size();
-            }
-        };
+    /** Records which file holds each timestep, in ascending order of time */
+    protected final TimestepIndex timesteps = new TimestepIndex();
     
     /**
      * Creates an AbstractTimeAggregatedLayer with a bounding box that covers
@@ -84,15 +69,15 @@ public abstract class AbstractTimeAggregatedLayer extends AbstractScalarLayer
     @Override
     public Chronology getChronology()
     {
-        if (this.timesteps.isEmpty()) return null;
-        return this.timesteps.get(0).timestep.getChronology();
+        return this.timesteps.getChronology();
     }
 
     /**
      * <p>Returns the list of time instants that are valid for this layer, in
      * chronological order, or an empty list if this Layer does not have a time axis.</p>
      * <p>Note that this implementation returns an unmodifiable <i>view</i> on
-     * the internal list of TimestepInfo objects, therefore if
+     * the internal {@link TimestepIndex}, which creates a new DateTime each
+     * time an element is read.  If
      * {@link #addTimestepInfo(org.joda.time.DateTime, java.lang.String, int) addTimestepInfo()}
      * is called when iterating over the List returned by this method, undefined
      * behaviour might result.  However, this Layer will usually be constructed
@@ -104,15 +89,40 @@ public abstract class AbstractTimeAggregatedLayer extends AbstractScalarLayer
     @Override
     public List<DateTime> getTimeValues()
     {
-        return this.dateTimes;
+        return this.timesteps.asDateTimes();
+    }
+
+    /**
+     * Searches the index of timesteps directly, rather than comparing
+     * DateTimes.
+     */
+    @Override
+    public int findAndCheckTimeIndex(DateTime target) throws InvalidDimensionValueException
+    {
+        if (!this.hasTimeAxis()) return -1;
+        int index = this.timesteps.findIndex(target.getMillis());
+        if (index >= 0) return index;
+        throw new InvalidDimensionValueException("time", WmsUtils.dateTimeToISO8601(target));
+    }
+
+    @Override
+    protected int getCurrentTimeIndex()
+    {
+        if (!this.hasTimeAxis()) return -1; // no time axis
+        int index = this.timesteps.findIndex(System.currentTimeMillis());
+        if (index >= 0) return index;
+        // We return the index of the most recent past time, or the earliest
+        // time if all times are in the future
+        int insertionPoint = -(index + 1);
+        return insertionPoint > 0 ? insertionPoint - 1 : 0;
     }
 
     /**
-     * Adds a new TimestepInfo to this layer.  If a TimestepInfo object
-     * already exists for this timestep, the TimestepInfo object with the lower
-     * indexInFile value is chosen (this is most likely to be the result of a
-     * shorter forecast lead time and therefore more accurate).
-     * @param timestep The real date/time of this timestep
+     * Adds a new timestep to this layer.  If this layer already has this
+     * timestep, the one with the lower indexInFile value is chosen (this is
+     * most likely to be the result of a shorter forecast lead time and
+     * therefore more accurate).
+     * @param dt The real date/time of this timestep
      * @param filename The filename containing this timestep
      * @param indexInFile The index of this timestep in the file
      * @throws NullPointerException if {@code timestep} or {@code filename}
@@ -121,106 +131,26 @@ public abstract class AbstractTimeAggregatedLayer extends AbstractScalarLayer
      */
     public void addTimestepInfo(DateTime dt, String filename, int indexInFile)
     {
-        TimestepInfo tInfo = new TimestepInfo(dt, filename, indexInFile);
-        // Find the insertion point in the List of timesteps
-        int index = WmsUtils.findTimeIndex(this.getTimeValues(), dt);
-        if (index >= 0)
-        {
-            // We already have a timestep for this time
-            TimestepInfo existingTStep = this.timesteps.get(index);
-            if (tInfo.getIndexInFile() < existingTStep.getIndexInFile())
-            {
-                // The new info probably has a shorter forecast time and so we
-                // replace the existing version with this one
-                existingTStep = tInfo;
-            }
-        }
-        else
-        {
-            // We need to insert the TimestepInfo object into the list at the
-            // correct location to ensure that the list is sorted in ascending
-            // order of time.
-            int insertionPoint = -(index + 1); // see docs for Collections.binarySearch()
-            this.timesteps.add(insertionPoint, tInfo);
-        }
+        this.timesteps.add(dt, filename, indexInFile);
     }
 
     /**
-     * Simple class that holds information about which files in an aggregation
-     * hold which timesteps for a variable.  Instances of this class are
-     * immutable.
+     * Returns the information about which file holds each timestep, in
+     * chronological order.
      */
-    protected static class TimestepInfo
+    public TimestepIndex getTimestepIndex()
     {
-        private DateTime timestep;
-        private String filename;
-        private int indexInFile;
-
-        /**
-         * Creates a new TimestepInfo object
-         * @param timestep The real date/time of this timestep
-         * @param filename The filename containing this timestep
-         * @param indexInFile The index of this timestep in the file
-         * @throws NullPointerException if {@code timestep} or {@code filename}
-         * is null.
-         * @throws IllegalArgumentException if {@code indexInFile} is less than zero
-         */
-        public TimestepInfo(DateTime timestep, String filename, int indexInFile)
-        {
-            if (timestep == null || filename == null)
-            {
-                throw new NullPointerException();
-            }
-            if (indexInFile < 0)
-            {
-                throw new IllegalArgumentException("indexInFile must be >= 0");
-            }
-            this.timestep = timestep;
-            this.filename = filename;
-            this.indexInFile = indexInFile;
-        }
-
-        public String getFilename()
-        {
-            return this.filename;
-        }
-
-        public int getIndexInFile()
-        {
-            return this.indexInFile;
-        }
-
-        /**
-         * @return the date-time that this timestep represents
-         */
-        public DateTime getDateTime()
-        {
-            return this.timestep;
-        }
-
-        /**
-         * Compares all fields for equality, using only the millisecond value
-         * to compare the timesteps.
-         */
-        @Override
-        public boolean equals(Object obj)
-        {
-            if (this == obj) return true;
-            if (!(obj instanceof TimestepInfo)) return false;
-            TimestepInfo otherTstep = (TimestepInfo)obj;
-            return this.timestep.isEqual(otherTstep.timestep) && // Compares based on millisecond value only
-                   this.indexInFile == otherTstep.indexInFile &&
-                   this.filename.equals(otherTstep.filename);
-        }
+        return this.timesteps;
+    }
 
-        @Override
-        public int hashCode() {
-            int hash = 3;
-            hash = 41 * hash + this.timestep.hashCode();
-            hash = 41 * hash + this.filename.hashCode();
-            hash = 41 * hash + this.indexInFile;
-            return hash;
-        }
+    /**
+     * Adds all the timesteps of the given layer to this layer, as if by calling
+     * {@link #addTimestepInfo(org.joda.time.DateTime, java.lang.String, int)
+     * addTimestepInfo()} for each one.
+     */
+    public void addTimesteps(AbstractTimeAggregatedLayer layer)
+    {
+        this.timesteps.addAll(layer.timesteps);
     }
 
 }
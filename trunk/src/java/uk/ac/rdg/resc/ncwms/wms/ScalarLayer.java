@@ -105,6 +105,27 @@ public interface ScalarLayer extends Layer
             Domain<HorizontalPosition> points)
         throws InvalidDimensionValueException, IOException;
 
+    /**
+     * <p>Reads data at a number of horizontal locations at a single time and
+     * elevation, as {@link #readHorizontalPoints(org.joda.time.DateTime, double,
+     * uk.ac.rdg.resc.edal.coverage.domain.Domain) readHorizontalPoints()},
+     * but returns the data as an array of primitive values, in which missing
+     * values are represented by NaNs.  This avoids the creation of an object
+     * for each data value and is therefore preferred for large grids of data
+     * (e.g. in GetMap operations).</p>
+     * @return an array of data values, one for each point in
+     * the {@code points}, in the same order.
+     * @throws NullPointerException if {@code points} is null or if this
+     * layer has a time axis and {@code time} is null.
+     * @throws InvalidDimensionValueException if {@code elevation} is not a valid
+     * elevation in this Layer, or if {@code time} is not a valid time in this
+     * Layer.
+     * @throws IOException if there was an error reading from the data source
+     */
+    public float[] readHorizontalPointsAsArray(DateTime time, double elevation,
+            Domain<HorizontalPosition> points)
+        throws InvalidDimensionValueException, IOException;
+
     /**
      * <p>Reads a timeseries of data at a single xyz point from this Layer.
      * Missing values (e.g. land pixels in oceanography data) will be represented
@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2010 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.wms;
+
+import java.util.Arrays;
+
+/**
+ * <p>Divides a sorted list of times into runs of regularly-spaced values.
+ * Many time axes are regular (e.g. hourly for the whole of a reanalysis) or
+ * consist of a few regular runs separated by gaps.  Such an axis can be
+ * described by the start, end and period of each run, which is how the WMS
+ * specification allows time dimensions to be written in Capabilities
+ * documents, and the index of a time can be calculated arithmetically rather
+ * than by searching all the values.</p>
+ * <p>Times are held as milliseconds since the epoch, so spacing that is
+ * regular in the calendar system of the axis but irregular in milliseconds
+ * (e.g. monthly values in the ISO calendar) is not detected.  Calendars in
+ * which all months have the same length, such as the 360-day calendar, do
+ * not suffer from this.</p>
+ * <p>Instances of this class are immutable.</p>
+ * @author Jon
+ */
+public final class TimeRuns
+{
+    private static final TimeRuns EMPTY = new TimeRuns(new long[0], new long[0], new int[]{0});
+
+    /** The first time in each run */
+    private final long[] starts;
+    /** The spacing of the times in each run, zero if the run has a single time */
+    private final long[] periods;
+    /** The index of the first time of each run, plus the total number of times */
+    private final int[] firstIndices;
+
+    private TimeRuns(long[] starts, long[] periods, int[] firstIndices)
+    {
+        this.starts = starts;
+        this.periods = periods;
+        this.firstIndices = firstIndices;
+    }
+
+    /**
+     * Finds the runs of regularly-spaced values in the first {@code size}
+     * values of the given array, which must be in strictly ascending order.
+     * Each run is made as long as possible, starting from the earliest time.
+     */
+    public static TimeRuns find(long[] times, int size)
+    {
+        if (size == 0) return EMPTY;
+        // Count the runs so that we can allocate arrays of the right size
+        int numRuns = 0;
+        for (int i = 0; i < size; i = endOfRun(times, size, i)) numRuns++;
+
+        long[] starts = new long[numRuns];
+        long[] periods = new long[numRuns];
+        int[] firstIndices = new int[numRuns + 1];
+        int i = 0;
+        for (int r = 0; r < numRuns; r++)
+        {
+            starts[r] = times[i];
+            periods[r] = i + 1 < size ? times[i + 1] - times[i] : 0;
+            firstIndices[r] = i;
+            i = endOfRun(times, size, i);
+        }
+        firstIndices[numRuns] = size;
+        return new TimeRuns(starts, periods, firstIndices);
+    }
+
+    /** Returns the index after the last time of the run that starts at index i */
+    private static int endOfRun(long[] times, int size, int i)
+    {
+        if (i + 1 >= size) return size;
+        long period = times[i + 1] - times[i];
+        int j = i + 1;
+        while (j + 1 < size && times[j + 1] - times[j] == period) j++;
+        return j + 1;
+    }
+
+    /** Gets the number of runs, which is zero if there are no times */
+    public int getNumRuns()
+    {
+        return this.starts.length;
+    }
+
+    /** Gets the total number of times in all the runs */
+    public int getNumTimes()
+    {
+        return this.firstIndices[this.starts.length];
+    }
+
+    /** Gets the first time of the given run, in milliseconds since the epoch */
+    public long getStart(int run)
+    {
+        return this.starts[run];
+    }
+
+    /** Gets the last time of the given run, in milliseconds since the epoch */
+    public long getEnd(int run)
+    {
+        return this.starts[run] + this.periods[run] * (this.getNumTimes(run) - 1);
+    }
+
+    /**
+     * Gets the spacing of the times in the given run in milliseconds, which
+     * is zero if the run contains a single time.
+     */
+    public long getPeriod(int run)
+    {
+        return this.periods[run];
+    }
+
+    /** Gets the number of times in the given run */
+    public int getNumTimes(int run)
+    {
+        return this.firstIndices[run + 1] - this.firstIndices[run];
+    }
+
+    /**
+     * Finds the index of the given time, in milliseconds since the epoch,
+     * among all the times.  This takes constant time if there is a single
+     * run.
+     * @return the index of the time if it is found, otherwise
+     * (-(insertion point) - 1), with the same meaning as for
+     * {@link Arrays#binarySearch(long[], long)}.
+     */
+    public int findIndex(long millis)
+    {
+        int run = Arrays.binarySearch(this.starts, millis);
+        if (run >= 0) return this.firstIndices[run];
+        // The run whose start precedes the time
+        run = -(run + 1) - 1;
+        if (run < 0) return -1; // The time precedes all the runs
+        long offset = millis - this.starts[run];
+        int numTimes = this.getNumTimes(run);
+        long period = this.periods[run];
+        long n = period == 0 ? numTimes : offset / period;
+        if (n >= numTimes) return -this.firstIndices[run + 1] - 1;
+        int index = this.firstIndices[run] + (int)n;
+        if (offset % period == 0) return index;
+        return -(index + 1) - 1;
+    }
+}
@@ -0,0 +1,399 @@
+/*
+ * Copyright (c) 2010 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.wms;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.joda.time.Chronology;
+import org.joda.time.DateTime;
+
+/**
+ * <p>Records which file holds each timestep of an
+ * {@link AbstractTimeAggregatedLayer}, in a compact form.  The timesteps are
+ * held as an array of milliseconds since the epoch, sorted into ascending
+ * order, together with arrays of the index of the file (in a table of
+ * distinct filenames) and the index of the timestep within that file.  A
+ * layer with hundreds of thousands of timesteps therefore needs a few
+ * megabytes rather than a {@link DateTime} and a holder object per timestep,
+ * and timesteps can be found without creating any objects.  The index also
+ * divides the timesteps into {@link TimeRuns runs of regularly-spaced
+ * values}, so that timesteps on a regular axis are found arithmetically.</p>
+ * <p>All the timesteps are interpreted in the {@link Chronology} of the first
+ * timestep that is added: {@link DateTime}s are created from this when they
+ * are requested.</p>
+ * <p>Timesteps are appended to a buffer as they are added and merged into the
+ * sorted arrays, in a single sort, the next time the index is read.  Adding
+ * the timesteps of many files therefore takes time proportional to the total
+ * number of timesteps (plus the cost of sorting them, if they are not added
+ * in order), rather than to its square.  If the same time is added more than
+ * once, the timestep with the lower index in its file is kept: this is most
+ * likely to be the result of a shorter forecast lead time and therefore more
+ * accurate.  If the indices are equal the timestep that was added first is
+ * kept.</p>
+ * <p>The index is not modified once it has been read by more than one thread,
+ * but reading may merge buffered timesteps, so reads are thread-safe.</p>
+ * @author Jon
+ */
+public final class TimestepIndex
+{
+    private static final long[] NO_TIMES = new long[0];
+    private static final int[] NO_INTS = new int[0];
+
+    private Chronology chronology = null;
+
+    /** The distinct filenames, indexed by the file ids in the other arrays */
+    private final List<String> filenames = new ArrayList<String>();
+    private final Map<String, Integer> fileIds = new HashMap<String, Integer>();
+
+    /** The timesteps, in ascending order of time with no duplicates */
+    private long[] times = NO_TIMES;
+    private int[] files = NO_INTS;
+    private int[] indicesInFile = NO_INTS;
+    private int size = 0;
+    private TimeRuns runs = TimeRuns.find(NO_TIMES, 0);
+
+    /** Timesteps that have been added but not yet merged, in order of addition */
+    private long[] pendingTimes = NO_TIMES;
+    private int[] pendingFiles = NO_INTS;
+    private int[] pendingIndices = NO_INTS;
+    private volatile int numPending = 0;
+
+    private final TimeValues dateTimes = new TimeValues(this);
+
+    /**
+     * Adds a timestep to this index.
+     * @param timestep The real date/time of this timestep
+     * @param filename The filename containing this timestep
+     * @param indexInFile The index of this timestep in the file
+     * @throws NullPointerException if {@code timestep} or {@code filename}
+     * is null.
+     * @throws IllegalArgumentException if {@code indexInFile} is less than zero
+     */
+    synchronized void add(DateTime timestep, String filename, int indexInFile)
+    {
+        if (timestep == null || filename == null)
+        {
+            throw new NullPointerException();
+        }
+        if (indexInFile < 0)
+        {
+            throw new IllegalArgumentException("indexInFile must be >= 0");
+        }
+        if (this.chronology == null) this.chronology = timestep.getChronology();
+        this.addPending(timestep.getMillis(), this.getFileId(filename), indexInFile);
+    }
+
+    /**
+     * Adds all the timesteps in the given index to this index, as if by
+     * calling {@link #add(org.joda.time.DateTime, java.lang.String, int) add()}
+     * for each one in order of time.
+     */
+    void addAll(TimestepIndex other)
+    {
+        if (other == this) return;
+        synchronized(other)
+        {
+            other.consolidate();
+            synchronized(this)
+            {
+                if (this.chronology == null) this.chronology = other.chronology;
+                // Maps the other index's file ids to ours
+                int[] ids = new int[other.filenames.size()];
+                for (int i = 0; i < ids.length; i++)
+                {
+                    ids[i] = this.getFileId(other.filenames.get(i));
+                }
+                for (int i = 0; i < other.size; i++)
+                {
+                    this.addPending(other.times[i], ids[other.files[i]],
+                        other.indicesInFile[i]);
+                }
+            }
+        }
+    }
+
+    private int getFileId(String filename)
+    {
+        Integer id = this.fileIds.get(filename);
+        if (id == null)
+        {
+            id = this.filenames.size();
+            this.filenames.add(filename);
+            this.fileIds.put(filename, id);
+        }
+        return id;
+    }
+
+    private void addPending(long millis, int fileId, int indexInFile)
+    {
+        int n = this.numPending;
+        if (n == this.pendingTimes.length)
+        {
+            int capacity = Math.max(16, n * 2);
+            this.pendingTimes = Arrays.copyOf(this.pendingTimes, capacity);
+            this.pendingFiles = Arrays.copyOf(this.pendingFiles, capacity);
+            this.pendingIndices = Arrays.copyOf(this.pendingIndices, capacity);
+        }
+        this.pendingTimes[n] = millis;
+        this.pendingFiles[n] = fileId;
+        this.pendingIndices[n] = indexInFile;
+        this.numPending = n + 1;
+    }
+
+    /** Merges any timesteps that have been added since the last read */
+    private void consolidate()
+    {
+        if (this.numPending == 0) return;
+        synchronized(this)
+        {
+            int n = this.numPending;
+            if (n == 0) return;
+            int[] order = sortedOrder(this.pendingTimes, n);
+
+            long[] newTimes = new long[this.size + n];
+            int[] newFiles = new int[newTimes.length];
+            int[] newIndices = new int[newTimes.length];
+            int i = 0; // index in the existing timesteps
+            int j = 0; // index in the pending timesteps
+            int k = 0; // number of merged timesteps
+            while (i < this.size || j < n)
+            {
+                long t;
+                int file, indexInFile;
+                // On equal times the existing timestep comes first, as it was
+                // added first
+                if (j == n || (i < this.size && this.times[i] <= this.pendingTimes[order[j]]))
+                {
+                    t = this.times[i];
+                    file = this.files[i];
+                    indexInFile = this.indicesInFile[i];
+                    i++;
+                }
+                else
+                {
+                    int p = order[j];
+                    t = this.pendingTimes[p];
+                    file = this.pendingFiles[p];
+                    indexInFile = this.pendingIndices[p];
+                    j++;
+                }
+                if (k > 0 && newTimes[k - 1] == t)
+                {
+                    // We already have a timestep for this time
+                    if (indexInFile < newIndices[k - 1])
+                    {
+                        newFiles[k - 1] = file;
+                        newIndices[k - 1] = indexInFile;
+                    }
+                }
+                else
+                {
+                    newTimes[k] = t;
+                    newFiles[k] = file;
+                    newIndices[k] = indexInFile;
+                    k++;
+                }
+            }
+
+            this.times = k == newTimes.length ? newTimes : Arrays.copyOf(newTimes, k);
+            this.files = k == newFiles.length ? newFiles : Arrays.copyOf(newFiles, k);
+            this.indicesInFile = k == newIndices.length ? newIndices : Arrays.copyOf(newIndices, k);
+            this.size = k;
+            this.runs = TimeRuns.find(this.times, k);
+            this.pendingTimes = NO_TIMES;
+            this.pendingFiles = NO_INTS;
+            this.pendingIndices = NO_INTS;
+            // Written last, so that readers that see no pending timesteps
+            // also see the merged arrays
+            this.numPending = 0;
+        }
+    }
+
+    /**
+     * Gets the positions of the first n values in ascending order, preserving
+     * the order of equal values.  Timesteps are usually added in order, in
+     * which case no sorting is needed.
+     */
+    private static int[] sortedOrder(long[] values, int n)
+    {
+        int[] order = new int[n];
+        boolean sorted = true;
+        for (int i = 0; i < n; i++)
+        {
+            order[i] = i;
+            if (i > 0 && values[i] < values[i - 1]) sorted = false;
+        }
+        if (!sorted) mergeSort(values, order, new int[n], 0, n);
+        return order;
+    }
+
+    /** Stable merge sort of order[from, to) by the values that they index */
+    private static void mergeSort(long[] values, int[] order, int[] tmp, int from, int to)
+    {
+        if (to - from < 2) return;
+        int mid = (from + to) >>> 1;
+        mergeSort(values, order, tmp, from, mid);
+        mergeSort(values, order, tmp, mid, to);
+        // No need to merge if the two halves are already in order
+        if (values[order[mid - 1]] <= values[order[mid]]) return;
+        System.arraycopy(order, from, tmp, from, to - from);
+        int i = from, j = mid;
+        for (int k = from; k < to; k++)
+        {
+            if (j == to || (i < mid && values[tmp[i]] <= values[tmp[j]]))
+            {
+                order[k] = tmp[i++];
+            }
+            else
+            {
+                order[k] = tmp[j++];
+            }
+        }
+    }
+
+    /** Gets the number of timesteps in this index */
+    public int size()
+    {
+        this.consolidate();
+        return this.size;
+    }
+
+    /**
+     * Gets the Chronology in which the timesteps are interpreted, or null if
+     * this index is empty.
+     */
+    public Chronology getChronology()
+    {
+        this.consolidate();
+        return this.size == 0 ? null : this.chronology;
+    }
+
+    /** Gets the time of the timestep at the given index in milliseconds since the epoch */
+    public long getMillis(int index)
+    {
+        this.checkIndex(index);
+        return this.times[index];
+    }
+
+    /** Gets the time of the timestep at the given index as a new DateTime */
+    public DateTime getDateTime(int index)
+    {
+        this.checkIndex(index);
+        return new DateTime(this.times[index], this.chronology);
+    }
+
+    /** Gets the name of the file that holds the timestep at the given index */
+    public String getFilename(int index)
+    {
+        this.checkIndex(index);
+        return this.filenames.get(this.files[index]);
+    }
+
+    /** Gets the index of the timestep at the given index within its file */
+    public int getIndexInFile(int index)
+    {
+        this.checkIndex(index);
+        return this.indicesInFile[index];
+    }
+
+    private void checkIndex(int index)
+    {
+        this.consolidate();
+        if (index < 0 || index >= this.size)
+        {
+            throw new IndexOutOfBoundsException(index + " is not in [0," + this.size + ")");
+        }
+    }
+
+    /**
+     * Searches for the timestep at the given time, in milliseconds since the
+     * epoch.
+     * @return the index of the timestep if it is found, otherwise
+     * (-(insertion point) - 1), with the same meaning as for
+     * {@link Arrays#binarySearch(long[], long)}.
+     */
+    public int findIndex(long millis)
+    {
+        this.consolidate();
+        return this.runs.findIndex(millis);
+    }
+
+    /** Gets the runs of regularly-spaced timesteps */
+    public TimeRuns getRuns()
+    {
+        this.consolidate();
+        return this.runs;
+    }
+
+    /**
+     * Returns an unmodifiable view of the timesteps as DateTimes, in
+     * ascending order.  Each call to {@code get()} creates a new DateTime.
+     */
+    public TimeValues asDateTimes()
+    {
+        return this.dateTimes;
+    }
+
+    /**
+     * An unmodifiable view of the timesteps in a {@link TimestepIndex} as
+     * DateTimes, which are created when they are requested.  Code that is
+     * given a list of time values can check for this class to use the
+     * index directly.
+     */
+    public static final class TimeValues extends AbstractList<DateTime>
+    {
+        private final TimestepIndex index;
+
+        private TimeValues(TimestepIndex index)
+        {
+            this.index = index;
+        }
+
+        @Override
+        public DateTime get(int i)
+        {
+            return this.index.getDateTime(i);
+        }
+
+        @Override
+        public int size()
+        {
+            return this.index.size();
+        }
+
+        public TimestepIndex getTimestepIndex()
+        {
+            return this.index;
+        }
+    }
+}
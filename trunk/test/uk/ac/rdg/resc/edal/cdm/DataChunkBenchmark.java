@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2010 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.rdg.resc.edal.cdm;
+
+import java.io.File;
+import ucar.ma2.Array;
+import ucar.ma2.ArrayDouble;
+import ucar.ma2.ArrayShort;
+import ucar.ma2.DataType;
+import ucar.ma2.IndexIterator;
+import ucar.nc2.Dimension;
+import ucar.nc2.NetcdfFileWriteable;
+import ucar.nc2.dataset.NetcdfDataset;
+import ucar.nc2.dataset.VariableDS;
+import ucar.nc2.dt.GridDatatype;
+
+/**
+ * <p>Micro-benchmark comparing the unpacking of a {@link DataChunk} of packed
+ * (scaled, offset and filled) sea surface temperature data with
+ * {@link DataChunk#getFloatValues()} against the previous method of
+ * unpacking each value separately through the {@link VariableDS}.  The
+ * whole of a global grid at 1/12 degree resolution is read once and
+ * unpacked repeatedly, so only the unpacking is measured.  The benchmark
+ * also reports the number of values that differ between the two methods,
+ * which should be zero.</p>
+ * <p>This is not run as part of the unit tests: run the main method with the
+ * test classpath, e.g. {@code java -Xmx512m uk.ac.rdg.resc.edal.cdm.DataChunkBenchmark}.
+ * The test file (around 18MB) is created in the temporary directory and
+ * deleted afterwards.</p>
+ * @author Jon
+ */
+public final class DataChunkBenchmark {
+
+    private static final int NLON = 4320;
+    private static final int NLAT = 2160;
+    private static final int WARMUP_ITERATIONS = 5;
+    private static final int MEASURED_ITERATIONS = 20;
+
+    public static void main(String[] args) throws Exception {
+        File file = File.createTempFile("benchmark", ".nc");
+        try {
+            createFile(file);
+            NetcdfDataset nc = NetcdfDataset.openDataset(file.getPath());
+            try {
+                GridDatatype grid = CdmUtils.getGridDatatype(nc, "sst");
+                RangesList ranges = new RangesList(grid);
+                ranges.setXRange(0, NLON - 1);
+                ranges.setYRange(0, NLAT - 1);
+                DataChunk chunk = DataChunk.readDataChunk(grid.getVariable(), ranges);
+                // The same packed values that the chunk holds
+                Array arr = grid.getVariable().getOriginalVariable().read(ranges.getRanges());
+
+                float[] reference = null;
+                for (int n = 0; n < WARMUP_ITERATIONS; n++) {
+                    reference = unpackPerValue(grid.getVariable(), arr);
+                }
+                long start = System.nanoTime();
+                for (int n = 0; n < MEASURED_ITERATIONS; n++) {
+                    reference = unpackPerValue(grid.getVariable(), arr);
+                }
+                long perValueNanos = System.nanoTime() - start;
+
+                float[] data = null;
+                for (int n = 0; n < WARMUP_ITERATIONS; n++) {
+                    data = chunk.getFloatValues();
+                }
+                start = System.nanoTime();
+                for (int n = 0; n < MEASURED_ITERATIONS; n++) {
+                    data = chunk.getFloatValues();
+                }
+                long bulkNanos = System.nanoTime() - start;
+
+                int differences = 0;
+                for (int p = 0; p < data.length; p++) {
+                    if (Float.compare(data[p], reference[p]) != 0) differences++;
+                }
+                System.out.println("method\t\ttime (ms)\tdifferences");
+                System.out.printf("per-value\t%.2f%n", perValueNanos / 1.0e6 / MEASURED_ITERATIONS);
+                System.out.printf("bulk\t\t%.2f\t\t%d%n", bulkNanos / 1.0e6 / MEASURED_ITERATIONS,
+                        differences);
+                System.out.printf("speedup\t\t%.1fx%n", (double)perValueNanos / bulkNanos);
+            } finally {
+                nc.close();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    /** Unpacks the packed values one at a time, as DataChunk used to */
+    private static float[] unpackPerValue(VariableDS var, Array arr) {
+        float[] values = new float[(int)arr.getSize()];
+        IndexIterator it = arr.getIndexIterator();
+        for (int n = 0; it.hasNext(); n++) {
+            double val = var.convertScaleOffsetMissing(it.getFloatNext());
+            values[n] = var.isMissing(val) ? Float.NaN : (float)val;
+        }
+        return values;
+    }
+
+    /** Creates a global grid of packed sea surface temperatures */
+    private static void createFile(File file) throws Exception {
+        NetcdfFileWriteable ncw = NetcdfFileWriteable.createNew(file.getPath(), false);
+        Dimension lat = ncw.addDimension("lat", NLAT);
+        Dimension lon = ncw.addDimension("lon", NLON);
+        ncw.addVariable("lat", DataType.DOUBLE, new Dimension[]{lat});
+        ncw.addVariableAttribute("lat", "units", "degrees_north");
+        ncw.addVariable("lon", DataType.DOUBLE, new Dimension[]{lon});
+        ncw.addVariableAttribute("lon", "units", "degrees_east");
+        ncw.addVariable("sst", DataType.SHORT, new Dimension[]{lat, lon});
+        ncw.addVariableAttribute("sst", "scale_factor", 0.01);
+        ncw.addVariableAttribute("sst", "add_offset", 273.15);
+        ncw.addVariableAttribute("sst", "_FillValue", (short)-32768);
+        ncw.addVariableAttribute("sst", "valid_min", (short)-300);
+        ncw.addVariableAttribute("sst", "valid_max", (short)4000);
+        ncw.create();
+
+        double res = 360.0 / NLON;
+        ArrayDouble.D1 lats = new ArrayDouble.D1(NLAT);
+        for (int j = 0; j < NLAT; j++) lats.set(j, -90.0 + (j + 0.5) * res);
+        ncw.write("lat", lats);
+        ArrayDouble.D1 lons = new ArrayDouble.D1(NLON);
+        for (int i = 0; i < NLON; i++) lons.set(i, -180.0 + (i + 0.5) * res);
+        ncw.write("lon", lons);
+        ArrayShort.D2 sst = new ArrayShort.D2(NLAT, NLON);
+        for (int j = 0; j < NLAT; j++) {
+            for (int i = 0; i < NLON; i++) {
+                // Roughly a third of the points are land
+                sst.set(j, i, (i + j) % 3 == 0 ? (short)-32768
+                        : (short)((i * 7 + j * 13) % 3500 - 200));
+            }
+        }
+        ncw.write("sst", sst);
+        ncw.close();
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright (c) 2010 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.rdg.resc.edal.cdm;
+
+import java.io.File;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import ucar.ma2.Array;
+import ucar.ma2.ArrayByte;
+import ucar.ma2.ArrayDouble;
+import ucar.ma2.ArrayFloat;
+import ucar.ma2.ArrayShort;
+import ucar.ma2.DataType;
+import ucar.nc2.Dimension;
+import ucar.nc2.NetcdfFileWriteable;
+import ucar.nc2.dataset.NetcdfDataset;
+import ucar.nc2.dataset.VariableDS;
+import ucar.nc2.dt.GridDatatype;
+import static org.junit.Assert.*;
+
+/**
+ * Tests that {@link DataChunk#getFloatValues()} gives the same values as
+ * the NetCDF library's own enhancement, for packed, unsigned and unpacked
+ * data with missing values.
+ * @author Jon
+ */
+public class DataChunkTest {
+
+    private static final int NLON = 50;
+    private static final int NLAT = 40;
+
+    private File file;
+    private NetcdfDataset nc;
+
+    @Before
+    public void createFile() throws Exception {
+        this.file = File.createTempFile("datachunk", ".nc");
+        NetcdfFileWriteable ncw = NetcdfFileWriteable.createNew(this.file.getPath(), false);
+        Dimension lat = ncw.addDimension("lat", NLAT);
+        Dimension lon = ncw.addDimension("lon", NLON);
+        Dimension[] dims = new Dimension[]{lat, lon};
+        ncw.addVariable("lat", DataType.DOUBLE, new Dimension[]{lat});
+        ncw.addVariableAttribute("lat", "units", "degrees_north");
+        ncw.addVariable("lon", DataType.DOUBLE, new Dimension[]{lon});
+        ncw.addVariableAttribute("lon", "units", "degrees_east");
+        // Packed shorts with a fill value and a valid minimum in packed units
+        ncw.addVariable("sst", DataType.SHORT, dims);
+        ncw.addVariableAttribute("sst", "scale_factor", 0.01);
+        ncw.addVariableAttribute("sst", "add_offset", 20.0);
+        ncw.addVariableAttribute("sst", "_FillValue", (short)-32768);
+        ncw.addVariableAttribute("sst", "valid_min", (short)-3000);
+        // Unsigned bytes
+        ncw.addVariable("ice", DataType.BYTE, dims);
+        ncw.addVariableAttribute("ice", "_Unsigned", "true");
+        ncw.addVariableAttribute("ice", "scale_factor", 0.5);
+        ncw.addVariableAttribute("ice", "_FillValue", (byte)-1);
+        // Unpacked floats with a missing value
+        ncw.addVariable("temp", DataType.FLOAT, dims);
+        ncw.addVariableAttribute("temp", "missing_value", 1e20f);
+        ncw.create();
+
+        ArrayDouble.D1 lats = new ArrayDouble.D1(NLAT);
+        for (int j = 0; j < NLAT; j++) lats.set(j, -19.5 + j);
+        ncw.write("lat", lats);
+        ArrayDouble.D1 lons = new ArrayDouble.D1(NLON);
+        for (int i = 0; i < NLON; i++) lons.set(i, -24.5 + i);
+        ncw.write("lon", lons);
+        ArrayShort.D2 sst = new ArrayShort.D2(NLAT, NLON);
+        ArrayByte.D2 ice = new ArrayByte.D2(NLAT, NLON);
+        ArrayFloat.D2 temp = new ArrayFloat.D2(NLAT, NLON);
+        for (int j = 0; j < NLAT; j++) {
+            for (int i = 0; i < NLON; i++) {
+                int n = j * NLON + i;
+                // Covers the whole range of shorts, including the fill value
+                // and values below the valid minimum
+                sst.set(j, i, n == 0 ? (short)-32768 : (short)(n * 33 - 32000));
+                ice.set(j, i, (byte)(n * 7));
+                temp.set(j, i, n % 9 == 0 ? 1e20f : n * 0.25f - 100);
+            }
+        }
+        ncw.write("sst", sst);
+        ncw.write("ice", ice);
+        ncw.write("temp", temp);
+        ncw.close();
+
+        this.nc = NetcdfDataset.openDataset(this.file.getPath());
+    }
+
+    @After
+    public void deleteFile() throws Exception {
+        if (this.nc != null) this.nc.close();
+        this.file.delete();
+    }
+
+    private void checkVariable(String varId) throws Exception {
+        GridDatatype grid = CdmUtils.getGridDatatype(this.nc, varId);
+        VariableDS var = grid.getVariable();
+        RangesList ranges = new RangesList(grid);
+        ranges.setXRange(0, NLON - 1);
+        ranges.setYRange(0, NLAT - 1);
+        DataChunk chunk = DataChunk.readDataChunk(var, ranges);
+        assertEquals(1, chunk.getStride(ranges.getXAxisIndex()));
+        assertEquals(NLON, chunk.getStride(ranges.getYAxisIndex()));
+        float[] values = chunk.getFloatValues();
+
+        // The values the library gives us when it enhances the data itself
+        Array expected = var.read();
+        assertEquals(expected.getSize(), values.length);
+        int numMissing = 0;
+        for (int n = 0; n < values.length; n++) {
+            double val = expected.getDouble(n);
+            if (var.isMissing(val)) {
+                assertTrue(varId + "[" + n + "]", Float.isNaN(values[n]));
+                numMissing++;
+            } else {
+                assertEquals(varId + "[" + n + "]", (float)val, values[n], 0.0f);
+            }
+        }
+        assertTrue(varId + " has no missing values", numMissing > 0);
+    }
+
+    @Test
+    public void testPackedShorts() throws Exception {
+        this.checkVariable("sst");
+    }
+
+    @Test
+    public void testUnsignedBytes() throws Exception {
+        this.checkVariable("ice");
+    }
+
+    @Test
+    public void testFloats() throws Exception {
+        this.checkVariable("temp");
+    }
+
+    /**
+     * Variables with the same name in different files compare equal, but
+     * may be packed differently: each must be unpacked with its own table.
+     */
+    @Test
+    public void testSameVariableDifferentPacking() throws Exception {
+        File file1 = createPackedFile(0.01);
+        File file2 = createPackedFile(0.5);
+        NetcdfDataset nc1 = NetcdfDataset.openDataset(file1.getPath());
+        NetcdfDataset nc2 = NetcdfDataset.openDataset(file2.getPath());
+        try {
+            assertEquals(1.0f, readFirstValue(nc1), 1e-6f);
+            assertEquals(50.0f, readFirstValue(nc2), 1e-6f);
+            // And again, now that both tables exist
+            assertEquals(1.0f, readFirstValue(nc1), 1e-6f);
+        } finally {
+            nc1.close();
+            nc2.close();
+            file1.delete();
+            file2.delete();
+        }
+    }
+
+    /** Creates a file holding packed shorts, all with the raw value 100 */
+    private static File createPackedFile(double scaleFactor) throws Exception {
+        File f = File.createTempFile("datachunk", ".nc");
+        NetcdfFileWriteable ncw = NetcdfFileWriteable.createNew(f.getPath(), false);
+        Dimension lat = ncw.addDimension("lat", 2);
+        Dimension lon = ncw.addDimension("lon", 2);
+        ncw.addVariable("lat", DataType.DOUBLE, new Dimension[]{lat});
+        ncw.addVariableAttribute("lat", "units", "degrees_north");
+        ncw.addVariable("lon", DataType.DOUBLE, new Dimension[]{lon});
+        ncw.addVariableAttribute("lon", "units", "degrees_east");
+        ncw.addVariable("sst", DataType.SHORT, new Dimension[]{lat, lon});
+        ncw.addVariableAttribute("sst", "scale_factor", scaleFactor);
+        ncw.create();
+        ArrayDouble.D1 lons = new ArrayDouble.D1(2);
+        lons.set(1, 1.0);
+        ncw.write("lon", lons);
+        ArrayDouble.D1 lats = new ArrayDouble.D1(2);
+        lats.set(1, 1.0);
+        ncw.write("lat", lats);
+        ArrayShort.D2 sst = new ArrayShort.D2(2, 2);
+        for (int j = 0; j < 2; j++) {
+            for (int i = 0; i < 2; i++) sst.set(j, i, (short)100);
+        }
+        ncw.write("sst", sst);
+        ncw.close();
+        return f;
+    }
+
+    private static float readFirstValue(NetcdfDataset nc) throws Exception {
+        GridDatatype grid = CdmUtils.getGridDatatype(nc, "sst");
+        RangesList ranges = new RangesList(grid);
+        ranges.setXRange(0, 1);
+        ranges.setYRange(0, 1);
+        return DataChunk.readDataChunk(grid.getVariable(), ranges).getFloatValues()[0];
+    }
+
+    /** Strided reads must give the values on the lattice */
+    @Test
+    public void testStrided() throws Exception {
+        GridDatatype grid = CdmUtils.getGridDatatype(this.nc, "temp");
+        RangesList ranges = new RangesList(grid);
+        ranges.setXRange(1, 49, 4);
+        ranges.setYRange(2, 38, 6);
+        DataChunk chunk = DataChunk.readDataChunk(grid.getVariable(), ranges);
+        float[] values = chunk.getFloatValues();
+        int xStride = chunk.getStride(ranges.getXAxisIndex());
+        int yStride = chunk.getStride(ranges.getYAxisIndex());
+        assertEquals(1, xStride);
+        assertEquals(13, yStride);
+        // Point (i=9, j=14) is (2, 2) on the lattice
+        int n = 14 * NLON + 9;
+        assertEquals(n * 0.25f - 100, values[2 * yStride + 2 * xStride], 0.0f);
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2010 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.rdg.resc.edal.cdm;
+
+import java.io.File;
+import org.geotoolkit.referencing.crs.DefaultGeographicCRS;
+import ucar.ma2.ArrayDouble;
+import ucar.ma2.ArrayShort;
+import ucar.ma2.DataType;
+import ucar.nc2.Dimension;
+import ucar.nc2.NetcdfFileWriteable;
+import ucar.nc2.dataset.NetcdfDataset;
+import ucar.nc2.dt.GridDatatype;
+import uk.ac.rdg.resc.edal.coverage.grid.HorizontalGrid;
+import uk.ac.rdg.resc.edal.coverage.grid.RegularGrid;
+import uk.ac.rdg.resc.edal.coverage.grid.impl.RegularGridImpl;
+
+/**
+ * <p>Micro-benchmark comparing the {@link DataReadingStrategy}s on a local
+ * NetCDF-3 file holding a global grid at 1/12 degree resolution.  Each
+ * measurement reads a 256x256 tile that is either "zoomed in" (many pixels
+ * per source point) or "zoomed out" (the whole globe).  For each strategy
+ * the benchmark also reports the number of pixels that differ from the
+ * {@link DataReadingStrategy#BOUNDING_BOX bounding-box} strategy, which
+ * should always be zero.</p>
+ * <p>This is not run as part of the unit tests: run the main method with the
+ * test classpath, e.g. {@code java -Xmx512m uk.ac.rdg.resc.edal.cdm.DataReadingStrategyBenchmark}.
+ * The test file (around 18MB) is created in the temporary directory and
+ * deleted afterwards.</p>
+ * @author Jon
+ */
+public final class DataReadingStrategyBenchmark {
+
+    private static final int NLON = 4320;
+    private static final int NLAT = 2160;
+    private static final int WARMUP_ITERATIONS = 3;
+    private static final int MEASURED_ITERATIONS = 10;
+
+    private static final DataReadingStrategy[] STRATEGIES = {
+        DataReadingStrategy.BOUNDING_BOX,
+        DataReadingStrategy.SCANLINE,
+        DataReadingStrategy.PIXEL_BY_PIXEL,
+        DataReadingStrategy.STRIDED,
+        DataReadingStrategy.ADAPTIVE
+    };
+
+    public static void main(String[] args) throws Exception {
+        File file = File.createTempFile("benchmark", ".nc");
+        try {
+            createFile(file);
+            NetcdfDataset nc = NetcdfDataset.openDataset(file.getPath());
+            try {
+                GridDatatype grid = CdmUtils.getGridDatatype(nc, "sst");
+                HorizontalGrid sourceGrid = CdmUtils.createHorizontalGrid(grid.getCoordinateSystem());
+                System.out.println("zoom\tstrategy\ttime (ms)\tdifferences");
+                run(grid, sourceGrid, "in", new RegularGridImpl(
+                        -20.0, 30.0, 0.0, 50.0, DefaultGeographicCRS.WGS84, 256, 256));
+                run(grid, sourceGrid, "out", new RegularGridImpl(
+                        -180.0, -90.0, 180.0, 90.0, DefaultGeographicCRS.WGS84, 256, 256));
+                // An image whose pixels fall exactly on every 5th source point
+                run(grid, sourceGrid, "1/5", new RegularGridImpl(
+                        -180.0, -90.0, 180.0, 90.0, DefaultGeographicCRS.WGS84, 864, 432));
+            } finally {
+                nc.close();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static void run(GridDatatype grid, HorizontalGrid sourceGrid,
+            String zoom, RegularGrid tile) throws Exception {
+        float[] reference = DataReadingStrategy.BOUNDING_BOX.readDataAsArray(
+                0, 0, sourceGrid, tile, grid);
+        for (DataReadingStrategy strategy : STRATEGIES) {
+            for (int n = 0; n < WARMUP_ITERATIONS; n++) {
+                strategy.readDataAsArray(0, 0, sourceGrid, tile, grid);
+            }
+            float[] data = null;
+            long start = System.nanoTime();
+            for (int n = 0; n < MEASURED_ITERATIONS; n++) {
+                DataReadingStrategy.clearLastUsed();
+                data = strategy.readDataAsArray(0, 0, sourceGrid, tile, grid);
+            }
+            long nanos = System.nanoTime() - start;
+            int differences = 0;
+            for (int p = 0; p < data.length; p++) {
+                if (Float.compare(data[p], reference[p]) != 0) differences++;
+            }
+            String name = strategy == DataReadingStrategy.ADAPTIVE
+                    ? "ADAPTIVE (" + DataReadingStrategy.getLastUsed() + ")"
+                    : strategy.toString();
+            System.out.printf("%s\t%s\t%.2f\t\t%d%n", zoom, name,
+                    nanos / 1.0e6 / MEASURED_ITERATIONS, differences);
+        }
+    }
+
+    /** Creates a global grid of packed data values */
+    private static void createFile(File file) throws Exception {
+        NetcdfFileWriteable ncw = NetcdfFileWriteable.createNew(file.getPath(), false);
+        Dimension lat = ncw.addDimension("lat", NLAT);
+        Dimension lon = ncw.addDimension("lon", NLON);
+        ncw.addVariable("lat", DataType.DOUBLE, new Dimension[]{lat});
+        ncw.addVariableAttribute("lat", "units", "degrees_north");
+        ncw.addVariable("lon", DataType.DOUBLE, new Dimension[]{lon});
+        ncw.addVariableAttribute("lon", "units", "degrees_east");
+        ncw.addVariable("sst", DataType.SHORT, new Dimension[]{lat, lon});
+        ncw.addVariableAttribute("sst", "scale_factor", 0.01);
+        ncw.create();
+
+        double res = 360.0 / NLON;
+        ArrayDouble.D1 lats = new ArrayDouble.D1(NLAT);
+        for (int j = 0; j < NLAT; j++) lats.set(j, -90.0 + (j + 0.5) * res);
+        ncw.write("lat", lats);
+        ArrayDouble.D1 lons = new ArrayDouble.D1(NLON);
+        for (int i = 0; i < NLON; i++) lons.set(i, -180.0 + (i + 0.5) * res);
+        ncw.write("lon", lons);
+        ArrayShort.D2 sst = new ArrayShort.D2(NLAT, NLON);
+        for (int j = 0; j < NLAT; j++) {
+            for (int i = 0; i < NLON; i++) {
+                sst.set(j, i, (short)((i * 7 + j * 13) % 3000));
+            }
+        }
+        ncw.write("sst", sst);
+        ncw.close();
+    }
+}
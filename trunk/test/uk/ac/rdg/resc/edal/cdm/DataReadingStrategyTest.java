@@ -0,0 +1,234 @@
+/*
+ * Copyright (c) 2010 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.rdg.resc.edal.cdm;
+
+import java.io.File;
+import org.geotoolkit.referencing.crs.DefaultGeographicCRS;
+import org.junit.Test;
+import ucar.ma2.ArrayDouble;
+import ucar.ma2.ArrayShort;
+import ucar.ma2.DataType;
+import ucar.nc2.Dimension;
+import ucar.nc2.NetcdfFileWriteable;
+import ucar.nc2.dataset.NetcdfDataset;
+import ucar.nc2.dt.GridDatatype;
+import uk.ac.rdg.resc.edal.coverage.grid.HorizontalGrid;
+import uk.ac.rdg.resc.edal.coverage.grid.RegularGrid;
+import uk.ac.rdg.resc.edal.coverage.grid.impl.RegularGridImpl;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the choices made by the {@link DataReadingStrategy#ADAPTIVE adaptive}
+ * data reading strategy, and that the strategies read the same data.
+ * @author Jon
+ */
+public class DataReadingStrategyTest {
+
+    /** A global grid of approximately 4km resolution */
+    private static final RegularGrid SOURCE_GRID = new RegularGridImpl(
+            -180.0, -90.0, 180.0, 90.0, DefaultGeographicCRS.WGS84, 8640, 4320);
+
+    /** A whole-world tile, which samples a small fraction of the source points */
+    private static final RegularGrid ZOOMED_OUT = new RegularGridImpl(
+            -180.0, -90.0, 180.0, 90.0, DefaultGeographicCRS.WGS84, 256, 256);
+
+    /**
+     * A whole-world image whose pixels fall exactly on every 27th column
+     * of every 27th row
+     */
+    private static final RegularGrid ZOOMED_OUT_REGULAR = new RegularGridImpl(
+            -180.0, -90.0, 180.0, 90.0, DefaultGeographicCRS.WGS84, 320, 160);
+
+    /** A small tile in which many pixels map to each source point */
+    private static final RegularGrid ZOOMED_IN = new RegularGridImpl(
+            0.0, 50.0, 1.0, 51.0, DefaultGeographicCRS.WGS84, 256, 256);
+
+    @Test
+    public void testLocalFile() throws Exception {
+        long overhead = DataReadingStrategy.LOCAL_READ_OVERHEAD_BYTES;
+        // A bounding box would read the whole grid, pixel-by-pixel would make
+        // 51200 individual reads: reading every 27th column of every 27th row
+        // is much cheaper than either, or than reading scanlines
+        assertEquals(DataReadingStrategy.STRIDED, choose(ZOOMED_OUT_REGULAR, overhead));
+        // The sampling is irregular (every 33.75 columns and 16.875 rows), so
+        // a single strided read would not give exactly the right points
+        assertFalse(DataReadingStrategy.STRIDED == choose(ZOOMED_OUT, overhead));
+        // All the points in the bounding box are needed
+        assertEquals(DataReadingStrategy.BOUNDING_BOX, choose(ZOOMED_IN, overhead));
+    }
+
+    @Test
+    public void testZeroOverhead() throws Exception {
+        // With no overhead per read we read only the points we need
+        assertEquals(DataReadingStrategy.PIXEL_BY_PIXEL, choose(ZOOMED_OUT, 0));
+    }
+
+    @Test
+    public void testHighOverhead() throws Exception {
+        // When each read is very expensive we minimize the number of reads,
+        // unless the bounding box would be too large to read into memory
+        assertEquals(DataReadingStrategy.BOUNDING_BOX, choose(ZOOMED_IN, 1024 * 1024));
+        assertEquals(DataReadingStrategy.STRIDED, choose(ZOOMED_OUT_REGULAR, 1024 * 1024));
+    }
+
+    /**
+     * Every strategy must read exactly the data points in the PixelMap, for
+     * regular and irregular zoomed-out tiles and for zoomed-in tiles.
+     */
+    @Test
+    public void testStrategiesReadSameData() throws Exception {
+        File file = File.createTempFile("strategy", ".nc");
+        try {
+            writeTestFile(file, 1080, 540);
+            NetcdfDataset nc = NetcdfDataset.openDataset(file.getPath());
+            try {
+                GridDatatype grid = CdmUtils.getGridDatatype(nc, "sst");
+                HorizontalGrid sourceGrid = CdmUtils.createHorizontalGrid(grid.getCoordinateSystem());
+                // Irregular sampling (every 4.22 points)
+                checkSameData(grid, sourceGrid, ZOOMED_OUT);
+                // Every 5th point
+                checkSameData(grid, sourceGrid, new RegularGridImpl(
+                        -180.0, -90.0, 180.0, 90.0, DefaultGeographicCRS.WGS84, 216, 108));
+                checkSameData(grid, sourceGrid, ZOOMED_IN);
+            } finally {
+                nc.close();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Reads must not add to the shared caches when the calling thread has
+     * turned them off
+     */
+    @Test
+    public void testWithoutSharedCaches() throws Exception {
+        File file = File.createTempFile("strategy", ".nc");
+        try {
+            writeTestFile(file, 1080, 540);
+            NetcdfDataset nc = NetcdfDataset.openDataset(file.getPath());
+            try {
+                RegularGrid tile = new RegularGridImpl(10.5, 10.5, 20.5, 20.5,
+                        DefaultGeographicCRS.WGS84, 64, 64);
+                int numPixelMaps = CdmUtils.getPixelMapCache().getNumEntries();
+                int numChunks = CdmUtils.getSourceChunkCache().getNumEntries();
+                float[] data;
+                CdmUtils.setUseSharedCaches(false);
+                try {
+                    data = CdmUtils.readHorizontalPointsAsArray(nc, "sst", 0, 0, tile);
+                } finally {
+                    CdmUtils.setUseSharedCaches(true);
+                }
+                assertEquals(numPixelMaps, CdmUtils.getPixelMapCache().getNumEntries());
+                assertEquals(numChunks, CdmUtils.getSourceChunkCache().getNumEntries());
+
+                assertArrayEquals(CdmUtils.readHorizontalPointsAsArray(nc, "sst", 0, 0, tile),
+                        data, 0.0f);
+                assertEquals(numPixelMaps + 1, CdmUtils.getPixelMapCache().getNumEntries());
+            } finally {
+                nc.close();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    /** Writes a global grid of short values, every one of them different */
+    private static void writeTestFile(File file, int nlon, int nlat) throws Exception {
+        NetcdfFileWriteable ncw = NetcdfFileWriteable.createNew(file.getPath(), false);
+        Dimension lat = ncw.addDimension("lat", nlat);
+        Dimension lon = ncw.addDimension("lon", nlon);
+        ncw.addVariable("lat", DataType.DOUBLE, new Dimension[]{lat});
+        ncw.addVariableAttribute("lat", "units", "degrees_north");
+        ncw.addVariable("lon", DataType.DOUBLE, new Dimension[]{lon});
+        ncw.addVariableAttribute("lon", "units", "degrees_east");
+        ncw.addVariable("sst", DataType.SHORT, new Dimension[]{lat, lon});
+        ncw.addVariableAttribute("sst", "scale_factor", 0.01);
+        ncw.create();
+        double res = 360.0 / nlon;
+        ArrayDouble.D1 lats = new ArrayDouble.D1(nlat);
+        for (int j = 0; j < nlat; j++) lats.set(j, -90.0 + (j + 0.5) * res);
+        ncw.write("lat", lats);
+        ArrayDouble.D1 lons = new ArrayDouble.D1(nlon);
+        for (int i = 0; i < nlon; i++) lons.set(i, -180.0 + (i + 0.5) * res);
+        ncw.write("lon", lons);
+        ArrayShort.D2 sst = new ArrayShort.D2(nlat, nlon);
+        for (int j = 0; j < nlat; j++) {
+            for (int i = 0; i < nlon; i++) {
+                // Every point has a different value
+                sst.set(j, i, (short)(j * nlon + i - 32000));
+            }
+        }
+        ncw.write("sst", sst);
+        ncw.close();
+    }
+
+    private static void checkSameData(GridDatatype grid, HorizontalGrid sourceGrid,
+            RegularGrid tile) throws Exception {
+        float[] expected = DataReadingStrategy.BOUNDING_BOX.readDataAsArray(
+                0, 0, sourceGrid, tile, grid);
+        for (DataReadingStrategy strategy : DataReadingStrategy.values()) {
+            if (strategy == DataReadingStrategy.CHUNKED) continue;
+            float[] data = strategy.readDataAsArray(0, 0, sourceGrid, tile, grid);
+            assertArrayEquals(strategy.toString(), expected, data, 0.0f);
+        }
+    }
+
+    /** A zoomed-out tile samples the source grid at regular intervals */
+    @Test
+    public void testDecimation() throws Exception {
+        RegularGrid thirdResolution = new RegularGridImpl(
+                -180.0, -90.0, 180.0, 90.0, DefaultGeographicCRS.WGS84, 2880, 1440);
+        PixelMap pixelMap = new PixelMap(SOURCE_GRID, thirdResolution);
+        DataReadingStrategy.Decimation xDec = DataReadingStrategy.Decimation.fit(
+                pixelMap.getDistinctIIndices(), 8640);
+        assertEquals(3, xDec.stride);
+        assertEquals(2880, xDec.count);
+        for (int i : pixelMap.getDistinctIIndices()) {
+            assertEquals(i, xDec.first + xDec.indexOf(i) * xDec.stride);
+        }
+
+        // Irregular sampling: every index is within half a stride of the lattice
+        int[] indices = {3, 20, 36, 53, 70, 86};
+        DataReadingStrategy.Decimation dec = DataReadingStrategy.Decimation.fit(indices, 100);
+        assertEquals(16, dec.stride);
+        assertEquals(7, dec.count);
+        assertTrue(dec.getLast() < 100);
+        for (int i : indices) {
+            int nearest = dec.first + dec.indexOf(i) * dec.stride;
+            assertTrue(Math.abs(i - nearest) <= dec.stride / 2);
+        }
+    }
+
+    private static DataReadingStrategy choose(RegularGrid targetGrid, long overhead)
+            throws Exception {
+        PixelMap pixelMap = new PixelMap(SOURCE_GRID, targetGrid);
+        return DataReadingStrategy.chooseStrategy(pixelMap, 2, overhead);
+    }
+}
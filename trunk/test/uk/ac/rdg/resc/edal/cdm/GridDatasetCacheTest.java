@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2010 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.edal.cdm;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import ucar.ma2.DataType;
+import ucar.nc2.Dimension;
+import ucar.nc2.NetcdfFileWriteable;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the {@link GridDatasetCache}.
+ * @author Jon
+ */
+public class GridDatasetCacheTest {
+
+    private final List<File> files = new ArrayList<File>();
+
+    @Before
+    public void createFiles() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            File f = File.createTempFile("gridcache", ".nc");
+            NetcdfFileWriteable ncw = NetcdfFileWriteable.createNew(f.getPath(), false);
+            Dimension x = ncw.addDimension("x", 2);
+            ncw.addVariable("data", DataType.FLOAT, new Dimension[]{x});
+            ncw.create();
+            ncw.close();
+            this.files.add(f);
+        }
+    }
+
+    @After
+    public void deleteFiles() {
+        for (File f : this.files) f.delete();
+    }
+
+    private String path(int i) {
+        return this.files.get(i).getPath();
+    }
+
+    /** Datasets must be counted as open while they are in use as well as when idle */
+    @Test
+    public void testNumOpenDatasets() throws Exception {
+        GridDatasetCache cache = new GridDatasetCache(2);
+        GridDatasetCache.Entry a = cache.acquire(path(0));
+        assertEquals(1, cache.getNumOpenDatasets());
+        assertEquals(1, cache.getNumDatasetsInUse());
+        cache.release(a);
+        assertEquals(1, cache.getNumOpenDatasets());
+        assertEquals(0, cache.getNumDatasetsInUse());
+
+        assertSame(a, cache.acquire(path(0)));
+        assertEquals(1, cache.getNumHits());
+        // All the copies of the file are in use, so another is opened
+        GridDatasetCache.Entry a2 = cache.acquire(path(0));
+        assertNotSame(a, a2);
+        assertEquals(2, cache.getNumOpenDatasets());
+        cache.release(a);
+        cache.release(a2);
+        cache.clear();
+        assertEquals(0, cache.getNumOpenDatasets());
+    }
+
+    /** Idle datasets must be closed to make room for new ones */
+    @Test
+    public void testEvictsIdleDatasets() throws Exception {
+        GridDatasetCache cache = new GridDatasetCache(1);
+        cache.release(cache.acquire(path(0)));
+        GridDatasetCache.Entry b = cache.acquire(path(1));
+        assertEquals(1, cache.getNumOpenDatasets());
+        cache.release(b);
+        assertEquals(2, cache.getNumMisses());
+        cache.clear();
+    }
+
+    /** No more than the maximum number of files may be open, even when all are in use */
+    @Test
+    public void testWaitsWhenAllInUse() throws Exception {
+        final GridDatasetCache cache = new GridDatasetCache(2);
+        GridDatasetCache.Entry a = cache.acquire(path(0));
+        GridDatasetCache.Entry b = cache.acquire(path(1));
+        final GridDatasetCache.Entry[] c = new GridDatasetCache.Entry[1];
+        Thread t = new Thread() {
+            @Override public void run() {
+                try {
+                    c[0] = cache.acquire(path(2));
+                } catch (Exception e) {
+                    // c[0] stays null
+                }
+            }
+        };
+        t.start();
+        t.join(500);
+        assertTrue(t.isAlive());
+        assertEquals(2, cache.getNumOpenDatasets());
+
+        // Releasing a lets the waiting thread close it and open c
+        cache.release(a);
+        t.join(5000);
+        assertFalse(t.isAlive());
+        assertNotNull(c[0]);
+        assertEquals(2, cache.getNumOpenDatasets());
+        cache.release(b);
+        cache.release(c[0]);
+        cache.clear();
+    }
+
+    /** Disabling the cache must not leave threads waiting forever */
+    @Test
+    public void testDisableWhileWaiting() throws Exception {
+        final GridDatasetCache cache = new GridDatasetCache(1);
+        GridDatasetCache.Entry a = cache.acquire(path(0));
+        final GridDatasetCache.Entry[] b = new GridDatasetCache.Entry[1];
+        Thread t = new Thread() {
+            @Override public void run() {
+                try {
+                    b[0] = cache.acquire(path(1));
+                } catch (Exception e) {
+                    // b[0] stays null
+                }
+            }
+        };
+        t.start();
+        t.join(500);
+        assertTrue(t.isAlive());
+        cache.setMaxOpenDatasets(0);
+        t.join(5000);
+        assertFalse(t.isAlive());
+        assertNotNull(b[0]);
+        cache.release(b[0]);
+        cache.release(a);
+        assertEquals(0, cache.getNumOpenDatasets());
+    }
+}
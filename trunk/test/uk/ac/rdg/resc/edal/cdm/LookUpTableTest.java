@@ -0,0 +1,228 @@
+/*
+ * Copyright (c) 2010 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.edal.cdm;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import ucar.ma2.ArrayDouble;
+import ucar.ma2.ArrayFloat;
+import ucar.ma2.DataType;
+import ucar.nc2.Dimension;
+import ucar.nc2.NetcdfFileWriteable;
+import ucar.nc2.dataset.NetcdfDataset;
+import ucar.nc2.dt.GridCoordSystem;
+import ucar.nc2.dt.GridDataset;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the saving and loading of {@link LookUpTable}s and the caching of
+ * {@link LookUpTableGrid}s.
+ * @author Jon
+ */
+public class LookUpTableTest {
+
+    private static final int NI = 12;
+    private static final int NJ = 10;
+
+    private File dataFile;
+    private File lutFile;
+    private NetcdfDataset nc;
+    private CurvilinearGrid curvGrid;
+    private double resolution;
+
+    @Before
+    public void setUp() throws Exception {
+        this.dataFile = createCurvilinearFile();
+        this.lutFile = File.createTempFile("lut", ".lut");
+        this.lutFile.delete();
+        this.nc = NetcdfDataset.openDataset(this.dataFile.getPath());
+        this.curvGrid = new CurvilinearGrid(getCoordSys(this.nc));
+        this.resolution = Math.sqrt(this.curvGrid.getMeanCellArea()) / 3.0;
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.nc.close();
+        this.dataFile.delete();
+        this.lutFile.delete();
+    }
+
+    /** A saved look-up table must give the same indices when it is loaded */
+    @Test
+    public void testSaveAndLoad() throws Exception {
+        LookUpTable lut = new LookUpTable(this.curvGrid, this.resolution);
+        lut.save(this.lutFile);
+        assertFalse(new File(this.lutFile.getPath() + ".tmp").exists());
+
+        LookUpTable loaded = LookUpTable.load(this.lutFile, this.curvGrid, this.resolution);
+        assertNotNull(loaded);
+        assertEquals(lut.getNumLonPoints(), loaded.getNumLonPoints());
+        assertEquals(lut.getNumLatPoints(), loaded.getNumLatPoints());
+        int numFound = 0;
+        for (double lon = -12.0; lon <= 6.0; lon += 0.05) {
+            for (double lat = 38.0; lat <= 52.0; lat += 0.05) {
+                int[] expected = lut.getGridCoordinates(lon, lat);
+                assertTrue(Arrays.equals(expected, loaded.getGridCoordinates(lon, lat)));
+                if (expected != null) numFound++;
+            }
+        }
+        // Make sure that we have tested points inside the grid
+        assertTrue(numFound > 1000);
+    }
+
+    /** Missing files must be ignored */
+    @Test
+    public void testLoadMissingFile() throws Exception {
+        assertNull(LookUpTable.load(this.lutFile, this.curvGrid, this.resolution));
+    }
+
+    /** Truncated files must be rejected */
+    @Test
+    public void testRejectsTruncatedFile() throws Exception {
+        new LookUpTable(this.curvGrid, this.resolution).save(this.lutFile);
+        RandomAccessFile raf = new RandomAccessFile(this.lutFile, "rw");
+        try {
+            raf.setLength(raf.length() - 2);
+        } finally {
+            raf.close();
+        }
+        assertNull(LookUpTable.load(this.lutFile, this.curvGrid, this.resolution));
+    }
+
+    /** Files written for a different resolution or with a different header must be rejected */
+    @Test
+    public void testRejectsWrongDimensions() throws Exception {
+        LookUpTable lut = new LookUpTable(this.curvGrid, this.resolution);
+        lut.save(this.lutFile);
+        assertNull(LookUpTable.load(this.lutFile, this.curvGrid, this.resolution / 2.0));
+
+        // The same number of points, but the wrong shape
+        RandomAccessFile raf = new RandomAccessFile(this.lutFile, "rw");
+        try {
+            raf.seek(8);
+            raf.writeInt(lut.getNumLatPoints());
+            raf.writeInt(lut.getNumLonPoints());
+        } finally {
+            raf.close();
+        }
+        assertNull(LookUpTable.load(this.lutFile, this.curvGrid, this.resolution));
+
+        // The wrong magic number
+        lut.save(this.lutFile);
+        raf = new RandomAccessFile(this.lutFile, "rw");
+        try {
+            raf.writeInt(0);
+        } finally {
+            raf.close();
+        }
+        assertNull(LookUpTable.load(this.lutFile, this.curvGrid, this.resolution));
+    }
+
+    /** Threads that need the same grid at the same time must share one instance */
+    @Test
+    public void testConcurrentGenerate() throws Exception {
+        final int numThreads = 8;
+        // NetcdfDatasets are not thread-safe, so each thread has its own
+        final List<NetcdfDataset> datasets = new ArrayList<NetcdfDataset>();
+        for (int i = 0; i < numThreads; i++) {
+            datasets.add(NetcdfDataset.openDataset(this.dataFile.getPath()));
+        }
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try {
+            List<Future<LookUpTableGrid>> results = new ArrayList<Future<LookUpTableGrid>>();
+            for (final NetcdfDataset ds : datasets) {
+                results.add(executor.submit(new Callable<LookUpTableGrid>() {
+                    @Override public LookUpTableGrid call() throws Exception {
+                        GridCoordSystem coordSys = getCoordSys(ds);
+                        start.await();
+                        return LookUpTableGrid.generate(coordSys);
+                    }
+                }));
+            }
+            start.countDown();
+            LookUpTableGrid first = results.get(0).get();
+            assertNotNull(first);
+            for (Future<LookUpTableGrid> result : results) {
+                assertSame(first, result.get());
+            }
+            assertSame(first, LookUpTableGrid.generate(getCoordSys(this.nc)));
+        } finally {
+            executor.shutdown();
+            for (NetcdfDataset ds : datasets) ds.close();
+        }
+    }
+
+    private static GridCoordSystem getCoordSys(NetcdfDataset nc) throws Exception {
+        GridDataset gd = CdmUtils.getGridDataset(nc);
+        return gd.findGridDatatype("data").getCoordinateSystem();
+    }
+
+    /** Creates a file with a small grid whose axes are rotated and skewed */
+    private static File createCurvilinearFile() throws Exception {
+        File f = File.createTempFile("curvilinear", ".nc");
+        NetcdfFileWriteable ncw = NetcdfFileWriteable.createNew(f.getPath(), false);
+        Dimension y = ncw.addDimension("y", NJ);
+        Dimension x = ncw.addDimension("x", NI);
+        Dimension[] dims = new Dimension[]{y, x};
+        ncw.addVariable("lat", DataType.DOUBLE, dims);
+        ncw.addVariableAttribute("lat", "units", "degrees_north");
+        ncw.addVariable("lon", DataType.DOUBLE, dims);
+        ncw.addVariableAttribute("lon", "units", "degrees_east");
+        ncw.addVariable("data", DataType.FLOAT, dims);
+        ncw.addVariableAttribute("data", "coordinates", "lat lon");
+        ncw.create();
+        ArrayDouble.D2 lat = new ArrayDouble.D2(NJ, NI);
+        ArrayDouble.D2 lon = new ArrayDouble.D2(NJ, NI);
+        ArrayFloat.D2 data = new ArrayFloat.D2(NJ, NI);
+        for (int j = 0; j < NJ; j++) {
+            for (int i = 0; i < NI; i++) {
+                lon.set(j, i, -10.0 + i + 0.2 * j);
+                lat.set(j, i, 40.0 + j + 0.1 * i);
+                data.set(j, i, j * NI + i);
+            }
+        }
+        ncw.write("lat", lat);
+        ncw.write("lon", lon);
+        ncw.write("data", data);
+        ncw.close();
+        return f;
+    }
+}
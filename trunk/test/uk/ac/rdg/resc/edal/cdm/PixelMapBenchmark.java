@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2010 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.edal.cdm;
+
+import org.geotoolkit.referencing.crs.DefaultGeographicCRS;
+import uk.ac.rdg.resc.edal.coverage.grid.RegularGrid;
+import uk.ac.rdg.resc.edal.coverage.grid.impl.RegularGridImpl;
+
+/**
+ * <p>Micro-benchmark comparing the construction and iteration of the
+ * primitive-array {@link PixelMap} with the original {@link BoxedPixelMap}
+ * for common tile sizes.  Each measurement builds a map from a global
+ * quarter-degree source grid onto a target tile and then visits every pixel,
+ * as a {@link DataReadingStrategy} would.</p>
+ * <p>This is not run as part of the unit tests: run the main method with the
+ * test classpath, e.g. {@code java -Xmx512m uk.ac.rdg.resc.edal.cdm.PixelMapBenchmark}.</p>
+ * @author Jon
+ */
+public final class PixelMapBenchmark {
+
+    private static final int[] TILE_SIZES = {256, 512, 1024};
+    private static final int WARMUP_ITERATIONS = 10;
+    private static final int MEASURED_ITERATIONS = 20;
+
+    public static void main(String[] args) throws Exception {
+        RegularGrid sourceGrid = new RegularGridImpl(
+                -180.0, -90.0, 180.0, 90.0, DefaultGeographicCRS.WGS84, 1440, 720);
+
+        System.out.println("tile\tzoom\tboxed (ms)\tprimitive (ms)");
+        for (int size : TILE_SIZES) {
+            // A "zoomed-in" tile, in which many pixels map to each grid point,
+            // and a "zoomed-out" tile covering the whole globe
+            run(sourceGrid, size, "in", new RegularGridImpl(
+                    -20.0, 30.0, 0.0, 50.0, DefaultGeographicCRS.WGS84, size, size));
+            run(sourceGrid, size, "out", new RegularGridImpl(
+                    -180.0, -90.0, 180.0, 90.0, DefaultGeographicCRS.WGS84, size, size));
+        }
+    }
+
+    private static void run(RegularGrid sourceGrid, int size, String zoom,
+            RegularGrid targetGrid) throws Exception {
+        long sink = 0;
+        for (int n = 0; n < WARMUP_ITERATIONS; n++) {
+            sink += boxed(sourceGrid, targetGrid);
+            sink += primitive(sourceGrid, targetGrid);
+        }
+
+        long boxedNanos = 0;
+        long primitiveNanos = 0;
+        for (int n = 0; n < MEASURED_ITERATIONS; n++) {
+            long start = System.nanoTime();
+            sink += boxed(sourceGrid, targetGrid);
+            boxedNanos += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            sink += primitive(sourceGrid, targetGrid);
+            primitiveNanos += System.nanoTime() - start;
+        }
+
+        System.out.printf("%dx%d\t%s\t%.2f\t\t%.2f\t(%d)%n", size, size, zoom,
+                boxedNanos / 1.0e6 / MEASURED_ITERATIONS,
+                primitiveNanos / 1.0e6 / MEASURED_ITERATIONS,
+                sink);
+    }
+
+    /** Builds and iterates over a BoxedPixelMap */
+    private static long boxed(RegularGrid sourceGrid, RegularGrid targetGrid)
+            throws Exception {
+        BoxedPixelMap pixelMap = new BoxedPixelMap(sourceGrid, targetGrid, false);
+        long sum = 0;
+        for (int j : pixelMap.getJIndices()) {
+            for (int i : pixelMap.getIIndices(j)) {
+                for (int p : pixelMap.getPixelIndices(i, j)) {
+                    sum += p;
+                }
+            }
+        }
+        return sum;
+    }
+
+    /** Builds and iterates over a PixelMap */
+    private static long primitive(RegularGrid sourceGrid, RegularGrid targetGrid)
+            throws Exception {
+        PixelMap pixelMap = new PixelMap(sourceGrid, targetGrid);
+        long sum = 0;
+        for (int row = 0; row < pixelMap.getNumRows(); row++) {
+            for (int pair = pixelMap.getRowStart(row); pair < pixelMap.getRowEnd(row); pair++) {
+                for (int p = pixelMap.getPixelStart(pair); p < pixelMap.getPixelEnd(pair); p++) {
+                    sum += pixelMap.getPixelIndex(p);
+                }
+            }
+        }
+        return sum;
+    }
+
+}
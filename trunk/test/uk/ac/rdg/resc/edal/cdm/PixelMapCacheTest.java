@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2010 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.rdg.resc.edal.cdm;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.geotoolkit.referencing.crs.DefaultGeographicCRS;
+import org.junit.Test;
+import uk.ac.rdg.resc.edal.coverage.domain.impl.HorizontalDomain;
+import uk.ac.rdg.resc.edal.coverage.grid.RegularGrid;
+import uk.ac.rdg.resc.edal.coverage.grid.impl.RegularGridImpl;
+import uk.ac.rdg.resc.edal.geometry.HorizontalPosition;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the {@link PixelMapCache}.
+ * @author Jon
+ */
+public class PixelMapCacheTest {
+
+    private static final RegularGrid SOURCE_GRID = new RegularGridImpl(
+            -180.0, -90.0, 180.0, 90.0, DefaultGeographicCRS.WGS84, 360, 180);
+
+    private static RegularGrid tile(double minx) {
+        return new RegularGridImpl(minx, 0.0, minx + 10.0, 10.0,
+                DefaultGeographicCRS.WGS84, 256, 256);
+    }
+
+    @Test
+    public void testHitsAndMisses() throws Exception {
+        PixelMapCache cache = new PixelMapCache(1024 * 1024);
+        PixelMapCache.clearLastLookup();
+        PixelMap pm1 = cache.getPixelMap(SOURCE_GRID, tile(0.0));
+        assertFalse(PixelMapCache.getLastLookup().isHit());
+
+        // An equal target grid (but a different object) gives the same PixelMap
+        PixelMap pm2 = cache.getPixelMap(SOURCE_GRID, tile(0.0));
+        assertSame(pm1, pm2);
+        assertTrue(PixelMapCache.getLastLookup().isHit());
+        assertEquals(0, PixelMapCache.getLastLookup().getBuildTimeMs());
+
+        // A different source grid object must not share the PixelMap
+        RegularGrid otherSource = new RegularGridImpl(
+                -180.0, -90.0, 180.0, 90.0, DefaultGeographicCRS.WGS84, 360, 180);
+        assertNotSame(pm1, cache.getPixelMap(otherSource, tile(0.0)));
+
+        assertEquals(1, cache.getNumHits());
+        assertEquals(2, cache.getNumMisses());
+        assertEquals(2, cache.getNumEntries());
+        assertEquals(2 * pm1.getMemoryWeight(), cache.getSizeBytes());
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        PixelMapCache cache = new PixelMapCache(1024 * 1024);
+        PixelMap first = cache.getPixelMap(SOURCE_GRID, tile(0.0));
+        // Each PixelMap for a 256x256 tile is a little over 256kB
+        int n = (int)(cache.getMaxSizeBytes() / first.getMemoryWeight());
+        for (int i = 1; i <= n; i++) {
+            cache.getPixelMap(SOURCE_GRID, tile(i * 10.0));
+        }
+        assertTrue(cache.getSizeBytes() <= cache.getMaxSizeBytes());
+        assertEquals(n, cache.getNumEntries());
+        // The first PixelMap was least recently used so will have been evicted
+        assertNotSame(first, cache.getPixelMap(SOURCE_GRID, tile(0.0)));
+
+        cache.setMaxSizeBytes(0);
+        assertEquals(0, cache.getNumEntries());
+        assertEquals(0, cache.getSizeBytes());
+    }
+
+    /** PixelMaps for domains that are not regular grids are never cached */
+    @Test
+    public void testPointListNotCached() throws Exception {
+        PixelMapCache cache = new PixelMapCache(1024 * 1024);
+        List<HorizontalPosition> points = new ArrayList<HorizontalPosition>(
+                tile(0.0).getDomainObjects());
+        HorizontalDomain domain = new HorizontalDomain(points, DefaultGeographicCRS.WGS84);
+        assertNotSame(cache.getPixelMap(SOURCE_GRID, domain),
+                cache.getPixelMap(SOURCE_GRID, domain));
+        assertEquals(0, cache.getNumEntries());
+        assertEquals(0, cache.getNumMisses());
+    }
+
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2010 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.edal.cdm;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.geotoolkit.referencing.CRS;
+import org.geotoolkit.referencing.crs.DefaultGeographicCRS;
+import org.junit.Test;
+import uk.ac.rdg.resc.edal.coverage.domain.Domain;
+import uk.ac.rdg.resc.edal.coverage.domain.impl.HorizontalDomain;
+import uk.ac.rdg.resc.edal.coverage.grid.HorizontalGrid;
+import uk.ac.rdg.resc.edal.coverage.grid.RegularGrid;
+import uk.ac.rdg.resc.edal.coverage.grid.impl.RegularGridImpl;
+import uk.ac.rdg.resc.edal.geometry.HorizontalPosition;
+import static org.junit.Assert.*;
+
+/**
+ * Tests that the primitive-array {@link PixelMap} gives the same mapping as
+ * the original, boxed implementation ({@link BoxedPixelMap}).
+ * @author Jon
+ */
+public class PixelMapTest {
+
+    private static final RegularGrid SOURCE_GRID = new RegularGridImpl(
+            -180.0, -90.0, 180.0, 90.0, DefaultGeographicCRS.WGS84, 360, 180);
+
+    /** Tests the optimized path for lat-lon source and target grids */
+    @Test
+    public void testLatLonGrids() throws Exception {
+        // Zoomed in: many pixels map to each source grid point
+        compare(SOURCE_GRID, new RegularGridImpl(
+                -10.0, 40.0, 10.0, 60.0, DefaultGeographicCRS.WGS84, 256, 256));
+        // Zoomed out: some source grid points are skipped
+        compare(SOURCE_GRID, new RegularGridImpl(
+                -180.0, -90.0, 180.0, 90.0, DefaultGeographicCRS.WGS84, 100, 50));
+        // Partially outside the source grid
+        compare(SOURCE_GRID, new RegularGridImpl(
+                100.0, 80.0, 260.0, 100.0, DefaultGeographicCRS.WGS84, 64, 32));
+    }
+
+    /** Tests the generic path, based on a list of points */
+    @Test
+    public void testPointList() throws Exception {
+        RegularGrid targetGrid = new RegularGridImpl(
+                -50.0, -20.0, 30.0, 45.0, DefaultGeographicCRS.WGS84, 123, 77);
+        List<HorizontalPosition> points = new ArrayList<HorizontalPosition>(
+                targetGrid.getDomainObjects());
+        compare(SOURCE_GRID, new HorizontalDomain(points, DefaultGeographicCRS.WGS84));
+    }
+
+    /** Tests the block-transform path for a target grid in a projected CRS */
+    @Test
+    public void testProjectedTarget() throws Exception {
+        // North polar stereographic, including points outside the source grid
+        compare(SOURCE_GRID, new RegularGridImpl(
+                -4000000.0, -4000000.0, 8000000.0, 8000000.0,
+                CRS.decode("EPSG:32661"), 300, 200));
+        // Enough points to need several transform blocks
+        compare(SOURCE_GRID, new RegularGridImpl(
+                -2.0E7, -1.5E7, 2.0E7, 1.5E7, CRS.decode("EPSG:3857"), 256, 256));
+    }
+
+    /** Tests the fast path for grids with separable axes in other CRSs */
+    @Test
+    public void testSeparableGrids() throws Exception {
+        RegularGrid mercatorGrid = new RegularGridImpl(
+                -1.0E7, -8.0E6, 1.0E7, 8.0E6, CRS.decode("EPSG:3857"), 200, 160);
+        // Same projected CRS
+        compare(mercatorGrid, new RegularGridImpl(
+                -2.0E6, 1.0E6, 3.0E6, 7.0E6, CRS.decode("EPSG:3857"), 256, 256));
+        // Lat-lon target over a Mercator source
+        compare(mercatorGrid, new RegularGridImpl(
+                -120.0, -70.0, 120.0, 70.0, DefaultGeographicCRS.WGS84, 128, 64));
+        // Mercator target over a lat-lon source
+        compare(SOURCE_GRID, new RegularGridImpl(
+                -1.5E7, -1.0E7, 1.5E7, 1.0E7, CRS.decode("EPSG:3857"), 256, 128));
+    }
+
+    /** Tests a pixel map that does not intersect the source grid */
+    @Test
+    public void testEmpty() throws Exception {
+        PixelMap pixelMap = new PixelMap(SOURCE_GRID, new RegularGridImpl(
+                -170.0, 91.0, 170.0, 120.0, DefaultGeographicCRS.WGS84, 10, 10));
+        assertTrue(pixelMap.isEmpty());
+        assertEquals(0, pixelMap.getNumRows());
+        assertEquals(0, pixelMap.getNumUniqueIJPairs());
+        assertTrue(pixelMap.getJIndices().isEmpty());
+    }
+
+    private static void compare(HorizontalGrid sourceGrid,
+            Domain<HorizontalPosition> targetDomain) throws Exception {
+        BoxedPixelMap expected = new BoxedPixelMap(sourceGrid, targetDomain, true);
+        PixelMap actual = new PixelMap(sourceGrid, targetDomain);
+
+        assertEquals(expected.isEmpty(), actual.isEmpty());
+        assertEquals(expected.getMinIIndex(), actual.getMinIIndex());
+        assertEquals(expected.getMaxIIndex(), actual.getMaxIIndex());
+        assertEquals(expected.getMinJIndex(), actual.getMinJIndex());
+        assertEquals(expected.getMaxJIndex(), actual.getMaxJIndex());
+        assertEquals(expected.getNumUniqueIJPairs(), actual.getNumUniqueIJPairs());
+        assertEquals(expected.getSumRowLengths(), actual.getSumRowLengths());
+        assertEquals(expected.getBoundingBoxSize(), actual.getBoundingBoxSize());
+
+        // Compare the set-based views
+        assertEquals(new ArrayList<Integer>(expected.getJIndices()),
+                new ArrayList<Integer>(actual.getJIndices()));
+        for (int j : expected.getJIndices()) {
+            assertEquals(expected.getMinIIndexInRow(j), actual.getMinIIndexInRow(j));
+            assertEquals(expected.getMaxIIndexInRow(j), actual.getMaxIIndexInRow(j));
+            assertEquals(new ArrayList<Integer>(expected.getIIndices(j)),
+                    new ArrayList<Integer>(actual.getIIndices(j)));
+            for (int i : expected.getIIndices(j)) {
+                assertEquals(new ArrayList<Integer>(expected.getPixelIndices(i, j)),
+                        new ArrayList<Integer>(actual.getPixelIndices(i, j)));
+            }
+        }
+
+        // Compare the primitive accessors with the set-based views
+        assertEquals(expected.getJIndices().size(), actual.getNumRows());
+        for (int row = 0; row < actual.getNumRows(); row++) {
+            int j = actual.getRowJIndex(row);
+            assertTrue(expected.getJIndices().contains(j));
+            for (int pair = actual.getRowStart(row); pair < actual.getRowEnd(row); pair++) {
+                int i = actual.getIIndex(pair);
+                List<Integer> pixels = new ArrayList<Integer>();
+                for (int p = actual.getPixelStart(pair); p < actual.getPixelEnd(pair); p++) {
+                    pixels.add(actual.getPixelIndex(p));
+                }
+                assertEquals(new ArrayList<Integer>(expected.getPixelIndices(i, j)), pixels);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2010 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.rdg.resc.edal.cdm;
+
+import java.io.File;
+import org.geotoolkit.referencing.crs.DefaultGeographicCRS;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import ucar.ma2.Array;
+import ucar.ma2.ArrayDouble;
+import ucar.ma2.ArrayShort;
+import ucar.ma2.DataType;
+import ucar.nc2.Attribute;
+import ucar.nc2.Dimension;
+import ucar.nc2.NetcdfFileWriteable;
+import ucar.nc2.dataset.NetcdfDataset;
+import ucar.nc2.dt.GridDatatype;
+import uk.ac.rdg.resc.edal.coverage.grid.HorizontalGrid;
+import uk.ac.rdg.resc.edal.coverage.grid.RegularGrid;
+import uk.ac.rdg.resc.edal.coverage.grid.impl.RegularGridImpl;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the {@link SourceChunkCache} and the {@link DataReadingStrategy#CHUNKED
+ * chunked} data reading strategy, using a small packed NetCDF file with
+ * missing values.
+ * @author Jon
+ */
+public class SourceChunkCacheTest {
+
+    private static final int NLON = 200;
+    private static final int NLAT = 100;
+    private static final short FILL_VALUE = -999;
+
+    private File file;
+    private NetcdfDataset nc;
+
+    @Before
+    public void createFile() throws Exception {
+        this.file = File.createTempFile("chunks", ".nc");
+        NetcdfFileWriteable ncw = NetcdfFileWriteable.createNew(this.file.getPath(), false);
+        Dimension time = ncw.addDimension("time", 2);
+        Dimension lat = ncw.addDimension("lat", NLAT);
+        Dimension lon = ncw.addDimension("lon", NLON);
+        ncw.addVariable("time", DataType.DOUBLE, new Dimension[]{time});
+        ncw.addVariableAttribute("time", "units", "days since 2010-01-01");
+        ncw.addVariable("lat", DataType.DOUBLE, new Dimension[]{lat});
+        ncw.addVariableAttribute("lat", "units", "degrees_north");
+        ncw.addVariable("lon", DataType.DOUBLE, new Dimension[]{lon});
+        ncw.addVariableAttribute("lon", "units", "degrees_east");
+        ncw.addVariable("sst", DataType.SHORT, new Dimension[]{time, lat, lon});
+        ncw.addVariableAttribute("sst", "scale_factor", 0.01);
+        ncw.addVariableAttribute("sst", "_FillValue", FILL_VALUE);
+        ncw.addVariableAttribute("sst", new Attribute("_ChunkSizes",
+                Array.factory(new int[]{1, 32, 64})));
+        ncw.create();
+
+        ArrayDouble.D1 times = new ArrayDouble.D1(2);
+        times.set(0, 0.0);
+        times.set(1, 1.0);
+        ncw.write("time", times);
+        ArrayDouble.D1 lats = new ArrayDouble.D1(NLAT);
+        for (int j = 0; j < NLAT; j++) lats.set(j, -49.75 + j * 0.5);
+        ncw.write("lat", lats);
+        ArrayDouble.D1 lons = new ArrayDouble.D1(NLON);
+        for (int i = 0; i < NLON; i++) lons.set(i, -49.75 + i * 0.5);
+        ncw.write("lon", lons);
+        ArrayShort.D3 sst = new ArrayShort.D3(2, NLAT, NLON);
+        for (int t = 0; t < 2; t++) {
+            for (int j = 0; j < NLAT; j++) {
+                for (int i = 0; i < NLON; i++) {
+                    // Every seventh point is missing
+                    short val = (i + j) % 7 == 0 ? FILL_VALUE : (short)(t * 1000 + j * 10 + i % 10);
+                    sst.set(t, j, i, val);
+                }
+            }
+        }
+        ncw.write("sst", sst);
+        ncw.close();
+
+        this.nc = NetcdfDataset.openDataset(this.file.getPath());
+        CdmUtils.getSourceChunkCache().clear();
+    }
+
+    @After
+    public void deleteFile() throws Exception {
+        if (this.nc != null) this.nc.close();
+        this.file.delete();
+    }
+
+    @Test
+    public void testChunkShape() throws Exception {
+        GridDatatype grid = CdmUtils.getGridDatatype(this.nc, "sst");
+        int[] chunkShape = SourceChunkCache.getChunkShape(grid.getVariable(), new RangesList(grid));
+        assertEquals(64, chunkShape[0]);
+        assertEquals(32, chunkShape[1]);
+    }
+
+    /** Data read from chunks must be identical to data read directly */
+    @Test
+    public void testChunkedRead() throws Exception {
+        RegularGrid tile = new RegularGridImpl(-30.0, -40.0, 20.0, -10.0,
+                DefaultGeographicCRS.WGS84, 64, 64);
+        float[] expected = read(DataReadingStrategy.BOUNDING_BOX, tile, "chunked");
+        float[] actual = read(DataReadingStrategy.CHUNKED, tile, "chunked");
+        assertArrayEquals(expected, actual, 0.0f);
+        int numNaNs = 0;
+        for (float f : actual) if (Float.isNaN(f)) numNaNs++;
+        assertTrue(numNaNs > 0);
+
+        SourceChunkCache.Statistics stats = CdmUtils.getSourceChunkCache().getStatistics().get("chunked");
+        assertEquals(0, stats.getNumHits());
+        long misses = stats.getNumMisses();
+        assertTrue(misses > 0);
+        assertEquals(misses, CdmUtils.getSourceChunkCache().getNumEntries());
+
+        // A neighbouring tile shares some of the chunks
+        RegularGrid neighbour = new RegularGridImpl(20.0, -40.0, 70.0, -10.0,
+                DefaultGeographicCRS.WGS84, 64, 64);
+        assertArrayEquals(read(DataReadingStrategy.BOUNDING_BOX, neighbour, "chunked"),
+                read(DataReadingStrategy.CHUNKED, neighbour, "chunked"), 0.0f);
+        stats = CdmUtils.getSourceChunkCache().getStatistics().get("chunked");
+        assertTrue(stats.getNumHits() > 0);
+    }
+
+    /** The adaptive strategy must use the chunks for dense reads */
+    @Test
+    public void testAdaptive() throws Exception {
+        RegularGrid tile = new RegularGridImpl(0.0, -20.0, 10.0, -10.0,
+                DefaultGeographicCRS.WGS84, 256, 256);
+        DataReadingStrategy.clearLastUsed();
+        float[] data = read(DataReadingStrategy.ADAPTIVE, tile, "adaptive");
+        assertEquals(DataReadingStrategy.CHUNKED, DataReadingStrategy.getLastUsed());
+        assertArrayEquals(read(DataReadingStrategy.BOUNDING_BOX, tile, "adaptive"), data, 0.0f);
+
+        // If the cache is disabled we don't use chunks
+        CdmUtils.getSourceChunkCache().setMaxSizeBytes(0);
+        try {
+            read(DataReadingStrategy.ADAPTIVE, tile, "adaptive");
+            assertEquals(DataReadingStrategy.BOUNDING_BOX, DataReadingStrategy.getLastUsed());
+        } finally {
+            CdmUtils.getSourceChunkCache().setMaxSizeBytes(64L * 1024 * 1024);
+        }
+    }
+
+    private float[] read(DataReadingStrategy strategy, RegularGrid tile, String datasetId)
+            throws Exception {
+        GridDatatype grid = CdmUtils.getGridDatatype(this.nc, "sst");
+        HorizontalGrid sourceGrid = CdmUtils.createHorizontalGrid(grid.getCoordinateSystem());
+        SourceChunkCache.Source source = new SourceChunkCache.Source(
+                this.file.getPath(), datasetId);
+        return strategy.readDataAsArray(1, 0, sourceGrid, tile, grid,
+                new RangesList(grid), DataReadingStrategy.LOCAL_READ_OVERHEAD_BYTES, source);
+    }
+}
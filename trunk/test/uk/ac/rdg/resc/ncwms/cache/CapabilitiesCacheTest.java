@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2010 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the {@link CapabilitiesCache}.
+ * @author Jon
+ */
+public class CapabilitiesCacheTest {
+
+    private CapabilitiesCache cache;
+
+    @Before
+    public void setUp() {
+        this.cache = new CapabilitiesCache();
+    }
+
+    @After
+    public void tearDown() {
+        this.cache.shutdown();
+    }
+
+    /** A source whose content and version can be changed by the tests */
+    private static final class TestSource implements CapabilitiesCache.Source {
+        long version = 1;
+        String content = "<WMS_Capabilities/>";
+        long expiry = Long.MAX_VALUE;
+        int numWrites = 0;
+
+        @Override public long getVersion() { return this.version; }
+
+        @Override public long write(OutputStream out) throws Exception {
+            this.numWrites++;
+            out.write(this.content.getBytes("UTF-8"));
+            return this.expiry;
+        }
+    }
+
+    private static String read(CapabilitiesCache.Document doc, boolean gzip) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        doc.writeTo(out, gzip);
+        if (!gzip) return out.toString("UTF-8");
+        GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(out.toByteArray()));
+        ByteArrayOutputStream unzipped = new ByteArrayOutputStream();
+        byte[] buf = new byte[1024];
+        int n;
+        while ((n = in.read(buf)) >= 0) unzipped.write(buf, 0, n);
+        assertEquals(doc.getGzippedLength(), out.size());
+        return unzipped.toString("UTF-8");
+    }
+
+    @Test
+    public void testDocumentIsReused() throws Exception {
+        TestSource source = new TestSource();
+        CapabilitiesCache.Document doc = this.cache.get("key", source);
+        assertSame(doc, this.cache.get("key", source));
+        assertEquals(1, source.numWrites);
+        assertEquals(1, this.cache.getNumHits());
+        assertEquals(source.content, read(doc, false));
+        assertEquals(source.content, read(doc, true));
+    }
+
+    @Test
+    public void testVersionChange() throws Exception {
+        TestSource source = new TestSource();
+        CapabilitiesCache.Document doc1 = this.cache.get("key", source);
+        // A new version with the same content keeps the ETag
+        source.version++;
+        CapabilitiesCache.Document doc2 = this.cache.get("key", source);
+        assertEquals(2, source.numWrites);
+        assertEquals(doc1.getETag(), doc2.getETag());
+        assertEquals(doc1.getLastModified(), doc2.getLastModified());
+        // A new version with new content has a new ETag
+        source.version++;
+        source.content = "<WMS_Capabilities version=\"1.3.0\"/>";
+        CapabilitiesCache.Document doc3 = this.cache.get("key", source);
+        assertFalse(doc1.getETag().equals(doc3.getETag()));
+        assertEquals(source.content, read(doc3, true));
+    }
+
+    @Test
+    public void testExpiry() throws Exception {
+        TestSource source = new TestSource();
+        source.expiry = System.currentTimeMillis() - 1;
+        this.cache.get("key", source);
+        this.cache.get("key", source);
+        assertEquals(2, source.numWrites);
+    }
+
+    @Test
+    public void testKeysAreSeparate() throws Exception {
+        TestSource source = new TestSource();
+        this.cache.get("key1", source);
+        this.cache.get("key2", source);
+        assertEquals(2, this.cache.getNumDocuments());
+        this.cache.clear();
+        assertEquals(0, this.cache.getNumDocuments());
+    }
+}
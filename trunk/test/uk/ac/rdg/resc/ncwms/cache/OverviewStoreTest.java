@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2010 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.rdg.resc.ncwms.cache;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the {@link OverviewStore}.
+ * @author Jon
+ */
+public class OverviewStoreTest {
+
+    /** The size on disk of an overview of 100 values */
+    private static final long SIZE_100 = 12 + 4 * 100;
+
+    private File dir;
+
+    @Before
+    public void createDirectory() throws Exception {
+        this.dir = File.createTempFile("overviews", "");
+        this.dir.delete();
+    }
+
+    @After
+    public void deleteDirectory() {
+        new OverviewStore(this.dir, 0).clear();
+    }
+
+    private static float[] values(int n, float offset) {
+        float[] data = new float[n];
+        for (int i = 0; i < n; i++) data[i] = i + offset;
+        data[n - 1] = Float.NaN;
+        return data;
+    }
+
+    /** Overviews must be read back as they were written, and survive a restart */
+    @Test
+    public void testPutAndGet() throws Exception {
+        OverviewStore store = new OverviewStore(this.dir, 1024 * 1024);
+        assertNull(store.get("ds/a-L1"));
+        store.put("ds/a-L1", 20, 5, values(100, 0.5f));
+        assertTrue(store.contains("ds/a-L1"));
+        assertEquals(SIZE_100, store.getSizeBytes());
+
+        // Reopen the store
+        store = new OverviewStore(this.dir, 1024 * 1024);
+        assertEquals(1, store.getNumEntries());
+        assertEquals(SIZE_100, store.getSizeBytes());
+        OverviewStore.Overview overview = store.get("ds/a-L1");
+        assertEquals(20, overview.getWidth());
+        assertEquals(5, overview.getHeight());
+        assertEquals(0.5f, overview.getValue(0, 0), 0.0f);
+        assertEquals(23.5f, overview.getValue(3, 1), 0.0f);
+        assertTrue(Float.isNaN(overview.getValue(19, 4)));
+        assertEquals(42.5f, overview.getValues().get(42), 0.0f);
+    }
+
+    /** The least-recently-used overviews must be deleted when the store is full */
+    @Test
+    public void testEviction() throws Exception {
+        OverviewStore store = new OverviewStore(this.dir, 2 * SIZE_100);
+        store.put("ds/a-L1", 10, 10, values(100, 0));
+        store.put("ds/b-L1", 10, 10, values(100, 0));
+        assertFalse(store.hasRoomFor(100));
+        store.get("ds/a-L1");
+        store.put("ds/c-L1", 10, 10, values(100, 0));
+        assertTrue(store.contains("ds/a-L1"));
+        assertFalse(store.contains("ds/b-L1"));
+        assertFalse(new File(this.dir, "ds/b-L1.ovr").exists());
+        assertTrue(store.contains("ds/c-L1"));
+        assertEquals(2 * SIZE_100, store.getSizeBytes());
+
+        store.setMaxSizeBytes(SIZE_100);
+        assertEquals(1, store.getNumEntries());
+        assertTrue(store.contains("ds/c-L1"));
+    }
+
+    /**
+     * Reads must not touch the files, but the order of use must be saved when
+     * the store is closed
+     */
+    @Test
+    public void testUseOrderSurvivesRestart() throws Exception {
+        OverviewStore store = new OverviewStore(this.dir, 2 * SIZE_100);
+        store.put("ds/a-L1", 10, 10, values(100, 0));
+        store.put("ds/b-L1", 10, 10, values(100, 0));
+        File a = new File(this.dir, "ds/a-L1.ovr");
+        File b = new File(this.dir, "ds/b-L1.ovr");
+        long oldTime = System.currentTimeMillis() - 3600000L;
+        a.setLastModified(oldTime);
+        b.setLastModified(oldTime + 1000);
+
+        OverviewStore.Overview overview = store.get("ds/a-L1");
+        assertSame(overview, store.get("ds/a-L1"));
+        assertEquals(oldTime, a.lastModified(), 1000);
+        store.close();
+        assertTrue(a.lastModified() > b.lastModified());
+
+        // Reopen the store: b is now the least-recently-used
+        store = new OverviewStore(this.dir, 2 * SIZE_100);
+        store.put("ds/c-L1", 10, 10, values(100, 0));
+        assertTrue(store.contains("ds/a-L1"));
+        assertFalse(store.contains("ds/b-L1"));
+        assertEquals(1.0f, store.get("ds/a-L1").getValue(1, 0), 0.0f);
+    }
+
+    /** Stale overviews must be deleted from their group only */
+    @Test
+    public void testRetainOnly() throws Exception {
+        OverviewStore store = new OverviewStore(this.dir, 1024 * 1024);
+        store.put("ds1/a-L1", 10, 10, values(100, 0));
+        store.put("ds1/b-L1", 10, 10, values(100, 0));
+        store.put("ds2/a-L1", 10, 10, values(100, 0));
+        Set<String> keep = new HashSet<String>(Collections.singleton("ds1/b-L1"));
+        store.retainOnly("ds1", keep);
+        assertFalse(store.contains("ds1/a-L1"));
+        assertTrue(store.contains("ds1/b-L1"));
+        assertTrue(store.contains("ds2/a-L1"));
+        assertEquals(2 * SIZE_100, store.getSizeBytes());
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2010 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.rdg.resc.ncwms.cache;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the {@link RequestCoalescer}.
+ * @author Jon
+ */
+public class RequestCoalescerTest {
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(8);
+
+    @After
+    public void shutdown() {
+        this.executor.shutdownNow();
+    }
+
+    /** Concurrent requests for the same key must share a single execution */
+    @Test
+    public void testCoalescing() throws Exception {
+        final RequestCoalescer<String, Integer> coalescer = new RequestCoalescer<String, Integer>(10000);
+        final AtomicInteger numCalls = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Callable<Integer> work = new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                numCalls.incrementAndGet();
+                started.countDown();
+                release.await();
+                return 42;
+            }
+        };
+        List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+        results.add(this.executor.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                return coalescer.execute("key", work);
+            }
+        }));
+        started.await();
+        for (int i = 0; i < 5; i++) {
+            results.add(this.executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    return coalescer.execute("key", work);
+                }
+            }));
+        }
+        // Wait until all the followers are waiting
+        while (coalescer.getNumCoalesced() < 5) Thread.sleep(5);
+        release.countDown();
+        for (Future<Integer> result : results) {
+            assertEquals(42, result.get(5, TimeUnit.SECONDS).intValue());
+        }
+        assertEquals(1, numCalls.get());
+        assertEquals(1, coalescer.getNumExecuted());
+        assertEquals(0, coalescer.getNumInFlight());
+        // The result is not retained once the leader has finished
+        assertEquals(42, coalescer.execute("key", work).intValue());
+        assertEquals(2, numCalls.get());
+    }
+
+    /** Followers must receive the leader's exception */
+    @Test
+    public void testFailure() throws Exception {
+        final RequestCoalescer<String, Integer> coalescer = new RequestCoalescer<String, Integer>(10000);
+        final CountDownLatch release = new CountDownLatch(1);
+        Future<Integer> leader = this.executor.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                return coalescer.execute("key", new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        release.await();
+                        throw new IOException("read failed");
+                    }
+                });
+            }
+        });
+        while (coalescer.getNumInFlight() == 0) Thread.sleep(5);
+        Future<Integer> follower = this.executor.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                return coalescer.execute("key", new Callable<Integer>() {
+                    @Override
+                    public Integer call() {
+                        return 1;
+                    }
+                });
+            }
+        });
+        while (coalescer.getNumCoalesced() == 0) Thread.sleep(5);
+        release.countDown();
+        try {
+            follower.get(5, TimeUnit.SECONDS);
+            fail("Follower should have received the leader's exception");
+        } catch (ExecutionException ee) {
+            assertTrue(ee.getCause() instanceof IOException);
+        }
+        assertTrue(leader.isDone());
+    }
+
+    /**
+     * A follower must do the work itself if the leader takes too long, and
+     * must retry if the leader was interrupted
+     */
+    @Test
+    public void testTimeoutAndInterruption() throws Exception {
+        final RequestCoalescer<String, Integer> coalescer = new RequestCoalescer<String, Integer>(50);
+        final CountDownLatch release = new CountDownLatch(1);
+        Future<Integer> leader = this.executor.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                return coalescer.execute("key", new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        release.await();
+                        return 1;
+                    }
+                });
+            }
+        });
+        while (coalescer.getNumInFlight() == 0) Thread.sleep(5);
+        Callable<Integer> quickWork = new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return 2;
+            }
+        };
+        assertEquals(2, coalescer.execute("key", quickWork).intValue());
+        assertEquals(1, coalescer.getNumTimeouts());
+        release.countDown();
+        assertEquals(1, leader.get(5, TimeUnit.SECONDS).intValue());
+
+        // Now a leader that is interrupted while reading
+        final RequestCoalescer<String, Integer> coalescer2 = new RequestCoalescer<String, Integer>(10000);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        leader = this.executor.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                return coalescer2.execute("key", new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        interrupted.await();
+                        throw new InterruptedIOException();
+                    }
+                });
+            }
+        });
+        while (coalescer2.getNumInFlight() == 0) Thread.sleep(5);
+        Future<Integer> follower = this.executor.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                return coalescer2.execute("key", new Callable<Integer>() {
+                    @Override
+                    public Integer call() {
+                        return 3;
+                    }
+                });
+            }
+        });
+        while (coalescer2.getNumCoalesced() == 0) Thread.sleep(5);
+        interrupted.countDown();
+        // The follower retries and becomes the leader
+        assertEquals(3, follower.get(5, TimeUnit.SECONDS).intValue());
+        assertEquals(2, coalescer2.getNumExecuted());
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2010 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.rdg.resc.ncwms.cache;
+
+import java.nio.ByteBuffer;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the {@link TileEncoding}s.
+ * @author Jon
+ */
+public class TileEncodingTest {
+
+    private static final float[] DATA = {
+        0.0f, -0.0f, 1.0f, -1.5f, 3.14159f, 1000.25f, -65504.0f, 1.0e-6f,
+        Float.NaN, 12.5f, 30.0f, Float.NaN
+    };
+
+    @Test
+    public void testFloat32() {
+        float[] result = roundTrip(TileEncoding.FLOAT32, DATA, 0.0f, 0.0f);
+        for (int i = 0; i < DATA.length; i++) {
+            assertEquals(Float.floatToIntBits(DATA[i]), Float.floatToIntBits(result[i]));
+        }
+    }
+
+    @Test
+    public void testFloat16() {
+        float[] result = roundTrip(TileEncoding.FLOAT16, DATA, 0.0f, 0.0f);
+        for (int i = 0; i < DATA.length; i++) {
+            if (Float.isNaN(DATA[i])) {
+                assertTrue(Float.isNaN(result[i]));
+            } else {
+                // Half precision has an 11-bit significand
+                assertEquals(DATA[i], result[i], Math.abs(DATA[i]) / 1024 + 1.0e-7f);
+            }
+        }
+        // Exactly-representable values
+        assertEquals(1.0f, TileEncoding.halfToFloat(TileEncoding.floatToHalf(1.0f)), 0.0f);
+        assertEquals(-65504.0f, TileEncoding.halfToFloat(TileEncoding.floatToHalf(-65504.0f)), 0.0f);
+        assertEquals(Float.POSITIVE_INFINITY,
+            TileEncoding.halfToFloat(TileEncoding.floatToHalf(1.0e6f)), 0.0f);
+        // Subnormal
+        float tiny = (float)Math.pow(2, -20);
+        assertEquals(tiny, TileEncoding.halfToFloat(TileEncoding.floatToHalf(tiny)), 0.0f);
+    }
+
+    @Test
+    public void testByte() {
+        float[] data = { 10.0f, 15.0f, Float.NaN, 20.0f, 12.34f };
+        float[] result = roundTrip(TileEncoding.BYTE, data, 10.0f, 20.0f);
+        float tolerance = (20.0f - 10.0f) / 254 / 2 + 1.0e-5f;
+        for (int i = 0; i < data.length; i++) {
+            if (Float.isNaN(data[i])) {
+                assertTrue(Float.isNaN(result[i]));
+            } else {
+                assertEquals(data[i], result[i], tolerance);
+            }
+        }
+        assertEquals(10.0f, result[0], 0.0f);
+        assertEquals(20.0f, result[3], 1.0e-5f);
+    }
+
+    private static float[] roundTrip(TileEncoding encoding, float[] data,
+            float min, float max) {
+        ByteBuffer buf = ByteBuffer.allocate(data.length * encoding.getBytesPerValue());
+        encoding.encode(data, buf, min, max);
+        assertEquals(0, buf.remaining());
+        buf.flip();
+        float[] result = new float[data.length];
+        encoding.decode(buf, result, min, max);
+        return result;
+    }
+}
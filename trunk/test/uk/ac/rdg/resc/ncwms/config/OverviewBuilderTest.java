@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2010 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.config;
+
+import java.io.File;
+import org.joda.time.DateTime;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the {@link OverviewBuilder}.
+ * @author Jon
+ */
+public class OverviewBuilderTest {
+
+    private static final DateTime UPDATED = new DateTime(2010, 6, 1, 0, 0, 0, 0);
+
+    private static String keyBase(String filename, DateTime datasetLastUpdate) {
+        return OverviewBuilder.getKeyBase("ds", "sst", filename, 0, 0, datasetLastUpdate);
+    }
+
+    /** The keys of remote data must change when the dataset is updated */
+    @Test
+    public void testOpendapKeyChanges() {
+        String url = "http://example.com/thredds/dodsC/sst.nc";
+        assertEquals(keyBase(url, UPDATED), keyBase(url, UPDATED));
+        assertFalse(keyBase(url, UPDATED).equals(keyBase(url, UPDATED.plusHours(1))));
+    }
+
+    /**
+     * The keys of NcML aggregations must change when the dataset is updated,
+     * even if the NcML file itself has not changed
+     */
+    @Test
+    public void testNcmlKeyChanges() throws Exception {
+        File ncml = File.createTempFile("aggregation", ".ncml");
+        try {
+            String path = ncml.getPath();
+            assertEquals(keyBase(path, UPDATED), keyBase(path, UPDATED));
+            assertFalse(keyBase(path, UPDATED).equals(keyBase(path, UPDATED.plusHours(1))));
+        } finally {
+            ncml.delete();
+        }
+    }
+
+    /**
+     * The keys of local files must change when the file is modified, but not
+     * when the dataset is updated without the file changing
+     */
+    @Test
+    public void testLocalFileKeyChanges() throws Exception {
+        File file = File.createTempFile("data", ".nc");
+        try {
+            String path = file.getPath();
+            file.setLastModified(UPDATED.getMillis());
+            String key = keyBase(path, UPDATED);
+            assertEquals(key, keyBase(path, UPDATED.plusHours(1)));
+            file.setLastModified(UPDATED.getMillis() + 60000);
+            assertFalse(key.equals(keyBase(path, UPDATED)));
+            assertTrue(key.startsWith("ds/"));
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) 2010 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.rdg.resc.ncwms.config.datareader;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import ucar.ma2.ArrayDouble;
+import ucar.ma2.ArrayFloat;
+import ucar.ma2.DataType;
+import ucar.nc2.Dimension;
+import ucar.nc2.NetcdfFileWriteable;
+import uk.ac.rdg.resc.ncwms.config.LayerImpl;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the incremental reading of metadata with {@link FileSnapshots}, and
+ * the saving and restoring of the snapshots.
+ * @author Jon
+ */
+public class DataReaderTest {
+
+    private File dir;
+    private String location;
+    private DataReader dataReader;
+
+    @Before
+    public void setUp() throws Exception {
+        this.dir = File.createTempFile("datareader", "");
+        this.dir.delete();
+        this.dir.mkdir();
+        this.location = new File(this.dir, "*.nc").getPath();
+        this.dataReader = DataReader.forName(null);
+        createFile("a.nc", 0);
+        createFile("b.nc", 2);
+    }
+
+    @After
+    public void tearDown() {
+        deleteRecursively(this.dir);
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) deleteRecursively(child);
+        }
+        file.delete();
+    }
+
+    /** Creates a file with two daily timesteps, starting at the given day */
+    private File createFile(String name, int firstDay) throws Exception {
+        File file = new File(this.dir, name);
+        NetcdfFileWriteable ncw = NetcdfFileWriteable.createNew(file.getPath(), false);
+        Dimension time = ncw.addDimension("time", 2);
+        Dimension lat = ncw.addDimension("lat", 3);
+        Dimension lon = ncw.addDimension("lon", 4);
+        ncw.addVariable("time", DataType.DOUBLE, new Dimension[]{time});
+        ncw.addVariableAttribute("time", "units", "days since 2000-01-01 00:00:00");
+        ncw.addVariable("lat", DataType.DOUBLE, new Dimension[]{lat});
+        ncw.addVariableAttribute("lat", "units", "degrees_north");
+        ncw.addVariable("lon", DataType.DOUBLE, new Dimension[]{lon});
+        ncw.addVariableAttribute("lon", "units", "degrees_east");
+        ncw.addVariable("sst", DataType.FLOAT, new Dimension[]{time, lat, lon});
+        ncw.create();
+        ArrayDouble.D1 times = new ArrayDouble.D1(2);
+        times.set(0, firstDay);
+        times.set(1, firstDay + 1);
+        ncw.write("time", times);
+        ArrayDouble.D1 lats = new ArrayDouble.D1(3);
+        for (int j = 0; j < 3; j++) lats.set(j, j);
+        ncw.write("lat", lats);
+        ArrayDouble.D1 lons = new ArrayDouble.D1(4);
+        for (int i = 0; i < 4; i++) lons.set(i, i);
+        ncw.write("lon", lons);
+        ncw.write("sst", new ArrayFloat.D3(2, 3, 4));
+        ncw.close();
+        return file;
+    }
+
+    private static int numTimesteps(Map<String, LayerImpl> layers) {
+        return layers.get("sst").getTimeValues().size();
+    }
+
+    @Test
+    public void testUnchanged() throws Exception {
+        FileSnapshots snapshots = new FileSnapshots();
+        Map<String, LayerImpl> layers = this.dataReader.getAllLayers(this.location, snapshots);
+        assertEquals(4, numTimesteps(layers));
+        assertEquals(2, snapshots.getAddedFiles().size());
+        assertTrue(snapshots.hasChanges());
+
+        Map<String, LayerImpl> layers2 = this.dataReader.getAllLayers(this.location, snapshots);
+        assertFalse(snapshots.hasChanges());
+        assertEquals(2, snapshots.size());
+        assertEquals(layers.get("sst").getTimeValues(), layers2.get("sst").getTimeValues());
+        // The grid is shared, rather than read again
+        assertSame(layers.get("sst").getHorizontalGrid(), layers2.get("sst").getHorizontalGrid());
+    }
+
+    @Test
+    public void testAddAndRemove() throws Exception {
+        FileSnapshots snapshots = new FileSnapshots();
+        this.dataReader.getAllLayers(this.location, snapshots);
+
+        File c = createFile("c.nc", 4);
+        Map<String, LayerImpl> layers = this.dataReader.getAllLayers(this.location, snapshots);
+        assertEquals(Arrays.asList(c.getPath()), snapshots.getAddedFiles());
+        assertEquals(Collections.emptyList(), snapshots.getModifiedFiles());
+        assertEquals(6, numTimesteps(layers));
+
+        File a = new File(this.dir, "a.nc");
+        a.delete();
+        layers = this.dataReader.getAllLayers(this.location, snapshots);
+        assertEquals(Arrays.asList(a.getPath()), snapshots.getRemovedFiles());
+        assertEquals(Collections.emptyList(), snapshots.getAddedFiles());
+        assertEquals(4, numTimesteps(layers));
+        assertEquals(3, layers.get("sst").getTimeValues().get(0).getDayOfMonth());
+    }
+
+    @Test
+    public void testModified() throws Exception {
+        FileSnapshots snapshots = new FileSnapshots();
+        this.dataReader.getAllLayers(this.location, snapshots);
+
+        // Replace the timesteps in b.nc with later ones
+        File b = createFile("b.nc", 10);
+        b.setLastModified(b.lastModified() + 2000);
+        Map<String, LayerImpl> layers = this.dataReader.getAllLayers(this.location, snapshots);
+        assertEquals(Arrays.asList(b.getPath()), snapshots.getModifiedFiles());
+        assertEquals(4, numTimesteps(layers));
+        assertEquals(12, layers.get("sst").getTimeValues().get(3).getDayOfMonth());
+    }
+
+    @Test
+    public void testSaveAndRestore() throws Exception {
+        FileSnapshots snapshots = new FileSnapshots();
+        Map<String, LayerImpl> layers = this.dataReader.getAllLayers(this.location, snapshots);
+        File file = new File(this.dir, "metadata.snapshot");
+        assertTrue(snapshots.writeTo(file, "key", 1234L));
+
+        assertNull(FileSnapshots.readFrom(file, "otherkey"));
+        FileSnapshots restored = FileSnapshots.readFrom(file, "key");
+        assertEquals(1234L, restored.getSavedTime());
+        assertEquals(2, restored.size());
+        LayerImpl layer = layers.get("sst");
+        LayerImpl restoredLayer = restored.getLayers().get("sst");
+        assertEquals(layer.getTimeValues(), restoredLayer.getTimeValues());
+        assertSame(layer.getHorizontalGrid().getClass(),
+                restoredLayer.getHorizontalGrid().getClass());
+        assertEquals(layer.getHorizontalGrid().getExtent().toString(),
+                restoredLayer.getHorizontalGrid().getExtent().toString());
+        assertEquals(layer.getGeographicBoundingBox(), restoredLayer.getGeographicBoundingBox());
+        assertEquals(layer.getUnits(), restoredLayer.getUnits());
+
+        // The restored snapshots are up to date, so no files need to be read
+        this.dataReader.getAllLayers(this.location, restored);
+        assertFalse(restored.hasChanges());
+    }
+
+    @Test
+    public void testFindGlobDirectories() throws Exception {
+        File sub = new File(this.dir, "2010");
+        sub.mkdir();
+        new File(sub, "c.nc").createNewFile();
+        new File(this.dir, "notadir.nc").createNewFile();
+        String glob = new File(new File(this.dir, "20*"), "*.nc").getPath();
+        assertEquals(Arrays.asList(new File(sub, "c.nc")), DataReader.expandGlobExpression(glob));
+        // Both directories must be watched to see new files in them
+        List<File> dirs = DataReader.findGlobDirectories(glob);
+        assertTrue(dirs.contains(this.dir));
+        assertTrue(dirs.contains(sub));
+    }
+}
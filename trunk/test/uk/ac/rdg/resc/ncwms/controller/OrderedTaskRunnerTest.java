@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2010 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.rdg.resc.ncwms.controller;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the {@link OrderedTaskRunner}.
+ * @author Jon
+ */
+public class OrderedTaskRunnerTest {
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(8);
+
+    @After
+    public void shutdown() {
+        this.executor.shutdownNow();
+    }
+
+    /** Results must come back in order, with no more than maxInFlight running */
+    @Test
+    public void testOrderAndLimit() throws Exception {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+        for (int i = 0; i < 50; i++) {
+            final int n = i;
+            tasks.add(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    int r = running.incrementAndGet();
+                    synchronized (maxRunning) {
+                        maxRunning.set(Math.max(maxRunning.get(), r));
+                    }
+                    // Later tasks finish sooner
+                    Thread.sleep(50 - n % 10 * 5);
+                    running.decrementAndGet();
+                    return n;
+                }
+            });
+        }
+        OrderedTaskRunner<Integer> runner = new OrderedTaskRunner<Integer>(this.executor, tasks, 3);
+        for (int i = 0; i < 50; i++) {
+            assertTrue(runner.hasNext());
+            assertEquals(i, runner.next().intValue());
+        }
+        assertFalse(runner.hasNext());
+        assertTrue(maxRunning.get() <= 3);
+    }
+
+    /** A failing task must propagate its exception and cancel the others */
+    @Test
+    public void testFailure() throws Exception {
+        final AtomicInteger started = new AtomicInteger();
+        List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+        tasks.add(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                throw new IOException("test");
+            }
+        });
+        for (int i = 0; i < 20; i++) {
+            tasks.add(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    started.incrementAndGet();
+                    Thread.sleep(10000);
+                    return 0;
+                }
+            });
+        }
+        OrderedTaskRunner<Integer> runner = new OrderedTaskRunner<Integer>(this.executor, tasks, 4);
+        try {
+            runner.next();
+            fail("Expected an IOException");
+        } catch (IOException ioe) {
+            assertEquals("test", ioe.getMessage());
+        }
+        assertFalse(runner.hasNext());
+        // Only the first batch of tasks can have been started
+        assertTrue(started.get() <= 3);
+    }
+}
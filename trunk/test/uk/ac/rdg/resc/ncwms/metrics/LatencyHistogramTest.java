@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2010 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.metrics;
+
+import java.io.StringWriter;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the {@link LatencyHistogram} and the text output of the
+ * {@link MetricsRegistry}.
+ * @author Jon
+ */
+public class LatencyHistogramTest {
+
+    private static final long MS = 1000000L;
+
+    @Test
+    public void testFindBucket() {
+        assertEquals(0, LatencyHistogram.findBucket(0));
+        // Bounds are inclusive
+        assertEquals(0, LatencyHistogram.findBucket(100000));
+        assertEquals(1, LatencyHistogram.findBucket(100001));
+        assertEquals(3, LatencyHistogram.findBucket(1 * MS));
+        assertEquals(LatencyHistogram.BOUNDS_SECONDS.length - 1,
+            LatencyHistogram.findBucket(30000 * MS));
+        assertEquals(LatencyHistogram.BOUNDS_SECONDS.length,
+            LatencyHistogram.findBucket(30001 * MS));
+    }
+
+    @Test
+    public void testStatistics() {
+        LatencyHistogram h = new LatencyHistogram();
+        assertEquals(0, h.getCount());
+        assertEquals(0.0, h.getP99Millis(), 0.0);
+        // 90 fast times and 10 slow ones
+        for (int i = 0; i < 90; i++) h.record(2 * MS);
+        for (int i = 0; i < 10; i++) h.record(200 * MS);
+        assertEquals(100, h.getCount());
+        assertEquals(21.8, h.getMeanMillis(), 1e-9);
+        assertEquals(200.0, h.getMaxMillis(), 0.0);
+        // Percentiles are the upper bounds of the buckets, but no more than the maximum
+        assertEquals(2.5, h.getP50Millis(), 1e-9);
+        assertEquals(200.0, h.getP95Millis(), 1e-9);
+        long[] counts = h.getCumulativeCounts();
+        assertEquals(90, counts[4]);
+        assertEquals(100, counts[counts.length - 1]);
+        // Times beyond the last bound are estimated by the maximum
+        h.record(60000 * MS);
+        assertEquals(60000.0, h.getPercentileMillis(100.0), 0.0);
+    }
+
+    @Test
+    public void testConcurrentRecording() throws Exception {
+        final LatencyHistogram h = new LatencyHistogram();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            final long nanos = (t + 1) * MS;
+            threads[t] = new Thread() {
+                @Override public void run() {
+                    for (int i = 0; i < 10000; i++) h.record(nanos);
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread t : threads) t.join();
+        assertEquals(80000, h.getCount());
+        assertEquals(10000 * 36 * MS, h.getSumNanos());
+        assertEquals(8.0, h.getMaxMillis(), 0.0);
+    }
+
+    @Test
+    public void testWriteText() throws Exception {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.getCounter("ncwms_test_total", "A counter").increment();
+        registry.registerGauge("ncwms_test_gauge", "A gauge", new Gauge() {
+            @Override public double getValue() { return 3; }
+        });
+        StageRecorder stages = registry.getStageRecorder("ds", "la\"yer", "image/png");
+        stages.record(Stage.IO_READ, "SCANLINE", 3 * MS);
+        StringWriter out = new StringWriter();
+        registry.writeText(out);
+        String text = out.toString();
+        assertTrue(text.contains("# TYPE ncwms_test_total counter\nncwms_test_total 1\n"));
+        assertTrue(text.contains("# TYPE ncwms_test_gauge gauge\nncwms_test_gauge 3.0\n"));
+        assertTrue(text.contains("# TYPE ncwms_stage_duration_seconds histogram\n"));
+        String labels = "stage=\"io_read\",dataset=\"ds\",layer=\"la\\\"yer\","
+            + "strategy=\"SCANLINE\",format=\"image/png\"";
+        assertTrue(text.contains("ncwms_stage_duration_seconds_bucket{" + labels + ",le=\"0.0025\"} 0\n"));
+        assertTrue(text.contains("ncwms_stage_duration_seconds_bucket{" + labels + ",le=\"0.005\"} 1\n"));
+        assertTrue(text.contains("ncwms_stage_duration_seconds_bucket{" + labels + ",le=\"+Inf\"} 1\n"));
+        assertTrue(text.contains("ncwms_stage_duration_seconds_sum{" + labels + "} 0.003\n"));
+        assertTrue(text.contains("ncwms_stage_duration_seconds_count{" + labels + "} 1\n"));
+    }
+
+    @Test
+    public void testMaxStageSeries() {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.setMaxStageSeries(2);
+        registry.recordStage(Stage.ENCODING, "ds", "a", null, "image/png", MS);
+        registry.recordStage(Stage.ENCODING, "ds", "b", null, "image/png", MS);
+        registry.recordStage(Stage.ENCODING, "ds", "c", null, "image/png", MS);
+        registry.recordStage(Stage.ENCODING, "ds", "d", null, "image/png", MS);
+        assertNull(registry.getStageHistogram(Stage.ENCODING, "ds", "c", "", "image/png"));
+        assertEquals(2, registry.getStageHistogram(Stage.ENCODING, "ds",
+            MetricsRegistry.OTHER_LAYER, null, "image/png").getCount());
+        // Existing series are still used
+        registry.recordStage(Stage.ENCODING, "ds", "a", null, "image/png", MS);
+        assertEquals(2, registry.getStageHistogram(Stage.ENCODING, "ds", "a", null, "image/png").getCount());
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2010 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.usagelog;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import org.junit.Test;
+import uk.ac.rdg.resc.ncwms.usagelog.AsyncLogWriter.OverflowPolicy;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the {@link AsyncLogWriter}.
+ * @author Jon
+ */
+public class AsyncLogWriterTest {
+
+    /** A sink that records its entries and can be held up by a latch */
+    private static final class TestSink implements AsyncLogWriter.Sink<Integer> {
+        final List<Integer> written = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release;
+
+        TestSink(boolean hold) {
+            this.release = new CountDownLatch(hold ? 1 : 0);
+        }
+
+        @Override public void write(List<Integer> entries) throws Exception {
+            this.started.countDown();
+            this.release.await();
+            this.written.addAll(entries);
+        }
+    }
+
+    @Test
+    public void testEntriesWrittenInOrder() throws Exception {
+        TestSink sink = new TestSink(false);
+        AsyncLogWriter<Integer> writer = new AsyncLogWriter<Integer>("test", 100, 10,
+            OverflowPolicy.BLOCK, sink);
+        List<Integer> expected = new ArrayList<Integer>();
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(writer.add(i));
+            expected.add(i);
+        }
+        assertTrue(writer.flush(10000));
+        assertEquals(expected, sink.written);
+        assertEquals(1000, writer.getNumWritten());
+        assertEquals(0, writer.getNumDropped());
+        assertEquals(0, writer.getQueueDepth());
+        writer.close(1000);
+    }
+
+    @Test
+    public void testBatching() throws Exception {
+        TestSink sink = new TestSink(true);
+        AsyncLogWriter<Integer> writer = new AsyncLogWriter<Integer>("test", 100, 20,
+            OverflowPolicy.DROP, sink);
+        writer.add(-1);
+        sink.started.await();
+        // These entries queue up while the first batch is being written
+        for (int i = 0; i < 50; i++) writer.add(i);
+        assertEquals(50, writer.getQueueDepth());
+        sink.release.countDown();
+        assertTrue(writer.flush(10000));
+        assertEquals(51, sink.written.size());
+        // 1 entry, then batches of 20, 20 and 10
+        assertEquals(4, writer.getNumBatches());
+        writer.close(1000);
+    }
+
+    @Test
+    public void testDropWhenFull() throws Exception {
+        TestSink sink = new TestSink(true);
+        AsyncLogWriter<Integer> writer = new AsyncLogWriter<Integer>("test", 10, 10,
+            OverflowPolicy.DROP, sink);
+        writer.add(-1);
+        sink.started.await();
+        for (int i = 0; i < 15; i++) {
+            assertEquals(i < 10, writer.add(i));
+        }
+        assertEquals(5, writer.getNumDropped());
+        assertEquals(10, writer.getQueueDepth());
+        sink.release.countDown();
+        assertTrue(writer.flush(10000));
+        assertEquals(11, writer.getNumWritten());
+        writer.close(1000);
+    }
+
+    @Test
+    public void testCloseWritesQueuedEntries() throws Exception {
+        TestSink sink = new TestSink(true);
+        final AsyncLogWriter<Integer> writer = new AsyncLogWriter<Integer>("test", 100, 100,
+            OverflowPolicy.DROP, sink);
+        writer.add(-1);
+        sink.started.await();
+        for (int i = 0; i < 30; i++) writer.add(i);
+        sink.release.countDown();
+        writer.close(10000);
+        assertEquals(31, sink.written.size());
+        // Entries added after closing are dropped
+        assertFalse(writer.add(100));
+        assertEquals(1, writer.getNumDropped());
+    }
+
+    @Test
+    public void testFailedBatchesAreCounted() throws Exception {
+        AsyncLogWriter<Integer> writer = new AsyncLogWriter<Integer>("test", 10, 10,
+            OverflowPolicy.DROP, new AsyncLogWriter.Sink<Integer>() {
+                @Override public void write(List<Integer> entries) throws Exception {
+                    throw new Exception("test failure");
+                }
+            });
+        writer.add(1);
+        assertTrue(writer.flush(10000));
+        assertEquals(1, writer.getNumFailed());
+        assertEquals(0, writer.getNumWritten());
+        writer.close(1000);
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright (c) 2010 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.usagelog.h2;
+
+import java.io.InputStreamReader;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Date;
+import java.util.List;
+import org.h2.tools.RunScript;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the {@link UsageRollups}.
+ * @author Jon
+ */
+public class UsageRollupsTest {
+
+    private static final long HOUR = 3600000L;
+
+    private Connection conn;
+
+    @Before
+    public void setUp() throws Exception {
+        Class.forName("org.h2.Driver");
+        this.conn = DriverManager.getConnection("jdbc:h2:mem:rollups");
+        RunScript.execute(this.conn, new InputStreamReader(UsageRollups.class
+            .getResourceAsStream("init.sql")));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.conn.createStatement().execute("DROP ALL OBJECTS");
+        this.conn.close();
+    }
+
+    @Test
+    public void testFindBin() {
+        assertEquals(0, UsageRollups.findBin(0));
+        assertEquals(0, UsageRollups.findBin(10));
+        assertEquals(1, UsageRollups.findBin(11));
+        assertEquals(10, UsageRollups.findBin(30000));
+        assertEquals(11, UsageRollups.findBin(30001));
+    }
+
+    @Test
+    public void testCounts() {
+        UsageRollups rollups = new UsageRollups();
+        long t = 1000 * HOUR;
+        rollups.add(t + 5, "ds/sst", "GetMap", "image/png", true, false, 15L);
+        rollups.add(t + HOUR - 1, "ds/sst", "GetMap", "image/png", false, true, null);
+        // The next hour
+        rollups.add(t + HOUR, "ds/sst", "GetMap", "image/png", false, false, 150L);
+        // Missing values are recorded as empty strings
+        rollups.add(t, null, "GetCapabilities", null, false, false, null);
+        assertEquals(3, rollups.getNumRollups());
+
+        UsageRollups.Counts c = rollups.getCounts(t, "ds/sst", "GetMap", "image/png");
+        assertEquals(2, c.numRequests);
+        assertEquals(1, c.numCacheHits);
+        assertEquals(1, c.numErrors);
+        assertEquals(1, c.numExtractions);
+        assertEquals(15, c.extractMsMax);
+        assertEquals(1, c.bins[1]);
+        assertNotNull(rollups.getCounts(t, "", "GetCapabilities", ""));
+    }
+
+    @Test
+    public void testPercentiles() {
+        UsageRollups.Counts c = new UsageRollups.Counts();
+        assertNull(UsageRollups.estimatePercentile(c, 50));
+        // 90 fast extractions and 10 slow ones
+        c.numExtractions = 100;
+        c.bins[0] = 90;
+        c.bins[UsageRollups.findBin(700)] = 10;
+        c.extractMsMax = 700;
+        assertEquals(Long.valueOf(10), UsageRollups.estimatePercentile(c, 50));
+        assertEquals(Long.valueOf(10), UsageRollups.estimatePercentile(c, 90));
+        assertEquals(Long.valueOf(700), UsageRollups.estimatePercentile(c, 95));
+        // Beyond the largest bound we use the maximum
+        c.bins[UsageRollups.findBin(700)] = 0;
+        c.bins[UsageRollups.EXTRACT_MS_BOUNDS.length] = 10;
+        c.extractMsMax = 45000;
+        assertEquals(Long.valueOf(45000), UsageRollups.estimatePercentile(c, 99));
+    }
+
+    @Test
+    public void testWriteAndRead() throws Exception {
+        long t = System.currentTimeMillis();
+        t -= t % HOUR;
+        for (int batch = 0; batch < 3; batch++) {
+            UsageRollups rollups = new UsageRollups();
+            for (int i = 0; i < 10; i++) {
+                rollups.add(t + i, "ds/sst", "GetMap", "image/png", i % 2 == 0, false,
+                    (long)(batch * 10 + i));
+                rollups.addGetMap(t + i, "client", "host" + (i % 3), i % 2 == 0);
+            }
+            rollups.write(this.conn);
+        }
+
+        ResultSet rs = this.conn.createStatement().executeQuery(
+            "SELECT num_requests, num_cache_hits, extract_ms_max FROM usage_rollup");
+        assertTrue(rs.next());
+        assertEquals(30, rs.getLong(1));
+        assertEquals(15, rs.getLong(2));
+        assertEquals(29, rs.getLong(3));
+        assertFalse(rs.next());
+
+        rs = this.conn.createStatement().executeQuery(
+            "SELECT SUM(num_get_map), COUNT(1) FROM usage_source_rollup");
+        assertTrue(rs.next());
+        assertEquals(30, rs.getLong(1));
+        assertEquals(3, rs.getLong(2));
+
+        List<UsageRollups.Summary> summaries = UsageRollups.readSummaries(this.conn,
+            new Date(t - HOUR));
+        assertEquals(1, summaries.size());
+        UsageRollups.Summary summary = summaries.get(0);
+        assertEquals("ds/sst", summary.getLayer());
+        assertEquals(30, summary.getNumRequests());
+        assertEquals(0.5, summary.getCacheHitRatio(), 1e-9);
+        assertEquals(Long.valueOf(14), summary.getMeanExtractMs());
+        assertEquals(Long.valueOf(20), summary.getMedianExtractMs());
+        assertEquals(Long.valueOf(29), summary.getMaxExtractMs());
+
+        // Nothing has been logged since then
+        assertTrue(UsageRollups.readSummaries(this.conn, new Date(t + HOUR)).isEmpty());
+    }
+
+    @Test
+    public void testBackfill() throws Exception {
+        long t = System.currentTimeMillis();
+        t -= t % HOUR + 3 * HOUR;
+        this.log(t, "GetMap", null, 10);
+        this.log(t + 1, "GetMap", null, 20);
+        this.log(t + 2, "GetMap", "java.io.IOException", null);
+        this.log(t + HOUR, "GetMap", null, 30);
+        this.log(t + HOUR + 1, "GetMap", null, null);
+
+        assertTrue(UsageRollups.startBackfill(this.conn, new Date()));
+        assertEquals(5, UsageRollups.backfill(this.conn));
+
+        List<UsageRollups.Summary> summaries = UsageRollups.readSummaries(this.conn,
+            new Date(t));
+        assertEquals(1, summaries.size());
+        UsageRollups.Summary summary = summaries.get(0);
+        assertEquals(5, summary.getNumRequests());
+        assertEquals(1, summary.getNumErrors());
+        // Requests that did not record a time must not count as extractions
+        assertEquals(3, summary.getNumExtractions());
+        assertEquals(Long.valueOf(20), summary.getMeanExtractMs());
+        assertEquals(Long.valueOf(30), summary.getMaxExtractMs());
+
+        // The backfill is complete and the rollups are no longer empty
+        assertFalse(UsageRollups.startBackfill(this.conn, new Date()));
+        assertEquals(0, UsageRollups.backfill(this.conn));
+        assertEquals(5, UsageRollups.readSummaries(this.conn, new Date(t)).get(0)
+            .getNumRequests());
+    }
+
+    @Test
+    public void testBackfillResumes() throws Exception {
+        long t = System.currentTimeMillis();
+        t -= t % HOUR + 3 * HOUR;
+        this.log(t, "GetMap", null, 10);
+        this.log(t + HOUR, "GetMap", null, 30);
+        this.log(t + 2 * HOUR, "GetMap", null, 50);
+        Date end = new Date(t + 2 * HOUR);
+        assertTrue(UsageRollups.startBackfill(this.conn, end));
+
+        // Simulate a backfill that was interrupted after the first hour
+        UsageRollups rollups = new UsageRollups();
+        rollups.add(t, "ds/sst", "GetMap", "image/png", false, false, 10L);
+        rollups.write(this.conn);
+        this.conn.createStatement().executeUpdate(
+            "UPDATE usage_rollup_backfill SET next_time = '" +
+            new Timestamp(t + HOUR) + "'");
+
+        // After a restart the backfill is still pending, even though the
+        // rollups are not empty
+        assertTrue(UsageRollups.startBackfill(this.conn, new Date()));
+        // Only the second hour is added: the third was after the end time
+        assertEquals(1, UsageRollups.backfill(this.conn));
+        UsageRollups.Summary summary = UsageRollups.readSummaries(this.conn,
+            new Date(t)).get(0);
+        assertEquals(2, summary.getNumRequests());
+        assertEquals(Long.valueOf(20), summary.getMeanExtractMs());
+    }
+
+    /** Adds an entry to the usage log */
+    private void log(long time, String operation, String exceptionClass,
+            Integer extractMs) throws Exception {
+        PreparedStatement ps = this.conn.prepareStatement("INSERT INTO usage_log(" +
+            "request_time, client_ip, http_method, wms_operation, layer, " +
+            "output_format, used_cache, exception_class, time_to_extract_data_ms, " +
+            "client_hostname) VALUES(?, '127.0.0.1', 'GET', ?, 'ds/sst', " +
+            "'image/png', FALSE, ?, ?, 'localhost')");
+        ps.setTimestamp(1, new Timestamp(time));
+        ps.setString(2, operation);
+        ps.setString(3, exceptionClass);
+        if (extractMs == null) ps.setNull(4, Types.INTEGER);
+        else ps.setInt(4, extractMs);
+        ps.executeUpdate();
+        ps.close();
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2010 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.wms;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.joda.time.DateTime;
+import org.joda.time.chrono.ISOChronology;
+import org.junit.Test;
+import uk.ac.rdg.resc.edal.time.ThreeSixtyDayChronology;
+import uk.ac.rdg.resc.ncwms.util.WmsUtils;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the {@link TimeRuns} and the time dimension strings that are made
+ * from them.
+ * @author Jon
+ */
+public class TimeRunsTest {
+
+    private static final long HOUR = 3600000L;
+
+    @Test
+    public void testRegularAxis() {
+        long[] times = new long[1000];
+        for (int i = 0; i < times.length; i++) times[i] = 5000 + i * HOUR;
+        TimeRuns runs = TimeRuns.find(times, times.length);
+        assertEquals(1, runs.getNumRuns());
+        assertEquals(1000, runs.getNumTimes(0));
+        assertEquals(HOUR, runs.getPeriod(0));
+        assertEquals(times[999], runs.getEnd(0));
+        assertEquals(0, runs.findIndex(5000));
+        assertEquals(999, runs.findIndex(times[999]));
+        assertEquals(-1, runs.findIndex(0));
+        assertEquals(-2, runs.findIndex(5001));
+        assertEquals(-1001, runs.findIndex(times[999] + HOUR));
+    }
+
+    @Test
+    public void testRuns() {
+        long[] times = {0, 10, 20, 30, 100, 200, 250, 300, 350, 1000};
+        TimeRuns runs = TimeRuns.find(times, times.length);
+        assertEquals(4, runs.getNumRuns());
+        assertEquals(4, runs.getNumTimes(0));
+        assertEquals(100, runs.getStart(1));
+        assertEquals(2, runs.getNumTimes(1));
+        assertEquals(250, runs.getStart(2));
+        assertEquals(3, runs.getNumTimes(2));
+        assertEquals(0, runs.getPeriod(3));
+        assertEquals(0, TimeRuns.find(times, 0).getNumRuns());
+    }
+
+    /** Compares the search with a binary search on random axes */
+    @Test
+    public void testFindIndex() {
+        Random random = new Random(7);
+        for (int trial = 0; trial < 50; trial++) {
+            long[] times = new long[random.nextInt(200) + 1];
+            long t = random.nextInt(100);
+            for (int i = 0; i < times.length; i++) {
+                times[i] = t;
+                // Mostly regular, with occasional jumps
+                t += random.nextInt(10) == 0 ? random.nextInt(50) + 1 : 10;
+            }
+            TimeRuns runs = TimeRuns.find(times, times.length);
+            for (long target = -5; target <= t + 5; target++) {
+                assertEquals(Arrays.binarySearch(times, target), runs.findIndex(target));
+            }
+        }
+    }
+
+    @Test
+    public void testTimeDimensionValue() {
+        List<DateTime> times = new ArrayList<DateTime>();
+        ISOChronology iso = ISOChronology.getInstanceUTC();
+        DateTime start = new DateTime(2000, 1, 1, 0, 0, 0, 0, iso);
+        for (int h = 0; h < 48; h++) times.add(start.plusHours(h));
+        times.add(new DateTime(2000, 1, 5, 0, 0, 0, 0, iso));
+        times.add(new DateTime(2000, 1, 7, 12, 0, 0, 0, iso));
+        assertEquals("2000-01-01T00:00:00.000Z/2000-01-02T23:00:00.000Z/PT1H,"
+            + "2000-01-05T00:00:00.000Z,2000-01-07T12:00:00.000Z",
+            WmsUtils.getTimeDimensionValue(times));
+
+        // Monthly values in the 360-day calendar are regularly spaced
+        TimestepIndex index = new TimestepIndex();
+        ThreeSixtyDayChronology chron = ThreeSixtyDayChronology.getInstanceUTC();
+        for (int m = 0; m < 24; m++) {
+            index.add(new DateTime(2000, 1, 16, 0, 0, 0, 0, chron).plusMonths(m), "a.nc", m);
+        }
+        assertEquals("2000-01-16T00:00:00.000Z/2001-12-16T00:00:00.000Z/P30D",
+            WmsUtils.getTimeDimensionValue(index.asDateTimes()));
+        assertEquals(13, WmsUtils.findTimeIndex(index.asDateTimes(),
+            new DateTime(2001, 2, 16, 0, 0, 0, 0, chron)));
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2010 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.wms;
+
+import java.util.Random;
+import java.util.TreeMap;
+import org.joda.time.DateTime;
+import org.joda.time.chrono.ISOChronology;
+import org.junit.Test;
+import uk.ac.rdg.resc.edal.time.NoLeapChronology;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the {@link TimestepIndex}.
+ * @author Jon
+ */
+public class TimestepIndexTest {
+
+    private static DateTime dt(long millis) {
+        return new DateTime(millis, ISOChronology.getInstanceUTC());
+    }
+
+    @Test
+    public void testSortsTimesteps() {
+        TimestepIndex index = new TimestepIndex();
+        index.add(dt(300), "b.nc", 0);
+        index.add(dt(100), "a.nc", 0);
+        index.add(dt(200), "a.nc", 1);
+        assertEquals(3, index.size());
+        assertEquals(100, index.getMillis(0));
+        assertEquals(200, index.getMillis(1));
+        assertEquals(300, index.getMillis(2));
+        assertEquals("a.nc", index.getFilename(1));
+        assertEquals(1, index.getIndexInFile(1));
+        assertEquals("b.nc", index.getFilename(2));
+        assertEquals(dt(200), index.asDateTimes().get(1));
+    }
+
+    /** Of two timesteps at the same time, the lower index in file is kept */
+    @Test
+    public void testDuplicates() {
+        TimestepIndex index = new TimestepIndex();
+        index.add(dt(100), "run1.nc", 4);
+        index.add(dt(100), "run2.nc", 1);
+        index.add(dt(100), "run3.nc", 1);
+        assertEquals(1, index.size());
+        assertEquals("run2.nc", index.getFilename(0));
+        assertEquals(1, index.getIndexInFile(0));
+        // Timesteps added after reading are merged with the existing ones
+        index.add(dt(100), "run4.nc", 0);
+        index.add(dt(50), "run4.nc", 5);
+        assertEquals(2, index.size());
+        assertEquals("run4.nc", index.getFilename(1));
+        assertEquals(0, index.getIndexInFile(1));
+    }
+
+    @Test
+    public void testFindIndex() {
+        TimestepIndex index = new TimestepIndex();
+        assertEquals(-1, index.findIndex(100));
+        for (int i = 0; i < 10; i++) index.add(dt(i * 10), "a.nc", i);
+        assertEquals(0, index.findIndex(0));
+        assertEquals(9, index.findIndex(90));
+        assertEquals(-3, index.findIndex(15));
+        assertEquals(-11, index.findIndex(1000));
+    }
+
+    @Test
+    public void testChronology() {
+        TimestepIndex index = new TimestepIndex();
+        assertNull(index.getChronology());
+        index.add(new DateTime(2000, 2, 28, 0, 0, 0, 0,
+            NoLeapChronology.getInstanceUTC()), "a.nc", 0);
+        assertEquals(NoLeapChronology.getInstanceUTC(), index.getChronology());
+        assertEquals(index.getChronology(), index.getDateTime(0).getChronology());
+    }
+
+    /** Compares the results of adding random timesteps against a simple map */
+    @Test
+    public void testRandomMerge() {
+        Random random = new Random(42);
+        TimestepIndex index = new TimestepIndex();
+        TimestepIndex other = new TimestepIndex();
+        TreeMap<Long, Integer> expected = new TreeMap<Long, Integer>();
+        for (int i = 0; i < 5000; i++) {
+            long t = random.nextInt(3000);
+            int indexInFile = random.nextInt(10);
+            (i % 2 == 0 ? index : other).add(dt(t), "f" + indexInFile, indexInFile);
+            Integer existing = expected.get(t);
+            if (existing == null || indexInFile < existing) expected.put(t, indexInFile);
+            // Read occasionally to merge in batches
+            if (i % 700 == 0) index.size();
+        }
+        index.addAll(other);
+        assertEquals(expected.size(), index.size());
+        int i = 0;
+        for (Long t : expected.keySet()) {
+            assertEquals(t.longValue(), index.getMillis(i));
+            assertEquals(expected.get(t).intValue(), index.getIndexInFile(i));
+            assertEquals("f" + expected.get(t), index.getFilename(i));
+            i++;
+        }
+    }
+}
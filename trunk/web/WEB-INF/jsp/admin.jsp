@@ -2,6 +2,7 @@
 <%@page pageEncoding="UTF-8"%>
 <%@taglib uri="http://java.sun.com/jsp/jstl/core" prefix="c"%>
 <%@taglib uri="http://java.sun.com/jsp/jstl/functions" prefix="fn"%>
+<%@taglib uri="http://java.sun.com/jsp/jstl/fmt" prefix="fmt"%>
 <%@taglib uri="/WEB-INF/taglib/wms/wmsUtils" prefix="utils"%> <%-- tag library for useful utility functions --%>
 <%
 response.setHeader("Cache-Control","no-cache"); //HTTP 1.1
@@ -34,6 +35,7 @@ response.setDateHeader ("Expires", 0); //prevents caching at the proxy server
         </c:otherwise>
     </c:choose>
     <p><a href="usage.jsp">Usage monitor</a></p>
+    <p><a href="metrics">Performance metrics</a> (Prometheus text format; also published through JMX)</p>
     <p><a href="../">ncWMS Front page</a></p>
     
     <form id="config" action="updateConfig" method="POST">
@@ -42,7 +44,7 @@ response.setDateHeader ("Expires", 0); //prevents caching at the proxy server
         
         <h2>Datasets</h2>
         <table border="1">
-        <tr><th>Edit variables</th><th>Unique ID</th><th>Title</th><th>Location</th><th>State</th><th>Last update</th><th>Auto refresh frequency</th><th>Force refresh?</th><th>Disabled?</th><th>Queryable?</th><th>Remove?</th><th>Data reading class</th><th>Link to more info</th><th>Copyright statement</th></tr>
+        <tr><th>Edit variables</th><th>Unique ID</th><th>Title</th><th>Location</th><th>State</th><th>Last update</th><th>Auto refresh frequency</th><th>Force refresh?</th><th>Disabled?</th><th>Queryable?</th><th>Build overviews?</th><th>Remove?</th><th>Data reading class</th><th>Link to more info</th><th>Copyright statement</th></tr>
 
             <c:forEach var="datasetEntry" items="${config.allDatasets}">
                 <c:set var="dataset" value="${datasetEntry.value}"/>
@@ -86,6 +88,7 @@ response.setDateHeader ("Expires", 0); //prevents caching at the proxy server
                     <td><input type="checkbox" name="dataset.${dataset.id}.refresh"/></td>
                     <td><input type="checkbox" name="dataset.${dataset.id}.disabled"<c:if test="${dataset.disabled}"> checked="checked"</c:if>/></td>
                     <td><input type="checkbox" name="dataset.${dataset.id}.queryable"<c:if test="${dataset.queryable}"> checked="checked"</c:if>/></td>
+                    <td><input type="checkbox" name="dataset.${dataset.id}.overviews"<c:if test="${dataset.buildOverviews}"> checked="checked"</c:if>/></td>
                     <td><input type="checkbox" name="dataset.${dataset.id}.remove"/></td>
                     <td><input type="text" name="dataset.${dataset.id}.reader" value="${dataset.dataReaderClass}"/></td>
                     <td><input type="text" name="dataset.${dataset.id}.moreinfo" value="${dataset.moreInfoUrl}"/></td>
@@ -116,6 +119,7 @@ response.setDateHeader ("Expires", 0); //prevents caching at the proxy server
                     <td>N/A</td>
                     <td><input type="checkbox" name="dataset.new${i}.disabled"/></td>
                     <td><input type="checkbox" name="dataset.new${i}.queryable" checked="checked"/></td>
+                    <td><input type="checkbox" name="dataset.new${i}.overviews"/></td>
                     <td>N/A</td>
                     <td><input type="text" name="dataset.new${i}.reader" value=""/></td>
                     <td><input type="text" name="dataset.new${i}.moreinfo" value=""/></td>
@@ -131,6 +135,10 @@ response.setDateHeader ("Expires", 0); //prevents caching at the proxy server
         <p>This ncWMS server uses a cache of recently-extracted data arrays to increase
         performance and reduce the load on the server.  Note that the cache will use up
         some memory and some disk space (configurable below).</p>
+        <p>Identical requests that arrive at the same time share a single read of the data (and a single
+        rendering of the image if the image cache is enabled): since the server was started,
+        <b>${tileCache.readCoalescer.numCoalesced}</b> data reads and
+        <b>${imageCache.renderCoalescer.numCoalesced}</b> image renderings have been shared in this way.</p>
         <table border="1">
             <tr>
                 <th>Enable cache?</th>
@@ -168,6 +176,90 @@ response.setDateHeader ("Expires", 0); //prevents caching at the proxy server
                     this value gives a disk footprint for the cache of <b>${diskFootprintMB} megabytes</b>.
                 <font color="red">If you change this value you must restart the server for your change to take effect.</font></td>
             </tr>
+            <tr>
+                <th>Maximum number of open files</th>
+                <td><input type="text" name="cache.maxOpenDatasets" value="${config.cache.maxOpenDatasets}"/></td>
+                <td>Local data files are kept open (with their parsed metadata) between requests, which
+                    saves re-reading the file's coordinate systems for every image.  This sets the maximum number
+                    of local files that will be open at once, whether idle or in use: when they are all in use, further
+                    requests wait for one to be released.  Set this to zero to disable this cache (files are then opened
+                    for each request, with no limit).
+                    Currently <b>${datasetCache.numOpenDatasets}</b> files are open
+                    (<b>${datasetCache.numDatasetsInUse}</b> local files in use);
+                    <b>${datasetCache.numHits}</b> hits and <b>${datasetCache.numMisses}</b> misses since the server was started.
+                <font color="red">This can be changed while the server is running.</font></td>
+            </tr>
+            <tr>
+                <th>Off-heap store size (megabytes)</th>
+                <td><input type="text" name="cache.offHeapSizeMB" value="${config.cache.offHeapSizeMB}"/></td>
+                <td>If this is greater than zero, cached data arrays are held outside the Java heap, up to this
+                    number of megabytes, instead of in the memory and disk stores above.  The JVM's
+                    maximum direct memory (-XX:MaxDirectMemorySize) must be at least this large unless
+                    a memory-mapped file is used.
+                <font color="red">If you change this value you must restart the server for your change to take effect.</font></td>
+            </tr>
+            <tr>
+                <th>Use memory-mapped file?</th>
+                <td><input type="checkbox" name="cache.offHeapMemoryMapped"<c:if test="${config.cache.offHeapMemoryMapped}"> checked="checked"</c:if>/></td>
+                <td>Check this box to hold the off-heap store in a memory-mapped file in the working directory
+                    rather than in direct memory.  The file is recreated when the server starts.
+                <font color="red">If you change this value you must restart the server for your change to take effect.</font></td>
+            </tr>
+            <tr>
+                <th>Off-heap encoding</th>
+                <td><select name="cache.tileEncoding">
+                    <c:forEach var="encoding" items="FLOAT32,FLOAT16,BYTE">
+                        <option value="${encoding}"<c:if test="${config.cache.tileEncoding == encoding}"> selected="selected"</c:if>>${encoding}</option>
+                    </c:forEach>
+                </select></td>
+                <td>FLOAT32 stores data exactly (4 bytes per value).  FLOAT16 uses 2 bytes per value with around
+                    three significant figures.  BYTE uses 1 byte per value, quantized into 255 levels across the
+                    layer's colour scale range (extended to include all the values in the array).
+                <font color="red">If you change this value you must restart the server for your change to take effect.</font></td>
+            </tr>
+            <tr>
+                <th>Image cache size (megabytes)</th>
+                <td><input type="text" name="cache.imageCacheSizeMB" value="${config.cache.imageCacheSizeMB}"/></td>
+                <td>Finished images (e.g. PNG tiles) are cached in memory up to this number of megabytes, so that
+                    repeat requests for exactly the same image need not be re-rendered.  When this is enabled, clients
+                    are also told when they can reuse images that they already hold (using ETag and Last-Modified headers).
+                    Set this to zero to disable the image cache.
+                <font color="red">This can be changed while the server is running.</font></td>
+            </tr>
+            <tr>
+                <th>Pixel map cache size (megabytes)</th>
+                <td><input type="text" name="cache.pixelMapCacheSizeMB" value="${config.cache.pixelMapCacheSizeMB}"/></td>
+                <td>The mappings from source data grids to image pixels are held in memory up to this number of megabytes,
+                    so that they can be reused for every frame of an animation, for every variable on the same grid and
+                    for repeat requests.  Set this to zero to disable this cache.
+                    Currently <b>${pixelMapCache.numEntries}</b> mappings are held;
+                    <b>${pixelMapCache.numHits}</b> hits and <b>${pixelMapCache.numMisses}</b> misses since the server was started.
+                <font color="red">This can be changed while the server is running.</font></td>
+            </tr>
+            <tr>
+                <th>Source data cache size (megabytes)</th>
+                <td><input type="text" name="cache.sourceChunkCacheSizeMB" value="${config.cache.sourceChunkCacheSizeMB}"/></td>
+                <td>Chunks of source data are held in memory (decompressed and unpacked) up to this number of megabytes,
+                    so that neighbouring tiles and zoom levels need not read the same data again.  Set this to zero to disable this cache.
+                    Currently <b>${sourceChunkCache.numEntries}</b> chunks are held.
+                    <c:if test="${not empty sourceChunkCache.statistics}">Hit rates since the server was started:
+                        <c:forEach var="stats" items="${sourceChunkCache.statistics}">
+                            <br/>${stats.key}: <b><fmt:formatNumber value="${stats.value.hitRate}" maxFractionDigits="1"/>%</b>
+                            (${stats.value.numHits} hits, ${stats.value.numMisses} misses)
+                        </c:forEach>
+                    </c:if>
+                <font color="red">This can be changed while the server is running.</font></td>
+            </tr>
+            <tr>
+                <th>Overview disk budget (megabytes)</th>
+                <td><input type="text" name="cache.overviewDiskBudgetMB" value="${config.cache.overviewDiskBudgetMB}"/></td>
+                <td>Reduced-resolution copies of the datasets for which "Build overviews?" is ticked are kept on disk
+                    up to this number of megabytes, and are used for zoomed-out images.  The most recent timesteps are built first.
+                    Set this to zero to disable overviews.
+                    <c:if test="${not empty overviewStore}">Currently <b>${overviewStore.numEntries}</b> overviews are held,
+                        using <b><fmt:formatNumber value="${overviewStore.sizeBytes / 1048576}" maxFractionDigits="1"/></b> megabytes.</c:if>
+                <font color="red">This can be changed while the server is running.</font></td>
+            </tr>
         </table>
         
         <h2>Server settings</h2>
@@ -180,6 +272,9 @@ response.setDateHeader ("Expires", 0); //prevents caching at the proxy server
             <!-- TODO: do integer validation on max width and height -->
             <tr><th>Max image width</th><td><input type="text" name="server.maximagewidth" value="${config.server.maxImageWidth}"/></td><td>Maximum width of image that can be requested</td></tr>
             <tr><th>Max image height</th><td><input type="text" name="server.maximageheight" value="${config.server.maxImageHeight}"/></td><td>Maximum width of image that can be requested</td></tr>
+            <tr><th>Data extraction threads</th><td><input type="text" name="server.maxdataextractionthreads" value="${config.server.maxDataExtractionThreads}"/></td><td>Number of threads shared by all GetMap requests for extracting data</td></tr>
+            <tr><th>Parallel reads per request</th><td><input type="text" name="server.maxparallelreadsperrequest" value="${config.server.maxParallelReadsPerRequest}"/></td><td>Maximum number of animation frames (or vector components) that a single GetMap request can read in parallel</td></tr>
+            <tr><th>Metadata loader threads</th><td><input type="text" name="server.metadataloaderthreads" value="${config.server.metadataLoaderThreads}"/></td><td>Number of threads that load and refresh the metadata of datasets</td></tr>
             <tr><th>Allow GetFeatureInfo</th><td><input type="checkbox" name="server.allowfeatureinfo"<c:if test="${config.server.allowFeatureInfo}"> checked="checked"</c:if>/></td><td>Check this box to enable the GetFeatureInfo operation</td></tr>
             <tr><th>Allow global Capabilities</th><td><input type="checkbox" name="server.allowglobalcapabilities"<c:if test="${config.server.allowGlobalCapabilities}"> checked="checked"</c:if>/></td><td>Check this box to allow clients to request a
             WMS Capabilities document including all datasets on this server (not recommended if this server hosts a large number of datasets)</td></tr>
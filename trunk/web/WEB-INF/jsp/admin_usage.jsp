@@ -5,23 +5,22 @@
 <%@taglib uri="http://java.sun.com/jsp/jstl/fmt"  prefix="fmt"%>
 
 <%-- prepare the SQL queries that we will use on this page.
-     Note the cunning use of nullif() to allow us to count
-     total GetMap requests and cache hits in the same query.
-     Also we use count(1) instead of count(*) to increase performance --%>
+     These read the rollup tables, which are much smaller than the usage log
+     itself and are kept when old entries are purged from the log. --%>
 <sql:query var="numEntries" dataSource="${usageLogger.dataSource}">
-select count(1) as count from usage_log
+select sum(num_requests) as count from usage_rollup
 </sql:query>
 <sql:query var="getMapRequestsByClient" dataSource="${usageLogger.dataSource}">
-select client_hostname, count(1) as count, count(nullif(used_cache, false)) as used_cache
-from usage_log where wms_operation = 'GetMap' group by client_hostname order by count desc
+select source as client_hostname, sum(num_get_map) as count, sum(num_cache_hits) as used_cache
+from usage_source_rollup where source_type = 'client' group by source order by count desc
 </sql:query>
 <sql:query var="getMapRequestsByUserAgent" dataSource="${usageLogger.dataSource}">
-select client_user_agent, count(1) as count, count(nullif(used_cache, false)) as used_cache
-from usage_log where wms_operation = 'GetMap' group by client_user_agent order by count desc
+select source as client_user_agent, sum(num_get_map) as count, sum(num_cache_hits) as used_cache
+from usage_source_rollup where source_type = 'user_agent' group by source order by count desc
 </sql:query>
 <sql:query var="getMapRequestsByReferrer" dataSource="${usageLogger.dataSource}">
-select client_referrer, count(1) as count, count(nullif(used_cache, false)) as used_cache
-from usage_log where wms_operation = 'GetMap' group by client_referrer order by count desc
+select source as client_referrer, sum(num_get_map) as count, sum(num_cache_hits) as used_cache
+from usage_source_rollup where source_type = 'referrer' group by source order by count desc
 </sql:query>
 
 
@@ -34,10 +33,54 @@ from usage_log where wms_operation = 'GetMap' group by client_referrer order by
     <body>
     
     <h1>ncWMS Usage Monitor</h1>
-    <p>This page contains summary usage information.  If you need more detail you can
-    download the whole usage log (containing ${numEntries.rows[0].count} entries)
-    in CSV format (e.g. for Microsoft Excel) by clicking <a href="downloadUsageLog">here</a>.</p>
+    <p>This page contains summary usage information for ${numEntries.rows[0].count} requests.
+    If you need more detail you can download the usage log in CSV format
+    (e.g. for Microsoft Excel) by clicking <a href="downloadUsageLog">here</a>.
+    <c:if test="${usageLogger.rawRetentionDays > 0}">
+    The usage log contains the requests from the last ${usageLogger.rawRetentionDays} days.
+    </c:if></p>
+    <c:set var="writer" value="${usageLogger.writer}"/>
+    <p>Usage log queue: ${writer.queueDepth} of ${writer.capacity} entries waiting
+    to be written, ${writer.numWritten} written in ${writer.numBatches} batches,
+    ${writer.numDropped} dropped because the queue was full
+    and ${writer.numFailed} lost through errors
+    (overflow policy: ${writer.overflowPolicy}).</p>
     
+    <h2>Requests by layer in the last ${days} days</h2>
+    <p>Show the last <a href="usage.jsp?days=1">1</a>, <a href="usage.jsp?days=7">7</a>,
+    <a href="usage.jsp?days=30">30</a> or <a href="usage.jsp?days=365">365</a> days.
+    Times to extract data are in milliseconds: percentiles are estimated.</p>
+    <table border="1">
+        <tr>
+            <th>Layer</th>
+            <th>Operation</th>
+            <th>Output format</th>
+            <th>Number of requests</th>
+            <th>Percentage cache hits</th>
+            <th>Number of errors</th>
+            <th>Mean time to extract data</th>
+            <th>Median</th>
+            <th>95th percentile</th>
+            <th>99th percentile</th>
+            <th>Maximum</th>
+        </tr>
+        <c:forEach var="summary" items="${summaries}">
+            <tr>
+                <td>${summary.layer}</td>
+                <td>${summary.operation}</td>
+                <td>${summary.outputFormat}</td>
+                <td>${summary.numRequests}</td>
+                <td><fmt:formatNumber value="${summary.cacheHitRatio}" type="percent" minFractionDigits="2"/></td>
+                <td>${summary.numErrors}</td>
+                <td>${summary.meanExtractMs}</td>
+                <td>${summary.medianExtractMs}</td>
+                <td>${summary.p95ExtractMs}</td>
+                <td>${summary.p99ExtractMs}</td>
+                <td>${summary.maxExtractMs}</td>
+            </tr>
+        </c:forEach>
+    </table>
+
     <h2>GetMap requests by client</h2>
     <table border="1">
         <tr>
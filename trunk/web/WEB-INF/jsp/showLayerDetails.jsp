@@ -68,6 +68,9 @@ response.setDateHeader ("Expires", 0); //prevents caching at the proxy server
         <%-- The time axis units: "ISO8601" for "normal" axes, "360_day" for
              axes that use the 360-day calendar, etc. --%>
         <json:property name="timeAxisUnits" value="${utils:getTimeAxisUnits(layer.chronology)}"/>
+        <%-- All the values on the time axis, as in the Capabilities document:
+             regularly-spaced values are written as start/end/period --%>
+        <json:property name="timeDimension" value="${utils:getTimeDimensionValue(layer.timeValues)}"/>
     </c:if>
     
     <json:property name="moreInfo" value="${layer.dataset.moreInfoUrl}"/>